@@ -54,6 +54,17 @@ public abstract class AbstractCommand implements RhizomeCommand {
 	 */
 	protected abstract void execute() throws ReRouteRequest;
 
+	/**
+	 * Drop the parameters and results of the last request.
+	 * <p>The configuration and repository manager are kept. Subclasses that implement
+	 * {@link com.technosophos.rhizome.controller.PoolableCommand} should override this
+	 * to clear any other per-request fields, and call <code>super.reset()</code>.</p>
+	 */
+	public void reset() {
+		this.params = null;
+		this.results = null;
+	}
+	
 	/**
 	 * This simply stores the {@link CommandConfiguration} and {@link RepositoryManager} locally.
 	 * Override this if you need any special initialization done.
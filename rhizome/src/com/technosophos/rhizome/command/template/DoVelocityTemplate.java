@@ -8,12 +8,14 @@ import com.technosophos.rhizome.command.AbstractCommand;
 import com.technosophos.rhizome.controller.CommandConfiguration;
 import com.technosophos.rhizome.controller.CommandInitializationException;
 import com.technosophos.rhizome.controller.CommandResult;
+import com.technosophos.rhizome.controller.PoolableCommand;
+import com.technosophos.rhizome.controller.StreamingResult;
 import com.technosophos.rhizome.repository.RepositoryManager;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 //import org.apache.velocity.context.Context;
 import org.apache.velocity.app.VelocityEngine;
-//import org.apache.velocity.Template;
 
 /**
  * Performs velocity template rendering.
@@ -27,10 +29,13 @@ import org.apache.velocity.app.VelocityEngine;
  * CommandResult object in the list.</p>
  * <p>Commands that appear after this one in a Request Queue should perform their own 
  * formatting.</p>
+ * <p>Setting up the Velocity engine is costly, so this command is a {@link PoolableCommand}:
+ * initialized instances are reused by later requests. Subclasses must not keep
+ * request data in fields, or must clear it in {@link #reset()}.</p>
  * @author mbutcher
  * @see #doCommand(Map, List)
  */
-public class DoVelocityTemplate extends AbstractCommand {
+public class DoVelocityTemplate extends AbstractCommand implements PoolableCommand {
 
 	/** 
 	 * The string "template_name". 
@@ -60,8 +65,31 @@ public class DoVelocityTemplate extends AbstractCommand {
 	 */
 	public static final String TEMPLATE_MACRO_CONF = "template_macro";
 	
+	/**
+	 * The string "template_check_interval".
+	 * Number of seconds between checks for changes to a template file that has already
+	 * been parsed. The default is {@link VelocityEngineCache#DEFAULT_CHECK_INTERVAL}. Zero
+	 * or less means that changed templates are never re-read (until the server restarts).
+	 * @see CommandConfiguration
+	 */
+	public static final String TEMPLATE_CHECK_INTERVAL_CONF = "template_check_interval";
+	
+	/**
+	 * The string "template_stream".
+	 * If this is "true", the template is not rendered by the command. Instead, the
+	 * command's result is a {@link StreamingResult} that renders the template straight
+	 * into the response when the server writes it out. This saves holding the whole
+	 * page in memory, and lets the first bytes reach the client sooner. It is best
+	 * suited to large pages, such as long lists. Errors that happen while rendering can
+	 * no longer be turned into an error page, since part of the page has already been 
+	 * sent. The default is "false".
+	 * @see CommandConfiguration
+	 */
+	public static final String TEMPLATE_STREAM_CONF = "template_stream";
+	
 	protected VelocityEngine velen = null;
 	protected String template_name = null;
+	protected boolean stream = false;
 	//protected Map<String, Object> params = null;
 	//protected List<CommandResult> results = null;
 	
@@ -73,6 +101,8 @@ public class DoVelocityTemplate extends AbstractCommand {
 		} catch (Exception e) {
 			throw new CommandInitializationException("Failed to initialize Velocity.", e);
 		}
+		this.stream = comConf.hasDirective(TEMPLATE_STREAM_CONF) 
+			&& "true".equalsIgnoreCase(comConf.getDirective(TEMPLATE_STREAM_CONF)[0].trim());
 	}
 	
 	/**
@@ -124,9 +154,12 @@ public class DoVelocityTemplate extends AbstractCommand {
 		
 		CommandResult cr = null;
 		try {
-			String tout = this.processTemplate(cxt);
-		
-			cr = this.createCommandResult(tout);
+			if(this.stream) {
+				cr = this.createCommandResult(this.streamTemplate(cxt));
+			} else {
+				String tout = this.processTemplate(cxt);
+				cr = this.createCommandResult(tout);
+			}
 		} catch (Exception e) {
 			String err = "Failed to get Velocity template: " + e.getMessage();
 			err += "(from "+ velen.getProperty(VelocityEngine.FILE_RESOURCE_LOADER_PATH).toString()+ ")";
@@ -161,41 +194,45 @@ public class DoVelocityTemplate extends AbstractCommand {
 	 * @return An initialized VelocityContext.
 	 */
 	protected VelocityContext createContext() {
-		VelocityContext basic = new VelocityContext();
-		//System.err.format("There are %d Items in context.", basic.getKeys().length);
-		Object o;
-		//ArrayList errors = new ArrayList();
+		Map<String, String[]> directives = this.comConf.getDirectives();
+		int size = this.results.size() + this.params.size() + directives.size() + 1;
+		HashMap<String, Object> vars = new HashMap<String, Object>(size * 2);
 		HashMap<String, CommandResult> err = new HashMap<String, CommandResult>();
+		
+		/*
+		 * Later entries replace earlier ones, so this is done in order of increasing
+		 * precedence: results (in list order), then params, then directives.
+		 */
+		Object o;
 		for(CommandResult cr: this.results) {
-			
-			if( cr.hasInfoMap() ) basic = new VelocityContext(cr.getInfoMap(), basic);
+			if( cr.hasInfoMap() ) putAll(vars, cr.getInfoMap());
 			if(cr.hasError()) {
-				//c.put(cr.getName(), cr);
 				err.put(cr.getName(), cr);
 			} else {
 				o = cr.getResult();
-				/*
-				//Chain, effectively flattening the map.
-				if(o instanceof Map) {
-					c = new VelocityContext((Map)o, c);
-				// Put it in the map.
-				} else {
-					c.put(cr.getCommandName(), o);
-				}
-				*/
 				if(o != null)
-					basic.put(cr.getName(), o);
+					vars.put(cr.getName(), o);
 			}
 		}
-		basic = new VelocityContext(this.params, basic);
-		VelocityContext c = new VelocityContext(this.comConf.getDirectives(), basic);
-		c.put("ERRORS", err);
+		putAll(vars, this.params);
+		putAll(vars, directives);
+		vars.put("ERRORS", err);
 		/*
-		 * If the final context contains a Map, then Velocity uses that Map to cache
-		 * variables. This leads to variable bleeding between templates. To resolve
-		 * this, we have to wrap the context inside of another context. Weird....
+		 * The map is ours alone, so variables set by the template (#set) cannot
+		 * bleed into the params or into other templates.
 		 */
-		return new VelocityContext(c);
+		return new VelocityContext(vars);
+	}
+	
+	/**
+	 * Copy the entries of a map that have non-null values.
+	 * A null value would otherwise hide a value from a lower-precedence source.
+	 */
+	private static void putAll(Map<String, Object> dest, Map<String, ?> src) {
+		for(Map.Entry<String, ?> e: src.entrySet()) {
+			if(e.getKey() != null && e.getValue() != null) 
+				dest.put(e.getKey(), e.getValue());
+		}
 	}
 	
 	/**
@@ -212,17 +249,34 @@ public class DoVelocityTemplate extends AbstractCommand {
 	 * @throws Exception Any exception that Velocity throws is thrown here.
 	 */
 	protected String processTemplate(VelocityContext c) throws Exception {
-		StringWriter w = new StringWriter();
+		StringWriter w = new StringWriter(8192);
 		
 		this.velen.mergeTemplate(this.template_name, "UTF-8", c, w);
 		//this.velen.mergeTemplate(this.template_name, c, w);
 		return w.toString();
 	}
 	
+	/**
+	 * Prepare a template to be rendered later.
+	 * <p>This is used instead of {@link #processTemplate(VelocityContext)} when 
+	 * {@link #TEMPLATE_STREAM_CONF} is set. The template is loaded (and parsed, if it is
+	 * not cached) now, so that a missing or broken template is still reported as
+	 * an error. If you override <code>processTemplate()</code> to read templates from
+	 * elsewhere, override this too.</p>
+	 * @param c An initialized VelocityContext.
+	 * @return A result that renders the template when it is written out.
+	 * @throws Exception Any exception that Velocity throws is thrown here.
+	 */
+	protected StreamingResult streamTemplate(VelocityContext c) throws Exception {
+		Template t = this.velen.getTemplate(this.template_name, "UTF-8");
+		return new StreamingTemplateResult(t, c);
+	}
+	
 	/**
 	 * Initialize Velocity Engine.
-	 * <p>This method initializes the velocity engine as a standard class (not a 
-	 * singleton). It is called during the initialization of this command class.</p>
+	 * <p>This method gets the shared velocity engine for this command's template path and
+	 * macro libraries from {@link VelocityEngineCache}, creating it the first time those
+	 * settings are seen. It is called during the initialization of this command class.</p>
 	 * <p>It is assumed that this initialization will be able to make use of the local
 	 * instances of the {@link CommandConfiguration} and the {@RepositoryManager}.</p>
 	 *
@@ -238,46 +292,28 @@ public class DoVelocityTemplate extends AbstractCommand {
 		}
 		this.template_name = this.comConf.getDirective(TEMPLATE_NAME_CONF)[0];
 		
-		this.velen = new VelocityEngine();
+		// If there is no path... who knows where the templates come from?
+		String path = null;
+		if(this.comConf.hasDirective(TEMPLATE_PATH_CONF))
+			path = VelocityEngineCache.join(this.comConf.getDirective(TEMPLATE_PATH_CONF));
 		
-		/*
-		 * All velocity properties must be set BEFORE init() is called.
-		 */
-		if(this.comConf.hasDirective(TEMPLATE_PATH_CONF)) {
-			String [] pp = this.comConf.getDirective(TEMPLATE_PATH_CONF);
-			//System.out.println("DEBUG:  Loading template path " + pp[0]);
-			String vel_file_path = ".";
-			if( pp.length == 1) {
-				vel_file_path = pp[0];
-			} else if(pp.length > 1) {
-				StringBuffer sb = new StringBuffer();
-				for(String str: pp) {
-					sb.append(str);
-					sb.append(',');
-				}
-				vel_file_path = sb.toString();
-			}
-			
-			//MPB: Allows a template $var to be set to NULL:
-			this.velen.setProperty(VelocityEngine.SET_NULL_ALLOWED, true);
-			this.velen.setProperty(VelocityEngine.ENCODING_DEFAULT, "UTF-8");
-			
-			this.velen.setProperty(VelocityEngine.FILE_RESOURCE_LOADER_PATH, vel_file_path);
-			//System.out.println("TEMPLATE PATH:" + this.velen.getProperty(VelocityEngine.FILE_RESOURCE_LOADER_PATH));
-			//System.out.println("TEMPLATE PATH:" + vel_file_path);
-		} // else... who knows where the templates come from?
+		String macros = null;
+		if( this.comConf.hasDirective(TEMPLATE_MACRO_CONF))
+			macros = VelocityEngineCache.join(this.comConf.getDirective(TEMPLATE_MACRO_CONF));
 		
-		if( this.comConf.hasDirective(TEMPLATE_MACRO_CONF)) {
-			String [] mac_names = this.comConf.getDirective(TEMPLATE_MACRO_CONF);
-			StringBuffer sb = new StringBuffer();
-			for(String name: mac_names) {
-				sb.append(name);
-				sb.append(',');	
+		int interval = VelocityEngineCache.DEFAULT_CHECK_INTERVAL;
+		if(this.comConf.hasDirective(TEMPLATE_CHECK_INTERVAL_CONF)) {
+			String v = this.comConf.getDirective(TEMPLATE_CHECK_INTERVAL_CONF)[0];
+			try {
+				interval = Integer.parseInt(v.trim());
+			} catch (NumberFormatException nfe) {
+				throw new CommandInitializationException(String.format(
+						"Configuration parameter %s must be a number of seconds.",
+						TEMPLATE_CHECK_INTERVAL_CONF));
 			}
-			//FIXME: Should this be VM_LIBRARY or VM_LIBRARY_DEFAULT?
-			this.velen.setProperty(VelocityEngine.VM_LIBRARY, sb.toString());
 		}
-		this.velen.init();
+		
+		this.velen = VelocityEngineCache.getEngine(path, macros, interval);
 	}
 
 }
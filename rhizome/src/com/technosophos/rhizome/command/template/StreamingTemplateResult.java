@@ -0,0 +1,73 @@
+package com.technosophos.rhizome.command.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+
+import com.technosophos.rhizome.controller.StreamingResult;
+
+/**
+ * A Velocity template that is rendered when it is written out.
+ * <p>{@link DoVelocityTemplate} returns one of these when streaming is turned on. The
+ * template has already been loaded and parsed, so a missing template or a syntax
+ * error is still reported by the command. Only the merge is put off until the
+ * server writes the response.</p>
+ * @author mbutcher
+ *
+ */
+public class StreamingTemplateResult implements StreamingResult {
+
+	private Template template;
+	private VelocityContext context;
+	// Set if toString() has already rendered the template.
+	private String rendered = null;
+
+	/**
+	 * @param template A parsed template.
+	 * @param context The context to merge with it. It must not be shared with anything else.
+	 */
+	public StreamingTemplateResult(Template template, VelocityContext context) {
+		this.template = template;
+		this.context = context;
+	}
+
+	/**
+	 * Merge the template into the writer.
+	 */
+	public void writeTo(Writer out) throws IOException {
+		if(this.rendered != null) {
+			out.write(this.rendered);
+			return;
+		}
+		try {
+			this.template.merge(this.context, out);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			IOException ioe = new IOException("Failed to render template "
+					+ this.template.getName() + ": " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Render the whole template into a String.
+	 * This defeats the purpose of streaming, but works for code that expects a String.
+	 * The output is kept, so the template is only rendered once.
+	 */
+	public String toString() {
+		if(this.rendered != null) return this.rendered;
+		StringWriter w = new StringWriter(8192);
+		try {
+			this.writeTo(w);
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+		this.rendered = w.toString();
+		return this.rendered;
+	}
+}
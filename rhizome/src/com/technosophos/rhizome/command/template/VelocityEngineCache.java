@@ -0,0 +1,115 @@
+package com.technosophos.rhizome.command.template;
+
+import java.util.HashMap;
+
+import org.apache.velocity.app.VelocityEngine;
+
+/**
+ * Shares initialized Velocity engines between template commands.
+ * <p>Starting a {@link VelocityEngine} means reading its configuration and loading
+ * all of its macro libraries, and an engine that is thrown away also throws away
+ * every template it has parsed. This keeps one engine for each distinct template path,
+ * macro library list, and modification-check interval, so every command with the
+ * same settings uses the same engine.</p>
+ * <p>The engines have file resource caching turned on: a template is parsed once,
+ * and the file is checked for changes at most once per check interval. Velocity
+ * engines are safe to use from several threads once they are initialized.</p>
+ * <p>Inline macros (<code>#macro</code> in a template) are local to the template that
+ * defines them, so templates that share an engine cannot see each other's inline
+ * macros.</p>
+ * @see DoVelocityTemplate
+ * @author mbutcher
+ *
+ */
+public class VelocityEngineCache {
+
+	/** Default number of seconds between checks for changed templates. */
+	public static final int DEFAULT_CHECK_INTERVAL = 2;
+
+	private static HashMap<String, VelocityEngine> engines = new HashMap<String, VelocityEngine>();
+
+	/**
+	 * Get the engine for a set of template settings, creating it if necessary.
+	 * @param path Template path (comma-separated directories), or null to leave
+	 * Velocity's defaults alone.
+	 * @param macros Comma-separated list of macro library files, or null for none.
+	 * @param checkInterval Seconds between checks for changed template files. Zero or
+	 * less means a template is never read again once it has been parsed.
+	 * @return An initialized engine.
+	 * @throws Exception if Velocity cannot be initialized.
+	 */
+	public static VelocityEngine getEngine(String path, String macros, int checkInterval)
+			throws Exception {
+		String key = path + '|' + macros + '|' + checkInterval;
+		synchronized(engines) {
+			VelocityEngine velen = engines.get(key);
+			if(velen == null) {
+				velen = createEngine(path, macros, checkInterval);
+				engines.put(key, velen);
+			}
+			return velen;
+		}
+	}
+
+	/**
+	 * Drop all shared engines. Commands that already hold an engine keep using it;
+	 * after this, new commands get new engines (and re-read all templates).
+	 */
+	public static void clear() {
+		synchronized(engines) {
+			engines.clear();
+		}
+	}
+
+	/**
+	 * Get the number of shared engines.
+	 * @return count of engines
+	 */
+	public static int size() {
+		synchronized(engines) {
+			return engines.size();
+		}
+	}
+
+	private static VelocityEngine createEngine(String path, String macros, int checkInterval)
+			throws Exception {
+		VelocityEngine velen = new VelocityEngine();
+
+		/*
+		 * All velocity properties must be set BEFORE init() is called.
+		 */
+		if(path != null) {
+			//MPB: Allows a template $var to be set to NULL:
+			velen.setProperty(VelocityEngine.SET_NULL_ALLOWED, true);
+			velen.setProperty(VelocityEngine.ENCODING_DEFAULT, "UTF-8");
+			velen.setProperty(VelocityEngine.FILE_RESOURCE_LOADER_PATH, path);
+		}
+		velen.setProperty(VelocityEngine.FILE_RESOURCE_LOADER_CACHE, "true");
+		velen.setProperty("file.resource.loader.modificationCheckInterval",
+				Integer.toString(checkInterval));
+		velen.setProperty("velocimacro.permissions.allow.inline.local.scope", "true");
+
+		if(macros != null) {
+			//FIXME: Should this be VM_LIBRARY or VM_LIBRARY_DEFAULT?
+			velen.setProperty(VelocityEngine.VM_LIBRARY, macros);
+		}
+		velen.init();
+		return velen;
+	}
+
+	/**
+	 * Turn a list of configuration values into a comma-separated string.
+	 * @param vals Values, usually from a command directive.
+	 * @return the joined values, or null if there are none.
+	 */
+	static String join(String[] vals) {
+		if(vals == null || vals.length == 0) return null;
+		if(vals.length == 1) return vals[0];
+		StringBuffer sb = new StringBuffer();
+		for(String str: vals) {
+			sb.append(str);
+			sb.append(',');
+		}
+		return sb.toString();
+	}
+}
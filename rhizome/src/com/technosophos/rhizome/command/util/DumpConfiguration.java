@@ -5,17 +5,18 @@ import java.util.Map;
 
 import com.technosophos.rhizome.controller.CommandConfiguration;
 import com.technosophos.rhizome.controller.CommandResult;
-import com.technosophos.rhizome.controller.RhizomeCommand;
+import com.technosophos.rhizome.controller.StatelessCommand;
 import com.technosophos.rhizome.repository.RepositoryManager;
 
 /**
  * This is a simple command that returns a {@link StringBuffer} object of info.
  * The info contains string representations of teh command configuration, the parameters
  * passed in, and the other items in the result list. 
+ * It keeps nothing but its configuration, so one instance serves every request.
  * @author mbutcher
  *
  */
-public class DumpConfiguration implements RhizomeCommand {
+public class DumpConfiguration implements StatelessCommand {
 	
 	CommandConfiguration cc = null;
 
@@ -0,0 +1,227 @@
+package com.technosophos.rhizome.controller;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.technosophos.rhizome.repository.RepositoryManager;
+
+/**
+ * Hands out command objects, reusing them where the command allows it.
+ * <p>Each {@link CommandConfiguration} gets its own slot. What the slot does
+ * depends on the command class:</p>
+ * <ul>
+ * <li>{@link StatelessCommand}: one instance is created and initialized the first time
+ * it is needed, and then shared by every request.</li>
+ * <li>{@link PoolableCommand}: up to {@link #getPoolSize()} idle, initialized instances
+ * are kept. A request borrows one, and it is reset and returned afterward. If the pool
+ * is empty, a new instance is created.</li>
+ * <li>Anything else: a new instance is created and initialized for every request,
+ * as before.</li>
+ * </ul>
+ * <p>In all three cases the command's constructor is looked up only once, so
+ * the class loader is not consulted on every request.</p>
+ * <p>Slots are keyed by the configuration object itself, so a configuration should not be
+ * changed once it is in use.</p>
+ * @see RhizomeController
+ * @author mbutcher
+ *
+ */
+public class CommandPool {
+
+	/** Context key: how many idle instances of each poolable command to keep. */
+	public static final String CXT_POOL_SIZE = "command_pool_size";
+
+	public static final int DEFAULT_POOL_SIZE = 8;
+
+	private static final int KIND_NEW = 0;
+	private static final int KIND_STATELESS = 1;
+	private static final int KIND_POOLED = 2;
+
+	private ConcurrentHashMap<CommandConfiguration, Slot> slots =
+		new ConcurrentHashMap<CommandConfiguration, Slot>();
+	private Map<String, Class<?>> preloaded = null;
+	private int poolSize;
+
+	private AtomicLong created = new AtomicLong();
+	private AtomicLong reused = new AtomicLong();
+	private AtomicLong createNanos = new AtomicLong();
+
+	/**
+	 * Create a pool that keeps {@link #DEFAULT_POOL_SIZE} instances of each poolable command.
+	 */
+	public CommandPool() {
+		this(DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param poolSize Number of idle instances to keep for each poolable command.
+	 * Zero turns pooling off (stateless commands are still shared).
+	 */
+	public CommandPool(int poolSize) {
+		this.poolSize = poolSize < 0 ? 0 : poolSize;
+	}
+
+	/**
+	 * Set the map of preloaded classes.
+	 * <p>A class in this map (keyed by command name) is used instead of loading the
+	 * configuration's class name.</p>
+	 * @param cmds Map of command names to classes.
+	 */
+	public void setPreloadedCommandMap(Map<String, Class<?>> cmds) {
+		this.preloaded = cmds;
+		this.slots.clear();
+	}
+
+	/**
+	 * Get the number of idle instances kept for each poolable command.
+	 * @return pool size
+	 */
+	public int getPoolSize() {
+		return this.poolSize;
+	}
+
+	/**
+	 * Get an initialized command for a configuration.
+	 * <p>Every command returned by this method must be handed back with
+	 * {@link #release(CommandConfiguration, RhizomeCommand)} when the caller is done
+	 * with it.</p>
+	 * @param cconf The command configuration.
+	 * @param rm Repository manager passed to the command's <code>init()</code>.
+	 * @return A command, ready to have <code>doCommand()</code> called.
+	 * @throws CommandNotFoundException if the command class cannot be found or created.
+	 * @throws CommandInitializationException if the command's <code>init()</code> fails.
+	 */
+	public RhizomeCommand getCommand(CommandConfiguration cconf, RepositoryManager rm)
+			throws CommandNotFoundException, CommandInitializationException {
+		Slot slot = this.getSlot(cconf);
+		switch(slot.kind) {
+		case KIND_STATELESS:
+			RhizomeCommand shared = slot.shared;
+			if(shared != null) {
+				this.reused.incrementAndGet();
+				return shared;
+			}
+			synchronized(slot) {
+				if(slot.shared == null) slot.shared = this.create(slot, cconf, rm);
+				else this.reused.incrementAndGet();
+				return slot.shared;
+			}
+		case KIND_POOLED:
+			RhizomeCommand idle = slot.idle.poll();
+			if(idle != null) {
+				this.reused.incrementAndGet();
+				return idle;
+			}
+			// The pool is empty.
+			return this.create(slot, cconf, rm);
+		default:
+			return this.create(slot, cconf, rm);
+		}
+	}
+
+	/**
+	 * Hand a command back when a request is done with it.
+	 * <p>A poolable command is reset and, if there is room, kept for the next
+	 * request. Shared commands are left alone, and others are simply dropped.</p>
+	 * @param cconf The configuration the command was obtained for.
+	 * @param command The command from {@link #getCommand(CommandConfiguration, RepositoryManager)}.
+	 */
+	public void release(CommandConfiguration cconf, RhizomeCommand command) {
+		if(command == null) return;
+		Slot slot = this.slots.get(cconf);
+		if(slot == null || slot.kind != KIND_POOLED) return;
+		try {
+			((PoolableCommand)command).reset();
+		} catch (RuntimeException e) {
+			System.err.format("Discarding command %s: reset failed (%s).\n",
+					cconf.getName(), e.getMessage());
+			return;
+		}
+		slot.idle.offer(command);
+	}
+
+	/**
+	 * Drop all shared and pooled commands. Constructors are looked up again.
+	 */
+	public void clear() {
+		this.slots.clear();
+	}
+
+	/**
+	 * Get the number of commands that have been created and initialized.
+	 * @return count of new commands
+	 */
+	public long getCreatedCount() {
+		return this.created.get();
+	}
+
+	/**
+	 * Get the number of times a shared or pooled command was used instead of creating one.
+	 * @return count of reused commands
+	 */
+	public long getReusedCount() {
+		return this.reused.get();
+	}
+
+	/**
+	 * Get the total time spent constructing and initializing commands.
+	 * @return time in nanoseconds
+	 */
+	public long getCreateNanos() {
+		return this.createNanos.get();
+	}
+
+	private RhizomeCommand create(Slot slot, CommandConfiguration cconf, RepositoryManager rm)
+			throws CommandNotFoundException, CommandInitializationException {
+		long start = System.nanoTime();
+		RhizomeCommand command = RhizomeCommandFactory.newInstance(slot.constructor);
+		command.init(cconf, rm);
+		this.createNanos.addAndGet(System.nanoTime() - start);
+		this.created.incrementAndGet();
+		return command;
+	}
+
+	private Slot getSlot(CommandConfiguration cconf) throws CommandNotFoundException {
+		Slot slot = this.slots.get(cconf);
+		if(slot != null) return slot;
+
+		Constructor<? extends RhizomeCommand> con;
+		if(this.preloaded != null && this.preloaded.containsKey(cconf.getName())) {
+			con = RhizomeCommandFactory.getConstructor(this.preloaded.get(cconf.getName()));
+		} else {
+			String classname = cconf.getCommandClassname();
+			if(classname == null)
+				throw new CommandNotFoundException("Command " + cconf.getName()
+						+ " has no associated class.");
+			con = RhizomeCommandFactory.getConstructor(classname);
+		}
+
+		Class<?> c = con.getDeclaringClass();
+		int kind = KIND_NEW;
+		if(StatelessCommand.class.isAssignableFrom(c)) kind = KIND_STATELESS;
+		else if(PoolableCommand.class.isAssignableFrom(c) && this.poolSize > 0) kind = KIND_POOLED;
+
+		slot = new Slot(con, kind, this.poolSize);
+		Slot old = this.slots.putIfAbsent(cconf, slot);
+		return old == null ? slot : old;
+	}
+
+	/**
+	 * Commands for one configuration.
+	 */
+	private static class Slot {
+		final Constructor<? extends RhizomeCommand> constructor;
+		final int kind;
+		final ArrayBlockingQueue<RhizomeCommand> idle;
+		volatile RhizomeCommand shared = null;
+
+		Slot(Constructor<? extends RhizomeCommand> constructor, int kind, int poolSize) {
+			this.constructor = constructor;
+			this.kind = kind;
+			this.idle = kind == KIND_POOLED ? new ArrayBlockingQueue<RhizomeCommand>(poolSize) : null;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.technosophos.rhizome.controller;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 import java.util.HashMap;
 /**
@@ -14,6 +16,8 @@ import java.util.HashMap;
  * <p>Generally, it is up to the implementing server to decide what to do with the
  * CommandResult and its object. Clients may introspect the object and call methods, or
  * they may simply use the object's toString() method.</p>
+ * <p>If the object is a {@link StreamingResult}, a server should use
+ * {@link #writeResult(Writer)}, which lets the object write straight to the client.</p>
  * @author mbutcher
  * @see RhizomeCommand
  * @see RhizomeController.doRequest(String, Map)
@@ -207,6 +211,27 @@ public class CommandResult {
 		return this.e;
 	}
 	
+	/**
+	 * Check whether the result writes itself to the client.
+	 * @return true if the result is a {@link StreamingResult}.
+	 */
+	public boolean isStreaming() {
+		return this.result instanceof StreamingResult;
+	}
+	
+	/**
+	 * Write the result (or the error message, if there was an error) to a writer.
+	 * <p>A {@link StreamingResult} writes itself; anything else is written using 
+	 * its <code>toString()</code> method. Nothing is written for a null result.</p>
+	 * @param out Writer, usually the response writer.
+	 * @throws IOException if writing fails.
+	 */
+	public void writeResult(Writer out) throws IOException {
+		if(this.hasError()) out.write(this.getErrorMessage());
+		else if(this.result instanceof StreamingResult) ((StreamingResult)this.result).writeTo(out);
+		else if(this.result != null) out.write(this.result.toString());
+	}
+	
 	//inherit javadoc
 	public String toString() {
 		if(this.hasError()) return this.getErrorMessage();
@@ -0,0 +1,27 @@
+package com.technosophos.rhizome.controller;
+
+/**
+ * A command that can be used again once it has been reset.
+ * <p>A command that implements this interface is initialized once, and then kept
+ * in a small pool for its {@link CommandConfiguration}. Each request borrows an
+ * instance, so an instance is never used by two requests at once. When the request
+ * is done with it, {@link #reset()} is called and the instance goes back into
+ * the pool.</p>
+ * <p>This is useful for commands whose
+ * {@link RhizomeCommand#init(CommandConfiguration, com.technosophos.rhizome.repository.RepositoryManager)}
+ * is expensive, but which store request data in fields while they run.</p>
+ * @see StatelessCommand
+ * @see CommandPool
+ * @author mbutcher
+ *
+ */
+public interface PoolableCommand extends RhizomeCommand {
+
+	/**
+	 * Drop all per-request state.
+	 * <p>This is called after each use. Anything set up by <code>init()</code> should be
+	 * kept; anything that came from the request (parameters, results, and so on)
+	 * should be released. If this throws an exception, the instance is discarded.</p>
+	 */
+	public void reset();
+}
@@ -11,7 +11,10 @@ import com.technosophos.rhizome.repository.RepositoryManager;
  * specific chunks during a request. Each request may be made up of one or more than one
  * command objects.
  * </p>
- * <p>A command object is created, initialized, and used once.</p>
+ * <p>By default, a command object is created, initialized, and used once. A command
+ * whose <code>init()</code> is expensive can instead implement {@link StatelessCommand}
+ * (one instance shared by all requests) or {@link PoolableCommand} (instances are
+ * reset and reused). See {@link CommandPool}.</p>
  * @author mbutcher
  *
  */
@@ -1,5 +1,9 @@
 package com.technosophos.rhizome.controller;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.technosophos.rhizome.repository.RepositoryManager;
 //import com.technosophos.sinciput.commands.install.VerifyEnvironment;
 /*
@@ -15,38 +19,101 @@ import java.net.MalformedURLException;
  */
 public class RhizomeCommandFactory {
 	
+	/** Constructors that have already been looked up, keyed by class name. */
+	private static ConcurrentHashMap<String, Constructor<? extends RhizomeCommand>> constructors = 
+		new ConcurrentHashMap<String, Constructor<? extends RhizomeCommand>>();
+	
 	/**
 	 * Using a command configuration, get a new command object.
 	 * This returns an initialized RhizomeCommand object, ready to have doCommand() called.
+	 * <p>This always creates a new command. {@link CommandPool} reuses commands where
+	 * it can.</p>
 	 * @param commandName the name of the command.
 	 */
 	public static RhizomeCommand getCommand(CommandConfiguration cconf, RepositoryManager rm)
 			throws CommandNotFoundException, CommandInitializationException {
-		RhizomeCommand command = null;
 		String classname = cconf.getCommandClassname();
 		
 		if(classname == null) 
 			throw new CommandNotFoundException("Command " + cconf.getName()
 					+ " has no associated class.");
 		
+		RhizomeCommand command = newInstance(getConstructor(classname));
+		command.init(cconf, rm);
+		return command;
+	}
+	
+	/**
+	 * Get the no-argument constructor for a command class.
+	 * <p>The class is loaded (with <code>Class.forName()</code>) only the first time
+	 * a class name is seen. After that, the constructor is cached.</p>
+	 * @param classname Fully qualified name of a {@link RhizomeCommand} class.
+	 * @return The constructor.
+	 * @throws CommandNotFoundException if the class cannot be found or is not a command.
+	 */
+	public static Constructor<? extends RhizomeCommand> getConstructor(String classname)
+			throws CommandNotFoundException {
+		Constructor<? extends RhizomeCommand> con = constructors.get(classname);
+		if(con != null) return con;
+		
+		Class<?> comClass;
 		try {
-			Class<?> comClass = Class.forName(classname);
+			comClass = Class.forName(classname);
 			//Class<?> comClass = altClassLoader(classname);
-			command = (RhizomeCommand)comClass.newInstance();
-			
 		} catch (ClassNotFoundException e) {
 			String cpath = System.getProperty("java.class.path");
 			String errmsg = String.format("Cannot load class: %s. Class not found in %s.", classname, cpath);
 			throw new CommandNotFoundException(errmsg, e);
+		}
+		con = getConstructor(comClass);
+		constructors.putIfAbsent(classname, con);
+		return con;
+	}
+	
+	/**
+	 * Get the no-argument constructor for an already-loaded command class.
+	 * @param comClass A class that implements {@link RhizomeCommand}.
+	 * @return The constructor.
+	 * @throws CommandNotFoundException if the class is not a command or has no 
+	 * public no-argument constructor.
+	 */
+	public static Constructor<? extends RhizomeCommand> getConstructor(Class<?> comClass)
+			throws CommandNotFoundException {
+		if(!RhizomeCommand.class.isAssignableFrom(comClass))
+			throw new CommandNotFoundException(String.format("Class %s is not a RhizomeCommand.",
+					comClass.getName()));
+		try {
+			return comClass.asSubclass(RhizomeCommand.class).getConstructor();
 		} catch (Exception e) {
 			String errmsg = String.format("Cannot create object of class %s (%s)", 
-					classname, 
+					comClass.getName(), 
+					e.getMessage());
+			throw new CommandNotFoundException(errmsg, e);
+		}
+	}
+	
+	/**
+	 * Create an uninitialized command.
+	 * @param con Constructor from {@link #getConstructor(String)}.
+	 * @return A new command. <code>init()</code> has not been called on it.
+	 * @throws CommandNotFoundException if the constructor fails.
+	 */
+	public static RhizomeCommand newInstance(Constructor<? extends RhizomeCommand> con)
+			throws CommandNotFoundException {
+		try {
+			return con.newInstance();
+		} catch (InvocationTargetException e) {
+			Throwable t = e.getCause() == null ? e : e.getCause();
+			String errmsg = String.format("Cannot create object of class %s (%s)", 
+					con.getDeclaringClass().getName(), 
+					t.getMessage());
+			throw new CommandNotFoundException(errmsg, t);
+		} catch (Exception e) {
+			String errmsg = String.format("Cannot create object of class %s (%s)", 
+					con.getDeclaringClass().getName(), 
 					e.getMessage());
 			throw new CommandNotFoundException(errmsg, e);
 		}
-		
-		command.init(cconf, rm);
-		return command;
 	}
 	/*
 	private static Class<?> altClassLoader(String cname) throws ClassNotFoundException {
@@ -3,6 +3,9 @@ package com.technosophos.rhizome.controller;
 import com.technosophos.rhizome.repository.RepositoryManager;
 import com.technosophos.rhizome.repository.RepositoryContext;
 import com.technosophos.rhizome.RhizomeException;
+import com.technosophos.rhizome.metrics.Gauge;
+import com.technosophos.rhizome.metrics.MetricsRegistry;
+import com.technosophos.rhizome.metrics.Timer;
 import java.util.LinkedList;
 //import java.util.Queue;
 import java.util.HashMap;
@@ -33,6 +36,17 @@ import java.util.List;
  * way of retrieving such mappings is with the XMLRequstConfigurationReader, in
  * which case an XML file containing mappings is read, and converted into an appropriately
  * formatted HashMap.</p>
+ * <hr/>
+ * <p>Command objects are obtained from a {@link CommandPool}. Commands that are
+ * {@link StatelessCommand}s or {@link PoolableCommand}s are reused from one request
+ * to the next; all others are created and initialized for each request. The
+ * <code>command_pool_size</code> context param ({@link CommandPool#CXT_POOL_SIZE})
+ * sets how many idle instances of each poolable command are kept.</p>
+ * <hr/>
+ * <p>Every request and command is timed in a {@link MetricsRegistry} (see 
+ * {@link #getMetrics()}). The servlets time each request up to the end of
+ * rendering its results. Timings are only printed to the console if the
+ * <code>log_timing</code> context param ({@link #CXT_LOG_TIMING}) is "true".</p>
  * @see XMLRequestConfigurationReader
  * @see CommandConfiguration
  * @author mbutcher
@@ -41,10 +55,15 @@ import java.util.List;
  */
 public class RhizomeController {
 
+	/** Context key: if "true", print the time taken by each request and command. */
+	public static final String CXT_LOG_TIMING = "log_timing";
+
 	private Map<String, RequestConfiguration> cqMap = null;
 	private Map<String, Class<?>> preloaded = null;
 	private RepositoryManager repoman = null;
-	//private boolean timeCommands = true;
+	private CommandPool pool = new CommandPool();
+	private boolean timeCommands = false;
+	private MetricsRegistry metrics = new MetricsRegistry();
 	protected RepositoryContext repocxt = null;
 	
 	/**
@@ -72,6 +91,7 @@ public class RhizomeController {
 		this.repocxt = cxt;
 		this.repoman = new RepositoryManager();
 		this.repoman.init(cxt);
+		this.initCommandPool(cxt);
 	}
 	
 	/**
@@ -88,6 +108,55 @@ public class RhizomeController {
 		this.repocxt = cxt;
 		this.repoman = new RepositoryManager();
 		this.repoman.init(cxt);
+		this.initCommandPool(cxt);
+	}
+	
+	/**
+	 * Create the command pool, sized from the context.
+	 */
+	private void initCommandPool(RepositoryContext cxt) {
+		int size = CommandPool.DEFAULT_POOL_SIZE;
+		String v = cxt.getParam(CommandPool.CXT_POOL_SIZE);
+		if(v != null) {
+			try {
+				size = Integer.parseInt(v.trim());
+			} catch (NumberFormatException nfe) {
+				System.err.format("Ignoring bad %s value: %s\n", CommandPool.CXT_POOL_SIZE, v);
+			}
+		}
+		this.pool = new CommandPool(size);
+		this.pool.setPreloadedCommandMap(this.preloaded);
+		
+		this.timeCommands = "true".equalsIgnoreCase(cxt.getParam(CXT_LOG_TIMING));
+		final CommandPool p = this.pool;
+		this.metrics.addGauge("commands_created", new Gauge() {
+			public long getValue() { return p.getCreatedCount(); }
+		});
+		this.metrics.addGauge("commands_reused", new Gauge() {
+			public long getValue() { return p.getReusedCount(); }
+		});
+		this.metrics.addGauge("commands_create_micros", new Gauge() {
+			public long getValue() { return p.getCreateNanos() / 1000; }
+		});
+	}
+	
+	/**
+	 * Get the metrics for this controller.
+	 * <p>These include a timer for every request and command, counters for 
+	 * reroutes, and gauges for command creation.</p>
+	 * @return the metrics registry.
+	 */
+	public MetricsRegistry getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Get the command pool.
+	 * <p>This can be used to see how many commands have been created and reused.</p>
+	 * @return the pool that supplies command objects.
+	 */
+	public CommandPool getCommandPool() {
+		return this.pool;
 	}
 	
 	/**
@@ -120,11 +189,13 @@ public class RhizomeController {
 	 * check to see if any command classes have been preloaded. If they have, then
 	 * the preloaded version will be used instead. This is more efficient than using
 	 * a classloader each request.</p>
+	 * <p>Any commands already shared or pooled are dropped.</p>
 	 * @param cmds
 	 */
 	public void setPreloadedCommandMap(Map<String, Class<?>> cmds) {
 		if(cmds == null || cmds.size() == 0) return;
 		this.preloaded = cmds;
+		this.pool.setPreloadedCommandMap(cmds);
 	}
 	
 	/**
@@ -153,8 +224,25 @@ public class RhizomeController {
 	 */
 	public LinkedList<CommandResult> doRequest(String requestName, Map<String, Object> data) 
 			throws RequestNotFoundException {
+		return this.doRequest(requestName, data, true);
+	}
+	
+	/**
+	 * Handle a request, and choose whether it is timed here.
+	 * <p>A servlet renders the results after this returns, so it times the request
+	 * itself, with the same {@link MetricsRegistry#TYPE_REQUEST} timer, and passes
+	 * false so that the request is not counted twice. A rerouted request is then
+	 * covered by the caller's timer too.</p>
+	 * @param requestName
+	 * @param data
+	 * @param timed If false, the request's timer is left to the caller. Commands are 
+	 * still timed.
+	 * @return
+	 * @throws RequestNotFoundException
+	 */
+	public LinkedList<CommandResult> doRequest(String requestName, Map<String, Object> data, boolean timed) 
+			throws RequestNotFoundException {
 		
-		long requestStart = System.currentTimeMillis();
 		LinkedList<CommandResult> results = new LinkedList<CommandResult>();
 		
 		if(!this.cqMap.containsKey(requestName))
@@ -162,22 +250,21 @@ public class RhizomeController {
 		RequestConfiguration rconf = this.cqMap.get(requestName);
 		Iterator<CommandConfiguration> commands = rconf.getQueue().iterator();
 		
+		Timer timer = timed ? this.metrics.getTimer(MetricsRegistry.TYPE_REQUEST, requestName) : null;
+		long requestStart = timed ? timer.start() : System.nanoTime();
+		boolean failed = false;
 		CommandConfiguration cconf = null;
 		try {
-			long startTime, endTime, totalTime;// = System.currentTimeMillis();
 			while (commands.hasNext()) {
 				cconf = commands.next();
-				System.out.format("Doing command %s.\n", cconf.getName());
-				startTime = System.currentTimeMillis();
+				if(this.timeCommands) System.out.format("Doing command %s.\n", cconf.getName());
 				this.doCommand(cconf, data, results);
-				endTime = System.currentTimeMillis();
-				totalTime = endTime - startTime;
-				System.out.format("Command: There are %d results. Computed in %d milliseconds.\n", results.size(), totalTime);
 			}
 		} catch (ReRouteRequest rrr) {
 			// Reroute a request to a new request and begin processing again.
 			results.clear();
 			String rrreqname = rrr.getRequestName();
+			this.metrics.increment("reroute:" + requestName);
 			if(!this.cqMap.containsKey(rrreqname)) {
 				//results.clear();
 				CommandResult res;
@@ -191,9 +278,10 @@ public class RhizomeController {
 			data.put("rerouterequest", rrr);
 			//rconf = this.cqMap.get(rrreqname);
 			//commands = rconf.getQueue().iterator();
-			return this.doRequest(rrreqname, data);
+			return this.doRequest(rrreqname, data, timed);
 			
 		} catch (FatalCommandException fce) {
+			failed = true;
 			results.clear();
 			CommandResult res;
 			String errMsg = String.format("Fatal Error in %s: %s.", requestName, fce.getMessage());
@@ -203,8 +291,10 @@ public class RhizomeController {
 			res.setError(errMsg, ferrMsg, fce);
 			results.add(res);
 		} finally {
-			long requestTime = System.currentTimeMillis() - requestStart;
-			System.out.format("Request %s took %d milliseconds (%.2f seconds).\n", requestName, requestTime, (float)requestTime/1000F);
+			long requestTime = (timed ? timer.stop(requestStart, failed) 
+					: System.nanoTime() - requestStart) / 1000000;
+			if(this.timeCommands)
+				System.out.format("Request %s took %d milliseconds (%.2f seconds).\n", requestName, requestTime, (float)requestTime/1000F);
 		}
 		return results;
 	}
@@ -220,27 +310,25 @@ public class RhizomeController {
 	 */
 	protected void doCommand(CommandConfiguration cconf, Map<String, Object> data, List<CommandResult> results) 
 			throws FatalCommandException, ReRouteRequest {
+		RhizomeCommand command = null;
+		Timer timer = this.metrics.getTimer(MetricsRegistry.TYPE_COMMAND, cconf.getName());
+		long start = timer.start();
+		boolean failed = true;
 		try {
-			RhizomeCommand command;
-			if(this.preloaded != null && this.preloaded.containsKey(cconf.getName())) {
-				Class<?> c = this.preloaded.get(cconf.getName());
-				command = (RhizomeCommand)c.newInstance();
-				command.init(cconf, this.repoman);
-			} else
-				command = RhizomeCommandFactory.getCommand(cconf, this.repoman);
+			command = this.pool.getCommand(cconf, this.repoman);
+			long ready = System.nanoTime();
+			this.metrics.getTimer(MetricsRegistry.TYPE_ACQUIRE, cconf.getName()).record(ready - start);
+			
+			CommandResult last = results.isEmpty() ? null : results.get(results.size() - 1);
 			command.doCommand(data, results);
-		} catch (IllegalAccessException e) {
-			if (cconf.failOnError()) {
-				String err = "Fatal error in " +cconf.getName() + ".";
-				throw new FatalCommandException(err, e);
-			} else {
-				String errMsg = "Cannot access command " + cconf.getName() + ".";
-				String ferrMsg = "The server could not find the tools required to handle this request.";
-				CommandResult res = new CommandResult(cconf.getName());
-				res.setError(errMsg, ferrMsg, e);
-				results.add(res);
-			}		
-		} catch (InstantiationException e) {
+			// A command reports an error by adding an error result.
+			CommandResult added = results.isEmpty() ? null : results.get(results.size() - 1);
+			failed = added != null && added != last && added.hasError();
+		} catch (ReRouteRequest rrr) {
+			// Not a failure: the request continues elsewhere.
+			failed = false;
+			throw rrr;
+		} catch (CommandInitializationException e) {
 			if (cconf.failOnError()) {
 				String err = "Fatal error in " +cconf.getName() + ".";
 				throw new FatalCommandException(err, e);
@@ -262,6 +350,12 @@ public class RhizomeController {
 				res.setError(errMsg, ferrMsg, re);
 				results.add(res);
 			}			
+		} finally {
+			this.pool.release(cconf, command);
+			long elapsed = timer.stop(start, failed);
+			if(this.timeCommands)
+				System.out.format("Command %s: There are %d results. Computed in %d milliseconds.\n", 
+						cconf.getName(), results.size(), elapsed / 1000000);
 		}
 	}
 	
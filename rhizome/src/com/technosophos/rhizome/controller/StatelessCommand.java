@@ -0,0 +1,18 @@
+package com.technosophos.rhizome.controller;
+
+/**
+ * A command that keeps no per-request state.
+ * <p>A command that implements this interface is created and initialized once for
+ * each {@link CommandConfiguration}, and that one instance is then used for every
+ * request, possibly by several threads at the same time. Everything that
+ * {@link RhizomeCommand#doCommand(java.util.Map, java.util.List)} needs must come
+ * from its arguments or from what was set up in
+ * {@link RhizomeCommand#init(CommandConfiguration, com.technosophos.rhizome.repository.RepositoryManager)}.</p>
+ * @see PoolableCommand
+ * @see CommandPool
+ * @author mbutcher
+ *
+ */
+public interface StatelessCommand extends RhizomeCommand {
+
+}
@@ -0,0 +1,30 @@
+package com.technosophos.rhizome.controller;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A command result that writes itself out when it is presented.
+ * <p>Normally a presentation command (a template, for instance) renders its whole
+ * output into a String, which the server then copies to the client. A command can
+ * instead put a StreamingResult into its {@link CommandResult}. The server
+ * then calls {@link #writeTo(Writer)} with the response writer, and the output goes
+ * to the client as it is produced, without ever being held in memory all at once.</p>
+ * <p>Rendering happens after the command (and the rest of the request's commands)
+ * have finished, so an implementation must hold on to everything it needs. It must
+ * not depend on fields of a command that may be reused.</p>
+ * <p>{@link #toString()} must still return the complete output, for code that
+ * expects a String.</p>
+ * @see CommandResult#writeResult(Writer)
+ * @author mbutcher
+ *
+ */
+public interface StreamingResult {
+
+	/**
+	 * Write the output.
+	 * @param out Writer to send output to. It is not flushed or closed.
+	 * @throws IOException if writing fails, or if rendering fails part way through.
+	 */
+	public void writeTo(Writer out) throws IOException;
+}
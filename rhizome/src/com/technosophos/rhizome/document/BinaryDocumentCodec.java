@@ -0,0 +1,359 @@
+package com.technosophos.rhizome.document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Stores documents in a compact binary format.
+ * <p>Only Rhizome reads its repository files, so there is no need to pay for XML
+ * on every read and write. The layout is:</p>
+ * <pre>
+ * magic       "RZB" 0x01
+ * docID       string
+ * names       count, then count strings
+ * metadata    count, then for each: name, datatype, value count, values (strings)
+ * relations   count, then for each: docID (string), relation type
+ * extensions  count, then for each: name, indexible (byte), XML (string)
+ * body        flags (byte), MIME type, length in bytes, UTF-8 bytes
+ * </pre>
+ * <p>Counts and lengths are unsigned varints (7 bits per byte, low bits first).
+ * A string is a length in bytes followed by UTF-8. Metadata names, datatypes,
+ * relation types, extension names and the MIME type are written once, in the
+ * names table, and referred to by index (plus one; zero means null). Decoded
+ * names are interned, since the same few names turn up in every document.</p>
+ * <p>The body comes last. When decoded, it is not turned into a String until
+ * it is used (see {@link LazyRhizomeData}).</p>
+ * @author mbutcher
+ *
+ */
+public class BinaryDocumentCodec implements DocumentCodec {
+
+	/** Codec name: binary */
+	public static final String NAME = "binary";
+
+	private static final byte[] MAGIC = {'R', 'Z', 'B', 1};
+	private static final int FLAG_XML = 1;
+	private static final int FLAG_INDEX = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public String getName() {
+		return NAME;
+	}
+
+	public boolean isEncoded(byte[] head, int len) {
+		if(len < MAGIC.length) return false;
+		for(int i = 0; i < MAGIC.length; ++i) if(head[i] != MAGIC[i]) return false;
+		return true;
+	}
+
+	public void encode(RhizomeDocument doc, OutputStream out) throws IOException {
+		if(doc instanceof ProxyRhizomeDocument) {
+			doc = ((ProxyRhizomeDocument)doc).getRealDocument();
+			if(doc == null) throw new IOException("Proxied document could not be loaded.");
+		}
+		Output o = new Output();
+		o.bytes(MAGIC, 0, MAGIC.length);
+		o.string(doc.getDocumentID());
+
+		// Collect the names.
+		Names names = new Names();
+		List<Metadatum> metadata = doc.getMetadata();
+		for(Metadatum m: metadata) {
+			names.add(m.getName());
+			names.add(m.getDataType());
+		}
+		List<Relation> relations = doc.getRelations();
+		for(Relation r: relations) names.add(r.getRelationType());
+		List<Extension> extensions = doc.getExtensions();
+		for(Extension e: extensions) names.add(e.getName());
+		RhizomeData body = doc.getData();
+		if(body != null) names.add(body.getMimeType());
+
+		o.varint(names.list.size());
+		for(String n: names.list) o.string(n);
+
+		o.varint(metadata.size());
+		for(Metadatum m: metadata) {
+			o.varint(names.ref(m.getName()));
+			o.varint(names.ref(m.getDataType()));
+			List<String> values = m.getValues();
+			o.varint(values.size());
+			for(String v: values) o.string(v);
+		}
+
+		o.varint(relations.size());
+		for(Relation r: relations) {
+			o.string(r.getDocID());
+			o.varint(names.ref(r.getRelationType()));
+		}
+
+		o.varint(extensions.size());
+		for(Extension e: extensions) {
+			o.varint(names.ref(e.getName()));
+			o.write(e.isIndexible() ? 1 : 0);
+			Element root = e.getDOMDocument().getDocumentElement();
+			if(root == null) o.string("");
+			else {
+				StringWriter sw = new StringWriter();
+				new StreamingDocumentWriter(sw).writeNode(root, "");
+				o.string(sw.toString());
+			}
+		}
+
+		if(body == null) {
+			o.write(0);
+			o.varint(0);
+			o.varint(0);
+		} else {
+			o.write((body.isXMLParseable() ? FLAG_XML : 0) | (body.isIndexible() ? FLAG_INDEX : 0));
+			o.varint(names.ref(body.getMimeType()));
+			o.string(body.getData());
+		}
+
+		out.write(o.buf, 0, o.len);
+		out.flush();
+	}
+
+	/**
+	 * Read a document. The whole stream is read into memory first.
+	 */
+	public RhizomeDocument decode(InputStream in) throws IOException, RhizomeParseException {
+		byte[] buf = new byte[4096];
+		int len = 0, n;
+		while((n = in.read(buf, len, buf.length - len)) > 0) {
+			len += n;
+			if(len == buf.length) {
+				byte[] b = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, b, 0, len);
+				buf = b;
+			}
+		}
+		return this.decode(buf, 0, len);
+	}
+
+	/**
+	 * Read a document from a buffer.
+	 * The body keeps a reference to the buffer, so it must not be changed afterward.
+	 * @param buf Buffer holding the document.
+	 * @param off Start of the document.
+	 * @param len Length of the document.
+	 * @return the document.
+	 * @throws RhizomeParseException if the bytes are not a binary document.
+	 */
+	public RhizomeDocument decode(byte[] buf, int off, int len) throws RhizomeParseException {
+		boolean magic = len >= MAGIC.length;
+		for(int i = 0; magic && i < MAGIC.length; ++i) magic = buf[off + i] == MAGIC[i];
+		if(!magic) throw new RhizomeParseException("Not a binary Rhizome document.");
+		Input in = new Input(buf, off + MAGIC.length, off + len);
+		try {
+			RhizomeDocument doc = new RhizomeDocument(in.string());
+
+			String[] names = new String[in.varint()];
+			for(int i = 0; i < names.length; ++i) names[i] = in.string().intern();
+
+			for(int i = in.varint(); i > 0; --i) {
+				String name = in.name(names);
+				String type = in.name(names);
+				int count = in.varint();
+				ArrayList<String> values = new ArrayList<String>(count);
+				for(int j = 0; j < count; ++j) values.add(in.string());
+				Metadatum m = new Metadatum(name, values);
+				if(type != null) m.setDataType(type);
+				doc.addMetadatum(m);
+			}
+
+			for(int i = in.varint(); i > 0; --i) {
+				String rel = in.string();
+				doc.addRelation(new Relation(in.name(names), rel));
+			}
+
+			for(int i = in.varint(); i > 0; --i) {
+				String name = in.name(names);
+				boolean index = in.read() != 0;
+				doc.addExtension(new Extension(name, parseExtension(in.string()), index));
+			}
+
+			int flags = in.read();
+			String mimetype = in.name(names);
+			int bodyLen = in.varint();
+			if(in.pos + bodyLen > in.end) throw new ArrayIndexOutOfBoundsException(in.pos + bodyLen);
+			RhizomeData data = bodyLen == 0 ? new RhizomeData("")
+					: new LazyRhizomeData(mimetype, buf, in.pos, bodyLen);
+			if(mimetype != null) data.setMimeType(mimetype);
+			data.setXMLParseable((flags & FLAG_XML) != 0);
+			data.setIndexible((flags & FLAG_INDEX) != 0);
+			doc.setBody(data);
+			return doc;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RhizomeParseException("Binary Rhizome document is truncated.");
+		}
+	}
+
+	private static Document parseExtension(String xml) throws RhizomeParseException {
+		RhizomeDocumentBuilder b = new RhizomeDocumentBuilder();
+		try {
+			if(xml.length() == 0) return b.getParser().newDocument();
+			return b.getParser().parse(new InputSource(new StringReader(xml)));
+		} catch (RhizomeParseException rpe) {
+			throw rpe;
+		} catch (Exception e) {
+			throw new RhizomeParseException("Error getting extension XML: " + e.getMessage());
+		}
+	}
+
+	/** Names table, built while encoding. */
+	private static class Names {
+		ArrayList<String> list = new ArrayList<String>();
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+		void add(String name) {
+			if(name != null && !this.index.containsKey(name)) {
+				this.index.put(name, this.list.size());
+				this.list.add(name);
+			}
+		}
+
+		/** Index plus one, or zero for null. */
+		int ref(String name) {
+			return name == null ? 0 : this.index.get(name) + 1;
+		}
+	}
+
+	/** Growable output buffer. */
+	private static class Output {
+		byte[] buf = new byte[1024];
+		int len = 0;
+
+		void ensure(int n) {
+			if(this.len + n <= this.buf.length) return;
+			byte[] b = new byte[Math.max(this.buf.length * 2, this.len + n)];
+			System.arraycopy(this.buf, 0, b, 0, this.len);
+			this.buf = b;
+		}
+
+		void write(int b) {
+			this.ensure(1);
+			this.buf[this.len++] = (byte)b;
+		}
+
+		void bytes(byte[] b, int off, int n) {
+			this.ensure(n);
+			System.arraycopy(b, off, this.buf, this.len, n);
+			this.len += n;
+		}
+
+		void varint(int v) {
+			this.ensure(5);
+			while((v & ~0x7f) != 0) {
+				this.buf[this.len++] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			this.buf[this.len++] = (byte)v;
+		}
+
+		/** Length-prefixed UTF-8, encoded straight into the buffer. */
+		void string(String s) {
+			if(s == null) s = "";
+			int n = s.length();
+			int bytes = 0;
+			for(int i = 0; i < n; ++i) {
+				char c = s.charAt(i);
+				if(c < 0x80) bytes += 1;
+				else if(c < 0x800) bytes += 2;
+				else if(c < '\uD800' || c > '\uDFFF') bytes += 3;
+				else if(isPair(s, i)) {
+					bytes += 4;
+					++i;
+				}
+				else bytes += 1;
+			}
+			this.varint(bytes);
+			this.ensure(bytes);
+			byte[] b = this.buf;
+			int p = this.len;
+			for(int i = 0; i < n; ++i) {
+				char c = s.charAt(i);
+				if(c < 0x80) b[p++] = (byte)c;
+				else if(c < 0x800) {
+					b[p++] = (byte)(0xc0 | (c >> 6));
+					b[p++] = (byte)(0x80 | (c & 0x3f));
+				} else if(c < '\uD800' || c > '\uDFFF') {
+					b[p++] = (byte)(0xe0 | (c >> 12));
+					b[p++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					b[p++] = (byte)(0x80 | (c & 0x3f));
+				} else if(isPair(s, i)) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[p++] = (byte)(0xf0 | (cp >> 18));
+					b[p++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+					b[p++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+					b[p++] = (byte)(0x80 | (cp & 0x3f));
+				} else {
+					// An unpaired surrogate cannot be encoded. String.getBytes() does the same.
+					b[p++] = '?';
+				}
+			}
+			this.len = p;
+		}
+
+		private static boolean isPair(String s, int i) {
+			return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1));
+		}
+	}
+
+	/** Cursor over an input buffer. Reading past the end throws ArrayIndexOutOfBoundsException. */
+	private static class Input {
+		byte[] buf;
+		int pos;
+		int end;
+
+		Input(byte[] buf, int pos, int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		int read() {
+			if(this.pos >= this.end) throw new ArrayIndexOutOfBoundsException(this.pos);
+			return this.buf[this.pos++];
+		}
+
+		int varint() {
+			int v = 0;
+			for(int shift = 0; shift < 32; shift += 7) {
+				if(this.pos >= this.end) throw new ArrayIndexOutOfBoundsException(this.pos);
+				byte b = this.buf[this.pos++];
+				v |= (b & 0x7f) << shift;
+				if(b >= 0) {
+					if(v < 0) break;
+					return v;
+				}
+			}
+			throw new ArrayIndexOutOfBoundsException("Bad length at " + this.pos);
+		}
+
+		String string() {
+			int n = this.varint();
+			if(this.pos + n > this.end) throw new ArrayIndexOutOfBoundsException(this.pos + n);
+			String s = new String(this.buf, this.pos, n, UTF8);
+			this.pos += n;
+			return s;
+		}
+
+		String name(String[] names) {
+			int i = this.varint();
+			return i == 0 ? null : names[i - 1];
+		}
+	}
+}
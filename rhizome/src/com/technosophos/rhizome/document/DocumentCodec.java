@@ -0,0 +1,49 @@
+package com.technosophos.rhizome.document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns RhizomeDocuments into bytes and back, for storage.
+ * <p>A repository uses one codec for writing, but must be able to read documents
+ * written by any codec (for example, while the repository is being converted).
+ * So every format starts with bytes that identify it; see
+ * {@link #isEncoded(byte[], int)} and {@link DocumentCodecs#detect(byte[], int)}.</p>
+ * <p>Codecs must be thread safe.</p>
+ * @author mbutcher
+ * @see DocumentCodecs
+ */
+public interface DocumentCodec {
+
+	/**
+	 * Get the name of the codec, as used in configuration (e.g. "xml").
+	 * @return codec name.
+	 */
+	public String getName();
+
+	/**
+	 * Write a document. The stream is flushed, but not closed.
+	 * @param doc Document to write.
+	 * @param out Destination.
+	 * @throws IOException if the document cannot be written.
+	 */
+	public void encode(RhizomeDocument doc, OutputStream out) throws IOException;
+
+	/**
+	 * Read a document. The stream is not closed.
+	 * @param in Source, positioned at the start of the document.
+	 * @return the document.
+	 * @throws IOException if the stream cannot be read.
+	 * @throws RhizomeParseException if the bytes are not a document in this format.
+	 */
+	public RhizomeDocument decode(InputStream in) throws IOException, RhizomeParseException;
+
+	/**
+	 * Check whether bytes look like they were written by this codec.
+	 * @param head The first bytes of the document.
+	 * @param len Number of bytes in <code>head</code> that are valid.
+	 * @return true if this codec should be used to decode the document.
+	 */
+	public boolean isEncoded(byte[] head, int len);
+}
@@ -0,0 +1,67 @@
+package com.technosophos.rhizome.document;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of {@link DocumentCodec}s.
+ * <p>The XML and binary codecs are always registered. Others can be added with
+ * {@link #register(DocumentCodec)}.</p>
+ * @author mbutcher
+ *
+ */
+public class DocumentCodecs {
+
+	/** How many bytes {@link #detect(byte[], int)} wants to see. */
+	public static final int HEAD_LENGTH = 16;
+
+	private static final DocumentCodec xml = new XMLDocumentCodec();
+	private static ConcurrentHashMap<String, DocumentCodec> codecs =
+		new ConcurrentHashMap<String, DocumentCodec>();
+
+	static {
+		register(xml);
+		register(new BinaryDocumentCodec());
+	}
+
+	private DocumentCodecs() {}
+
+	/**
+	 * Add a codec. A codec with the same name is replaced.
+	 * @param codec
+	 */
+	public static void register(DocumentCodec codec) {
+		codecs.put(codec.getName().toLowerCase(), codec);
+	}
+
+	/**
+	 * Get a codec by name.
+	 * @param name Codec name (case is ignored). If null, the XML codec is returned.
+	 * @return the codec, or null if there is no such codec.
+	 */
+	public static DocumentCodec getCodec(String name) {
+		if(name == null) return xml;
+		return codecs.get(name.trim().toLowerCase());
+	}
+
+	/**
+	 * Get the XML codec.
+	 * @return the XML codec.
+	 */
+	public static DocumentCodec getXMLCodec() {
+		return xml;
+	}
+
+	/**
+	 * Work out which codec wrote a document.
+	 * @param head The first {@link #HEAD_LENGTH} bytes of the document (or all of
+	 * them, if it is shorter).
+	 * @param len Number of valid bytes in <code>head</code>.
+	 * @return the codec. If no other codec recognizes the bytes, it is XML.
+	 */
+	public static DocumentCodec detect(byte[] head, int len) {
+		for(DocumentCodec c: codecs.values()) {
+			if(c != xml && c.isEncoded(head, len)) return c;
+		}
+		return xml;
+	}
+}
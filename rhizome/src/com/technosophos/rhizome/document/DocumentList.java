@@ -2,11 +2,15 @@ package com.technosophos.rhizome.document;
 
 import static com.technosophos.rhizome.document.XMLElements.RHIZOME_DOC_XMLNS;
 
+import java.io.BufferedWriter;
 import java.io.CharArrayWriter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 
 //import com.technosophos.rhizome.repository.RepositoryManager;
 import static com.technosophos.rhizome.document.XMLElements.*;
@@ -14,18 +18,24 @@ import static com.technosophos.rhizome.document.XMLElements.*;
 import org.w3c.dom.*;
 
 import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+
+import com.technosophos.rhizome.RhizomeException;
+import com.technosophos.rhizome.repository.DocumentRepository;
 
 /**
  * Maintains a list of {@link RhizomeDocument}s.
+ * <p>Lists returned by searches hold {@link ProxyRhizomeDocument}s, which load the
+ * full document the first time it is needed. To avoid reading the documents one at
+ * a time, turn on prefetching with {@link #setPrefetchSize(int)}: then, when any row
+ * loads its document, the rows after it are loaded too, in one call to
+ * {@link DocumentRepository#getDocuments(Collection)}.</p>
  * @author mbutcher
  *
  */
 public class DocumentList extends ArrayList<RhizomeDocument> {
 	public static final long serialVersionUID = 11L;
 	private String[] fields = null;
+	private int prefetchSize = 0;
 	
 	public DocumentList(String[] fields) {
 		this.fields = fields;
@@ -44,6 +54,94 @@ public class DocumentList extends ArrayList<RhizomeDocument> {
 		return this.fields;
 	}
 	
+	/**
+	 * Get the number of documents loaded together when a proxied document is needed.
+	 * @return prefetch size, or 0 if prefetching is off.
+	 */
+	public int getPrefetchSize() {
+		return this.prefetchSize;
+	}
+	
+	/**
+	 * Turn on prefetching for the {@link ProxyRhizomeDocument}s in this list.
+	 * <p>After this, when a proxy in the list needs its full document, it and up 
+	 * to <code>size - 1</code> of the rows after it are loaded at once. Call this
+	 * after the list has been filled: only proxies in the list at the time take part.</p>
+	 * @param size Number of rows to load at once. 0 or 1 turns prefetching off.
+	 */
+	public void setPrefetchSize(int size) {
+		this.prefetchSize = size > 1 ? size : 0;
+		for(int i = 0; i < this.size(); ++i) {
+			RhizomeDocument d = this.get(i);
+			if(d instanceof ProxyRhizomeDocument)
+				((ProxyRhizomeDocument)d).setDocumentList(this.prefetchSize > 0 ? this : null, i);
+		}
+	}
+	
+	/**
+	 * Load the full documents for a range of rows.
+	 * <p>Rows that are not proxies, or are already loaded, are skipped. If a document
+	 * cannot be loaded, the error is logged, and the rows are left to load themselves.</p>
+	 * @param from Index of the first row.
+	 * @param count Number of rows.
+	 * @return number of documents loaded.
+	 */
+	public synchronized int prefetch(int from, int count) {
+		int end = Math.min(this.size(), from + count);
+		if(from < 0 || from >= end) return 0;
+		
+		// Rows from different repositories are fetched separately. There is usually only one.
+		int loaded = 0;
+		boolean[] done = new boolean[end - from];
+		for(int i = from; i < end; ++i) {
+			if(done[i - from]) continue;
+			DocumentRepository repo = null;
+			ArrayList<ProxyRhizomeDocument> rows = new ArrayList<ProxyRhizomeDocument>();
+			ArrayList<String> ids = new ArrayList<String>();
+			for(int j = i; j < end; ++j) {
+				RhizomeDocument d = this.get(j);
+				if(done[j - from] || !(d instanceof ProxyRhizomeDocument)) continue;
+				ProxyRhizomeDocument p = (ProxyRhizomeDocument)d;
+				if(p.isLoaded()) {
+					done[j - from] = true;
+					continue;
+				}
+				if(repo == null) repo = p.getRepository();
+				if(p.getRepository() != repo) continue;
+				done[j - from] = true;
+				rows.add(p);
+				ids.add(p.getDocID());
+			}
+			if(ids.isEmpty()) continue;
+			try {
+				Map<String, RhizomeDocument> docs = repo.getDocuments(ids);
+				for(ProxyRhizomeDocument p: rows) {
+					RhizomeDocument d = docs.get(p.getDocID());
+					if(d != null) {
+						p.setRealDocument(d);
+						++loaded;
+					}
+				}
+			} catch (RhizomeException e) {
+				// Each row is loaded on its own when it is used.
+				System.err.println("Could not prefetch " + ids.size() + " documents: " + e.getMessage());
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Prefetch the page of rows that starts with this proxy.
+	 * @param row The proxy that needs its document.
+	 * @param index The row's index when prefetching was turned on. If the list has
+	 * been changed since, the row is looked for.
+	 */
+	void prefetch(ProxyRhizomeDocument row, int index) {
+		if(this.prefetchSize < 2) return;
+		if(index < 0 || index >= this.size() || this.get(index) != row) index = this.indexOf(row);
+		if(index >= 0) this.prefetch(index, this.prefetchSize);
+	}
+	
 	public Document toDOM() throws ParserConfigurationException {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		DocumentBuilder db; 
@@ -71,40 +169,34 @@ public class DocumentList extends ArrayList<RhizomeDocument> {
 	
 	/**
 	 * Transform the object to XML and write it to the given output stream.
+	 * The XML is encoded as UTF-8. The stream is flushed, but not closed.
 	 * @param output
-	 * @throws ParserConfigurationException
+	 * @throws ParserConfigurationException if the XML cannot be written.
 	 */
 	public void toXML(OutputStream output) throws ParserConfigurationException {
-		Document d = this.toDOM();
 		try {
-			Transformer t = TransformerFactory.newInstance().newTransformer();
-			t.transform(new DOMSource(d), new StreamResult(output));
-		} catch (Exception e) {
-			throw new ParserConfigurationException("Could not create Transformer: " + 
-					e.getMessage());
+			Writer w = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+			new StreamingDocumentWriter(w).writeList(this);
+			w.flush();
+		} catch (IOException ioe) {
+			throw new ParserConfigurationException("Could not write XML: " + ioe.getMessage());
 		}
 	}
 	
 	/**
 	 * Transform the object to XML and write it to the given Writer.
+	 * The XML is written directly, without building a DOM first.
 	 * @param output
-	 * @throws ParserConfigurationException
+	 * @throws ParserConfigurationException if the XML cannot be written.
 	 */
 	public void toXML(Writer output) throws ParserConfigurationException {
-		Document d = this.toDOM();
-		
-		if(d == null) System.err.println("WARNING: RhizomeDocument.toXML() doc is null.");
 		if(output == null) System.err.println("WARNING: RhizomeDocument.toXML() output is null.");
 		
 		try {
-			Transformer t = TransformerFactory.newInstance().newTransformer();
-			//System.err.println("Transformer created.");
-			t.transform(new DOMSource(d), new StreamResult(output));
-		} catch (Exception e) {
-			throw new ParserConfigurationException("Could not create Transformer: " + 
-					e.getMessage());
+			new StreamingDocumentWriter(output).writeList(this);
+		} catch (IOException ioe) {
+			throw new ParserConfigurationException("Could not write XML: " + ioe.getMessage());
 		}
-		
 	}
 	
 	/**
@@ -0,0 +1,96 @@
+package com.technosophos.rhizome.document;
+
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * A RhizomeData whose text is only decoded when it is asked for.
+ * <p>{@link BinaryDocumentCodec} uses this for document bodies. The body is kept
+ * as a slice of UTF-8 bytes, so a caller that only wants metadata or relations
+ * never pays for turning a large body into a String. The MIME type and flags are
+ * available right away.</p>
+ * @author mbutcher
+ *
+ */
+class LazyRhizomeData extends RhizomeData {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Null once the body has been decoded (or replaced).
+	private byte[] buf;
+	private int off;
+	private int len;
+
+	/**
+	 * @param mimeType MIME type of the body.
+	 * @param buf Buffer holding the body. It must not be changed afterward.
+	 * @param off Offset of the body in the buffer.
+	 * @param len Length of the body, in bytes.
+	 */
+	LazyRhizomeData(String mimeType, byte[] buf, int off, int len) {
+		super(mimeType, (StringBuffer)null);
+		this.buf = buf;
+		this.off = off;
+		this.len = len;
+	}
+
+	private synchronized void load() {
+		if(this.buf == null) return;
+		super.setData(new String(this.buf, this.off, this.len, UTF8));
+		this.buf = null;
+	}
+
+	/**
+	 * Check whether the body has been decoded yet.
+	 * @return true if the body is still bytes.
+	 */
+	synchronized boolean isLoaded() {
+		return this.buf == null;
+	}
+
+	/**
+	 * Copy without decoding. The copy shares the (unchanging) byte buffer.
+	 */
+	public synchronized RhizomeData copy() {
+		if(this.buf == null) return super.copy();
+		LazyRhizomeData c = new LazyRhizomeData(this.getMimeType(), this.buf, this.off, this.len);
+		c.setXMLParseable(this.isXMLParseable());
+		c.setIndexible(this.isIndexible());
+		return c;
+	}
+
+	public int getDataLength() {
+		this.load();
+		return super.getDataLength();
+	}
+
+	public String getData() {
+		this.load();
+		return super.getData();
+	}
+
+	public Reader getDataReader() {
+		this.load();
+		return super.getDataReader();
+	}
+
+	public void appendData(String moreData) {
+		this.load();
+		super.appendData(moreData);
+	}
+
+	public synchronized void setData(String data) {
+		this.buf = null;
+		super.setData(data);
+	}
+
+	public synchronized void setData(StringBuffer data) {
+		this.buf = null;
+		super.setData(data);
+	}
+
+	public synchronized void deleteData() {
+		this.buf = null;
+		super.deleteData();
+	}
+}
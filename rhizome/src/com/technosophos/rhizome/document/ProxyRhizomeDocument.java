@@ -20,6 +20,10 @@ import com.technosophos.rhizome.RhizomeException;
  * by first populating the document ID and metadata information (typically based on a 
  * search result), but also making it possible to transparently load the full document when
  * necessary.</p>
+ * <p>When the proxy belongs to a {@link DocumentList} with prefetching turned on
+ * (see {@link DocumentList#setPrefetchSize(int)}), loading one document loads the 
+ * next few rows of the list along with it, in a single call to 
+ * {@link DocumentRepository#getDocuments(java.util.Collection)}.</p>
  * <p><b>On Setters</b>: Many of the setters for this object don't do anything. Since this is
  * not a full RhizomeDocument, only docID and metadata can be changed through this object.</p>
  * @author mbutcher
@@ -29,6 +33,9 @@ public class ProxyRhizomeDocument extends RhizomeDocument {
 	
 	protected DocumentRepository repo = null;
 	protected RhizomeDocument realDoc = null;
+	protected DocumentList list = null;
+	// This proxy's row in the list.
+	private int listIndex = -1;
 	
 	public ProxyRhizomeDocument(String docID, List<Metadatum> md, DocumentRepository r) {
 		super(docID, md);
@@ -36,6 +43,7 @@ public class ProxyRhizomeDocument extends RhizomeDocument {
 	}
 	
 	private RhizomeDocument getRealDoc() {
+		if(this.realDoc == null && this.list != null) this.list.prefetch(this, this.listIndex);
 		try {
 			if(this.realDoc == null) this.realDoc = this.repo.getDocument(this.getDocID());
 		} catch (RhizomeException e) {
@@ -45,6 +53,29 @@ public class ProxyRhizomeDocument extends RhizomeDocument {
 		return this.realDoc;
 	}
 	
+	/**
+	 * Check whether the real document has been loaded.
+	 * @return true if the real document has been loaded.
+	 */
+	public boolean isLoaded() {
+		return this.realDoc != null;
+	}
+	
+	/** Used by {@link DocumentList} to hand over a prefetched document. */
+	void setRealDocument(RhizomeDocument doc) {
+		this.realDoc = doc;
+	}
+	
+	/** Used by {@link DocumentList} to turn on prefetching. */
+	void setDocumentList(DocumentList list, int index) {
+		this.list = list;
+		this.listIndex = index;
+	}
+	
+	DocumentRepository getRepository() {
+		return this.repo;
+	}
+	
 	public List<Metadatum> getProxiedMetadata() {
 		return super.getMetadata();
 	}
@@ -1,5 +1,6 @@
 package com.technosophos.rhizome.document;
 
+import java.io.Reader;
 import java.lang.StringBuffer;
 
 public class RhizomeData {
@@ -22,6 +23,8 @@ public class RhizomeData {
 
 	private String mimeType = RHIZOME_DATA_MIME_TYPE;
 	private StringBuffer data = null;
+	// True if the buffer may be shared with a copy, so it must not be changed in place.
+	private boolean shared = false;
 	
 	private boolean canBeIndexed = true;
 	private boolean isParseable = false;
@@ -82,6 +85,7 @@ public class RhizomeData {
 	 */
 	public void setData(String data) {
 		this.data = new StringBuffer(data);
+		this.shared = false;
 	}
 
 	/**
@@ -91,6 +95,7 @@ public class RhizomeData {
 	 */
 	public void setData(StringBuffer data) {
 		this.data = data;
+		this.shared = false;
 	}
 	
 	/**
@@ -98,6 +103,10 @@ public class RhizomeData {
 	 * @param moreData
 	 */
 	public void appendData(String moreData) {
+		if(this.shared) {
+			this.data = new StringBuffer(this.data);
+			this.shared = false;
+		}
 		this.data.append(moreData);
 	}
 	
@@ -106,8 +115,24 @@ public class RhizomeData {
 	 */
 	public void deleteData() {
 		this.data = new StringBuffer();
+		this.shared = false;
 	}
 	
+	/**
+	 * Make a copy of this data, with the same MIME type and flags.
+	 * <p>The text itself is not copied. Both objects share it until one of them
+	 * appends to it, at which point that one gets its own buffer.</p>
+	 * @return a new RhizomeData.
+	 */
+	public RhizomeData copy() {
+		this.shared = true;
+		RhizomeData c = new RhizomeData(this.mimeType, this.data);
+		c.shared = true;
+		c.setXMLParseable(this.isParseable);
+		c.setIndexible(this.canBeIndexed);
+		return c;
+	}
+
 	/**
 	 * Returns the number of chars currently stored in the data
 	 * section of this object.
@@ -125,6 +150,17 @@ public class RhizomeData {
 		return this.data.toString();
 	}
 	
+	/**
+	 * Get a Reader over the data.
+	 * <p>Unlike {@link #getData()}, this does not copy the data. The reader reads 
+	 * the data as it is when each <code>read()</code> is called, so the data
+	 * should not be changed until the reader is done with it.</p>
+	 * @return Reader over the data.
+	 */
+	public Reader getDataReader() {
+		return new DataReader(this.data);
+	}
+	
 	/**
 	 * Set the MIME type. Reminder: no checking is done of the string
 	 * passed in here, though it is recommended that this be a valid MIME
@@ -226,4 +262,31 @@ public class RhizomeData {
 	public String toString() {
 		return this.getData();
 	}
+	
+	/**
+	 * Reads straight out of a StringBuffer.
+	 */
+	private static class DataReader extends Reader {
+		private StringBuffer data;
+		private int pos = 0;
+		
+		DataReader(StringBuffer data) {
+			this.data = data;
+		}
+		
+		public int read(char[] cbuf, int off, int len) {
+			int left = this.data.length() - this.pos;
+			if(left <= 0) return -1;
+			if(len > left) len = left;
+			this.data.getChars(this.pos, this.pos + len, cbuf, off);
+			this.pos += len;
+			return len;
+		}
+		
+		public boolean ready() {
+			return true;
+		}
+		
+		public void close() {}
+	}
 }
@@ -2,16 +2,16 @@ package com.technosophos.rhizome.document;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.io.BufferedWriter;
 import java.io.CharArrayWriter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 
 //import org.betterxml.xelement.XDocument;
 import org.w3c.dom.*;
 import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import com.technosophos.rhizome.document.DocumentID;
 import com.technosophos.rhizome.document.Extension;
@@ -136,7 +136,31 @@ public class RhizomeDocument implements Presentable {
 		this.extensions = extensions;
 		this.body = body;
 	}
-	
+
+	/**
+	 * Make a copy of this document that can be changed without affecting this one.
+	 * <p>Metadata and relations are copied. The body's text is shared until either
+	 * document changes it (see {@link RhizomeData#copy()}). Extensions are shared, since
+	 * copying their DOMs is expensive: do not change an extension's DOM in place.</p>
+	 * @return a new document with the same ID and contents.
+	 */
+	public RhizomeDocument copy() {
+		List<Metadatum> meta = this.getMetadata();
+		ArrayList<Metadatum> m = new ArrayList<Metadatum>(meta.size());
+		for(Metadatum md: meta) {
+			Metadatum c = new Metadatum(md.getName(), new ArrayList<String>(md.getValues()));
+			c.setDataType(md.getDataType());
+			m.add(c);
+		}
+		ArrayList<Relation> r = new ArrayList<Relation>(this.getRelations().size());
+		for(Relation rel: this.getRelations())
+			r.add(new Relation(rel.getRelationType(), rel.getDocID()));
+		RhizomeData data = this.getData();
+		return new RhizomeDocument(this.getDocumentID(), m, r,
+				data == null ? null : data.copy(),
+				new ArrayList<Extension>(this.getExtensions()));
+	}
+
 	/**
 	 * Get the document ID for this document.
 	 * @return The document ID.
@@ -659,40 +683,34 @@ public class RhizomeDocument implements Presentable {
 	
 	/**
 	 * Transform the object to XML and write it to the given output stream.
+	 * The XML is encoded as UTF-8. The stream is flushed, but not closed.
 	 * @param output
-	 * @throws ParserConfigurationException
+	 * @throws ParserConfigurationException if the XML cannot be written.
 	 */
 	public void toXML(OutputStream output) throws ParserConfigurationException {
-		Document d = this.getDOM();
 		try {
-			Transformer t = TransformerFactory.newInstance().newTransformer();
-			t.transform(new DOMSource(d), new StreamResult(output));
-		} catch (Exception e) {
-			throw new ParserConfigurationException("Could not create Transformer: " + 
-					e.getMessage());
+			Writer w = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+			new StreamingDocumentWriter(w).writeDocument(this);
+			w.flush();
+		} catch (IOException ioe) {
+			throw new ParserConfigurationException("Could not write XML: " + ioe.getMessage());
 		}
 	}
 	
 	/**
 	 * Transform the object to XML and write it to the given Writer.
+	 * The XML is written directly, without building a DOM first.
 	 * @param output
-	 * @throws ParserConfigurationException
+	 * @throws ParserConfigurationException if the XML cannot be written.
 	 */
 	public void toXML(Writer output) throws ParserConfigurationException {
-		Document d = this.getDOM();
-		
-		if(d == null) System.err.println("WARNING: RhizomeDocument.toXML() doc is null.");
 		if(output == null) System.err.println("WARNING: RhizomeDocument.toXML() output is null.");
 		
 		try {
-			Transformer t = TransformerFactory.newInstance().newTransformer();
-			//System.err.println("Transformer created.");
-			t.transform(new DOMSource(d), new StreamResult(output));
-		} catch (Exception e) {
-			throw new ParserConfigurationException("Could not create Transformer: " + 
-					e.getMessage());
+			new StreamingDocumentWriter(output).writeDocument(this);
+		} catch (IOException ioe) {
+			throw new ParserConfigurationException("Could not write XML: " + ioe.getMessage());
 		}
-		
 	}
 	
 	/**
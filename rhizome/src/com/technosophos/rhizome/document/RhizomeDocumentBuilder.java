@@ -3,11 +3,15 @@ package com.technosophos.rhizome.document;
 import static com.technosophos.rhizome.document.XMLElements.*;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.CharArrayWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -24,8 +28,36 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
 import org.w3c.dom.Text;
 
+/**
+ * Builds RhizomeDocument objects from XML.
+ * <p>Documents are read with a StAX parser in a single pass (see
+ * {@link StreamingDocumentReader}), which is much cheaper than building a DOM
+ * and walking it. To use the older DOM code instead, set the system property
+ * <code>rhizome.document.parser</code> to <code>dom</code>. DOM is also used if
+ * no StAX implementation is available.</p>
+ */
 public class RhizomeDocumentBuilder {
 
+	/** System property that selects the parser: <code>stax</code> (default) or <code>dom</code>. */
+	public static final String PARSER_PROPERTY = "rhizome.document.parser";
+
+	private static final XMLInputFactory staxFactory = createStaxFactory();
+	private static final DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+
+	private static XMLInputFactory createStaxFactory() {
+		if("dom".equalsIgnoreCase(System.getProperty(PARSER_PROPERTY))) return null;
+		try {
+			XMLInputFactory f = XMLInputFactory.newInstance();
+			f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+			f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			return f;
+		} catch (Throwable t) {
+			System.err.println("StAX not available, parsing documents with DOM: " + t.getMessage());
+			return null;
+		}
+	}
+
 	/**
 	 * Creates a new RhizomeDocumentBuilder.
 	 * The RhizomeDocumentBuilder is a class that transforms XML documents
@@ -46,10 +78,7 @@ public class RhizomeDocumentBuilder {
 	 * @throws IOException
 	 */
 	public RhizomeDocument fromXML(String xml) throws SAXException, java.io.IOException, RhizomeParseException {
-		DocumentBuilder db = this.getParser();
-		Document doc = db.parse(new ByteArrayInputStream(xml.getBytes()));
-		
-		return this.fromDOMDocument(doc);
+		return this.fromXMLDocument(new StringReader(xml));
 	}
 
 	/**
@@ -62,10 +91,7 @@ public class RhizomeDocumentBuilder {
 	 * @throws SAXException
 	 */
 	public RhizomeDocument fromXMLDocument(String filename) throws IOException, SAXException, RhizomeParseException {
-		File f = new File(filename);
-		DocumentBuilder db = this.getParser();
-		Document doc = db.parse(f);
-		return this.fromDOMDocument(doc);
+		return this.fromXMLDocument(new File(filename));
 	}
 	
 	/**
@@ -78,9 +104,13 @@ public class RhizomeDocumentBuilder {
 	 * @throws SAXException
 	 */
 	public RhizomeDocument fromXMLDocument(File xmlfile) throws IOException, SAXException, RhizomeParseException {
-		DocumentBuilder db = this.getParser();
-		Document doc = db.parse(xmlfile);
-		return this.fromDOMDocument(doc);
+		if(staxFactory == null) return this.fromDOMDocument(this.getParser().parse(xmlfile));
+		InputStream in = new FileInputStream(xmlfile);
+		try {
+			return this.fromXMLDocument(in);
+		} finally {
+			in.close();
+		}
 	}
 	
 	/**
@@ -91,33 +121,72 @@ public class RhizomeDocumentBuilder {
 	 * @throws SAXException
 	 */
 	public RhizomeDocument fromXMLDocument(Reader xmlfr) throws IOException, SAXException, RhizomeParseException {
-		DocumentBuilder db = this.getParser();
-		InputSource is = new InputSource(xmlfr);
-		Document doc = db.parse(is);
-		return this.fromDOMDocument(doc);
+		if(staxFactory == null) return this.fromDOMDocument(this.getParser().parse(new InputSource(xmlfr)));
+		try {
+			return this.read(createStreamReader(xmlfr));
+		} catch (XMLStreamException xse) {
+			throw parseError(xse);
+		}
 	}
 	
 	/**
 	 * Given an InputStream for an XML document, return a RhizomeDocument.
+	 * The encoding is taken from the XML declaration (UTF-8 by default).
 	 * @param xmlis
 	 * @return
 	 */
 	public RhizomeDocument fromXMLDocument(InputStream xmlis) throws SAXException, IOException, RhizomeParseException {
-		DocumentBuilder db = this.getParser();
-		Document doc = db.parse(xmlis);
-		return this.fromDOMDocument(doc);
+		if(staxFactory == null) return this.fromDOMDocument(this.getParser().parse(xmlis));
+		try {
+			return this.read(createStreamReader(xmlis));
+		} catch (XMLStreamException xse) {
+			throw parseError(xse);
+		}
+	}
+
+	/**
+	 * Create a StAX reader. Like the DOM factory, the StAX factory is not guaranteed
+	 * to be thread safe, so readers are created one at a time. Reading from them
+	 * needs no lock.
+	 */
+	private static XMLStreamReader createStreamReader(Reader in) throws XMLStreamException {
+		synchronized(staxFactory) {
+			return staxFactory.createXMLStreamReader(in);
+		}
+	}
+	
+	private static XMLStreamReader createStreamReader(InputStream in) throws XMLStreamException {
+		synchronized(staxFactory) {
+			return staxFactory.createXMLStreamReader(in);
+		}
+	}
+
+	/** Read a document with StAX. The stream reader is closed, but not its source. */
+	private RhizomeDocument read(XMLStreamReader r) throws XMLStreamException, RhizomeParseException {
+		try {
+			return new StreamingDocumentReader(r, this).read();
+		} finally {
+			r.close();
+		}
+	}
+
+	/** Turn a StAX error into an IOException (if that is what it was), or a parse exception. */
+	private static RhizomeParseException parseError(XMLStreamException xse) throws IOException {
+		if(xse.getNestedException() instanceof IOException)
+			throw (IOException)xse.getNestedException();
+		return new RhizomeParseException("XML Stream Exception: " + xse.getMessage(), xse);
 	}
 	
 	/**
 	 * Get a new JAXP DocumentBuilder instance.
 	 * @return new parser
 	 */
-	private DocumentBuilder getParser() throws RhizomeParseException {
+	DocumentBuilder getParser() throws RhizomeParseException {
 		try {
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			DocumentBuilder db = dbf.newDocumentBuilder();
-		
-			return db;
+			// Factories are not guaranteed to be thread safe.
+			synchronized(domFactory) {
+				return domFactory.newDocumentBuilder();
+			}
 		} catch (ParserConfigurationException pce ) {
 			throw new RhizomeParseException("Parser not configured", pce);
 		}
@@ -296,7 +365,13 @@ public class RhizomeDocumentBuilder {
 							//if(m_ele.hasAttributeNS(RHIZOME_DOC_XMLNS, RHIZOME_DOC_ATTR_NAME)) {
 							if(m_ele.hasAttribute(RHIZOME_DOC_ATTR_NAME)) {
 								Document d = db.newDocument();
-								d.importNode(m_ele, true);
+								// The extension's document root is the first child element.
+								for(Node c = m_ele.getFirstChild(); c != null; c = c.getNextSibling()) {
+									if(c.getNodeType() == Node.ELEMENT_NODE) {
+										d.appendChild(d.importNode(c, true));
+										break;
+									}
+								}
 								//String ext_name = m_ele.getAttributeNS(RHIZOME_DOC_XMLNS, RHIZOME_DOC_ATTR_NAME);
 								String ext_name = m_ele.getAttribute(RHIZOME_DOC_ATTR_NAME);
 								if(m_ele.hasAttribute(RHIZOME_DOC_ATTR_INDEX)
@@ -0,0 +1,343 @@
+package com.technosophos.rhizome.document;
+
+import static com.technosophos.rhizome.document.XMLElements.*;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Builds a RhizomeDocument from a StAX stream in a single forward pass.
+ * <p>This is what {@link RhizomeDocumentBuilder} uses, unless it has been told to
+ * use DOM. No DOM tree is built for the document. An XML body is copied straight
+ * from the stream into a string, instead of being built as a DOM element and then
+ * serialized with a Transformer.</p>
+ * <p>The result is the same as {@link RhizomeDocumentBuilder#fromDOMDocument(Document)}
+ * for any document written by {@link RhizomeDocument#toXML()}. Elements are only
+ * looked for where RhizomeDocument writes them (for example, a <code>metadatum</code>
+ * only counts inside the top-level <code>metadata</code> element).</p>
+ * <p>Extensions are rare, and are still parsed into DOM documents.</p>
+ * @author mbutcher
+ *
+ */
+class StreamingDocumentReader {
+
+	/** The Transformer puts this in front of XML bodies, so we do too. */
+	static final String XML_DECLARATION =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+	private XMLStreamReader r;
+	private RhizomeDocumentBuilder builder;
+
+	/**
+	 * @param r Reader positioned before the root element.
+	 * @param builder Used for parsing extension DOMs.
+	 */
+	StreamingDocumentReader(XMLStreamReader r, RhizomeDocumentBuilder builder) {
+		this.r = r;
+		this.builder = builder;
+	}
+
+	/**
+	 * Read the whole document.
+	 * @return the document.
+	 * @throws XMLStreamException if the XML is not well formed.
+	 * @throws RhizomeParseException if an extension cannot be parsed.
+	 */
+	RhizomeDocument read() throws XMLStreamException, RhizomeParseException {
+		this.r.nextTag(); // The root element.
+		String docID = this.r.getAttributeValue(null, RHIZOME_DOC_ATTR_DOCID);
+		RhizomeDocument rd = new RhizomeDocument(docID == null ? "" : docID);
+
+		boolean hasData = false;
+		int ev;
+		while((ev = this.r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if(ev != XMLStreamConstants.START_ELEMENT) continue;
+			String name = this.r.getLocalName();
+			if(RHIZOME_DOC_METADATA.equals(name)) this.readMetadata(rd);
+			else if(RHIZOME_DOC_RELATIONS.equals(name)) this.readRelations(rd);
+			else if(RHIZOME_DOC_DATA.equals(name) && !hasData) {
+				this.readData(rd);
+				hasData = true;
+			}
+			else if(RHIZOME_DOC_EXTENSIONS.equals(name)) this.readExtensions(rd);
+			else this.skipElement();
+		}
+		return rd;
+	}
+
+	private void readMetadata(RhizomeDocument rd) throws XMLStreamException {
+		while(this.nextChild()) {
+			if(!RHIZOME_DOC_METADATUM.equals(this.r.getLocalName())) {
+				this.skipElement();
+				continue;
+			}
+			Metadatum m = new Metadatum(this.attr(RHIZOME_DOC_ATTR_NAME));
+			while(this.nextChild()) {
+				if(RHIZOME_DOC_VALUE.equals(this.r.getLocalName())) m.addValue(this.readText());
+				else this.skipElement();
+			}
+			rd.addMetadatum(m);
+		}
+	}
+
+	private void readRelations(RhizomeDocument rd) throws XMLStreamException {
+		while(this.nextChild()) {
+			if(!RHIZOME_DOC_RELATION.equals(this.r.getLocalName())) {
+				this.skipElement();
+				continue;
+			}
+			String type = this.r.getAttributeValue(null, RHIZOME_DOC_ATTR_RELATIONTYPE);
+			String docID = this.readText();
+			if(docID.length() > 0) {
+				Relation rel = new Relation(docID);
+				if(type != null) rel.setRelationType(type);
+				rd.addRelation(rel);
+			}
+		}
+	}
+
+	/**
+	 * A data element holds either text (usually CDATA), or one XML element.
+	 * If it holds an element, that element (and only that element) is the body.
+	 */
+	private void readData(RhizomeDocument rd) throws XMLStreamException {
+		String mimetype = this.r.getAttributeValue(null, RHIZOME_DOC_ATTR_MIMETYPE);
+		String index = this.r.getAttributeValue(null, RHIZOME_DOC_ATTR_INDEX);
+
+		StringBuilder text = new StringBuilder();
+		StringBuilder xml = null;
+		int ev;
+		while((ev = this.r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if(ev == XMLStreamConstants.START_ELEMENT) {
+				xml = new StringBuilder(XML_DECLARATION);
+				this.copyElement(xml);
+			} else if(isText(ev)) {
+				text.append(this.r.getTextCharacters(), this.r.getTextStart(), this.r.getTextLength());
+			}
+		}
+
+		RhizomeData data;
+		if(xml != null) {
+			data = new RhizomeData(xml.toString());
+			data.setXMLParseable(true);
+		} else {
+			data = new RhizomeData(text.toString());
+			data.setXMLParseable(false);
+		}
+		if(mimetype != null) data.setMimeType(mimetype);
+		if(index != null) data.setIndexible("true".equals(index));
+		rd.setBody(data);
+	}
+
+	private void readExtensions(RhizomeDocument rd) throws XMLStreamException, RhizomeParseException {
+		while(this.nextChild()) {
+			String name = this.r.getAttributeValue(null, RHIZOME_DOC_ATTR_NAME);
+			if(!RHIZOME_DOC_EXTENSION.equals(this.r.getLocalName()) || name == null) {
+				this.skipElement();
+				continue;
+			}
+			String index = this.r.getAttributeValue(null, RHIZOME_DOC_ATTR_INDEX);
+
+			StringBuilder xml = null;
+			while(this.nextChild()) {
+				if(xml == null) {
+					xml = new StringBuilder();
+					this.copyElement(xml);
+				} else this.skipElement();
+			}
+
+			Document d;
+			try {
+				DocumentBuilder db = this.builder.getParser();
+				d = xml == null ? db.newDocument()
+						: db.parse(new InputSource(new StringReader(xml.toString())));
+			} catch (Exception e) {
+				throw new RhizomeParseException("Error getting extension XML: " + e.getMessage());
+			}
+			rd.addExtension(new Extension(name, d,
+					index != null && "true".equals(index.toLowerCase())));
+		}
+	}
+
+	/**
+	 * Copy the root element of a whole XML document, leaving out the prolog.
+	 * The rest of the document is read too, so that it is known to be well formed.
+	 * @param out Buffer to copy the element to.
+	 * @throws XMLStreamException if the XML is not well formed.
+	 */
+	void copyRootElement(StringBuilder out) throws XMLStreamException {
+		while(this.r.next() != XMLStreamConstants.START_ELEMENT);
+		this.copyElement(out);
+		while(this.r.hasNext()) this.r.next();
+	}
+
+	/**
+	 * Move to the next child element of the current element.
+	 * @return true if positioned on a child's start tag, false if at the parent's end tag.
+	 */
+	private boolean nextChild() throws XMLStreamException {
+		int ev;
+		while((ev = this.r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if(ev == XMLStreamConstants.START_ELEMENT) return true;
+		}
+		return false;
+	}
+
+	/** Skip from a start tag to its end tag. */
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while(depth > 0) {
+			int ev = this.r.next();
+			if(ev == XMLStreamConstants.START_ELEMENT) ++depth;
+			else if(ev == XMLStreamConstants.END_ELEMENT) --depth;
+		}
+	}
+
+	/**
+	 * Get the text directly inside the current element (text in child elements is
+	 * ignored), and move to its end tag.
+	 */
+	private String readText() throws XMLStreamException {
+		StringBuilder sb = null;
+		String first = null;
+		int ev;
+		while((ev = this.r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if(ev == XMLStreamConstants.START_ELEMENT) this.skipElement();
+			else if(isText(ev)) {
+				// Usually there is one text event, so avoid the buffer if we can.
+				if(first == null) first = this.r.getText();
+				else {
+					if(sb == null) sb = new StringBuilder(first);
+					sb.append(this.r.getTextCharacters(), this.r.getTextStart(), this.r.getTextLength());
+				}
+			}
+		}
+		if(sb != null) return sb.toString();
+		return first == null ? "" : first;
+	}
+
+	/** Get an attribute of the current element, or "" if it is not there (as DOM does). */
+	private String attr(String name) {
+		String v = this.r.getAttributeValue(null, name);
+		return v == null ? "" : v;
+	}
+
+	/**
+	 * Copy the current element, and everything in it, to the buffer as XML.
+	 * On return, the reader is on the element's end tag.
+	 */
+	private void copyElement(StringBuilder out) throws XMLStreamException {
+		int depth = 0;
+		// An open start tag is closed with "/>" if the element turns out to be empty.
+		boolean open = false;
+		int ev = XMLStreamConstants.START_ELEMENT;
+		do {
+			switch(ev) {
+			case XMLStreamConstants.START_ELEMENT:
+				if(open) out.append('>');
+				this.startTag(out);
+				open = true;
+				++depth;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if(open) out.append("/>");
+				else out.append("</").append(qname(this.r.getPrefix(), this.r.getLocalName())).append('>');
+				open = false;
+				--depth;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+				if(open) out.append('>');
+				open = false;
+				escape(out, this.r.getTextCharacters(), this.r.getTextStart(), this.r.getTextLength(), false);
+				break;
+			case XMLStreamConstants.CDATA:
+				if(open) out.append('>');
+				open = false;
+				out.append("<![CDATA[").append(this.r.getText()).append("]]>");
+				break;
+			case XMLStreamConstants.COMMENT:
+				if(open) out.append('>');
+				open = false;
+				out.append("<!--").append(this.r.getText()).append("-->");
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				if(open) out.append('>');
+				open = false;
+				out.append("<?").append(this.r.getPITarget());
+				String pid = this.r.getPIData();
+				if(pid != null && pid.length() > 0) out.append(' ').append(pid);
+				out.append("?>");
+				break;
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				if(open) out.append('>');
+				open = false;
+				out.append('&').append(this.r.getLocalName()).append(';');
+				break;
+			}
+			if(depth == 0) break;
+			ev = this.r.next();
+		} while(true);
+	}
+
+	private void startTag(StringBuilder out) {
+		out.append('<').append(qname(this.r.getPrefix(), this.r.getLocalName()));
+		// Only the declarations written on this element; inherited ones are not repeated.
+		for(int i = 0, j = this.r.getNamespaceCount(); i < j; ++i) {
+			String p = this.r.getNamespacePrefix(i);
+			out.append(" xmlns");
+			if(p != null && p.length() > 0) out.append(':').append(p);
+			out.append("=\"");
+			String uri = this.r.getNamespaceURI(i);
+			escape(out, uri == null ? "" : uri);
+			out.append('"');
+		}
+		for(int i = 0, j = this.r.getAttributeCount(); i < j; ++i) {
+			out.append(' ').append(qname(this.r.getAttributePrefix(i), this.r.getAttributeLocalName(i)));
+			out.append("=\"");
+			escape(out, this.r.getAttributeValue(i));
+			out.append('"');
+		}
+	}
+
+	private static String qname(String prefix, String local) {
+		if(prefix == null || prefix.length() == 0) return local;
+		return prefix + ":" + local;
+	}
+
+	private static boolean isText(int ev) {
+		return ev == XMLStreamConstants.CHARACTERS
+			|| ev == XMLStreamConstants.CDATA
+			|| ev == XMLStreamConstants.SPACE;
+	}
+
+	private static void escape(StringBuilder out, String s) {
+		escape(out, s.toCharArray(), 0, s.length(), true);
+	}
+
+	private static void escape(StringBuilder out, char[] c, int start, int len, boolean attr) {
+		int end = start + len;
+		int last = start;
+		for(int i = start; i < end; ++i) {
+			String rep;
+			switch(c[i]) {
+			case '&': rep = "&amp;"; break;
+			case '<': rep = "&lt;"; break;
+			case '>': rep = "&gt;"; break;
+			case '"': rep = attr ? "&quot;" : null; break;
+			default: rep = null;
+			}
+			if(rep == null) continue;
+			out.append(c, last, i - last).append(rep);
+			last = i + 1;
+		}
+		out.append(c, last, end - last);
+	}
+}
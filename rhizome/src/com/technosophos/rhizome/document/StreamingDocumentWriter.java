@@ -0,0 +1,341 @@
+package com.technosophos.rhizome.document;
+
+import static com.technosophos.rhizome.document.XMLElements.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes RhizomeDocuments as XML, straight to a Writer.
+ * <p>This is what {@link RhizomeDocument#toXML(Writer)} and
+ * {@link DocumentList#toXML(Writer)} use. No DOM is built for the document, and no
+ * Transformer is created. The output is the same as what the Transformer wrote
+ * for the document's DOM (see {@link RhizomeDocument#getDOM()}), which is still
+ * there for code that wants a DOM.</p>
+ * <p>An XML-parseable body is checked with a StAX pass and copied in as XML. If
+ * it is not well formed, it is written as CDATA, as before.</p>
+ * @author mbutcher
+ *
+ */
+class StreamingDocumentWriter {
+
+	/** Written at the start of every document. */
+	static final String XML_DECLARATION = StreamingDocumentReader.XML_DECLARATION;
+
+	// Not coalescing, so CDATA sections in a body are kept.
+	private static final XMLInputFactory bodyFactory = createBodyFactory();
+
+	private static XMLInputFactory createBodyFactory() {
+		XMLInputFactory f = XMLInputFactory.newInstance();
+		f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		try {
+			// The JDK's parser reports CDATA as plain text unless asked not to.
+			f.setProperty("http://java.sun.com/xml/stream/properties/report-cdata-event", Boolean.TRUE);
+		} catch (IllegalArgumentException iae) {
+			// Other parsers report CDATA anyway.
+		}
+		return f;
+	}
+
+	private Writer out;
+
+	/**
+	 * @param out Destination. It is not flushed or closed.
+	 */
+	StreamingDocumentWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write one document, with its XML declaration.
+	 * @param doc Document to write.
+	 * @throws IOException if the Writer fails.
+	 */
+	void writeDocument(RhizomeDocument doc) throws IOException {
+		this.out.write(XML_DECLARATION);
+		this.writeRhizome(doc, true);
+	}
+
+	/**
+	 * Write a list of documents, with the XML declaration.
+	 * @param list Documents to write.
+	 * @throws IOException if the Writer fails.
+	 */
+	void writeList(DocumentList list) throws IOException {
+		this.out.write(XML_DECLARATION);
+		this.out.write('<');
+		this.out.write(RHIZOME_DOCLIST_ROOT);
+		this.attr("xmlns", RHIZOME_DOC_XMLNS);
+		if(list.isEmpty()) {
+			this.out.write("/>");
+			return;
+		}
+		this.out.write('>');
+		for(RhizomeDocument d: list) this.writeRhizome(d, false);
+		this.endTag(RHIZOME_DOCLIST_ROOT);
+	}
+
+	/**
+	 * Write the rhizome element.
+	 * @param declareNS If true, the rhizome namespace is declared on the element.
+	 */
+	private void writeRhizome(RhizomeDocument doc, boolean declareNS) throws IOException {
+		if(doc instanceof ProxyRhizomeDocument) {
+			doc = ((ProxyRhizomeDocument)doc).getRealDocument();
+			if(doc == null) return;
+		}
+		this.out.write('<');
+		this.out.write(RHIZOME_DOC_ROOT);
+		this.attr(RHIZOME_DOC_ATTR_DOCID, doc.getDocumentID());
+		if(declareNS) this.attr("xmlns", RHIZOME_DOC_XMLNS);
+		this.out.write('>');
+
+		List<Metadatum> metadata = doc.getMetadata();
+		if(metadata.isEmpty()) this.emptyTag(RHIZOME_DOC_METADATA);
+		else {
+			this.startTag(RHIZOME_DOC_METADATA);
+			for(Metadatum m: metadata) {
+				this.out.write('<');
+				this.out.write(RHIZOME_DOC_METADATUM);
+				this.attr(RHIZOME_DOC_ATTR_DATATYPE, m.getDataType());
+				this.attr(RHIZOME_DOC_ATTR_NAME, m.getName());
+				if(!m.hasValues()) {
+					this.out.write("/>");
+					continue;
+				}
+				this.out.write('>');
+				for(String v: m.getValues()) {
+					this.startTag(RHIZOME_DOC_VALUE);
+					this.text(v);
+					this.endTag(RHIZOME_DOC_VALUE);
+				}
+				this.endTag(RHIZOME_DOC_METADATUM);
+			}
+			this.endTag(RHIZOME_DOC_METADATA);
+		}
+
+		List<Relation> relations = doc.getRelations();
+		if(relations.isEmpty()) this.emptyTag(RHIZOME_DOC_RELATIONS);
+		else {
+			this.startTag(RHIZOME_DOC_RELATIONS);
+			for(Relation r: relations) {
+				this.out.write('<');
+				this.out.write(RHIZOME_DOC_RELATION);
+				if(r.hasRelationType()) this.attr(RHIZOME_DOC_ATTR_RELATIONTYPE, r.getRelationType());
+				this.out.write('>');
+				this.text(r.getDocID());
+				this.endTag(RHIZOME_DOC_RELATION);
+			}
+			this.endTag(RHIZOME_DOC_RELATIONS);
+		}
+
+		this.writeData(doc.getData());
+
+		List<Extension> extensions = doc.getExtensions();
+		if(extensions.isEmpty()) this.emptyTag(RHIZOME_DOC_EXTENSIONS);
+		else {
+			this.startTag(RHIZOME_DOC_EXTENSIONS);
+			for(Extension ext: extensions) {
+				this.out.write('<');
+				this.out.write(RHIZOME_DOC_EXTENSION);
+				this.attr(RHIZOME_DOC_ATTR_NAME, ext.getName());
+				this.out.write('>');
+				Element root = ext.getDOMDocument().getDocumentElement();
+				// Only the rhizome namespace is in scope here (extension has none).
+				if(root != null) this.writeNode(root, RHIZOME_DOC_XMLNS);
+				this.endTag(RHIZOME_DOC_EXTENSION);
+			}
+			this.endTag(RHIZOME_DOC_EXTENSIONS);
+		}
+
+		this.endTag(RHIZOME_DOC_ROOT);
+	}
+
+	private void writeData(RhizomeData body) throws IOException {
+		if(body == null || body.getDataLength() == 0) {
+			this.emptyTag(RHIZOME_DOC_DATA);
+			return;
+		}
+		this.out.write('<');
+		this.out.write(RHIZOME_DOC_DATA);
+		this.attr(RHIZOME_DOC_ATTR_INDEX, body.isIndexible() ? "true" : "false");
+		this.attr(RHIZOME_DOC_ATTR_MIMETYPE, body.getMimeType());
+		this.out.write('>');
+		String xml = body.isXMLParseable() ? copyXMLBody(body.getData()) : null;
+		if(xml != null) this.out.write(xml);
+		else this.cdata(body.getData());
+		this.endTag(RHIZOME_DOC_DATA);
+	}
+
+	/**
+	 * Get the root element of an XML body, without the prolog.
+	 * @return the element as XML, or null if the body is not well formed.
+	 */
+	private static String copyXMLBody(String body) {
+		StringBuilder sb = new StringBuilder(body.length());
+		try {
+			XMLStreamReader r;
+			// Factories are not guaranteed to be thread safe.
+			synchronized(bodyFactory) {
+				r = bodyFactory.createXMLStreamReader(new StringReader(body));
+			}
+			try {
+				new StreamingDocumentReader(r, null).copyRootElement(sb);
+			} finally {
+				r.close();
+			}
+		} catch (Exception e) {
+			// Not XML after all (or no root element). The caller writes CDATA.
+			return null;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write a node from an extension's DOM.
+	 * @param defaultNS The default namespace in scope, or "" if there is none.
+	 */
+	void writeNode(Node n, String defaultNS) throws IOException {
+		switch(n.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			Element e = (Element)n;
+			String tag = e.getTagName();
+			this.out.write('<');
+			this.out.write(tag);
+			NamedNodeMap attrs = e.getAttributes();
+			String ns = defaultNS;
+			boolean declared = false;
+			for(int i = 0, j = attrs.getLength(); i < j; ++i) {
+				Attr a = (Attr)attrs.item(i);
+				this.attr(a.getName(), a.getValue());
+				if("xmlns".equals(a.getName())) {
+					ns = a.getValue();
+					declared = true;
+				}
+			}
+			// Namespace-aware nodes need their default namespace in scope,
+			// just as the Transformer would declare it.
+			if(!declared && e.getLocalName() != null && tag.indexOf(':') < 0) {
+				String uri = e.getNamespaceURI() == null ? "" : e.getNamespaceURI();
+				if(!uri.equals(defaultNS)) {
+					this.attr("xmlns", uri);
+					ns = uri;
+				}
+			}
+			if(!e.hasChildNodes()) {
+				this.out.write("/>");
+				break;
+			}
+			this.out.write('>');
+			for(Node c = e.getFirstChild(); c != null; c = c.getNextSibling()) this.writeNode(c, ns);
+			this.endTag(tag);
+			break;
+		case Node.TEXT_NODE:
+			this.text(n.getNodeValue());
+			break;
+		case Node.CDATA_SECTION_NODE:
+			this.cdata(n.getNodeValue());
+			break;
+		case Node.COMMENT_NODE:
+			this.out.write("<!--");
+			this.out.write(n.getNodeValue());
+			this.out.write("-->");
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			this.out.write("<?");
+			this.out.write(n.getNodeName());
+			String pid = n.getNodeValue();
+			if(pid != null && pid.length() > 0) {
+				this.out.write(' ');
+				this.out.write(pid);
+			}
+			this.out.write("?>");
+			break;
+		case Node.ENTITY_REFERENCE_NODE:
+			for(Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) this.writeNode(c, defaultNS);
+			break;
+		}
+	}
+
+	private void startTag(String name) throws IOException {
+		this.out.write('<');
+		this.out.write(name);
+		this.out.write('>');
+	}
+
+	private void endTag(String name) throws IOException {
+		this.out.write("</");
+		this.out.write(name);
+		this.out.write('>');
+	}
+
+	private void emptyTag(String name) throws IOException {
+		this.out.write('<');
+		this.out.write(name);
+		this.out.write("/>");
+	}
+
+	private void attr(String name, String value) throws IOException {
+		this.out.write(' ');
+		this.out.write(name);
+		this.out.write("=\"");
+		if(value != null) this.escape(value, true);
+		this.out.write('"');
+	}
+
+	private void text(String s) throws IOException {
+		if(s != null) this.escape(s, false);
+	}
+
+	/** Write a CDATA section. A "]]>" in the text is split over two sections. */
+	private void cdata(String s) throws IOException {
+		int start = 0, i;
+		while((i = s.indexOf("]]>", start)) >= 0) {
+			this.out.write("<![CDATA[");
+			this.out.write(s, start, i + 2 - start);
+			this.out.write("]]>");
+			start = i + 2;
+		}
+		this.out.write("<![CDATA[");
+		this.out.write(s, start, s.length() - start);
+		this.out.write("]]>");
+	}
+
+	/**
+	 * Escape markup characters, and carriage returns (which a parser would
+	 * otherwise turn into newlines). In attributes, tabs, newlines and quotes
+	 * are escaped too.
+	 */
+	private void escape(String s, boolean attr) throws IOException {
+		int last = 0;
+		for(int i = 0, j = s.length(); i < j; ++i) {
+			String rep;
+			switch(s.charAt(i)) {
+			case '&': rep = "&amp;"; break;
+			case '<': rep = "&lt;"; break;
+			case '>': rep = "&gt;"; break;
+			case '\r': rep = "&#13;"; break;
+			case '"': rep = attr ? "&quot;" : null; break;
+			case '\n': rep = attr ? "&#10;" : null; break;
+			case '\t': rep = attr ? "&#9;" : null; break;
+			default: rep = null;
+			}
+			if(rep == null) continue;
+			this.out.write(s, last, i - last);
+			this.out.write(rep);
+			last = i + 1;
+		}
+		this.out.write(s, last, s.length() - last);
+	}
+}
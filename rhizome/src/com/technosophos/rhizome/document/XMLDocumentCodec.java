@@ -0,0 +1,61 @@
+package com.technosophos.rhizome.document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Stores documents as Rhizome XML.
+ * This is the default codec, and the format every older repository is in.
+ * @author mbutcher
+ * @see RhizomeDocument#toXML(OutputStream)
+ * @see RhizomeDocumentBuilder
+ */
+public class XMLDocumentCodec implements DocumentCodec {
+
+	/** Codec name: xml */
+	public static final String NAME = "xml";
+
+	public String getName() {
+		return NAME;
+	}
+
+	public void encode(RhizomeDocument doc, OutputStream out) throws IOException {
+		try {
+			doc.toXML(out);
+		} catch (ParserConfigurationException pce) {
+			throw new IOException("Could not write XML: " + pce.getMessage());
+		}
+	}
+
+	public RhizomeDocument decode(InputStream in) throws IOException, RhizomeParseException {
+		try {
+			return new RhizomeDocumentBuilder().fromXMLDocument(in);
+		} catch (SAXException saxe) {
+			throw new RhizomeParseException("SAX Exception: " + saxe.toString());
+		}
+	}
+
+	/**
+	 * XML starts with <code>&lt;</code>, after an optional byte order mark and whitespace.
+	 */
+	public boolean isEncoded(byte[] head, int len) {
+		int i = 0;
+		// UTF-8 byte order mark.
+		if(len >= 3 && (head[0] & 0xff) == 0xef && (head[1] & 0xff) == 0xbb && (head[2] & 0xff) == 0xbf)
+			i = 3;
+		// UTF-16 byte order marks.
+		else if(len >= 2 && ((head[0] & 0xff) == 0xfe || (head[0] & 0xff) == 0xff))
+			return true;
+		for(; i < len; ++i) {
+			byte b = head[i];
+			if(b == '<') return true;
+			if(b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,16 @@
+package com.technosophos.rhizome.metrics;
+
+/**
+ * A value that is read when metrics are reported, such as a cache size.
+ * @see MetricsRegistry#addGauge(String, Gauge)
+ * @author mbutcher
+ *
+ */
+public interface Gauge {
+
+	/**
+	 * Get the current value.
+	 * @return value
+	 */
+	public long getValue();
+}
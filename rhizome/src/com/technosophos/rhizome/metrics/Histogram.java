@@ -0,0 +1,97 @@
+package com.technosophos.rhizome.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations.
+ * <p>Durations are counted in buckets whose bounds are powers of two microseconds:
+ * bucket <i>i</i> holds durations from 2<sup><i>i</i></sup> up to 2<sup><i>i</i>+1</sup>
+ * microseconds. Recording a value is a few atomic increments, so this is cheap enough
+ * to use on every request. Percentiles are estimated from the buckets, and so are
+ * accurate to within a factor of two; the mean and maximum are exact.</p>
+ * @author mbutcher
+ *
+ */
+public class Histogram {
+
+	/** Bucket 39 starts at about 6 days, which is plenty. */
+	private static final int BUCKETS = 40;
+
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record one duration.
+	 * @param nanos Duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		long micros = nanos / 1000;
+		int b = micros == 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+		if(b >= BUCKETS) b = BUCKETS - 1;
+		this.buckets.incrementAndGet(b);
+		this.count.incrementAndGet();
+		this.total.addAndGet(nanos);
+
+		long m = this.max.get();
+		while(nanos > m && !this.max.compareAndSet(m, nanos)) m = this.max.get();
+	}
+
+	/**
+	 * Get the number of durations recorded.
+	 * @return count
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Get the mean duration.
+	 * @return mean in milliseconds, or 0 if nothing has been recorded.
+	 */
+	public double getMeanMillis() {
+		long c = this.count.get();
+		if(c == 0) return 0;
+		return this.total.get() / (double)c / 1000000.0;
+	}
+
+	/**
+	 * Get the longest duration.
+	 * @return maximum in milliseconds.
+	 */
+	public double getMaxMillis() {
+		return this.max.get() / 1000000.0;
+	}
+
+	/**
+	 * Estimate a percentile.
+	 * <p>This returns the upper bound of the bucket that the percentile falls in (but
+	 * never more than the maximum), so it errs on the high side.</p>
+	 * @param p Percentile, between 0 and 1 (for example, 0.95).
+	 * @return estimated duration in milliseconds, or 0 if nothing has been recorded.
+	 */
+	public double getPercentileMillis(double p) {
+		long[] counts = new long[BUCKETS];
+		long c = 0;
+		for(int i = 0; i < BUCKETS; ++i) {
+			counts[i] = this.buckets.get(i);
+			c += counts[i];
+		}
+		if(c == 0) return 0;
+
+		long rank = (long)Math.ceil(p * c);
+		if(rank < 1) rank = 1;
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i) {
+			seen += counts[i];
+			if(seen >= rank) {
+				double upper = (1L << (i + 1)) / 1000.0;
+				return Math.min(upper, this.getMaxMillis());
+			}
+		}
+		return this.getMaxMillis();
+	}
+}
@@ -0,0 +1,234 @@
+package com.technosophos.rhizome.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects timings, counters and gauges for a {@link com.technosophos.rhizome.controller.RhizomeController}.
+ * <p>Everything here is lock-free: looking up a timer is a hash lookup, and recording
+ * a time or incrementing a counter is a handful of atomic operations. Nothing is
+ * written anywhere until someone asks for a report, so it is safe to leave on.</p>
+ * <p>Timers have a type and a name. The controller uses the types
+ * {@link #TYPE_REQUEST}, {@link #TYPE_COMMAND} and {@link #TYPE_ACQUIRE}
+ * (time taken to get a command object ready).</p>
+ * <p>There are two ways to read the metrics:</p>
+ * <ul>
+ * <li>{@link #writeText(Writer)} writes a plain-text report, one line per metric.</li>
+ * <li>{@link #register(String)} publishes the registry and each of its timers as
+ * JMX MBeans, under the domain {@link #JMX_DOMAIN}.</li>
+ * </ul>
+ * @author mbutcher
+ *
+ */
+public class MetricsRegistry implements MetricsRegistryMXBean {
+
+	public static final String JMX_DOMAIN = "com.technosophos.rhizome";
+
+	public static final String TYPE_REQUEST = "request";
+	public static final String TYPE_COMMAND = "command";
+	public static final String TYPE_ACQUIRE = "acquire";
+
+	private ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	// Set while registered with JMX.
+	private volatile String jmxName = null;
+
+	// Before Java 6, the MXBean interfaces are not compliant MBeans.
+	private static final boolean MXBEANS = hasMXBeans();
+
+	private static boolean hasMXBeans() {
+		try {
+			Class.forName("javax.management.MXBean");
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get a timer, creating it if necessary.
+	 * @param type Kind of operation, such as {@link #TYPE_REQUEST}.
+	 * @param name Name of the operation, such as the request name.
+	 * @return the timer.
+	 */
+	public Timer getTimer(String type, String name) {
+		String key = type + ' ' + name;
+		Timer t = this.timers.get(key);
+		if(t != null) return t;
+		t = new Timer(type, name);
+		Timer old = this.timers.putIfAbsent(key, t);
+		if(old != null) return old;
+		if(this.jmxName != null) this.registerTimer(t);
+		return t;
+	}
+
+	/**
+	 * Add one to a counter, creating it if necessary.
+	 * @param name Name of the counter.
+	 */
+	public void increment(String name) {
+		AtomicLong c = this.counters.get(name);
+		if(c == null) {
+			c = new AtomicLong();
+			AtomicLong old = this.counters.putIfAbsent(name, c);
+			if(old != null) c = old;
+		}
+		c.incrementAndGet();
+	}
+
+	/**
+	 * Add a gauge. A gauge with the same name is replaced.
+	 * @param name Name of the gauge.
+	 * @param g The gauge.
+	 */
+	public void addGauge(String name, Gauge g) {
+		this.gauges.put(name, g);
+	}
+
+	/**
+	 * Get the number of requests being handled right now.
+	 * A request that was rerouted counts once for each request it passed through.
+	 */
+	public int getRequestsInFlight() {
+		int n = 0;
+		for(Timer t: this.timers.values())
+			if(TYPE_REQUEST.equals(t.getType())) n += t.getInFlight();
+		return n;
+	}
+
+	public Map<String, Long> getCounters() {
+		TreeMap<String, Long> m = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> e: this.counters.entrySet())
+			m.put(e.getKey(), e.getValue().get());
+		return m;
+	}
+
+	public Map<String, Long> getGauges() {
+		TreeMap<String, Long> m = new TreeMap<String, Long>();
+		for(Map.Entry<String, Gauge> e: this.gauges.entrySet())
+			m.put(e.getKey(), e.getValue().getValue());
+		return m;
+	}
+
+	/**
+	 * Drop all timers and counters. Gauges are kept.
+	 */
+	public void reset() {
+		if(this.jmxName != null) {
+			for(Timer t: this.timers.values()) this.unregisterTimer(t);
+		}
+		this.timers.clear();
+		this.counters.clear();
+	}
+
+	/**
+	 * Write a plain-text report.
+	 * <p>Each line is one metric: a timer line starts with the timer's type and name,
+	 * followed by <code>key=value</code> pairs (times are in milliseconds). Counter and
+	 * gauge lines are <code>counter NAME VALUE</code> and <code>gauge NAME VALUE</code>.</p>
+	 * @param out Writer to write to.
+	 * @throws IOException if writing fails.
+	 */
+	public void writeText(Writer out) throws IOException {
+		out.write(String.format("requests_in_flight %d\n", this.getRequestsInFlight()));
+		for(Timer t: new TreeMap<String, Timer>(this.timers).values()) {
+			out.write(String.format(
+					"%s %s count=%d errors=%d in_flight=%d mean=%.3f p50=%.3f p95=%.3f p99=%.3f max=%.3f\n",
+					t.getType(), t.getName(), t.getCount(), t.getErrorCount(), t.getInFlight(),
+					t.getMeanMillis(), t.get50thPercentileMillis(), t.get95thPercentileMillis(),
+					t.get99thPercentileMillis(), t.getMaxMillis()));
+		}
+		for(Map.Entry<String, Long> e: this.getCounters().entrySet())
+			out.write(String.format("counter %s %d\n", e.getKey(), e.getValue()));
+		for(Map.Entry<String, Long> e: this.getGauges().entrySet())
+			out.write(String.format("gauge %s %d\n", e.getKey(), e.getValue()));
+	}
+
+	public String getTextReport() {
+		StringWriter w = new StringWriter();
+		try {
+			this.writeText(w);
+		} catch (IOException e) {
+			// StringWriter does not throw.
+		}
+		return w.toString();
+	}
+
+	/**
+	 * Publish this registry and its timers through JMX.
+	 * <p>The registry is registered as <code>com.technosophos.rhizome:type=Metrics,name=NAME</code>,
+	 * and each timer as <code>com.technosophos.rhizome:type=TYPE,registry=NAME,name=TIMER</code>.
+	 * Timers created later are registered as they are created. Failures are logged
+	 * and otherwise ignored. On Java 5, which has no MXBeans, nothing is registered.</p>
+	 * @param name Name that identifies this registry, such as the servlet name.
+	 */
+	public synchronized void register(String name) {
+		if(this.jmxName != null) this.unregister();
+		if(!MXBEANS) {
+			System.err.format("Metrics %s are not published with JMX: MXBeans need Java 6.\n", name);
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name)));
+		} catch (Exception e) {
+			System.err.format("Could not register metrics %s with JMX: %s\n", name, e.getMessage());
+			return;
+		}
+		this.jmxName = name;
+		for(Timer t: this.timers.values()) this.registerTimer(t);
+	}
+
+	/**
+	 * Remove this registry and its timers from JMX.
+	 */
+	public synchronized void unregister() {
+		String name = this.jmxName;
+		if(name == null) return;
+		for(Timer t: this.timers.values()) this.unregisterTimer(t);
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name)));
+		} catch (Exception e) {
+			System.err.format("Could not unregister metrics %s from JMX: %s\n", name, e.getMessage());
+		}
+		this.jmxName = null;
+	}
+
+	private ObjectName getTimerObjectName(Timer t) throws Exception {
+		return new ObjectName(JMX_DOMAIN + ":type=" + ObjectName.quote(t.getType())
+				+ ",registry=" + ObjectName.quote(this.jmxName)
+				+ ",name=" + ObjectName.quote(t.getName()));
+	}
+
+	private void registerTimer(Timer t) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = this.getTimerObjectName(t);
+			if(!server.isRegistered(on)) server.registerMBean(t, on);
+		} catch (Exception e) {
+			System.err.format("Could not register timer %s with JMX: %s\n", t.getName(), e.getMessage());
+		}
+	}
+
+	private void unregisterTimer(Timer t) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = this.getTimerObjectName(t);
+			if(server.isRegistered(on)) server.unregisterMBean(on);
+		} catch (Exception e) {
+			// Already gone.
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package com.technosophos.rhizome.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MetricsRegistry}.
+ * Each timer is also registered as its own {@link TimerMXBean}.
+ * @author mbutcher
+ *
+ */
+public interface MetricsRegistryMXBean {
+
+	public int getRequestsInFlight();
+	public Map<String, Long> getCounters();
+	public Map<String, Long> getGauges();
+	public String getTextReport();
+	public void reset();
+}
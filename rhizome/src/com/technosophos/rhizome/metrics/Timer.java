@@ -0,0 +1,114 @@
+package com.technosophos.rhizome.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times one kind of operation: how long it takes, how often it fails, and
+ * how many are running right now.
+ * <p>Typical use:</p>
+ * <pre>
+ * long start = timer.start();
+ * boolean failed = true;
+ * try {
+ *     ...
+ *     failed = false;
+ * } finally {
+ *     timer.stop(start, failed);
+ * }
+ * </pre>
+ * <p>Timers are created by a {@link MetricsRegistry}.</p>
+ * @author mbutcher
+ *
+ */
+public class Timer implements TimerMXBean {
+
+	private String type;
+	private String name;
+	private Histogram histogram = new Histogram();
+	private AtomicLong errors = new AtomicLong();
+	private AtomicInteger inFlight = new AtomicInteger();
+
+	Timer(String type, String name) {
+		this.type = type;
+		this.name = name;
+	}
+
+	/**
+	 * Start timing an operation.
+	 * @return start time, to be passed to {@link #stop(long, boolean)}.
+	 */
+	public long start() {
+		this.inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Finish timing an operation that was started with {@link #start()}.
+	 * @param start Value returned by <code>start()</code>.
+	 * @param error true if the operation failed.
+	 * @return elapsed time, in nanoseconds.
+	 */
+	public long stop(long start, boolean error) {
+		long elapsed = System.nanoTime() - start;
+		this.inFlight.decrementAndGet();
+		this.histogram.record(elapsed);
+		if(error) this.errors.incrementAndGet();
+		return elapsed;
+	}
+
+	/**
+	 * Record an operation that was timed elsewhere.
+	 * @param nanos Duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		this.histogram.record(nanos);
+	}
+
+	/**
+	 * Count a failure without recording a duration.
+	 */
+	public void error() {
+		this.errors.incrementAndGet();
+	}
+
+	public String getType() {
+		return this.type;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public long getCount() {
+		return this.histogram.getCount();
+	}
+
+	public long getErrorCount() {
+		return this.errors.get();
+	}
+
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	public double getMeanMillis() {
+		return this.histogram.getMeanMillis();
+	}
+
+	public double getMaxMillis() {
+		return this.histogram.getMaxMillis();
+	}
+
+	public double get50thPercentileMillis() {
+		return this.histogram.getPercentileMillis(0.50);
+	}
+
+	public double get95thPercentileMillis() {
+		return this.histogram.getPercentileMillis(0.95);
+	}
+
+	public double get99thPercentileMillis() {
+		return this.histogram.getPercentileMillis(0.99);
+	}
+}
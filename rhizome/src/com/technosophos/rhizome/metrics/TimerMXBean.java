@@ -0,0 +1,20 @@
+package com.technosophos.rhizome.metrics;
+
+/**
+ * JMX view of a {@link Timer}.
+ * @author mbutcher
+ *
+ */
+public interface TimerMXBean {
+
+	public String getType();
+	public String getName();
+	public long getCount();
+	public long getErrorCount();
+	public int getInFlight();
+	public double getMeanMillis();
+	public double getMaxMillis();
+	public double get50thPercentileMillis();
+	public double get95thPercentileMillis();
+	public double get99thPercentileMillis();
+}
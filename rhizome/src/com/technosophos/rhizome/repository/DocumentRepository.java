@@ -53,6 +53,17 @@ public interface DocumentRepository {
 	public RhizomeDocument getDocument(String docID) 
 			throws DocumentNotFoundException, RepositoryAccessException, RhizomeParseException;
 	
+	/**
+	 * Get several documents at once.
+	 * <p>Implementations may read and parse the documents in parallel, so this 
+	 * is usually much faster than calling {@link #getDocument(String)} for each one.</p>
+	 * @param docIDs
+	 * @return map of document IDs to documents, in the order of <code>docIDs</code>.
+	 * Documents that do not exist are left out.
+	 */
+	public java.util.Map<String, RhizomeDocument> getDocuments(java.util.Collection<String> docIDs)
+			throws RepositoryAccessException, RhizomeParseException;
+	
 	/**
 	 * Get a document as a raw (unparsed) Input Stream
 	 * @param docID
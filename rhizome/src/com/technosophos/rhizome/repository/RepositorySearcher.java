@@ -171,6 +171,31 @@ public interface RepositorySearcher {
 	 */
 	public String[] getReverseRelatedDocuments(String docID, String relationType)  throws RepositoryAccessException;
 	
+	/**
+	 * Get the docIDs of the documents that this document has relations to.
+	 * <p>This does not load the document.</p>
+	 * @param docID source document
+	 * @param relationType Only return documents related in this way. Null means any.
+	 * @return Array of document IDs that the given document points to.
+	 * @throws RepositoryAccessException
+	 */
+	public String[] getRelatedDocuments(String docID, String relationType) throws RepositoryAccessException;
+	
+	/**
+	 * Follow relations for several hops.
+	 * <p>For example, with <code>reverse</code> set to true and a relation type of 
+	 * "parent", this returns the children of a document, their children, and so on.</p>
+	 * @param docID Document to start from. It is not included in the result.
+	 * @param relationType Only follow relations of this type. Null means any.
+	 * @param reverse If true, find documents that point to this one, instead of 
+	 * documents this one points to.
+	 * @param maxDepth Largest number of hops. Less than 1 means no limit.
+	 * @return Array of document IDs, nearest first.
+	 * @throws RepositoryAccessException
+	 */
+	public String[] traverseRelations(String docID, String relationType, boolean reverse, int maxDepth) 
+		throws RepositoryAccessException;
+	
 	/**
 	 * Get all docIDs that have the specified name and value.
 	 * Get an array of document IDs for documents that contain the metadatum
@@ -204,6 +229,20 @@ public interface RepositorySearcher {
 	 */
 	public Map<String,Integer>  getMetadataValues(String mdName) throws RepositoryAccessException;
 	
+	/**
+	 * Get metadata values and counts, for only those documents that match a narrower.
+	 * <p>This works like {@link #getMetadataValues(String)}, but only documents with 
+	 * all of the name/value pairs in <code>narrower</code> are counted. For example, 
+	 * the tags on one user's notes.</p>
+	 * @param mdName The name of the metadatum.
+	 * @param narrower Map of metadatum names to required values. Null or empty 
+	 * means all documents.
+	 * @return Map of unique values to the number of documents that have them.
+	 * @throws RepositoryAccessException when there is a problem accessing the repository.
+	 */
+	public Map<String,Integer> getMetadataValues(String mdName, Map<String, String> narrower) 
+		throws RepositoryAccessException;
+	
 	/**
 	 * This should provide a hint to the Repository Manager as to 
 	 * whether this object can be reused indefinitely, or whether every
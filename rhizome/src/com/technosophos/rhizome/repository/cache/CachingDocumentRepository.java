@@ -0,0 +1,224 @@
+package com.technosophos.rhizome.repository.cache;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.technosophos.rhizome.document.RhizomeDocument;
+import com.technosophos.rhizome.document.RhizomeParseException;
+import com.technosophos.rhizome.repository.DocumentExistsException;
+import com.technosophos.rhizome.repository.DocumentNotFoundException;
+import com.technosophos.rhizome.repository.DocumentRepository;
+import com.technosophos.rhizome.repository.RepositoryAccessException;
+import com.technosophos.rhizome.repository.RepositoryContext;
+import com.technosophos.rhizome.repository.RhizomeInitializationException;
+import com.technosophos.rhizome.repository.fs.FileSystemRepository;
+
+/**
+ * A DocumentRepository that keeps recently read documents in memory.
+ * <p>This wraps another repository (usually a {@link FileSystemRepository}), and
+ * passes every call through to it, except that {@link #getDocument(String)} and
+ * {@link #getDocuments(Collection)} are answered from a {@link DocumentCache} when possible. Storing or removing a
+ * document drops it from the cache first.</p>
+ * <p>For a file system repository, the document's file is checked on every
+ * read, and a cached copy is only used if the file's modification time and
+ * length are unchanged. So documents written by another process (or by code
+ * that does not go through this class) are still picked up. That costs one
+ * <code>stat</code>, which is far cheaper than reading and parsing the file.
+ * Other repositories are trusted to change only through this class.</p>
+ * <p>Each call to {@link #getDocument(String)} returns a copy (see
+ * {@link RhizomeDocument#copy()}), so callers may change it and store it, as before.
+ * Only the metadata and relations are copied on a cache hit. The body, usually the
+ * largest part, is shared with the cached document until the caller changes it.</p>
+ * <p>Use {@link CachingRepositoryDepot} to turn this on.</p>
+ * @author mbutcher
+ *
+ */
+public class CachingDocumentRepository implements DocumentRepository {
+
+	private DocumentRepository repo;
+	private DocumentCache cache;
+
+	/**
+	 * Wrap a repository.
+	 * @param repo Repository that holds the documents.
+	 * @param cache Cache for that repository. It must not be used for any other.
+	 */
+	public CachingDocumentRepository(DocumentRepository repo, DocumentCache cache) {
+		this.repo = repo;
+		this.cache = cache;
+	}
+
+	/**
+	 * Get the wrapped repository.
+	 * @return the repository that holds the documents.
+	 */
+	public DocumentRepository getDelegate() {
+		return this.repo;
+	}
+
+	/**
+	 * Get the cache.
+	 * @return the cache for this repository.
+	 */
+	public DocumentCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Get the repository under any cache.
+	 * <p>Code that reads every document once, like a reindex, should use this, so
+	 * that it does not push everything else out of the cache.</p>
+	 * @param repo A repository, which may or may not be a CachingDocumentRepository.
+	 * @return the wrapped repository, or <code>repo</code> if it is not wrapped.
+	 */
+	public static DocumentRepository unwrap(DocumentRepository repo) {
+		while(repo instanceof CachingDocumentRepository)
+			repo = ((CachingDocumentRepository)repo).getDelegate();
+		return repo;
+	}
+
+	/**
+	 * Get a document, from the cache if it is there and up to date.
+	 */
+	public RhizomeDocument getDocument(String docID)
+			throws DocumentNotFoundException, RepositoryAccessException, RhizomeParseException {
+		long[] stat = this.stat(docID);
+		if(stat == null) throw new DocumentNotFoundException("Document not found: " + docID);
+
+		RhizomeDocument doc = this.cache.get(docID, stat[0]);
+		if(doc != null) return doc.copy();
+
+		long generation = this.cache.getGeneration();
+		doc = this.repo.getDocument(docID);
+		this.cache.put(docID, doc, stat[0], stat[1], generation);
+		return doc.copy();
+	}
+
+	/**
+	 * Get several documents. Those that are cached are taken from the cache, and the
+	 * rest are fetched from the wrapped repository together.
+	 */
+	public Map<String, RhizomeDocument> getDocuments(Collection<String> docIDs)
+			throws RepositoryAccessException, RhizomeParseException {
+		HashMap<String, RhizomeDocument> found = new HashMap<String, RhizomeDocument>();
+		LinkedHashMap<String, long[]> missing = new LinkedHashMap<String, long[]>();
+		for(String id: docIDs) {
+			if(found.containsKey(id) || missing.containsKey(id)) continue;
+			long[] stat = this.stat(id);
+			if(stat == null) continue;
+			RhizomeDocument doc = this.cache.get(id, stat[0]);
+			if(doc != null) found.put(id, doc.copy());
+			else missing.put(id, stat);
+		}
+
+		if(!missing.isEmpty()) {
+			long generation = this.cache.getGeneration();
+			Map<String, RhizomeDocument> loaded = this.repo.getDocuments(missing.keySet());
+			for(Map.Entry<String, RhizomeDocument> e: loaded.entrySet()) {
+				long[] stat = missing.get(e.getKey());
+				this.cache.put(e.getKey(), e.getValue(), stat[0], stat[1], generation);
+				found.put(e.getKey(), e.getValue().copy());
+			}
+		}
+
+		LinkedHashMap<String, RhizomeDocument> docs = new LinkedHashMap<String, RhizomeDocument>(found.size() * 2);
+		for(String id: docIDs) {
+			RhizomeDocument doc = found.get(id);
+			if(doc != null) docs.put(id, doc);
+		}
+		return docs;
+	}
+
+	/**
+	 * Get the version stamp and estimated size of a document.
+	 * <p>For a file system repository, the version comes from the file's modification
+	 * time and length. Anything else always has version 0, and its size is estimated
+	 * from the document itself.</p>
+	 * @return version and size, or null if the document's file is gone.
+	 */
+	private long[] stat(String docID) throws RepositoryAccessException {
+		if(!(this.repo instanceof FileSystemRepository)) return new long[] {0, -1};
+		File f = ((FileSystemRepository)this.repo).getDocumentFile(docID);
+		if(f == null) {
+			this.cache.invalidate(docID);
+			return null;
+		}
+		long len = f.length();
+		// A parsed document is usually about twice the size of its file.
+		return new long[] {(f.lastModified() * 31) ^ len, 2 * len + 256};
+	}
+
+	/**
+	 * Store a document. It is dropped from the cache, and read again the next time it is asked for.
+	 */
+	public String storeDocument(RhizomeDocument doc) throws RepositoryAccessException {
+		String docID = doc.getDocumentID();
+		if(docID != null) this.cache.invalidate(docID);
+		try {
+			return this.repo.storeDocument(doc);
+		} finally {
+			// Catches a concurrent read that saw the old file.
+			if(docID != null) this.cache.invalidate(docID);
+		}
+	}
+
+	/**
+	 * Store a document. It is dropped from the cache, and read again the next time it is asked for.
+	 */
+	public String storeDocument(RhizomeDocument doc, boolean overwrite)
+			throws RepositoryAccessException, DocumentExistsException {
+		String docID = doc.getDocumentID();
+		if(docID != null) this.cache.invalidate(docID);
+		try {
+			return this.repo.storeDocument(doc, overwrite);
+		} finally {
+			if(docID != null) this.cache.invalidate(docID);
+		}
+	}
+
+	public boolean removeDocument(String docID) throws RepositoryAccessException {
+		this.cache.invalidate(docID);
+		try {
+			return this.repo.removeDocument(docID);
+		} finally {
+			this.cache.invalidate(docID);
+		}
+	}
+
+	public InputStream getRawDocument(String docID)
+			throws DocumentNotFoundException, RepositoryAccessException {
+		return this.repo.getRawDocument(docID);
+	}
+
+	public boolean hasDocument(String docID) throws RepositoryAccessException {
+		return this.repo.hasDocument(docID);
+	}
+
+	public long countDocumentIDs() throws RepositoryAccessException {
+		return this.repo.countDocumentIDs();
+	}
+
+	public String[] getAllDocumentIDs() throws RepositoryAccessException {
+		return this.repo.getAllDocumentIDs();
+	}
+
+	public void setConfiguration(RepositoryContext ctx) throws RhizomeInitializationException {
+		this.repo.setConfiguration(ctx);
+	}
+
+	public RepositoryContext getConfiguration() {
+		return this.repo.getConfiguration();
+	}
+
+	public String getRepositoryName() {
+		return this.repo.getRepositoryName();
+	}
+
+	public boolean isReusable() {
+		return this.repo.isReusable();
+	}
+}
@@ -0,0 +1,107 @@
+package com.technosophos.rhizome.repository.cache;
+
+import com.technosophos.rhizome.repository.DocumentRepository;
+import com.technosophos.rhizome.repository.DocumentRepositoryDepot;
+import com.technosophos.rhizome.repository.RepositoryAccessException;
+import com.technosophos.rhizome.repository.RepositoryContext;
+import com.technosophos.rhizome.repository.RepositoryManager;
+import com.technosophos.rhizome.repository.RhizomeInitializationException;
+import com.technosophos.rhizome.repository.fs.FileSystemRepository;
+
+/**
+ * A repository depot that adds a document cache to another depot's repositories.
+ * <p>To use it, set the <code>repository_class</code> context param to this class.
+ * The following context params are used:</p>
+ * <ul>
+ * <li>{@link #CXT_REPOSITORY_CLASS}: the depot that actually stores documents
+ * (default: {@link RepositoryManager#DEFAULT_REPOSITORY_CLASS_NAME})</li>
+ * <li>{@link #CXT_MAX_BYTES}: approximate memory to use for each repository's
+ * cache, in bytes (default 32MB)</li>
+ * </ul>
+ * <p>Every {@link CachingDocumentRepository} for the same repository shares one
+ * {@link DocumentCache}, so the cache survives from one request to the next.</p>
+ * @author mbutcher
+ *
+ */
+public class CachingRepositoryDepot implements DocumentRepositoryDepot {
+
+	/** Context key: class name of the depot to wrap. */
+	public static final String CXT_REPOSITORY_CLASS = "cache_repository_class";
+	/** Context key: size of each repository's cache, in bytes. */
+	public static final String CXT_MAX_BYTES = "cache_max_bytes";
+
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private DocumentRepositoryDepot depot = null;
+
+	public boolean hasNamedRepository(String name, RepositoryContext cxt) {
+		try {
+			return this.getDepot(cxt).hasNamedRepository(name, cxt);
+		} catch (RhizomeInitializationException e) {
+			return false;
+		}
+	}
+
+	public void createNamedRepository(String name, RepositoryContext cxt)
+			throws RhizomeInitializationException, RepositoryAccessException {
+		this.getDepot(cxt).createNamedRepository(name, cxt);
+	}
+
+	public DocumentRepository getNamedRepository(String name, RepositoryContext cxt)
+			throws RhizomeInitializationException {
+		DocumentRepository r = this.getDepot(cxt).getNamedRepository(name, cxt);
+		return new CachingDocumentRepository(r, DocumentCache.getCache(getCacheKey(name, cxt),
+				getMaxBytes(cxt)));
+	}
+
+	public void deleteNamedRepository(String name, RepositoryContext cxt)
+			throws RepositoryAccessException {
+		DocumentCache.removeCache(getCacheKey(name, cxt));
+		try {
+			this.getDepot(cxt).deleteNamedRepository(name, cxt);
+		} catch (RhizomeInitializationException e) {
+			throw new RepositoryAccessException(e.getMessage());
+		}
+	}
+
+	private synchronized DocumentRepositoryDepot getDepot(RepositoryContext cxt)
+			throws RhizomeInitializationException {
+		if(this.depot != null) return this.depot;
+		String className = cxt.getParam(CXT_REPOSITORY_CLASS);
+		if(className == null) className = RepositoryManager.DEFAULT_REPOSITORY_CLASS_NAME;
+		if(className.equals(this.getClass().getName()))
+			throw new RhizomeInitializationException("CachingRepositoryDepot cannot wrap itself.");
+		try {
+			this.depot = (DocumentRepositoryDepot)Class.forName(className).getConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			throw new RhizomeInitializationException("Could not find repository class: " + className);
+		} catch (ClassCastException e) {
+			throw new RhizomeInitializationException("Not a repository depot: " + className);
+		} catch (Exception e) {
+			throw new RhizomeInitializationException("Could not create repository depot "
+					+ className + ": " + e.getMessage());
+		}
+		return this.depot;
+	}
+
+	/**
+	 * Caches are identified by the wrapped depot and the repository's location.
+	 */
+	private static String getCacheKey(String name, RepositoryContext cxt) {
+		String className = cxt.getParam(CXT_REPOSITORY_CLASS);
+		if(className == null) className = RepositoryManager.DEFAULT_REPOSITORY_CLASS_NAME;
+		String path = FileSystemRepository.getFullPath(name, cxt);
+		return className + ':' + (path == null ? name : path);
+	}
+
+	private static long getMaxBytes(RepositoryContext cxt) {
+		String v = cxt.getParam(CXT_MAX_BYTES);
+		if(v == null) return DEFAULT_MAX_BYTES;
+		try {
+			long max = Long.parseLong(v.trim());
+			return max > 0 ? max : DEFAULT_MAX_BYTES;
+		} catch (NumberFormatException nfe) {
+			return DEFAULT_MAX_BYTES;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.technosophos.rhizome.repository.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.technosophos.rhizome.document.Metadatum;
+import com.technosophos.rhizome.document.Relation;
+import com.technosophos.rhizome.document.RhizomeDocument;
+
+/**
+ * An LRU cache of parsed documents for one repository, bounded by estimated size.
+ * <p>Each entry has a version stamp supplied by the caller (for files, the
+ * modification time and length). An entry is only returned if the stamp still
+ * matches, so documents changed behind the cache's back are read again.</p>
+ * <p>Cached documents are shared, and must not be changed. {@link CachingDocumentRepository}
+ * hands out copies.</p>
+ * <p>There is one cache per repository, shared by every
+ * {@link CachingDocumentRepository} for it. Get it with {@link #getCache(String, long)}.</p>
+ * @author mbutcher
+ *
+ */
+public class DocumentCache {
+
+	/** Rough per-object overhead, in bytes, used when estimating document sizes. */
+	private static final int OBJECT_OVERHEAD = 48;
+
+	private static ConcurrentHashMap<String, DocumentCache> caches =
+		new ConcurrentHashMap<String, DocumentCache>();
+
+	private long maxBytes;
+	private long bytes = 0;
+	// Access-ordered, so iteration starts at the least recently used. Guarded by this.
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	// Incremented on every invalidation. A load that started before an
+	// invalidation must not be cached.
+	private AtomicLong generation = new AtomicLong();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private AtomicLong stale = new AtomicLong();
+
+	/**
+	 * Create a cache. Most callers want {@link #getCache(String, long)} instead.
+	 * @param maxBytes Largest estimated size of all cached documents together.
+	 */
+	public DocumentCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the shared cache for a repository, creating it if necessary.
+	 * @param key Identifies the repository.
+	 * @param maxBytes Size limit, used only if the cache is created.
+	 * @return the cache.
+	 */
+	public static DocumentCache getCache(String key, long maxBytes) {
+		DocumentCache c = caches.get(key);
+		if(c == null) {
+			c = new DocumentCache(maxBytes);
+			DocumentCache old = caches.putIfAbsent(key, c);
+			if(old != null) c = old;
+		}
+		return c;
+	}
+
+	/**
+	 * Drop the shared cache for a repository. This is used when a repository is deleted.
+	 * @param key Identifies the repository.
+	 */
+	public static void removeCache(String key) {
+		DocumentCache c = caches.remove(key);
+		if(c != null) c.clear();
+	}
+
+	/**
+	 * Get every shared cache, keyed as in {@link #getCache(String, long)}.
+	 * @return map of caches. Do not modify it.
+	 */
+	public static Map<String, DocumentCache> getCaches() {
+		return caches;
+	}
+
+	/**
+	 * Get a cached document.
+	 * @param docID Document ID.
+	 * @param version Current version stamp of the document.
+	 * @return the shared document, or null if it is not cached or its version has changed.
+	 */
+	public RhizomeDocument get(String docID, long version) {
+		synchronized(this) {
+			Entry e = this.entries.get(docID);
+			if(e != null) {
+				if(e.version == version) {
+					this.hits.incrementAndGet();
+					return e.doc;
+				}
+				this.remove(docID);
+				this.stale.incrementAndGet();
+			}
+		}
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Get the generation to pass to {@link #put(String, RhizomeDocument, long, long, long)}.
+	 * Call this before loading the document.
+	 * @return the current generation.
+	 */
+	public long getGeneration() {
+		return this.generation.get();
+	}
+
+	/**
+	 * Add a document.
+	 * <p>If anything was invalidated since <code>generation</code> was read, the
+	 * document may already be out of date, and is not cached.</p>
+	 * @param docID Document ID.
+	 * @param doc Document. The cache owns it from now on.
+	 * @param version Version stamp of the document, read before it was loaded.
+	 * @param size Estimated size in bytes, or -1 to estimate it here.
+	 * @param generation Value of {@link #getGeneration()} before the document was loaded.
+	 */
+	public void put(String docID, RhizomeDocument doc, long version, long size, long generation) {
+		if(size < 0) size = estimateSize(doc);
+		// One document should never push out the whole cache.
+		if(size > this.maxBytes / 4) return;
+		synchronized(this) {
+			if(this.generation.get() != generation) return;
+			this.remove(docID);
+			this.entries.put(docID, new Entry(doc, version, size));
+			this.bytes += size;
+			Iterator<Entry> i = this.entries.values().iterator();
+			while(this.bytes > this.maxBytes && i.hasNext()) {
+				Entry e = i.next();
+				i.remove();
+				this.bytes -= e.size;
+				this.evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drop a document. Call this before the document is changed or removed.
+	 * @param docID Document ID.
+	 */
+	public void invalidate(String docID) {
+		synchronized(this) {
+			this.generation.incrementAndGet();
+			this.remove(docID);
+		}
+	}
+
+	/**
+	 * Drop every document.
+	 */
+	public synchronized void clear() {
+		this.generation.incrementAndGet();
+		this.entries.clear();
+		this.bytes = 0;
+	}
+
+	private void remove(String docID) {
+		Entry e = this.entries.remove(docID);
+		if(e != null) this.bytes -= e.size;
+	}
+
+	/** Number of lookups that found a current document. */
+	public long getHits() { return this.hits.get(); }
+	/** Number of lookups that did not. */
+	public long getMisses() { return this.misses.get(); }
+	/** Number of documents pushed out to make room. */
+	public long getEvictions() { return this.evictions.get(); }
+	/** Number of documents found to have changed on disk. */
+	public long getStaleHits() { return this.stale.get(); }
+	/** Number of cached documents. */
+	public synchronized int size() { return this.entries.size(); }
+	/** Estimated size of the cached documents, in bytes. */
+	public synchronized long getBytes() { return this.bytes; }
+	/** Size limit, in bytes. */
+	public long getMaxBytes() { return this.maxBytes; }
+
+	public String toString() {
+		return String.format("DocumentCache[docs=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d, stale=%d]",
+				this.size(), this.getBytes(), this.maxBytes, this.getHits(), this.getMisses(),
+				this.getEvictions(), this.getStaleHits());
+	}
+
+	/**
+	 * Estimate the memory used by a document.
+	 * This counts two bytes per character of every string, plus a fixed overhead per object.
+	 * @param doc
+	 * @return estimated size in bytes.
+	 */
+	public static long estimateSize(RhizomeDocument doc) {
+		long size = OBJECT_OVERHEAD + chars(doc.getDocumentID());
+		for(Metadatum m: doc.getMetadata()) {
+			size += OBJECT_OVERHEAD + chars(m.getName());
+			for(String v: m.getValues()) size += OBJECT_OVERHEAD + chars(v);
+		}
+		for(Relation r: doc.getRelations())
+			size += OBJECT_OVERHEAD + chars(r.getDocID()) + chars(r.getRelationType());
+		if(doc.getData() != null) size += OBJECT_OVERHEAD + 2L * doc.getData().getDataLength();
+		// Extensions are DOMs, and hard to measure. Guess.
+		size += 1024L * doc.getExtensions().size();
+		return size;
+	}
+
+	private static long chars(String s) {
+		return s == null ? 0 : 2L * s.length();
+	}
+
+	private static class Entry {
+		RhizomeDocument doc;
+		long version;
+		long size;
+
+		Entry(RhizomeDocument doc, long version, long size) {
+			this.doc = doc;
+			this.version = version;
+			this.size = size;
+		}
+	}
+}
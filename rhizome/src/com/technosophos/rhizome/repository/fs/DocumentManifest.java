@@ -0,0 +1,249 @@
+package com.technosophos.rhizome.repository.fs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.technosophos.rhizome.repository.RepositoryAccessException;
+
+/**
+ * Keeps the set of document IDs in a repository, so it does not have to be listed.
+ * <p>The IDs are held in memory, and saved in two files in the repository directory:</p>
+ * <ul>
+ * <li>{@link #SNAPSHOT_FILE}: every ID, one per line.</li>
+ * <li>{@link #LOG_FILE}: changes since the snapshot, one per line. Added IDs start
+ * with <code>+</code>, removed IDs with <code>-</code>.</li>
+ * </ul>
+ * <p>{@link FileSystemRepository} adds and removes IDs as it stores and removes
+ * documents. When the log gets as long as the snapshot, the two are compacted into
+ * a new snapshot.</p>
+ * <p>The first time a manifest is loaded in a VM, it is checked against the
+ * directory (unless the repository is configured not to), since documents may
+ * have been added or removed by hand, or the log may have lost its last entries
+ * in a crash. After that, counting documents is O(1), and listing them does not
+ * touch the file system.</p>
+ * <p>There is one manifest per repository directory, shared by all the
+ * FileSystemRepository instances for it.</p>
+ * @author mbutcher
+ *
+ */
+public class DocumentManifest {
+
+	/** Name of the snapshot file, in the repository directory. */
+	public static final String SNAPSHOT_FILE = ".manifest";
+	/** Name of the change log, in the repository directory. */
+	public static final String LOG_FILE = ".manifest.log";
+
+	/** The log is never compacted before it has this many entries. */
+	private static final int MIN_COMPACT_ENTRIES = 1000;
+
+	private static ConcurrentHashMap<String, DocumentManifest> manifests =
+		new ConcurrentHashMap<String, DocumentManifest>();
+
+	private File root;
+	private ConcurrentHashMap<String, Boolean> ids = new ConcurrentHashMap<String, Boolean>();
+	private Set<String> idView = Collections.unmodifiableSet(this.ids.keySet());
+
+	// Guarded by this.
+	private Writer log = null;
+	private int logEntries = 0;
+
+	private DocumentManifest(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Get the manifest for a repository, loading it if necessary.
+	 * @param layout Layout of the repository.
+	 * @param verify If true, a newly loaded manifest is checked against the directory.
+	 * @return the shared manifest for the repository directory.
+	 * @throws RepositoryAccessException if the manifest cannot be loaded.
+	 */
+	static DocumentManifest getManifest(ShardedLayout layout, boolean verify)
+			throws RepositoryAccessException {
+		String key = layout.getRoot().getAbsolutePath();
+		DocumentManifest m = manifests.get(key);
+		if(m != null) return m;
+		synchronized(manifests) {
+			m = manifests.get(key);
+			if(m == null) {
+				m = new DocumentManifest(layout.getRoot());
+				m.load(layout, verify);
+				manifests.put(key, m);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Close and forget the manifest for a repository directory.
+	 * This is used when a repository is deleted.
+	 * @param root Repository directory.
+	 */
+	static void closeManifest(File root) {
+		DocumentManifest m = manifests.remove(root.getAbsolutePath());
+		if(m != null) m.close();
+	}
+
+	/**
+	 * Number of documents in the repository.
+	 * @return document count.
+	 */
+	public int size() {
+		return this.ids.size();
+	}
+
+	/**
+	 * Check whether a document ID is in the manifest.
+	 * @param docID Document ID.
+	 * @return true if the repository has the document.
+	 */
+	public boolean contains(String docID) {
+		return this.ids.containsKey(docID);
+	}
+
+	/**
+	 * Get a live, read-only view of the document IDs.
+	 * Iterating over it is safe while documents are being added and removed.
+	 * @return set of document IDs.
+	 */
+	public Set<String> getDocumentIDs() {
+		return this.idView;
+	}
+
+	/**
+	 * Record that a document has been stored.
+	 * @param docID Document ID.
+	 * @throws RepositoryAccessException if the change cannot be logged.
+	 */
+	public synchronized void add(String docID) throws RepositoryAccessException {
+		if(this.ids.put(docID, Boolean.TRUE) == null) this.append('+', docID);
+	}
+
+	/**
+	 * Record that a document has been removed.
+	 * @param docID Document ID.
+	 * @throws RepositoryAccessException if the change cannot be logged.
+	 */
+	public synchronized void remove(String docID) throws RepositoryAccessException {
+		if(this.ids.remove(docID) != null) this.append('-', docID);
+	}
+
+	/**
+	 * Write a new snapshot and empty the log.
+	 * @throws RepositoryAccessException if the snapshot cannot be written.
+	 */
+	public synchronized void compact() throws RepositoryAccessException {
+		File tmp = new File(this.root, SNAPSHOT_FILE + ".tmp");
+		File snap = new File(this.root, SNAPSHOT_FILE);
+		try {
+			this.closeLog();
+			FileOutputStream fos = new FileOutputStream(tmp);
+			Writer out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+			try {
+				for(String id: this.ids.keySet()) {
+					out.write(id);
+					out.write('\n');
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+			// Windows will not rename over an existing file.
+			if(!tmp.renameTo(snap) && !(snap.delete() && tmp.renameTo(snap)))
+				throw new IOException("Could not rename " + tmp + " to " + snap);
+			// Only now is it safe to drop the old log.
+			this.openLog(false);
+		} catch (IOException ioe) {
+			throw new RepositoryAccessException("Could not write manifest: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Flush and close the log.
+	 */
+	public synchronized void close() {
+		try {
+			this.closeLog();
+		} catch (IOException ioe) {
+			System.err.println("Could not close manifest log: " + ioe.getMessage());
+		}
+	}
+
+	/** Read the snapshot and replay the log, then check against the directory if asked. */
+	private void load(ShardedLayout layout, boolean verify) throws RepositoryAccessException {
+		File snap = new File(this.root, SNAPSHOT_FILE);
+		File logFile = new File(this.root, LOG_FILE);
+		boolean found = snap.isFile() || logFile.isFile();
+		try {
+			if(snap.isFile()) this.read(snap);
+			if(logFile.isFile()) this.read(logFile);
+		} catch (IOException ioe) {
+			throw new RepositoryAccessException("Could not read manifest: " + ioe.getMessage());
+		}
+
+		if(verify || !found) {
+			Set<String> actual = layout.listDocumentFiles().keySet();
+			if(!found || !actual.equals(this.ids.keySet())) {
+				this.ids.clear();
+				for(String id: actual) this.ids.put(id, Boolean.TRUE);
+			}
+		}
+		this.compact();
+	}
+
+	/** Read a snapshot or log. Lines without a +/- prefix are snapshot entries. */
+	private void read(File f) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.length() == 0) continue;
+				char c = line.charAt(0);
+				if(c == '+') this.ids.put(line.substring(1), Boolean.TRUE);
+				else if(c == '-') this.ids.remove(line.substring(1));
+				else this.ids.put(line, Boolean.TRUE);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void append(char op, String docID) throws RepositoryAccessException {
+		try {
+			if(this.log == null) this.openLog(true);
+			this.log.write(op);
+			this.log.write(docID);
+			this.log.write('\n');
+			this.log.flush();
+		} catch (IOException ioe) {
+			throw new RepositoryAccessException("Could not write manifest log: " + ioe.getMessage());
+		}
+		if(++this.logEntries > Math.max(MIN_COMPACT_ENTRIES, this.ids.size())) this.compact();
+	}
+
+	private void openLog(boolean append) throws IOException {
+		this.log = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(this.root, LOG_FILE), append), "UTF-8"));
+		if(!append) this.logEntries = 0;
+	}
+
+	private void closeLog() throws IOException {
+		if(this.log == null) return;
+		try {
+			this.log.close();
+		} finally {
+			this.log = null;
+		}
+	}
+}
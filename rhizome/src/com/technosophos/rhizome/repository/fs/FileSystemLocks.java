@@ -1,104 +1,134 @@
 package com.technosophos.rhizome.repository.fs;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.technosophos.rhizome.repository.RepositoryAccessException;
 
 /**
- * This object tracks lock status of files in the file system.
- * 
- * It simply <i>tracks</i> locks. Actual maintenance of the locks
- * is left to other objects. The point of this class is to allow multiple
- * objects to all access (more or less independently) the files on the 
- * file system, without one write operation disrupting a bunch of read
- * operations.
- * 
- * <p>
- * Locks are stored in a synchronized collection. This should, overall,
- * reduce the number of objects that must be synchronized.
- * </p>
- * 
+ * Read/write locks for documents in the file system.
+ *
+ * <p>Any number of threads can read a document at the same time. Writing
+ * (storing or removing) a document takes an exclusive lock, so two writers do
+ * not interleave. ({@link FileSystemRepository} replaces documents by renaming
+ * a new file into place, so its readers do not need to lock at all.)</p>
+ *
+ * <p>Rather than keep a lock for every document ID, the IDs are hashed onto a
+ * fixed set of lock stripes. Two documents on the same stripe share a lock. That
+ * only matters when one of them is being written, since read locks never block
+ * each other.</p>
+ *
+ * <p>Locks are acquired with a timeout. If the lock cannot be had in time, a
+ * {@link RepositoryAccessException} is thrown, just as it was when a document
+ * was found to be locked.</p>
+ *
  * <p>In order to avoid the risk of multiple lock objects,
  * this is implemented as a singleton.</p>
+ * <p>Usage:</p>
+ * <pre>
+ * Lock l = FileSystemLocks.getInstance().acquireWriteLock(docID);
+ * try {
+ *   // Write the file.
+ * } finally {
+ *   l.unlock();
+ * }
+ * </pre>
  * @author mbutcher
  *
  */
 public class FileSystemLocks {
-	
-	private static FileSystemLocks inst = null;
-	
-	private List<String> locks;
+
+	/** Number of lock stripes. Must be a power of two. */
+	public static final int STRIPES = 256;
+
+	/** Default time to wait for a lock, in milliseconds. */
+	public static final long DEFAULT_TIMEOUT = 4000;
+
+	private static final FileSystemLocks inst = new FileSystemLocks();
+
+	private ReentrantReadWriteLock[] stripes;
+
 	private FileSystemLocks() {
-		locks = Collections.synchronizedList(new ArrayList<String>());
+		this.stripes = new ReentrantReadWriteLock[STRIPES];
+		for(int i = 0; i < STRIPES; ++i) this.stripes[i] = new ReentrantReadWriteLock();
 	}
-	
+
 	/**
 	 * Get an instance of the FileSystemLocks class
 	 * @return
 	 */
 	public static FileSystemLocks getInstance() {
-		if(FileSystemLocks.inst == null) FileSystemLocks.inst = new FileSystemLocks();
-		return FileSystemLocks.inst;
+		return inst;
 	}
-	
+
 	/**
-	 * Check to see if a file is locked.
-	 * @param fileID
-	 * @return
+	 * Get the read/write lock for a document.
+	 * Most callers should use {@link #acquireReadLock(String)} or
+	 * {@link #acquireWriteLock(String)} instead.
+	 * @param docID Document ID.
+	 * @return the lock for the document's stripe.
 	 */
-	public boolean isLocked(String fileID) {
-		return this.locks.contains(fileID);
+	public ReentrantReadWriteLock getLock(String docID) {
+		int h = docID.hashCode();
+		h ^= (h >>> 16);
+		h ^= (h >>> 8);
+		return this.stripes[h & (STRIPES - 1)];
 	}
-	
+
 	/**
-	 * This will try to acquire a lock.
-	 * If it is unsuccessful, it will wait <code>waitInSec</code> seconds and try
-	 * again. If it fails twice, it will return false.
-	 * <p>Returns false if: file is locked after waiting term has expired, 
-	 * thread is interrupted, or another error occurs.</p>
-	 * @param fileID
-	 * @param waitInSec
-	 * @return boolean true if it acquires the lock before timing out.
+	 * Acquire a shared lock for reading a document, waiting up to {@link #DEFAULT_TIMEOUT}.
+	 * @param docID Document ID.
+	 * @return the held lock. Call <code>unlock()</code> on it when done.
+	 * @throws RepositoryAccessException if the document stays locked.
 	 */
-	public synchronized boolean acquireLock(String fileID, int waitInSec) {
-		if(!this.isLocked(fileID)) {
-			this.lock(fileID);
-			return true;
-		} 
-		
-		try {
-			this.wait(1000 * waitInSec);
-			if (this.isLocked(fileID)) return false;
-			this.lock(fileID);
-			return true;
-		} catch (InterruptedException ie) {
-			return false;
-		}
+	public Lock acquireReadLock(String docID) throws RepositoryAccessException {
+		return acquire(this.getLock(docID).readLock(), docID, DEFAULT_TIMEOUT);
 	}
-	
+
 	/**
-	 * Add a new lock to the list.
-	 * Use <code>acquireLock</code> in most cases.
-	 * @param fileID
+	 * Acquire an exclusive lock for writing a document, waiting up to {@link #DEFAULT_TIMEOUT}.
+	 * @param docID Document ID.
+	 * @return the held lock. Call <code>unlock()</code> on it when done.
+	 * @throws RepositoryAccessException if the document stays locked.
 	 */
-	public void lock(String fileID) {
-		this.locks.add(fileID);
+	public Lock acquireWriteLock(String docID) throws RepositoryAccessException {
+		return acquire(this.getLock(docID).writeLock(), docID, DEFAULT_TIMEOUT);
 	}
-	
+
 	/**
-	 * Remove a lock.
-	 * @param fileID
+	 * Acquire an exclusive lock for writing a document.
+	 * @param docID Document ID.
+	 * @param timeout Longest time to wait, in milliseconds.
+	 * @return the held lock, or null if it could not be acquired in time.
 	 */
-	public void removeLock(String fileID) {
-		if(this.isLocked(fileID)) 
-			this.locks.remove(this.locks.indexOf(fileID));
+	public Lock tryWriteLock(String docID, long timeout) {
+		Lock l = this.getLock(docID).writeLock();
+		try {
+			if(l.tryLock(timeout, TimeUnit.MILLISECONDS)) return l;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
 	}
-	
+
 	/**
-	 * Get an iterator of the list of locks.
-	 * @return
+	 * Check to see if a document is being written.
+	 * This is only a hint; the answer may change as soon as it is returned.
+	 * @param docID
+	 * @return true if the document's stripe is write-locked.
 	 */
-	public java.util.Iterator<String> getLockIterator() {
-		return this.locks.iterator();
+	public boolean isLocked(String docID) {
+		return this.getLock(docID).isWriteLocked();
+	}
+
+	private static Lock acquire(Lock l, String docID, long timeout)
+			throws RepositoryAccessException {
+		try {
+			if(l.tryLock(timeout, TimeUnit.MILLISECONDS)) return l;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		throw new RepositoryAccessException("Document is locked: " + docID);
 	}
 }
@@ -2,8 +2,10 @@ package com.technosophos.rhizome.repository.fs;
 
 import java.io.InputStream;
 
+import com.technosophos.rhizome.document.BinaryDocumentCodec;
+import com.technosophos.rhizome.document.DocumentCodec;
+import com.technosophos.rhizome.document.DocumentCodecs;
 import com.technosophos.rhizome.document.RhizomeDocument;
-import com.technosophos.rhizome.document.RhizomeDocumentBuilder;
 import com.technosophos.rhizome.document.RhizomeParseException;
 import com.technosophos.rhizome.repository.DocumentRepository;
 import com.technosophos.rhizome.repository.RepositoryContext;
@@ -11,13 +13,29 @@ import com.technosophos.rhizome.repository.RhizomeInitializationException;
 import com.technosophos.rhizome.repository.RepositoryAccessException;
 import com.technosophos.rhizome.repository.DocumentNotFoundException;
 import com.technosophos.rhizome.repository.DocumentExistsException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 //import java.io.FileReader;
-import java.io.FileFilter;
 import java.io.IOException;
-import org.xml.sax.SAXException;
-import com.technosophos.rhizome.document.DocumentID;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
  * File system-backed Document Repository.
@@ -30,6 +48,28 @@ import com.technosophos.rhizome.document.DocumentID;
  * is the file name, and the document is stored as the file contents
  * (in XML, presumably).
  * </p>
+ * <p>
+ * Files are spread over a two-level tree of shard directories, so that no 
+ * directory gets too large. See {@link ShardedLayout}. A repository created before
+ * the shards existed is migrated in the background, the first time it is opened.
+ * </p>
+ * <p>
+ * Documents are written to a temporary file, which is then renamed over the 
+ * old one. Readers see either the old document or the new one, never part of 
+ * one, so reading does not need a lock. See {@link #CXT_SYNC} for how to make
+ * writes durable.
+ * </p>
+ * <p>
+ * Documents are written in XML, unless the repository is configured to use 
+ * another {@link DocumentCodec} (see {@link #CXT_CODEC}). Each file is read with 
+ * the codec that wrote it, so a repository can be switched from one codec to 
+ * another while it is in use; {@link #convertDocuments(DocumentCodec)} rewrites 
+ * the old files.
+ * </p>
+ * <p>
+ * The first time a repository directory is opened in a JVM, temporary files left
+ * by stores that did not finish are deleted, in the background.
+ * </p>
  * @author mbutcher
  *
  */
@@ -41,10 +81,65 @@ public class FileSystemRepository implements DocumentRepository {
 	 */
 	public static final String FILE_SYSTEM_PATH_NAME = "fs_repo_path";
 	
+	/**
+	 * Context key: set to "false" to trust the document manifest when it is first 
+	 * loaded, instead of checking it against the directory. (fs_manifest_verify)
+	 * @see DocumentManifest
+	 */
+	public static final String CXT_MANIFEST_VERIFY = "fs_manifest_verify";
+	
+	/**
+	 * Context key: how hard to try to get stored documents onto disk before 
+	 * storeDocument() returns. (fs_sync)
+	 * <ul>
+	 * <li><code>none</code>: leave it to the operating system.</li>
+	 * <li><code>file</code>: sync the document file before it is renamed into place.
+	 * This is the default.</li>
+	 * <li><code>file+dir</code>: also sync the directory after the rename, so the 
+	 * rename itself survives a crash.</li>
+	 * </ul>
+	 */
+	public static final String CXT_SYNC = "fs_sync";
+	public static final String SYNC_NONE = "none";
+	public static final String SYNC_FILE = "file";
+	public static final String SYNC_FILE_DIR = "file+dir";
+	
+	/**
+	 * Context key: the codec new documents are written with. (fs_codec)
+	 * <ul>
+	 * <li><code>xml</code>: Rhizome XML. This is the default.</li>
+	 * <li><code>binary</code>: the compact format of {@link BinaryDocumentCodec}.
+	 * It is much faster to read and write, and smaller.</li>
+	 * </ul>
+	 * <p>Any codec registered with {@link DocumentCodecs} can be named. Unknown 
+	 * names mean the default.</p>
+	 */
+	public static final String CXT_CODEC = "fs_codec";
+	
+	/**
+	 * Context key: number of threads {@link #getDocuments(Collection)} reads with. 
+	 * (fs_read_threads) The default is one per CPU. The threads are shared by every 
+	 * repository, and the first repository to need them decides how many there are.
+	 * They are daemons, and exit when they have been idle for a while.
+	 */
+	public static final String CXT_READ_THREADS = "fs_read_threads";
+	
+	private static ExecutorService readPool = null;
+	
+	/** How long, in milliseconds, an idle read thread waits for work before it exits. */
+	private static final long READ_THREAD_IDLE = 30000;
+	
+	/** How long a background migration waits before retrying documents that were locked. */
+	private static final long MIGRATION_RETRY = 10000;
+	
+	// Repository directories already cleaned up (and migrated) by this JVM. Guarded by itself.
+	private static final java.util.Set<File> maintained = new java.util.HashSet<File>();
+	
 	// The config for this repository
 	private RepositoryContext cxt;
 	private String fileSystemPath;
 	private boolean isConfigured = false;
+	private ShardedLayout layout = null;
 	
 	private String repoName = null;
 	
@@ -94,32 +189,49 @@ public class FileSystemRepository implements DocumentRepository {
 
 	/**
 	 * Return the number of documents in the repository.
+	 * This comes from the {@link DocumentManifest}, so the directory is not listed.
 	 */
 	public long countDocumentIDs() throws RepositoryAccessException {
-		File repoDir = this.getRepoDir(); // This throws exception
-		FileFilter ff = (FileFilter)new DocumentID();
-		File[] files = repoDir.listFiles(ff);
-		return files.length;
+		return this.getManifest().size();
 	}
 
 	/**
 	 * Get an array of all document IDs. 
 	 * If no files are found, an empty array is returned.
+	 * This comes from the {@link DocumentManifest}, so the directory is not listed.
 	 */
 	public String[] getAllDocumentIDs() throws RepositoryAccessException {
-		File repoDir = this.getRepoDir(); // This throws exception
-		
-		FileFilter ff = (FileFilter)new DocumentID();
-		File[] files = repoDir.listFiles(ff);
-		if(files.length == 0) return new String[0];
-		
-		String[] filenames = new String[files.length];
-		int i;
-		
-		for (i = 0; i < files.length; ++i) {
-			filenames[i] = files[i].getName();
+		return this.getManifest().getDocumentIDs().toArray(new String[0]);
+	}
+	
+	/**
+	 * Get a live, read-only view of all document IDs.
+	 * <p>Unlike {@link #getAllDocumentIDs()}, this does not copy the IDs. It is safe
+	 * to iterate over while documents are being stored and removed.</p>
+	 * @return set of document IDs.
+	 * @throws RepositoryAccessException if the manifest cannot be loaded.
+	 */
+	public java.util.Set<String> getDocumentIDs() throws RepositoryAccessException {
+		return this.getManifest().getDocumentIDs();
+	}
+
+	/**
+	 * Get the IDs of all documents whose files were modified at or after the given time.
+	 * <p>This is used for incremental reindexing. Since some file systems only
+	 * record modification times to the second, callers should pass a time a little
+	 * earlier than the last time they checked, or accept that documents modified
+	 * in the same second are returned again.</p>
+	 * @param since Time in milliseconds (as from {@link System#currentTimeMillis()}).
+	 * @return array of document IDs, which may be empty.
+	 * @throws RepositoryAccessException if the repository directory cannot be read.
+	 */
+	public String[] getDocumentIDsModifiedSince(long since) throws RepositoryAccessException {
+		java.util.Map<String, File> files = this.getLayout().listDocumentFiles();
+		java.util.ArrayList<String> ids = new java.util.ArrayList<String>();
+		for(java.util.Map.Entry<String, File> e: files.entrySet()) {
+			if(e.getValue().lastModified() >= since) ids.add(e.getKey());
 		}
-		return filenames;
+		return ids.toArray(new String[ids.size()]);
 	}
 
 	/**
@@ -138,48 +250,99 @@ public class FileSystemRepository implements DocumentRepository {
 	 */
 	public RhizomeDocument getDocument(String docID) 
 			throws DocumentNotFoundException, RepositoryAccessException, RhizomeParseException {
-		File doc = new File(this.getRepoDir(), docID);
-		if(!doc.exists()) 
-			throw new DocumentNotFoundException("File not found: " + doc.toString());
-		if(!doc.isFile())
-			throw new RepositoryAccessException("Item not a file: " + doc.toString());
-		RhizomeDocumentBuilder rdb = new RhizomeDocumentBuilder();
-		RhizomeDocument rdoc;
+		File doc = this.getLayout().findDocument(docID);
+		if(doc == null) 
+			throw new DocumentNotFoundException("Document not found: " + docID);
+		// Documents are replaced by rename, so no lock is needed to read.
 		try {
-			synchronized(this) {
-				// FIXME: Work on synchronization! This is not finished!!!
-				// Should probably migrate to java.util.concurrent.lock.*
-				if(!FileSystemLocks.getInstance().isLocked(doc.getName()))
-					rdoc = rdb.fromXMLDocument(doc);
-				else
-					throw new RepositoryAccessException("Document is locked: " + doc.getName());
-			}
+			return readDocumentFile(doc);
 		} catch (IOException ioe) {
 			throw new RepositoryAccessException("IO Exception: " + ioe.getMessage());
-		} catch (SAXException saxe) {
-			throw new RhizomeParseException("SAX Exception: " + saxe.toString());
 		}
-		return rdoc;
+	}
+
+	/**
+	 * Get several documents, reading and parsing them in parallel.
+	 * <p>Like {@link #getDocument(String)}, this takes no locks.</p>
+	 * @throws RhizomeParseException if any of the documents cannot be parsed.
+	 */
+	public Map<String, RhizomeDocument> getDocuments(Collection<String> docIDs) 
+			throws RepositoryAccessException, RhizomeParseException {
+		ArrayList<String> ids = new ArrayList<String>(new LinkedHashSet<String>(docIDs));
+		LinkedHashMap<String, RhizomeDocument> docs = 
+			new LinkedHashMap<String, RhizomeDocument>(ids.size() * 2);
+		if(ids.size() < 2) {
+			for(String id: ids) {
+				try {
+					docs.put(id, this.getDocument(id));
+				} catch (DocumentNotFoundException e) {}
+			}
+			return docs;
+		}
+		
+		ShardedLayout l = this.getLayout();
+		ExecutorService pool = getReadPool(this.cxt);
+		ArrayList<Future<RhizomeDocument>> results = new ArrayList<Future<RhizomeDocument>>(ids.size());
+		try {
+			for(String id: ids) results.add(pool.submit(new ReadTask(l, id)));
+			for(int i = 0; i < ids.size(); ++i) {
+				RhizomeDocument d = results.get(i).get();
+				if(d != null) docs.put(ids.get(i), d);
+			}
+		} catch (RejectedExecutionException e) {
+			throw new RepositoryAccessException("Repository is shutting down.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryAccessException("Interrupted while reading documents.");
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if(t instanceof RhizomeParseException) throw (RhizomeParseException)t;
+			throw new RepositoryAccessException("IO Exception: " + t.getMessage());
+		} finally {
+			for(Future<RhizomeDocument> f: results) f.cancel(false);
+		}
+		return docs;
+	}
+	
+	/**
+	 * Get the file that holds a document.
+	 * <p>Documents are replaced by rename, so the file's modification time and
+	 * length change whenever the document is stored. Callers such as the
+	 * {@link com.technosophos.rhizome.repository.cache.CachingDocumentRepository}
+	 * use them to tell whether a document has changed.</p>
+	 * @param docID Document ID.
+	 * @return the file, or null if there is no such document.
+	 * @throws RepositoryAccessException if the repository directory cannot be read.
+	 */
+	public File getDocumentFile(String docID) throws RepositoryAccessException {
+		return this.getLayout().findDocument(docID);
 	}
 
 	/**
 	 * Gets a file from the file system and returns it as a raw input stream.
-	 * The file is expected to be XML, but in this case the XML is unparsed.
+	 * The stream is always XML, whatever codec the document is stored with. (A 
+	 * document in another format is decoded and written out as XML first.)
 	 * This will throw a RepositoryAccessException if the file is not found, 
 	 * is not a valid file, or causes an IO error when opened.
 	 */
 	public InputStream getRawDocument(String docID) 
 			throws DocumentNotFoundException, RepositoryAccessException {
-		File doc = new File(this.getRepoDir(), docID);
-		if(!doc.exists()) 
-			throw new DocumentNotFoundException("File not found: " + doc.toString());
-		if(!doc.isFile())
-			throw new RepositoryAccessException("Item not a file: " + doc.toString());
+		File doc = this.getLayout().findDocument(docID);
+		if(doc == null) 
+			throw new DocumentNotFoundException("Document not found: " + docID);
 		InputStream is;
 		try {
-			is = (InputStream) new java.io.FileInputStream(doc);
+			byte[] buf = readFile(doc);
+			DocumentCodec codec = DocumentCodecs.detect(buf, buf.length);
+			if(codec == DocumentCodecs.getXMLCodec()) return new ByteArrayInputStream(buf);
+			ByteArrayOutputStream xml = new ByteArrayOutputStream(buf.length * 2);
+			DocumentCodecs.getXMLCodec().encode(codec.decode(new ByteArrayInputStream(buf)), xml);
+			is = new ByteArrayInputStream(xml.toByteArray());
 		} catch (IOException ioe) {
 			throw new RepositoryAccessException("IO Exception: " + ioe.getMessage());
+		} catch (RhizomeParseException rpe) {
+			throw new RepositoryAccessException("Could not convert " + docID + " to XML: " 
+					+ rpe.getMessage());
 		}
 		return is;
 	}
@@ -191,37 +354,29 @@ public class FileSystemRepository implements DocumentRepository {
 	 * for reading.
 	 */
 	public boolean hasDocument(String docID) throws RepositoryAccessException {
-		File doc = new File(this.getRepoDir(), docID);
-		if(doc.exists() && doc.isFile()) return true;
-		return false;
+		return this.getLayout().findDocument(docID) != null;
 	}
 
 	/**
 	 * Remove a document from the repository.
 	 * 
 	 * <p>This completely deletes the document from the repository.</p>
-	 * <p>This method contains synchronized sections.</p>
+	 * <p>This takes the document's write lock.</p>
 	 * @param docID of the document to be deleted
 	 * @return true if the document was deleted.
 	 * @throws RepositoryAccessException if there is a problem with accessing the repository.
 	 */
 	public boolean removeDocument(String docID) throws RepositoryAccessException {
-		File doc = new File(this.getRepoDir(), docID);
-		if(!doc.exists() || !doc.isFile()) return false;
-		
+		ShardedLayout l = this.getLayout();
 		boolean isDel = false;
-		String dn = doc.getName();
-		synchronized(this) {
-			// FIXME: Synchronization: This is not finished!!!
-			// Should probably migrate to java.util.concurrent.lock.*
-			if(FileSystemLocks.getInstance().acquireLock(dn, 4))
-				try {
-					isDel = doc.delete();
-				}finally{
-					FileSystemLocks.getInstance().removeLock(dn);
-				}
-			else
-				throw new RepositoryAccessException("Document is locked: " + dn);
+		Lock lock = FileSystemLocks.getInstance().acquireWriteLock(docID);
+		try {
+			File doc = l.findDocument(docID);
+			if(doc == null) return false;
+			isDel = doc.delete();
+			if(isDel) this.getManifest().remove(docID);
+		} finally {
+			lock.unlock();
 		}
 		return isDel;
 	}
@@ -264,7 +419,6 @@ public class FileSystemRepository implements DocumentRepository {
 	 * Store a document in the repository.
 	 * 
 	 * This is a convenience method for calling storeDocument(RhizomeDocument, true).
-	 * It is synchronized.
 	 */
 	public String storeDocument(RhizomeDocument doc) throws RepositoryAccessException {
 		try {
@@ -282,59 +436,238 @@ public class FileSystemRepository implements DocumentRepository {
 	 * converted to the underlying format (XML), and then written to the repository
 	 * (as a file on the file system). If the <code>overwrite</code> is false and the 
 	 * file already exists, this will throw a DocumentExistsException.
+	 * <p>This takes the document's write lock, so writes to different documents
+	 * can run at the same time.</p>
+	 * <p>The document is written to a temporary file in the same directory, and 
+	 * then renamed into place.</p>
 	 */
-	public synchronized String storeDocument(RhizomeDocument doc, boolean overwrite) 
+	public String storeDocument(RhizomeDocument doc, boolean overwrite) 
 			throws RepositoryAccessException, DocumentExistsException {
-		File repoDir = this.getRepoDir();
-		File docPath = new File(repoDir, doc.getDocumentID());
-		if(!overwrite && docPath.exists())
-			throw new DocumentExistsException("Document exists: "+doc.getDocumentID());
+		ShardedLayout l = this.getLayout();
 		
-		/*
-		 * What we want to do:
-		 * 1. Lock the file. Ideally, this info should be stored on the file system,
-		 *    not in an object.
-		 * 2. Write the file.
-		 * 3. (Finally) unlock the file.
-		 */
-		if(FileSystemLocks.getInstance().acquireLock(doc.getDocumentID(), 4)) {
-			//FileSystemLocks.getInstance().lock(doc.getDocumentID());
-			FileWriter fout = null;
+		Lock lock = FileSystemLocks.getInstance().acquireWriteLock(doc.getDocumentID());
+		try {
+			if(!overwrite && l.findDocument(doc.getDocumentID()) != null)
+				throw new DocumentExistsException("Document exists: "+doc.getDocumentID());
+			File docPath = l.getStoreFile(doc.getDocumentID());
 			try {
-				fout = new FileWriter(docPath);
-				doc.toXML(fout);
-				//doc.toXML(System.out);
-				fout.flush();
-				fout.close();	
+				this.writeDocumentFile(doc, docPath, this.getCodec());
 			} catch (IOException ioe) {
-				try {
-					if(fout != null) fout.close();
-				} catch (Exception e) {
-					System.out.println("Error closing output stream.");
-				}
-				
 				throw new RepositoryAccessException("Could not write file: "
 						+ doc.getDocumentID()
-						+ " (IO Error: " + doc.getDocumentID() + ")");
-			} catch(javax.xml.parsers.ParserConfigurationException pce) {
-				try{ fout.close(); } catch (IOException e) {}
-				throw new RepositoryAccessException(
-						"Could not get contents of RhizomeDocument: " + doc.getDocumentID() 
-						+ "(Error: " + pce.getMessage() + ")");
-			} finally {
-				FileSystemLocks.getInstance().removeLock(doc.getDocumentID());
+						+ " (IO Error: " + ioe.getMessage() + ")");
 			}
-		} else {
-			throw new RepositoryAccessException("Document is locked: " + doc.getDocumentID());
+			// Remove the old copy from an unmigrated repository.
+			if(!l.isFullySharded()) l.getFlatFile(doc.getDocumentID()).delete();
+			this.getManifest().add(doc.getDocumentID());
+		} finally {
+			lock.unlock();
 		}
 		return null;
 	}
 	
-	/*
-	private boolean canAccess(String docID) {
-		return !FileSystemLocks.getInstance().isLocked(docID);
+	/**
+	 * Rewrite every document that is not already in the given format.
+	 * <p>This can run while the repository is in use. Each document is locked while
+	 * it is rewritten. Set {@link #CXT_CODEC} to the same codec, or new documents 
+	 * will still be written in the old format.</p>
+	 * @param codec Codec to convert documents to.
+	 * @return number of documents rewritten.
+	 * @throws RepositoryAccessException if a document cannot be read or written.
+	 */
+	public int convertDocuments(DocumentCodec codec) throws RepositoryAccessException {
+		ShardedLayout l = this.getLayout();
+		FileSystemLocks locks = FileSystemLocks.getInstance();
+		int converted = 0;
+		for(String docID: this.getAllDocumentIDs()) {
+			Lock lock = locks.acquireWriteLock(docID);
+			try {
+				File doc = l.findDocument(docID);
+				if(doc == null) continue; // Removed since it was listed.
+				byte[] buf = readFile(doc);
+				DocumentCodec current = DocumentCodecs.detect(buf, buf.length);
+				if(current.getName().equals(codec.getName())) continue;
+				RhizomeDocument rdoc = current.decode(new ByteArrayInputStream(buf));
+				File docPath = l.getStoreFile(docID);
+				this.writeDocumentFile(rdoc, docPath, codec);
+				if(!docPath.equals(doc)) doc.delete();
+				++converted;
+			} catch (IOException ioe) {
+				throw new RepositoryAccessException("Could not convert " + docID + ": " + ioe.getMessage());
+			} catch (RhizomeParseException rpe) {
+				throw new RepositoryAccessException("Could not convert " + docID + ": " + rpe.getMessage());
+			} finally {
+				lock.unlock();
+			}
+		}
+		return converted;
+	}
+	
+	/**
+	 * Write a document to a temporary file, and rename it into place.
+	 * The caller must hold the document's write lock.
+	 */
+	private void writeDocumentFile(RhizomeDocument doc, File docPath, DocumentCodec codec) 
+			throws IOException {
+		File tmpPath = ShardedLayout.getTempFile(docPath);
+		String sync = this.getSyncPolicy();
+		FileOutputStream fos = new FileOutputStream(tmpPath);
+		try {
+			codec.encode(doc, new java.io.BufferedOutputStream(fos, 8192));
+			if(!SYNC_NONE.equals(sync)) fos.getFD().sync();
+			fos.close();
+			fos = null;
+			// Windows will not rename over an existing file.
+			if(!tmpPath.renameTo(docPath)) replaceFile(tmpPath, docPath);
+		} finally {
+			if(fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					System.err.println("Error closing output stream.");
+				}
+				tmpPath.delete();
+			}
+		}
+		if(SYNC_FILE_DIR.equals(sync)) syncDirectory(docPath.getParentFile());
+	}
+	
+	/**
+	 * Replace a file where {@link File#renameTo(File)} will not overwrite (Windows).
+	 * <p>The old file is moved to its backup name first, and moved back if the new
+	 * one cannot be renamed into place, so the document is never lost. While the
+	 * document file is missing, {@link ShardedLayout#findDocument(String)} finds the
+	 * backup instead, so readers that take no lock still see the old document.</p>
+	 */
+	private static void replaceFile(File tmpPath, File docPath) throws IOException {
+		File bak = ShardedLayout.getBackupFile(docPath);
+		if(docPath.exists()) {
+			// A backup left by a crash is older than docPath.
+			if(bak.exists() && !bak.delete())
+				throw new IOException("Could not remove old backup " + bak);
+			if(!docPath.renameTo(bak))
+				throw new IOException("Could not rename " + docPath + " to " + bak);
+		}
+		if(tmpPath.renameTo(docPath)) {
+			bak.delete();
+			return;
+		}
+		tmpPath.delete();
+		if(bak.exists() && !bak.renameTo(docPath))
+			throw new IOException("Could not rename " + tmpPath + " to " + docPath 
+					+ ", and the old document is still in " + bak);
+		throw new IOException("Could not rename " + tmpPath + " to " + docPath);
+	}
+	
+	/**
+	 * Read a document file with whichever codec wrote it.
+	 */
+	private static RhizomeDocument readDocumentFile(File f) throws IOException, RhizomeParseException {
+		byte[] buf = readFile(f);
+		DocumentCodec codec = DocumentCodecs.detect(buf, buf.length);
+		if(codec instanceof BinaryDocumentCodec)
+			return ((BinaryDocumentCodec)codec).decode(buf, 0, buf.length);
+		return codec.decode(new ByteArrayInputStream(buf));
+	}
+	
+	/**
+	 * Get the thread pool for {@link #getDocuments(Collection)}, creating it if necessary.
+	 * <p>The threads are daemons, so they do not keep the JVM running, and they exit
+	 * after {@link #READ_THREAD_IDLE} milliseconds without work, so the pool holds no
+	 * threads between bursts of reads even if {@link #shutdownReadPool()} is never
+	 * called. When every thread is busy, the calling thread does the read itself.</p>
+	 */
+	private static synchronized ExecutorService getReadPool(RepositoryContext cxt) {
+		if(readPool != null) return readPool;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String v = cxt.getParam(CXT_READ_THREADS);
+		if(v != null) {
+			try {
+				threads = Integer.parseInt(v.trim());
+			} catch (NumberFormatException nfe) {}
+		}
+		if(threads < 1) threads = 1;
+		readPool = new ThreadPoolExecutor(0, threads, READ_THREAD_IDLE, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(), 
+				new ThreadFactory() {
+					private int count = 0;
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "rhizome-fs-reader-" + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+						// CallerRunsPolicy would silently drop it, and the Future would never finish.
+						if(pool.isShutdown()) throw new RejectedExecutionException("Read pool is shut down.");
+						r.run();
+					}
+				});
+		return readPool;
+	}
+	
+	/**
+	 * Stop the threads that {@link #getDocuments(Collection)} reads with.
+	 * Reads that are under way are finished. The threads are started again if
+	 * anything reads several documents afterward.
+	 * @see com.technosophos.rhizome.web.RhizomeContextListener
+	 */
+	public static void shutdownReadPool() {
+		ExecutorService pool;
+		synchronized(FileSystemRepository.class) {
+			pool = readPool;
+			readPool = null;
+		}
+		if(pool != null) pool.shutdown();
+	}
+	
+	/** Reads one document for {@link FileSystemRepository#getDocuments(Collection)}. */
+	private static class ReadTask implements Callable<RhizomeDocument> {
+		private ShardedLayout layout;
+		private String docID;
+		
+		ReadTask(ShardedLayout layout, String docID) {
+			this.layout = layout;
+			this.docID = docID;
+		}
+		
+		/** Returns null if the document does not exist. */
+		public RhizomeDocument call() throws IOException, RhizomeParseException {
+			File f = this.layout.findDocument(this.docID);
+			if(f == null) return null;
+			try {
+				return readDocumentFile(f);
+			} catch (java.io.FileNotFoundException e) {
+				return null; // Removed since we looked.
+			} catch (RhizomeParseException rpe) {
+				throw new RhizomeParseException(this.docID + ": " + rpe.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Read a whole file. Documents are small, and every codec needs all of it.
+	 */
+	private static byte[] readFile(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			long size = in.getChannel().size();
+			if(size > Integer.MAX_VALUE) throw new IOException("File is too large: " + f);
+			byte[] buf = new byte[(int)size];
+			int len = 0, n;
+			while(len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) len += n;
+			if(len < buf.length) {
+				// The file was replaced by a shorter one while we read it.
+				byte[] b = new byte[len];
+				System.arraycopy(buf, 0, b, 0, len);
+				buf = b;
+			}
+			return buf;
+		} finally {
+			in.close();
+		}
 	}
-	*/
 	
 	/**
 	 * Get the directory (as a {@link File}) for this repository.
@@ -356,6 +689,151 @@ public class FileSystemRepository implements DocumentRepository {
 		return dir;
 	}
 	
+	/**
+	 * Get the directory layout for this repository.
+	 */
+	private ShardedLayout getLayout() throws RepositoryAccessException {
+		File dir = this.getRepoDir();
+		ShardedLayout l = this.layout;
+		if(l == null || !l.getRoot().equals(dir)) {
+			l = new ShardedLayout(dir);
+			this.layout = l;
+			startMaintenance(l);
+		}
+		return l;
+	}
+	
+	/**
+	 * Start cleaning up a repository directory, in the background.
+	 * <p>This runs once per directory. It deletes temporary files left by stores that
+	 * did not finish (see {@link ShardedLayout#sweepTempFiles()}), and then, if the
+	 * repository predates the sharded layout, moves its documents into shards. Both
+	 * are done in the JVM that uses the repository, since they have to take the same
+	 * document locks as stores and removes. If some documents were locked during the
+	 * migration, it tries again until every one has been moved.</p>
+	 */
+	private static void startMaintenance(final ShardedLayout l) {
+		final File root = l.getRoot().getAbsoluteFile();
+		synchronized(maintained) {
+			if(!maintained.add(root)) return;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				int swept = l.sweepTempFiles();
+				if(swept > 0) 
+					System.err.println("Deleted " + swept + " unfinished temporary files in " + root);
+				if(l.isFullySharded()) return;
+				try {
+					int moved = l.migrate();
+					while(!l.isFullySharded()) {
+						Thread.sleep(MIGRATION_RETRY);
+						moved += l.migrate();
+					}
+					System.err.println("Moved " + moved + " documents in " + root
+							+ " to the sharded layout.");
+				} catch (InterruptedException ie) {
+					// Shutting down. The next JVM starts over.
+				} catch (RepositoryAccessException e) {
+					System.err.println("Could not move " + root + " to the sharded layout: " 
+							+ e.getMessage());
+					// Let the next repository opened on this directory try again.
+					synchronized(maintained) {
+						maintained.remove(root);
+					}
+				}
+			}
+		}, "rhizome-fs-maintenance " + root);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Get the codec for new documents from the context. Unknown names mean XML.
+	 */
+	private DocumentCodec getCodec() {
+		DocumentCodec c = DocumentCodecs.getCodec(this.cxt.getParam(CXT_CODEC));
+		return c == null ? DocumentCodecs.getXMLCodec() : c;
+	}
+	
+	/**
+	 * Get the sync policy from the context. Unknown values mean the default.
+	 */
+	private String getSyncPolicy() {
+		String p = this.cxt.getParam(CXT_SYNC);
+		if(p != null) p = p.trim().toLowerCase();
+		if(SYNC_NONE.equals(p) || SYNC_FILE_DIR.equals(p)) return p;
+		return SYNC_FILE;
+	}
+	
+	/**
+	 * Flush a directory's entries to disk.
+	 * <p>Only Java 7 and later can open a directory (with 
+	 * <code>FileChannel.open(Path, OpenOption...)</code>), so that is looked up by
+	 * reflection. On older JVMs this does nothing, and {@link #SYNC_FILE_DIR} is the
+	 * same as {@link #SYNC_FILE}. Not every platform lets a directory be opened 
+	 * (Windows does not), so failures are ignored.</p>
+	 */
+	private static void syncDirectory(File dir) {
+		if(DirectorySync.open == null) return;
+		java.nio.channels.FileChannel ch = null;
+		try {
+			Object path = DirectorySync.toPath.invoke(dir);
+			ch = (java.nio.channels.FileChannel)DirectorySync.open.invoke(null, path, DirectorySync.readOptions);
+			ch.force(true);
+		} catch (IOException ioe) {
+			// Nothing more can be done.
+		} catch (Exception e) {
+			// Reflection failed (InvocationTargetException wraps IOExceptions too).
+		} finally {
+			if(ch != null) try { ch.close(); } catch (IOException ioe) {}
+		}
+	}
+	
+	/**
+	 * The Java 7 methods used by {@link FileSystemRepository#syncDirectory(File)}, 
+	 * or nulls if this JVM does not have them.
+	 */
+	private static class DirectorySync {
+		static java.lang.reflect.Method toPath = null;
+		static java.lang.reflect.Method open = null;
+		static Object readOptions = null;
+		
+		static {
+			try {
+				Class<?> pathClass = Class.forName("java.nio.file.Path");
+				Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+				Object read = Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null);
+				Object options = java.lang.reflect.Array.newInstance(optionClass, 1);
+				java.lang.reflect.Array.set(options, 0, read);
+				toPath = File.class.getMethod("toPath");
+				open = java.nio.channels.FileChannel.class.getMethod("open", pathClass, options.getClass());
+				readOptions = options;
+			} catch (Exception e) {
+				toPath = null;
+				open = null;
+			}
+		}
+	}
+	
+	/**
+	 * Get the document manifest for this repository.
+	 */
+	private DocumentManifest getManifest() throws RepositoryAccessException {
+		return DocumentManifest.getManifest(this.getLayout(), 
+				!"false".equalsIgnoreCase(this.cxt.getParam(CXT_MANIFEST_VERIFY)));
+	}
+	
+	/**
+	 * Move all documents into the sharded layout, now.
+	 * This can be done while the repository is in use, and is also started in the 
+	 * background when an unmigrated repository is opened. See {@link ShardedLayout#migrate()}.
+	 * @return number of documents moved.
+	 * @throws RepositoryAccessException if a document cannot be moved.
+	 */
+	public int migrateToShardedLayout() throws RepositoryAccessException {
+		return this.getLayout().migrate();
+	}
+	
 	/** 
 	 * Get the path to the named repository.
 	 * @param name
@@ -33,6 +33,8 @@ public class FileSystemRepositoryDepot implements DocumentRepositoryDepot {
 		// Create dir
 		File newDir = new File(newDirName);
 		newDir.mkdir();
+		// New repositories start out sharded; there is nothing to migrate.
+		new ShardedLayout(newDir).markSharded();
 	}
 
 	/**
@@ -50,7 +52,9 @@ public class FileSystemRepositoryDepot implements DocumentRepositoryDepot {
 		String delDirName = FileSystemRepository.getFullPath(name, cxt);
 		if(delDirName == null) return; // this should throw exception?
 		
-		FileUtils.recursiveDirDelete(new File(delDirName));
+		File delDir = new File(delDirName);
+		DocumentManifest.closeManifest(delDir);
+		FileUtils.recursiveDirDelete(delDir);
 
 	}
 
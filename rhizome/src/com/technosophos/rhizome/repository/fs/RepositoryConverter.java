@@ -0,0 +1,45 @@
+package com.technosophos.rhizome.repository.fs;
+
+import com.technosophos.rhizome.document.DocumentCodec;
+import com.technosophos.rhizome.document.DocumentCodecs;
+import com.technosophos.rhizome.repository.RepositoryContext;
+
+/**
+ * Converts the documents in a file system repository from one codec to another.
+ * <p>Usage:</p>
+ * <pre>
+ * java com.technosophos.rhizome.repository.fs.RepositoryConverter /path/to/repositories name (xml|binary)
+ * </pre>
+ * <p>The first argument is the directory that holds the repositories (the
+ * {@link FileSystemRepository#FILE_SYSTEM_PATH_NAME} param), and the second is the
+ * repository's name. Conversion works in either direction, and can be run while
+ * the repository is in use (see {@link FileSystemRepository#convertDocuments(DocumentCodec)}).
+ * Afterward, set {@link FileSystemRepository#CXT_CODEC} to match, so that new
+ * documents are written in the same format.</p>
+ * @author mbutcher
+ *
+ */
+public class RepositoryConverter {
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3) {
+			System.err.println("Usage: RepositoryConverter repository_base_directory repository_name codec");
+			System.exit(1);
+		}
+		DocumentCodec codec = DocumentCodecs.getCodec(args[2]);
+		if(codec == null) {
+			System.err.println("Unknown codec: " + args[2]);
+			System.exit(1);
+		}
+		RepositoryContext cxt = new RepositoryContext();
+		cxt.addParam(FileSystemRepository.FILE_SYSTEM_PATH_NAME, args[0]);
+		FileSystemRepository repo = new FileSystemRepository(args[1], cxt);
+
+		long start = System.currentTimeMillis();
+		int converted = repo.convertDocuments(codec);
+		System.out.format("Converted %d of %d documents to %s in %d ms.\n", converted,
+				repo.countDocumentIDs(), codec.getName(), System.currentTimeMillis() - start);
+		System.out.format("Set %s=%s in the repository configuration.\n",
+				FileSystemRepository.CXT_CODEC, codec.getName());
+	}
+}
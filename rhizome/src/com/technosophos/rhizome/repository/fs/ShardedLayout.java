@@ -0,0 +1,357 @@
+package com.technosophos.rhizome.repository.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import com.technosophos.rhizome.repository.RepositoryAccessException;
+
+/**
+ * Maps document IDs to files in a sharded directory tree.
+ * <p>Documents used to be stored as flat files, all in the repository directory.
+ * With hundreds of thousands of documents, every lookup in that directory gets
+ * slow. Now each document is stored two directories down, in a shard picked by
+ * hashing the document ID:</p>
+ * <pre>
+ * repository/ab/cd/&lt;document ID&gt;
+ * </pre>
+ * <p>There are at most 65536 shards, so each directory stays small and finding a
+ * document takes the same time no matter how large the repository is.</p>
+ * <p>Repositories created before this layout still have flat files. Until the
+ * repository has been migrated (see {@link #migrate()}), lookups fall back to the
+ * flat file, and listings include both. A migrated repository has a marker file
+ * ({@link #SHARDED_MARKER}), and then only the shards are used.</p>
+ * <p>Migration can run while the repository is in use, but only in the same JVM:
+ * it takes the same {@link FileSystemLocks} as stores and removes, and those locks
+ * are not visible to other processes. {@link FileSystemRepository} starts it in the
+ * background the first time it opens an unmigrated repository.</p>
+ * @author mbutcher
+ *
+ */
+public class ShardedLayout {
+
+	/**
+	 * Name of the marker file that says every document is in a shard.
+	 * It starts with a dot, so it is never mistaken for a document.
+	 */
+	public static final String SHARDED_MARKER = ".sharded";
+
+	/** Suffix of the temporary files documents are written to. See {@link #getTempFile(File)}. */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** Prefix for flat files that are moved aside during migration. */
+	private static final String MIGRATING_PREFIX = ".migrating-";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private File root;
+	private volatile boolean sharded;
+
+	/**
+	 * Create a layout for the repository directory.
+	 * @param root Repository directory.
+	 */
+	public ShardedLayout(File root) {
+		this.root = root;
+		this.sharded = new File(root, SHARDED_MARKER).exists();
+	}
+
+	/**
+	 * Get the repository directory.
+	 * @return repository directory.
+	 */
+	public File getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * Check whether every document in the repository is in a shard.
+	 * @return true if the repository has been migrated (or was created sharded).
+	 */
+	public boolean isFullySharded() {
+		return this.sharded;
+	}
+
+	/**
+	 * Get the shard path for a document ID.
+	 * <p>This is two levels of two hex digits, taken from a mix of the ID's hash code
+	 * (which is the same on every JVM). For example, <code>3f/a0</code>.</p>
+	 * @param docID Document ID.
+	 * @return relative path of the shard directory, using the platform separator.
+	 */
+	public static String getShardPath(String docID) {
+		int h = docID.hashCode();
+		// Mix the bits, so that short or similar IDs still spread over all shards.
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		h ^= (h >>> 16);
+		char[] c = new char[5];
+		c[0] = HEX[(h >>> 12) & 0xf];
+		c[1] = HEX[(h >>> 8) & 0xf];
+		c[2] = File.separatorChar;
+		c[3] = HEX[(h >>> 4) & 0xf];
+		c[4] = HEX[h & 0xf];
+		return new String(c);
+	}
+
+	/**
+	 * Get the file a document is stored in, in the sharded layout.
+	 * The file may not exist.
+	 * @param docID Document ID.
+	 * @return file in the document's shard.
+	 */
+	public File getShardedFile(String docID) {
+		return new File(new File(this.root, getShardPath(docID)), docID);
+	}
+
+	/**
+	 * Get the file a document is stored in, in the old flat layout.
+	 * The file may not exist.
+	 * @param docID Document ID.
+	 * @return file in the repository directory.
+	 */
+	public File getFlatFile(String docID) {
+		return new File(this.root, docID);
+	}
+
+	/**
+	 * Find the file holding a document.
+	 * @param docID Document ID.
+	 * @return the document's file, or null if there is no such document.
+	 */
+	public File findDocument(String docID) {
+		File f = this.getShardedFile(docID);
+		if(f.isFile()) return f;
+		if(!this.sharded) {
+			File flat = this.getFlatFile(docID);
+			if(flat.isFile()) return flat;
+			flat = new File(this.root, MIGRATING_PREFIX + docID);
+			if(flat.isFile()) return flat;
+		}
+		// It may be in the middle of being replaced.
+		File bak = getBackupFile(f);
+		if(bak.isFile()) return bak;
+		// Or it may have been migrated or replaced since we looked.
+		return f.isFile() ? f : null;
+	}
+
+	/**
+	 * Get the name a document file is moved to while it is being replaced, on
+	 * platforms where a file cannot be renamed over another. Like temporary files,
+	 * it starts with a dot, so it is not listed as a document.
+	 * @param docFile The document file.
+	 * @return the backup file, in the same directory. It may not exist.
+	 */
+	public static File getBackupFile(File docFile) {
+		return new File(docFile.getParentFile(), "." + docFile.getName() + ".bak");
+	}
+
+	/**
+	 * Get the temporary file a document is written to before it is renamed into place.
+	 * It starts with a dot, so it is not listed as a document.
+	 * @param docFile The document file.
+	 * @return the temporary file, in the same directory. It may not exist.
+	 */
+	public static File getTempFile(File docFile) {
+		return new File(docFile.getParentFile(), "." + docFile.getName() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Get the file a document should be written to, creating its shard if needed.
+	 * @param docID Document ID.
+	 * @return file in the document's shard.
+	 * @throws RepositoryAccessException if the shard directory cannot be created.
+	 */
+	public File getStoreFile(String docID) throws RepositoryAccessException {
+		File f = this.getShardedFile(docID);
+		File shard = f.getParentFile();
+		// mkdirs() can fail if another thread creates the dir first, so check again.
+		if(!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory())
+			throw new RepositoryAccessException("Cannot create directory " + shard.getAbsolutePath());
+		return f;
+	}
+
+	/**
+	 * List every document in the repository, with its file.
+	 * <p>Only names are read from the shard directories. Files are stat-ed only in
+	 * the top-level directory, and only if the repository has not been migrated.
+	 * Documents that a running migration moves during the listing are still listed.</p>
+	 * @return map of document IDs to files.
+	 * @throws RepositoryAccessException if the repository directory cannot be read.
+	 */
+	public Map<String, File> listDocumentFiles() throws RepositoryAccessException {
+		String[] top = this.root.list();
+		if(top == null)
+			throw new RepositoryAccessException("Cannot read directory " + this.root.getAbsolutePath());
+		// Keyed by ID, since a document being migrated may be seen in both places.
+		LinkedHashMap<String, File> files = new LinkedHashMap<String, File>();
+		ArrayList<File> shards = new ArrayList<File>();
+		boolean flat = !this.sharded;
+		for(String name: top) {
+			if(flat && name.startsWith(MIGRATING_PREFIX)) {
+				files.put(name.substring(MIGRATING_PREFIX.length()), new File(this.root, name));
+				continue;
+			}
+			if(name.startsWith(".")) continue;
+			File f = new File(this.root, name);
+			if(isShardName(name) && f.isDirectory()) {
+				shards.add(f);
+				// A document by this name may have been moved aside since the listing.
+				if(flat) this.addMoved(files, name);
+			} else if(flat) {
+				if(f.isFile()) files.put(name, f);
+				else this.addMoved(files, name);
+			}
+		}
+		for(File s1: shards) {
+			String[] second = s1.list();
+			if(second == null) continue;
+			for(String name2: second) {
+				if(!isShardName(name2)) continue;
+				File s2 = new File(s1, name2);
+				String[] docs = s2.list();
+				if(docs == null) continue;
+				for(String id: docs) {
+					if(!id.startsWith(".")) files.put(id, new File(s2, id));
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Delete the temporary files of stores that never finished.
+	 * <p>If the process dies after a document's temporary file is written, but before
+	 * it is renamed into place, the temporary file is left in the shard. Each one is
+	 * deleted while holding its document's write lock, so a store that is running in
+	 * this JVM is not disturbed; if the lock is busy, the file is left for next time.</p>
+	 * @return number of files deleted.
+	 */
+	public int sweepTempFiles() {
+		String[] top = this.root.list();
+		if(top == null) return 0;
+		FileSystemLocks locks = FileSystemLocks.getInstance();
+		int deleted = 0;
+		for(String name1: top) {
+			if(!isShardName(name1)) continue;
+			File s1 = new File(this.root, name1);
+			String[] second = s1.list();
+			if(second == null) continue;
+			for(String name2: second) {
+				if(!isShardName(name2)) continue;
+				File s2 = new File(s1, name2);
+				String[] names = s2.list();
+				if(names == null) continue;
+				for(String name: names) {
+					if(!name.startsWith(".") || !name.endsWith(TEMP_SUFFIX)
+							|| name.length() <= TEMP_SUFFIX.length() + 1) continue;
+					String id = name.substring(1, name.length() - TEMP_SUFFIX.length());
+					Lock lock = locks.tryWriteLock(id, 0);
+					if(lock == null) continue;
+					try {
+						if(new File(s2, name).delete()) ++deleted;
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/** Add a document that a migration moved after the directory was listed, if it still exists. */
+	private void addMoved(Map<String, File> files, String docID) {
+		File f = this.findDocument(docID);
+		if(f != null) files.put(docID, f);
+	}
+
+	/**
+	 * Move every flat document file into its shard, then mark the repository as sharded.
+	 * <p>This can run while the repository is in use by this JVM. Each document is
+	 * locked while it is moved. If a document is locked by someone else, it is left
+	 * for the next run, and the repository is not marked as sharded.</p>
+	 * @return number of documents moved.
+	 * @throws RepositoryAccessException if a document cannot be moved.
+	 */
+	public int migrate() throws RepositoryAccessException {
+		String[] top = this.root.list();
+		if(top == null)
+			throw new RepositoryAccessException("Cannot read directory " + this.root.getAbsolutePath());
+		int moved = 0;
+		boolean skipped = false;
+		FileSystemLocks locks = FileSystemLocks.getInstance();
+		// A document whose ID looks like a shard name would block creating that
+		// shard, so those are moved aside first.
+		for(String id: top) {
+			File flat = new File(this.root, id);
+			if(!isShardName(id) || !flat.isFile()) continue;
+			Lock lock = locks.tryWriteLock(id, FileSystemLocks.DEFAULT_TIMEOUT);
+			// Until it is moved, its shard cannot be created. Try again next run.
+			if(lock == null) return moved;
+			try {
+				if(flat.isFile() && !flat.renameTo(new File(this.root, MIGRATING_PREFIX + id)))
+					throw new RepositoryAccessException("Cannot move " + flat.getAbsolutePath());
+			} finally {
+				lock.unlock();
+			}
+		}
+		for(String name: this.root.list()) {
+			String id = name;
+			if(name.startsWith(MIGRATING_PREFIX)) id = name.substring(MIGRATING_PREFIX.length());
+			else if(name.startsWith(".")) continue;
+			File flat = new File(this.root, name);
+			if(!flat.isFile()) continue;
+			Lock lock = locks.tryWriteLock(id, FileSystemLocks.DEFAULT_TIMEOUT);
+			if(lock == null) {
+				skipped = true;
+				continue;
+			}
+			try {
+				// Another migration may have moved it first.
+				if(!flat.isFile()) continue;
+				File dest = this.getStoreFile(id);
+				if(dest.exists()) {
+					// Stores always go to the shard, so the shard copy is newer.
+					if(!flat.delete())
+						throw new RepositoryAccessException("Cannot remove file " + flat.getAbsolutePath());
+				} else if(!flat.renameTo(dest)) {
+					throw new RepositoryAccessException("Cannot move " + flat.getAbsolutePath()
+							+ " to " + dest.getAbsolutePath());
+				}
+				++moved;
+			} finally {
+				lock.unlock();
+			}
+		}
+		if(!skipped) this.markSharded();
+		return moved;
+	}
+
+	/**
+	 * Mark the repository as fully sharded.
+	 * This is done by {@link #migrate()}, and when a new repository is created.
+	 * @throws RepositoryAccessException if the marker cannot be written.
+	 */
+	public void markSharded() throws RepositoryAccessException {
+		try {
+			new File(this.root, SHARDED_MARKER).createNewFile();
+		} catch (IOException ioe) {
+			throw new RepositoryAccessException("Cannot write " + SHARDED_MARKER + ": " + ioe.getMessage());
+		}
+		this.sharded = true;
+	}
+
+	/** Two lowercase hex digits. */
+	private static boolean isShardName(String name) {
+		return name.length() == 2 && isHex(name.charAt(0)) && isHex(name.charAt(1));
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+	}
+}
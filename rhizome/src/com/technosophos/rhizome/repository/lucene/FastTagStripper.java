@@ -5,6 +5,8 @@ package com.technosophos.rhizome.repository.lucene;
  * careful about stripping tags... it just rips them all out.</p>
  * <p>This class is borrowed from my old OpenCms Lucene search code, which is still
  * available (albeit worthless) at http://aleph-null.tv
+ * <p>To index a document without copying it into a String first, use
+ * {@link TagStrippingReader} instead.</p>
  * @author mbutcher
  */
 public class FastTagStripper {
@@ -43,7 +45,7 @@ public class FastTagStripper {
 	 * @return String stripped of all tags/elements.
 	 */
 	public static String strip(char [] doc) {
-		StringBuffer sb = new StringBuffer();
+		StringBuffer sb = new StringBuffer(doc.length);
 		char lastChar = ' '; // basically, prevents leading whitespace
 		boolean write = true;
 		for (int i=0; i < doc.length; ++i) {
@@ -61,11 +63,7 @@ public class FastTagStripper {
 	}
 
 	public static boolean isWhitespace(char c) {
-		char [] ws = {' ','\n','\t'};
-		for (int i = 0; i < ws.length; ++i) {
-			if(ws[i] == c) return true;
-		}
-		return false;
+		return c == ' ' || c == '\n' || c == '\t';
 	}
 }
 
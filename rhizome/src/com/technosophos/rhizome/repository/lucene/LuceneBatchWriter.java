@@ -0,0 +1,285 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Commits changes to an index in groups.
+ * <p>Opening an IndexWriter takes the index write lock, and closing it flushes a
+ * segment and writes a new commit point. Doing that for every saved document is slow, and
+ * concurrent saves queue up behind each other's locks. Instead, each index has one
+ * of these. Updates and deletes from any thread are queued, and a single background
+ * thread applies each group of them to one IndexWriter and commits them together.</p>
+ * <p>A group is all or nothing. Its IndexWriter is opened with autoCommit turned off,
+ * so nothing reaches the index until the writer is closed. If any change in the group
+ * fails, the writer is aborted, every change in the group is failed, and the index
+ * is left as it was before the group.</p>
+ * <p>Each group is written while holding the index's write lock (see 
+ * {@link LuceneIndexerDepot#getWriteLock(String)}). A full rebuild holds the same
+ * lock, so changes queued during a rebuild wait, and are committed on top of the
+ * rebuilt index.</p>
+ * <p>A group is committed when it holds <code>maxDocs</code> changes, or when the
+ * oldest change in it has waited <code>interval</code> milliseconds, whichever
+ * comes first. Both are set in the {@link com.technosophos.rhizome.repository.RepositoryContext}
+ * with {@link #CXT_COMMIT_INTERVAL} and {@link #CXT_COMMIT_DOCS}.</p>
+ * <p>Every change returns a {@link Future} that completes when the change has been
+ * committed (or fails if the commit failed). Callers that need the change to be
+ * visible to searchers before they continue should call <code>get()</code> on it.</p>
+ * <p>A committed change has been written to the index files and survives the 
+ * process exiting or crashing. Lucene 2.3 does not fsync those files, though, so 
+ * it may still be lost if the operating system crashes or the power fails before 
+ * the files reach the disk. The documents themselves are in the repository, and
+ * {@link LuceneIncrementalReindexer} can bring the index up to date from there.</p>
+ * <p>Commits do not advance the index's checkpoint (see 
+ * {@link LuceneIncrementalReindexer}). A commit only shows that the changes that
+ * were queued are in the index. A document can be stored and never queued (if the
+ * request fails in between), and a checkpoint taken from commit times would hide it
+ * from every later incremental reindex. Only reindexes, which look at the
+ * repository itself, move the checkpoint.</p>
+ * <p>Instances are created and owned by {@link LuceneIndexerDepot}. There is one
+ * per index path.</p>
+ * @author mbutcher
+ *
+ */
+public class LuceneBatchWriter implements Runnable {
+
+	/** Context key: longest time (in milliseconds) a change waits before it is committed. */
+	public static final String CXT_COMMIT_INTERVAL = "index_commit_interval";
+	/** Context key: number of pending changes that forces a commit. */
+	public static final String CXT_COMMIT_DOCS = "index_commit_docs";
+
+	public static final long DEFAULT_COMMIT_INTERVAL = 100;
+	public static final int DEFAULT_COMMIT_DOCS = 500;
+
+	private String indexPath = null;
+	private long interval = DEFAULT_COMMIT_INTERVAL;
+	private int maxDocs = DEFAULT_COMMIT_DOCS;
+
+	// All of these are guarded by this.
+	private LinkedList<Change> pending = new LinkedList<Change>();
+	private long firstPending = 0;
+	private Thread thread = null;
+	private boolean closed = false;
+
+	/**
+	 * Create a batch writer for the index at the given path.
+	 * Neither the IndexWriter nor the background thread are started until the
+	 * first change is queued.
+	 * @param indexPath Full path to the index directory.
+	 * @param interval Longest time, in milliseconds, a change may wait for a commit.
+	 * @param maxDocs Number of pending changes that forces a commit.
+	 */
+	LuceneBatchWriter(String indexPath, long interval, int maxDocs) {
+		this.indexPath = indexPath;
+		this.interval = interval > 0 ? interval : DEFAULT_COMMIT_INTERVAL;
+		this.maxDocs = maxDocs > 0 ? maxDocs : DEFAULT_COMMIT_DOCS;
+	}
+
+	/**
+	 * Get the path to the index this writer writes to.
+	 * @return path to the index directory.
+	 */
+	public String getIndexPath() {
+		return this.indexPath;
+	}
+
+	/**
+	 * Queue a document to be added to the index, replacing any document that has
+	 * the given ID term.
+	 * @param id Term identifying the document.
+	 * @param doc Lucene document to add.
+	 * @return Future that completes when the change has been committed.
+	 */
+	public Future<Void> update(Term id, Document doc) {
+		return this.update(id, doc, null);
+	}
+
+	/**
+	 * Queue a document to be added to the index, and run something once it is committed.
+	 * @param id Term identifying the document.
+	 * @param doc Lucene document to add.
+	 * @param onCommit Run on the writer thread after the change is committed, and 
+	 * before the Future completes. It is not run if the commit fails. May be null.
+	 * @return Future that completes when the change has been committed.
+	 */
+	public Future<Void> update(Term id, Document doc, Runnable onCommit) {
+		return this.enqueue(new Change(id, doc, onCommit));
+	}
+
+	/**
+	 * Queue a delete of all documents with the given term.
+	 * @param id Term identifying the document(s).
+	 * @return Future that completes when the delete has been committed.
+	 */
+	public Future<Void> delete(Term id) {
+		return this.delete(id, null);
+	}
+
+	/**
+	 * Queue a delete, and run something once it is committed.
+	 * @param id Term identifying the document(s).
+	 * @param onCommit See {@link #update(Term, Document, Runnable)}. May be null.
+	 * @return Future that completes when the delete has been committed.
+	 */
+	public Future<Void> delete(Term id, Runnable onCommit) {
+		return this.enqueue(new Change(id, null, onCommit));
+	}
+
+	/**
+	 * Commit everything still pending, and stop the background thread. This blocks until the last group has been committed.
+	 * Changes queued after this are failed immediately.
+	 */
+	public void close() {
+		Thread t;
+		synchronized(this) {
+			if(this.closed) return;
+			this.closed = true;
+			t = this.thread;
+			this.notifyAll();
+		}
+		if(t != null && t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The background loop. Do not call this directly.
+	 */
+	public void run() {
+		while(true) {
+			List<Change> batch;
+			synchronized(this) {
+				try {
+					while(this.pending.isEmpty() && !this.closed) this.wait();
+					// Let the group fill up, or the oldest change age out.
+					while(!this.closed && this.pending.size() < this.maxDocs) {
+						long wait = this.firstPending + this.interval - System.currentTimeMillis();
+						if(wait <= 0) break;
+						this.wait(wait);
+					}
+				} catch (InterruptedException ie) {
+					// Commit what we have and shut down.
+					this.closed = true;
+				}
+				if(this.pending.isEmpty()) break; // Only when closed.
+				batch = new ArrayList<Change>(this.pending);
+				this.pending.clear();
+			}
+			this.commit(batch);
+		}
+	}
+
+	private synchronized Future<Void> enqueue(Change c) {
+		if(this.closed) {
+			c.fail(new IOException("Index writer for " + this.indexPath + " is closed."));
+			return c;
+		}
+		if(this.pending.isEmpty()) this.firstPending = System.currentTimeMillis();
+		this.pending.add(c);
+		if(this.thread == null) {
+			this.thread = new Thread(this, "rhizome-index-writer " + this.indexPath);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+		this.notifyAll();
+		return c;
+	}
+
+	/** 
+	 * Apply and commit a group of changes, then complete their futures.
+	 */
+	private void commit(List<Change> batch) {
+		Lock lock = LuceneIndexerDepot.getWriteLock(this.indexPath);
+		lock.lock();
+		try {
+			Directory dir = null;
+			IndexWriter w = null;
+			try {
+				dir = FSDirectory.getDirectory(this.indexPath);
+				// autoCommit is off: nothing is written to the index until close().
+				w = new IndexWriter(dir, false, new StandardAnalyzer());
+				for(Change c: batch) c.apply(w);
+				// The commit point is not fsynced (Lucene 2.3 never does), so it is 
+				// safe from a process crash only.
+				w.close();
+				w = null;
+			} catch (Throwable t) {
+				for(Change c: batch) c.fail(t);
+				return;
+			} finally {
+				if(w != null) {
+					// Throws away the whole group, and releases the write lock.
+					try {
+						w.abort();
+					} catch (IOException ioe) {
+						System.err.println("Could not roll back index writer for " + this.indexPath
+								+ ": " + ioe.getMessage());
+					}
+				}
+				if(dir != null) {
+					try { dir.close(); } catch (IOException ioe) {}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		LuceneSearcherDepot.indexChanged(this.indexPath);
+		for(Change c: batch) c.committed();
+	}
+
+	/**
+	 * One queued update or delete, and the Future that reports its commit.
+	 */
+	private static class Change extends FutureTask<Void> {
+		private static final Runnable NOOP = new Runnable() { public void run() {} };
+
+		private Term id;
+		private Document doc;
+		private Runnable onCommit;
+
+		/** A null doc means delete. */
+		Change(Term id, Document doc, Runnable onCommit) {
+			super(NOOP, null);
+			this.id = id;
+			this.doc = doc;
+			this.onCommit = onCommit;
+		}
+
+		void apply(IndexWriter w) throws IOException {
+			if(this.doc == null) w.deleteDocuments(this.id);
+			else w.updateDocument(this.id, this.doc);
+		}
+
+		void committed() {
+			if(this.onCommit != null) {
+				try {
+					this.onCommit.run();
+				} catch (RuntimeException e) {
+					// The change is in the index, so it still succeeded.
+					System.err.println("Error after index commit: " + e.getMessage());
+				}
+			}
+			this.set(null);
+		}
+
+		void fail(Throwable t) {
+			this.setException(t);
+		}
+	}
+}
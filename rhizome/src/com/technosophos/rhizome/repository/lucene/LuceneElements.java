@@ -27,7 +27,37 @@ public class LuceneElements {
 	 */
 	public static String RELATION_SEPARATOR = "%%";
 	
-	// Unused:
+	/**
+	 * Untokenized copy of each relation (docID + RELATION_SEPARATOR + type).
+	 * Used for exact-match relation lookups.
+	 */
+	public static String LUCENE_RELATION_KEY_FIELD = "_relkey";
+	
+	/**
+	 * Untokenized docID of each related document. Used to find all documents
+	 * that point to a given document, regardless of relation type.
+	 */
+	public static String LUCENE_RELATION_TARGET_FIELD = "_reltarget";
+	
+	/**
+	 * Prefix for the untokenized copy of each metadatum.
+	 * Metadata fields are tokenized for full-text searching, which means they
+	 * cannot be matched exactly with a term lookup. Each value is also indexed
+	 * (but not stored) under this prefix, so exact matches can be found in the
+	 * term dictionary instead of by loading every stored document.
+	 * @see #exactFieldName(String)
+	 */
 	public static String METADATA_FIELD_PREFIX = "metadatum:";
+	
+	// Unused:
 	public static String RELATION_FIELD_PREFIX = "relation:";
+	
+	/**
+	 * Get the name of the untokenized field for a metadatum.
+	 * @param mdName Metadatum name
+	 * @return name of the exact-match field for that metadatum.
+	 */
+	public static String exactFieldName(String mdName) {
+		return METADATA_FIELD_PREFIX + mdName;
+	}
 }
@@ -0,0 +1,313 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import static com.technosophos.rhizome.repository.lucene.LuceneElements.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+import com.technosophos.rhizome.document.RhizomeParseException;
+import com.technosophos.rhizome.repository.DocumentNotFoundException;
+import com.technosophos.rhizome.repository.DocumentRepository;
+import com.technosophos.rhizome.repository.RepositoryAccessException;
+import com.technosophos.rhizome.repository.RepositoryContext;
+import com.technosophos.rhizome.repository.RepositoryManager;
+import com.technosophos.rhizome.repository.RhizomeInitializationException;
+import com.technosophos.rhizome.repository.cache.CachingDocumentRepository;
+import com.technosophos.rhizome.repository.fs.FileSystemRepository;
+
+/**
+ * Brings an index up to date with its repository without rebuilding it.
+ * <p>Each index keeps a checkpoint file ({@link #CHECKPOINT_FILE}) in its directory.
+ * The checkpoint records when the index was last known to match the repository.
+ * An incremental reindex then:</p>
+ * <ul>
+ * <li>reindexes every document whose file was modified since the checkpoint,</li>
+ * <li>indexes every document in the repository that is missing from the index, and</li>
+ * <li>deletes every document from the index that is no longer in the repository.</li>
+ * </ul>
+ * <p>Finding the changes only takes a directory listing and a walk of the document
+ * ID terms, so after a crash the index can be recovered in seconds. Run this when
+ * the application starts, or on demand with {@link #main(String[])}.</p>
+ * <p>Modification times come from {@link FileSystemRepository}. For other
+ * repositories, if there is no checkpoint yet, or if the index is in an older
+ * format (see {@link LuceneIndexer#FORMAT_FILE}), a full
+ * {@link LuceneIndexer#reindex(RepositoryManager)} is done instead. A full reindex
+ * also writes a new checkpoint.</p>
+ * <p>Only reindexes move the checkpoint. An incremental reindex sets it to the time
+ * its scan of the repository started, and a full reindex to the time it started,
+ * since anything changed after that may have been missed. Commits from 
+ * {@link LuceneBatchWriter} do not move it: a document can be stored without ever
+ * being queued for indexing (if the request fails in between), and a checkpoint
+ * taken from commit times would hide that document from every later run. So the
+ * longer it has been since the last reindex, the more documents the next one looks
+ * at; run one when the application starts.</p>
+ * @author mbutcher
+ *
+ */
+public class LuceneIncrementalReindexer {
+
+	/** Name of the checkpoint file, in the index directory. */
+	public static final String CHECKPOINT_FILE = "rhizome-checkpoint.properties";
+
+	/** Checkpoint key for the time the index last matched the repository. */
+	private static final String CP_MTIME = "mtime";
+	/** Checkpoint key for the number of documents in the index at that time. */
+	private static final String CP_DOCS = "docs";
+
+	/** Files modified this close to the checkpoint are reindexed again, for coarse file system clocks. */
+	private static final long MTIME_SLACK = 2000;
+
+	private LuceneIndexer indexer;
+	private RepositoryManager repman;
+
+	private int updated = 0;
+	private int deleted = 0;
+	private int failed = 0;
+
+	/**
+	 * Create an incremental reindexer.
+	 * @param indexer Indexer for the index to update.
+	 * @param repman Initialized repository manager.
+	 */
+	public LuceneIncrementalReindexer(LuceneIndexer indexer, RepositoryManager repman) {
+		this.indexer = indexer;
+		this.repman = repman;
+	}
+
+	/**
+	 * Bring the index up to date, and write a new checkpoint.
+	 * <p>Documents that cannot be parsed are skipped (and logged), so that one bad
+	 * file does not stop the recovery.</p>
+	 * @return number of documents updated or deleted. For a full reindex, this is the
+	 * number of documents in the index.
+	 * @throws RepositoryAccessException if the repository cannot be read.
+	 * @throws RhizomeInitializationException if the index cannot be read or written.
+	 */
+	public long reindex() throws RepositoryAccessException, RhizomeInitializationException {
+		// Read past any cache: this looks at files, and touches many documents once.
+		DocumentRepository repo = CachingDocumentRepository.unwrap(
+				this.repman.getRepository(this.indexer.getIndexName()));
+		File indexDir;
+		try {
+			indexDir = this.indexer.getIndexDir();
+		} catch (IOException ioe) {
+			throw new RhizomeInitializationException("Lucene: " + ioe.getMessage());
+		}
+		long since = readCheckpoint(indexDir);
+		// An index in an older format has to be rebuilt to be usable for exact lookups.
+		if(since < 0 || LuceneIndexer.readFormatVersion(indexDir) < 0 
+				|| !(repo instanceof FileSystemRepository))
+			return this.indexer.reindex(this.repman);
+
+		// Anything modified after this will be picked up next time.
+		long start = System.currentTimeMillis();
+		String[] changed = ((FileSystemRepository)repo).getDocumentIDsModifiedSince(since - MTIME_SLACK);
+		HashSet<String> inRepo = new HashSet<String>(Arrays.asList(repo.getAllDocumentIDs()));
+		HashSet<String> inIndex = this.getIndexedDocIDs(indexDir);
+
+		HashSet<String> toUpdate = new HashSet<String>(Arrays.asList(changed));
+		for(String id: inRepo)
+			if(!inIndex.contains(id)) toUpdate.add(id);
+
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for(String id: inIndex) {
+			if(!inRepo.contains(id)) {
+				pending.add(this.indexer.queueDelete(id));
+				++this.deleted;
+			}
+		}
+		for(String id: toUpdate) {
+			try {
+				pending.add(this.indexer.queueUpdate(repo.getDocument(id)));
+				++this.updated;
+			} catch (DocumentNotFoundException dnfe) {
+				// Deleted since it was listed. The next run will remove it.
+			} catch (RhizomeParseException rpe) {
+				System.err.println("Skipping " + id + ": " + rpe.getMessage());
+				++this.failed;
+			}
+		}
+
+		for(Future<Void> f: pending) {
+			try {
+				f.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RhizomeInitializationException("Interrupted while waiting for commit.");
+			} catch (ExecutionException ee) {
+				throw new RhizomeInitializationException("Could not write to index: "
+						+ ee.getCause().getMessage());
+			}
+		}
+		writeCheckpoint(indexDir, start, inIndex.size() - this.deleted + this.updated);
+		return this.updated + this.deleted;
+	}
+
+	/**
+	 * Number of documents reindexed by the last incremental run.
+	 * @return documents updated.
+	 */
+	public int getUpdated() {
+		return this.updated;
+	}
+
+	/**
+	 * Number of documents removed from the index by the last incremental run.
+	 * @return documents deleted.
+	 */
+	public int getDeleted() {
+		return this.deleted;
+	}
+
+	/**
+	 * Number of documents skipped because they could not be parsed.
+	 * @return documents skipped.
+	 */
+	public int getFailed() {
+		return this.failed;
+	}
+
+	/**
+	 * Read the checkpoint time for an index.
+	 * @param indexDir Index directory.
+	 * @return checkpoint time in milliseconds, or -1 if there is no usable checkpoint.
+	 */
+	public static long readCheckpoint(File indexDir) {
+		Properties p = loadProperties(new File(indexDir, CHECKPOINT_FILE));
+		if(p == null) return -1;
+		try {
+			return Long.parseLong(p.getProperty(CP_MTIME, "-1").trim());
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Write the checkpoint for an index.
+	 * <p>The file is written under a temporary name and then renamed, so a crash
+	 * cannot leave a half-written checkpoint. Writes are serialized.</p>
+	 * @param indexDir Index directory.
+	 * @param mtime Time at which the index matched the repository. This must be the
+	 * time a scan of the repository started, not the time of a commit.
+	 * @param docs Number of documents in the index.
+	 * @throws RhizomeInitializationException if the file cannot be written.
+	 */
+	public static synchronized void writeCheckpoint(File indexDir, long mtime, long docs)
+			throws RhizomeInitializationException {
+		Properties p = new Properties();
+		p.setProperty(CP_MTIME, Long.toString(mtime));
+		p.setProperty(CP_DOCS, Long.toString(docs));
+		try {
+			storeProperties(new File(indexDir, CHECKPOINT_FILE), p, "Rhizome index checkpoint");
+		} catch (IOException ioe) {
+			throw new RhizomeInitializationException("Could not write checkpoint: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Read a properties file from an index directory.
+	 * @return the properties, or null if the file does not exist or cannot be read.
+	 */
+	static Properties loadProperties(File f) {
+		if(!f.isFile()) return null;
+		Properties p = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			p.load(in);
+			return p;
+		} catch (IOException ioe) {
+			return null;
+		} finally {
+			if(in != null) try { in.close(); } catch (IOException ioe) {}
+		}
+	}
+
+	/**
+	 * Write a properties file into an index directory.
+	 * The file is written under a temporary name and then renamed, so a crash
+	 * cannot leave it half-written.
+	 */
+	static void storeProperties(File f, Properties p, String comment) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			p.store(out, comment);
+			out.getFD().sync();
+			out.close();
+			out = null;
+			// Windows will not rename over an existing file.
+			if(!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+				throw new IOException("Could not rename " + tmp + " to " + f);
+		} finally {
+			if(out != null) try { out.close(); } catch (IOException ioe) {}
+		}
+	}
+
+	/** Walk the document ID terms, keeping the ones that still have a live document. */
+	private HashSet<String> getIndexedDocIDs(File indexDir) throws RhizomeInitializationException {
+		HashSet<String> ids = new HashSet<String>();
+		IndexReader lreader = null;
+		TermEnum te = null;
+		TermDocs td = null;
+		try {
+			lreader = IndexReader.open(indexDir);
+			te = lreader.terms(new Term(LUCENE_DOCID_FIELD, ""));
+			td = lreader.termDocs();
+			do {
+				Term t = te.term();
+				if(t == null || !LUCENE_DOCID_FIELD.equals(t.field())) break;
+				td.seek(te);
+				if(td.next()) ids.add(t.text());
+			} while(te.next());
+		} catch (IOException ioe) {
+			throw new RhizomeInitializationException("Lucene: " + ioe.getMessage());
+		} finally {
+			try {
+				if(td != null) td.close();
+				if(te != null) te.close();
+				if(lreader != null) lreader.close();
+			} catch (IOException ioe) {}
+		}
+		return ids;
+	}
+
+	/**
+	 * Run an incremental reindex from the command line.
+	 * <p>Usage: <code>java com.technosophos.rhizome.repository.lucene.LuceneIncrementalReindexer index_path fs_repo_path repository_name</code></p>
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3) {
+			System.err.println("Usage: LuceneIncrementalReindexer index_path fs_repo_path repository_name");
+			System.exit(1);
+		}
+		RepositoryContext cxt = new RepositoryContext();
+		cxt.addParam(LUCENE_INDEX_PATH_PARAM, args[0]);
+		cxt.addParam(FileSystemRepository.FILE_SYSTEM_PATH_NAME, args[1]);
+		RepositoryManager repman = new RepositoryManager(cxt);
+		LuceneIndexer indexer = new LuceneIndexer(args[2], cxt);
+
+		long start = System.currentTimeMillis();
+		LuceneIncrementalReindexer r = new LuceneIncrementalReindexer(indexer, repman);
+		long n = r.reindex();
+		System.out.format("%s: %d changes (%d updated, %d deleted, %d skipped) in %d ms.\n",
+				args[2], n, r.getUpdated(), r.getDeleted(), r.getFailed(),
+				System.currentTimeMillis() - start);
+		LuceneIndexerDepot.closeBatchWriter(LuceneIndexer.getIndexPath(args[2], cxt));
+	}
+}
@@ -9,14 +9,20 @@ import com.technosophos.rhizome.repository.RepositoryManager;
 import com.technosophos.rhizome.repository.RhizomeInitializationException;
 import com.technosophos.rhizome.repository.RepositoryAccessException;
 
-//import java.util.ArrayList;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 
 import org.apache.lucene.document.*;
 //import org.apache.lucene.index.IndexModifier;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -30,6 +36,17 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
  * on the index.</p>
  * <p>The underlying Lucene code is supposed to be thread safe, but I have not
  * thoroughly tested it.</p>
+ * <p>Updates and deletes go through the index's shared {@link LuceneBatchWriter},
+ * which commits changes from many requests together. {@link #updateIndex(RhizomeDocument)}
+ * and {@link #deleteFromIndex(String)} wait for the commit. {@link #queueUpdate(RhizomeDocument)}
+ * and {@link #queueDelete(String)} return as soon as the change is queued.</p>
+ * <p>Whenever a change is written to the index, the searchers are told (through
+ * {@link LuceneSearcherDepot}) so that they can reopen their shared reader.</p>
+ * <p>Relations are also kept in the index's {@link RelationGraph}, which is 
+ * updated as each change is committed.</p>
+ * <p>{@link #createIndex()} and {@link #reindex(RepositoryManager)} write a format
+ * file ({@link #FORMAT_FILE}) into the index directory. Searchers only use the
+ * untokenized lookup fields when it is there; see {@link #isCurrentFormat(IndexReader, File)}.</p>
  * @author mbutcher
  *
  */
@@ -47,6 +64,23 @@ public class LuceneIndexer implements DocumentIndexer {
 	 */
 	//public static String LUCENE_INDEX_PATH_PARAM = "indexpath";
 
+	/**
+	 * Name of the file, in the index directory, that records the index format.
+	 * @see #isCurrentFormat(IndexReader, File)
+	 */
+	public static final String FORMAT_FILE = "rhizome-format.properties";
+	
+	/** 
+	 * Current index format. Format 2 added the untokenized metadata and relation
+	 * fields. Indexes without a format file are older.
+	 */
+	public static final int INDEX_FORMAT = 2;
+	
+	/** Format file key for the format number. */
+	private static final String FMT_FORMAT = "format";
+	/** Format file key for the first index version written in that format. */
+	private static final String FMT_VERSION = "version";
+	
 	private RepositoryContext context;
 	private String indexLocation = null;
 	private String indexName = null;
@@ -87,68 +121,104 @@ public class LuceneIndexer implements DocumentIndexer {
 	 * Create and initialize an index.
 	 * This must be done in cases where no documents will initially be added to the 
 	 * index.
+	 * <p>Changes queued meanwhile wait, and are committed to the new index.</p>
 	 * @throws IOException If the path to the index cannot be found, or does not allow read/write.
 	 */
 	public void createIndex() throws IOException {
-		
-		IndexWriter indWriter = 
-			new IndexWriter(this.getIndexDir(), new StandardAnalyzer(), true);
-		indWriter.close();
+		Lock lock = LuceneIndexerDepot.getWriteLock(this.indexLocation);
+		lock.lock();
+		try {
+			IndexWriter indWriter = 
+				new IndexWriter(this.getIndexDir(), new StandardAnalyzer(), true);
+			indWriter.close();
+			writeFormat(this.getIndexDir());
+			LuceneSearcherDepot.indexChanged(this.indexLocation);
+			RelationGraph.reset(this.indexLocation);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * Completely rebuild the index.
-	 * <p>This should run incrementally, and not interrupt traffic too much.</p>
+	 * <p>Documents are read, parsed and prepared in parallel, and the new index
+	 * replaces the old one in a single commit when it is complete. Searches keep
+	 * using the old index until then. See {@link LuceneReindexer} for details and
+	 * settings.</p>
+	 * <p>The rebuild holds the index's write lock (see 
+	 * {@link LuceneIndexerDepot#getWriteLock(String)}). Changes queued while it runs
+	 * wait for it, and are committed on top of the new index.</p>
+	 * <p>A new checkpoint is written for {@link #incrementalReindex(RepositoryManager)}.</p>
 	 * @param repman Initialized repository manager
-	 * @param repoName The name of teh repository to reindex.
+	 * @return number of documents in the new index.
 	 */
 	public long reindex(RepositoryManager repman) 
 			throws RepositoryAccessException, RhizomeInitializationException {
 		
-		// TODO: Make sure documents get deleted from index.
-		String [] all_docs = repman.getRepository(this.indexName).getAllDocumentIDs();
-		int doc_count = 0;
+		Lock lock = LuceneIndexerDepot.getWriteLock(this.indexLocation);
+		lock.lock();
 		try {
-			//This should start in overwriting mode
-			IndexWriter indWriter = 
-				new IndexWriter(this.getIndexDir(), new StandardAnalyzer(), true);
-			Document doc;
-			RhizomeDocument rd;
-			for(int i = 0; i < all_docs.length; ++i ) {
-				rd = repman.getRepository(this.indexName).getDocument(all_docs[i]);
-				Metadatum m = rd.getMetadatum("title");
-				//String id = rd.getDocumentID();
-				//System.err.format("reindexing %s (%s).\n", id, m.getFirstValue());
-				doc = this.prepareDocument(rd);
-				indWriter.addDocument(doc);
+			long start = System.currentTimeMillis();
+			LuceneReindexer r = new LuceneReindexer(this, 
+					repman.getRepository(this.indexName), this.context);
+			long doc_count = r.reindex();
+			try {
+				writeFormat(this.getIndexDir());
+			} catch (IOException e) {
+				throw new RhizomeInitializationException("Lucene: " + e.getMessage());
+			}
+			LuceneSearcherDepot.indexChanged(this.indexLocation);
+			RelationGraph.reset(this.indexLocation);
+			try {
+				LuceneIncrementalReindexer.writeCheckpoint(this.getIndexDir(), start, doc_count);
+			} catch (IOException e) {
+				throw new RhizomeInitializationException("Lucene: " + e.getMessage());
 			}
-			indWriter.flush();
-			indWriter.optimize();
-			doc_count = indWriter.docCount();
-		} catch (RhizomeParseException e) {	
-			throw new RepositoryAccessException("Could not parse document: " + e.getMessage());
-		} catch (IOException e) {
-			throw new RhizomeInitializationException("Lucene: " + e.getMessage());
+			return doc_count;
+		} finally {
+			lock.unlock();
 		}
-		return doc_count;
+	}
+	
+	/**
+	 * Bring the index up to date with the repository, without rebuilding it.
+	 * <p>Only documents changed since the last checkpoint, and documents missing from
+	 * the index, are reindexed. Documents no longer in the repository are deleted.
+	 * This is meant for recovering after a crash. See {@link LuceneIncrementalReindexer}.</p>
+	 * @param repman Initialized repository manager
+	 * @return number of documents updated or deleted.
+	 */
+	public long incrementalReindex(RepositoryManager repman) 
+			throws RepositoryAccessException, RhizomeInitializationException {
+		return new LuceneIncrementalReindexer(this, repman).reindex();
 	}
 
 	/**
 	 * Index this document.
 	 * <p>If the document is already in the index, the old entries will be overwritten
 	 * by the new entry.</p>
+	 * <p>This waits until the change has been committed, so the document can be found
+	 * by searches as soon as this returns.</p>
 	 */
 	public void updateIndex(RhizomeDocument doc) throws RhizomeInitializationException {
+		this.waitForCommit(this.queueUpdate(doc), "Could not write to index: ");
+	}
+	
+	/**
+	 * Queue this document to be indexed, and return without waiting for the commit.
+	 * <p>The change is committed together with other pending changes. Call 
+	 * <code>get()</code> on the returned Future to wait for the commit. If the
+	 * commit fails, <code>get()</code> throws an ExecutionException.</p>
+	 * @param doc Document to index.
+	 * @return Future that completes when the change is committed.
+	 * @throws RhizomeInitializationException if the index directory cannot be used.
+	 */
+	public Future<Void> queueUpdate(RhizomeDocument doc) throws RhizomeInitializationException {
 		Document luceneDoc = this.prepareDocument(doc);
 		Term id = new Term(LUCENE_DOCID_FIELD, doc.getDocumentID());
-		try {
-			IndexWriter indWrite = new IndexWriter(this.getIndexDir(), new StandardAnalyzer());
-			indWrite.updateDocument(id, luceneDoc);
-			indWrite.close();
-		} catch (IOException ioe) {
-			throw new RhizomeInitializationException("Could not write to index: " 
-					+ ioe.getMessage());
-		}
+		GraphUpdate g = new GraphUpdate(this.indexLocation, doc.getDocumentID(), 
+				new ArrayList<Relation>(doc.getRelations()));
+		return this.getBatchWriter("Could not write to index: ").update(id, luceneDoc, g);
 	}
 
 	public void updateIndex(String docID, RepositoryManager repman) 
@@ -167,23 +237,45 @@ public class LuceneIndexer implements DocumentIndexer {
 	 * @see RhizomeDocument.getDocumentID()
 	 */
 	public boolean deleteFromIndex(String docID) throws RhizomeInitializationException {
-		//this.initIndex();
+		this.waitForCommit(this.queueDelete(docID), "Could not delete doc from index: ");
+		return true;
+	}
+	
+	/**
+	 * Queue a document to be deleted from the index, and return without waiting for 
+	 * the commit.
+	 * @param docID ID of the document to delete.
+	 * @return Future that completes when the delete is committed.
+	 * @throws RhizomeInitializationException if the index directory cannot be used.
+	 * @see #queueUpdate(RhizomeDocument)
+	 */
+	public Future<Void> queueDelete(String docID) throws RhizomeInitializationException {
 		Term id = new Term(LUCENE_DOCID_FIELD, docID);
-		//int deleted = 0;
+		GraphUpdate g = new GraphUpdate(this.indexLocation, docID, null);
+		return this.getBatchWriter("Could not delete doc from index: ").delete(id, g);
+	}
+	
+	/** Get the shared batch writer, after making sure the index directory is usable. */
+	private LuceneBatchWriter getBatchWriter(String errmsg) throws RhizomeInitializationException {
 		try {
-			IndexWriter indWrite = new IndexWriter(this.getIndexDir(), new StandardAnalyzer());
-			//indWrite.setMaxBufferedDeleteTerms(10);
-			//deleted = indWrite.docCount();
-			indWrite.deleteDocuments(id);
-			indWrite.flush();
-			//deleted = deleted - indWrite.docCount();
-			indWrite.close();
-		} catch(IOException ioe) {
-			throw new RhizomeInitializationException("Could not delete doc from index: "
-					+ ioe.getMessage());
+			this.getIndexDir();
+		} catch (IOException ioe) {
+			throw new RhizomeInitializationException(errmsg + ioe.getMessage());
+		}
+		return LuceneIndexerDepot.getBatchWriter(this.indexLocation, this.context);
+	}
+	
+	/** Block until a queued change has been committed. */
+	private void waitForCommit(Future<Void> change, String errmsg) 
+			throws RhizomeInitializationException {
+		try {
+			change.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RhizomeInitializationException(errmsg + "Interrupted while waiting for commit.");
+		} catch (ExecutionException ee) {
+			throw new RhizomeInitializationException(errmsg + ee.getCause().getMessage());
 		}
-		//return deleted > 0;
-		return true;
 	}
 	
 	/**
@@ -192,6 +284,14 @@ public class LuceneIndexer implements DocumentIndexer {
 	 * iff the isIndexible() flag is set, and the document is marked as text, (X)HTML, or XML.</p>
 	 * 
 	 * <p>Lucene has its own document format. This uses that format.</p>
+	 * <p>Each metadatum value and each relation is also indexed untokenized
+	 * (see {@link LuceneElements#exactFieldName(String)}), so the searcher can
+	 * do exact matches with term lookups. Indexes built before these fields 
+	 * existed must be rebuilt with {@link #reindex(RepositoryManager)}.</p>
+	 * <p>The body is not copied into the Lucene document. Instead, the body field 
+	 * reads it (stripping tags with a {@link TagStrippingReader}) when the Lucene 
+	 * document is added to the index, so the returned document can only be added 
+	 * once, and the RhizomeDocument's data should not be changed until then.</p>
 	 * @param doc the Rhizome document.
 	 * @return document suitable for Lucene indexing.
 	 * @see com.technosophos.rhizome.document.RhizomeData
@@ -221,13 +321,22 @@ public class LuceneIndexer implements DocumentIndexer {
 		while(md.hasNext()) {
 			m = md.next();
 			Iterator<String> vals = m.getValues().iterator();
+			String v;
 			while(vals.hasNext()) {
+				v = vals.next();
 				mfield = new Field(
 						m.getName(), 
-						vals.next(), 
+						v, 
 						Field.Store.YES, 
 						Field.Index.TOKENIZED);
 				ldoc.add(mfield);
+				// Untokenized copy for exact-match term lookups.
+				mfield = new Field(
+						exactFieldName(m.getName()),
+						v,
+						Field.Store.NO,
+						Field.Index.UN_TOKENIZED);
+				ldoc.add(mfield);
 			}
 		}
 		
@@ -249,6 +358,18 @@ public class LuceneIndexer implements DocumentIndexer {
 					Field.Index.TOKENIZED); 
 					// Check tokenizer to see how SEPARATOR will be parsed
 			ldoc.add(mfield);
+			
+			// Untokenized copies for exact-match relation lookups.
+			ldoc.add(new Field(
+					LUCENE_RELATION_KEY_FIELD,
+					sb.toString(),
+					Field.Store.NO,
+					Field.Index.UN_TOKENIZED));
+			ldoc.add(new Field(
+					LUCENE_RELATION_TARGET_FIELD,
+					r.getDocID(),
+					Field.Store.NO,
+					Field.Index.UN_TOKENIZED));
 		}
 		
 		// Add body
@@ -257,15 +378,17 @@ public class LuceneIndexer implements DocumentIndexer {
 		
 		String mimetype = data.getMimeType();
 		if (data.isIndexible()) {
+			// Readers are tokenized, but not stored. The body is read when the
+			// document is written to the index, not here. A copy shares the text
+			// without copying it, and keeps it as it is now even if the caller
+			// changes the document before the commit.
+			data = data.copy();
 			if (RhizomeData.MIME_PLAINTEXT.equals(mimetype)) {
-				bodyField = new Field(LUCENE_BODY_FIELD, data.toString(),
-						Field.Store.NO, Field.Index.TOKENIZED);
+				bodyField = new Field(LUCENE_BODY_FIELD, data.getDataReader());
 				ldoc.add(bodyField);
 			} else if (data.isTaggedText()) {
 				bodyField = new Field(LUCENE_BODY_FIELD, 
-						FastTagStripper.strip(data.toString()), 
-						Field.Store.NO,
-						Field.Index.TOKENIZED);
+						new TagStrippingReader(data.getDataReader()));
 				ldoc.add(bodyField);
 			} // Ignore the rest
 		} // Ignore non-indexible content.
@@ -342,6 +465,52 @@ public class LuceneIndexer implements DocumentIndexer {
 		
 	}
 	
+	/**
+	 * Check whether everything a reader sees was written in the current format.
+	 * <p>Only a new or completely rebuilt index is known to be in the current format,
+	 * because only then was every document written by this version. The format file
+	 * records the index version committed at that point, and any reader of that 
+	 * version or later is in the current format. An index written by an older release
+	 * has no format file, so it is treated as old (even once new documents are added
+	 * to it) until it is rebuilt. A reader opened just before the rebuild committed
+	 * has an older version, so it is not mistaken for the new index.</p>
+	 * @param lreader Open reader on the index.
+	 * @param indexDir Index directory.
+	 * @return true if lookups can use the untokenized fields.
+	 */
+	static boolean isCurrentFormat(IndexReader lreader, File indexDir) {
+		long v = readFormatVersion(indexDir);
+		return v >= 0 && lreader.getVersion() >= v;
+	}
+	
+	/**
+	 * Get the first index version written in the current format.
+	 * @param indexDir Index directory.
+	 * @return index version, or -1 if the index is older than the current format.
+	 */
+	static long readFormatVersion(File indexDir) {
+		Properties p = LuceneIncrementalReindexer.loadProperties(new File(indexDir, FORMAT_FILE));
+		if(p == null) return -1;
+		try {
+			if(Integer.parseInt(p.getProperty(FMT_FORMAT, "0").trim()) < INDEX_FORMAT) return -1;
+			return Long.parseLong(p.getProperty(FMT_VERSION, "-1").trim());
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+	
+	/** 
+	 * Record that the index, as last committed, is in the current format. 
+	 * This must only be called right after every document has been (re)written.
+	 */
+	private static void writeFormat(File indexDir) throws IOException {
+		Properties p = new Properties();
+		p.setProperty(FMT_FORMAT, Integer.toString(INDEX_FORMAT));
+		p.setProperty(FMT_VERSION, Long.toString(IndexReader.getCurrentVersion(indexDir)));
+		LuceneIncrementalReindexer.storeProperties(new File(indexDir, FORMAT_FILE), p, 
+				"Rhizome index format");
+	}
+	
 	/**
 	 * Creates a local index modifier.
 	 * @throws RhizomeInitializationException
@@ -360,4 +529,26 @@ public class LuceneIndexer implements DocumentIndexer {
 	}
 	*/
 	
+	/**
+	 * Applies a change to the relation graph once the batch writer has committed it,
+	 * so the graph never shows relations that are not in the index.
+	 */
+	private static class GraphUpdate implements Runnable {
+		private String indexPath;
+		private String docID;
+		// Null for a delete.
+		private List<Relation> relations;
+		
+		GraphUpdate(String indexPath, String docID, List<Relation> relations) {
+			this.indexPath = indexPath;
+			this.docID = docID;
+			this.relations = relations;
+		}
+		
+		public void run() {
+			RelationGraph g = RelationGraph.getGraph(this.indexPath);
+			if(this.relations == null) g.remove(this.docID);
+			else g.update(this.docID, this.relations);
+		}
+	}
 }
@@ -1,6 +1,11 @@
 package com.technosophos.rhizome.repository.lucene;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.technosophos.rhizome.repository.DocumentIndexer;
 import com.technosophos.rhizome.repository.DocumentIndexerDepot;
 import com.technosophos.rhizome.repository.RepositoryAccessException;
@@ -8,7 +13,30 @@ import com.technosophos.rhizome.repository.RepositoryContext;
 import com.technosophos.rhizome.repository.RhizomeInitializationException;
 import com.technosophos.rhizome.repository.util.FileUtils;
 
+/**
+ * Provides {@link LuceneIndexer} instances, and creates and deletes indexes.
+ * <p>The depot also owns one {@link LuceneBatchWriter} per index. Every indexer
+ * for an index writes through it, so there is a single open IndexWriter per index
+ * no matter how many requests are saving documents.</p>
+ * <p>Each index also has a write lock ({@link #getWriteLock(String)}). The batch
+ * writer holds it while it writes a group of changes, and anything else that 
+ * writes the whole index (creating or rebuilding it) holds it for as long as that
+ * takes, so the two never try to open an IndexWriter at the same time.</p>
+ * <p>Batch writers are not closed automatically. A web application should call
+ * {@link #shutdown()} when it is stopped (see 
+ * {@link com.technosophos.rhizome.web.RhizomeContextListener}), so that pending
+ * changes are committed before the application goes away.</p>
+ * @author mbutcher
+ *
+ */
 public class LuceneIndexerDepot implements DocumentIndexerDepot {
+	
+	// Guarded by itself. A writer stays in the map until it has finished closing.
+	private static HashMap<String, LuceneBatchWriter> writers =
+		new HashMap<String, LuceneBatchWriter>();
+	// Guarded by writers.
+	private static HashMap<String, ReentrantLock> writeLocks =
+		new HashMap<String, ReentrantLock>();
 
 	public void createIndex(String name, RepositoryContext cxt)
 			throws RhizomeInitializationException, RepositoryAccessException {
@@ -81,6 +109,10 @@ public class LuceneIndexerDepot implements DocumentIndexerDepot {
 		if( p == null) return;
 		File f = new File(p);
 		
+		// Release the shared writer and reader before removing their files.
+		closeBatchWriter(p);
+		LuceneSearcherDepot.closeSearcherManager(p);
+		RelationGraph.reset(p);
 		FileUtils.recursiveDirDelete(f);
 	}
 
@@ -109,4 +141,86 @@ public class LuceneIndexerDepot implements DocumentIndexerDepot {
 		return false;
 	}
 
+	/**
+	 * Get the batch writer for an index, creating it if necessary.
+	 * <p>The commit interval and batch size are read from the context
+	 * ({@link LuceneBatchWriter#CXT_COMMIT_INTERVAL} and 
+	 * {@link LuceneBatchWriter#CXT_COMMIT_DOCS}) when the writer is created.</p>
+	 * @param indexPath Full path to the index (see {@link LuceneIndexer#getIndexPath(String, RepositoryContext)}).
+	 * @param cxt Repository context.
+	 * @return batch writer for that index.
+	 */
+	static LuceneBatchWriter getBatchWriter(String indexPath, RepositoryContext cxt) {
+		synchronized(writers) {
+			LuceneBatchWriter w = writers.get(indexPath);
+			if(w == null) {
+				w = new LuceneBatchWriter(indexPath, 
+						getLongParam(cxt, LuceneBatchWriter.CXT_COMMIT_INTERVAL, LuceneBatchWriter.DEFAULT_COMMIT_INTERVAL),
+						(int)getLongParam(cxt, LuceneBatchWriter.CXT_COMMIT_DOCS, LuceneBatchWriter.DEFAULT_COMMIT_DOCS));
+				writers.put(indexPath, w);
+			}
+			return w;
+		}
+	}
+	
+	/**
+	 * Get the lock that must be held while an IndexWriter is open on an index.
+	 * <p>Lucene's own write lock makes a second IndexWriter fail instead of wait.
+	 * Taking this lock first makes writers in this JVM wait their turn. Hold it 
+	 * across a whole rebuild, so that changes saved meanwhile are committed after
+	 * the rebuild instead of failing.</p>
+	 * @param indexPath Full path to the index.
+	 * @return the index's write lock. Never null.
+	 */
+	static Lock getWriteLock(String indexPath) {
+		synchronized(writers) {
+			ReentrantLock l = writeLocks.get(indexPath);
+			if(l == null) writeLocks.put(indexPath, l = new ReentrantLock());
+			return l;
+		}
+	}
+	
+	/**
+	 * Commit and close the batch writer for an index.
+	 * <p>A new batch writer is created the next time one is needed, but not until 
+	 * this one has finished its last commit. Do not call this while holding the
+	 * index's write lock: the last commit needs it.</p>
+	 * @param indexPath Full path to the index.
+	 */
+	static void closeBatchWriter(String indexPath) {
+		if(indexPath == null) return;
+		synchronized(writers) {
+			LuceneBatchWriter w = writers.get(indexPath);
+			if(w == null) return;
+			try {
+				w.close();
+			} finally {
+				writers.remove(indexPath);
+			}
+		}
+	}
+	
+	/**
+	 * Commit and close every batch writer.
+	 * This blocks until pending changes have been committed. Writers are created
+	 * again if anything writes to an index afterward.
+	 */
+	public static void shutdown() {
+		ArrayList<String> paths;
+		synchronized(writers) {
+			paths = new ArrayList<String>(writers.keySet());
+		}
+		for(String p: paths) closeBatchWriter(p);
+	}
+	
+	private static long getLongParam(RepositoryContext cxt, String key, long def) {
+		String v = cxt.getParam(key);
+		if(v == null) return def;
+		try {
+			return Long.parseLong(v.trim());
+		} catch (NumberFormatException nfe) {
+			return def;
+		}
+	}
+
 }
@@ -0,0 +1,318 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import com.technosophos.rhizome.document.RhizomeParseException;
+import com.technosophos.rhizome.repository.DocumentNotFoundException;
+import com.technosophos.rhizome.repository.DocumentRepository;
+import com.technosophos.rhizome.repository.RepositoryAccessException;
+import com.technosophos.rhizome.repository.RepositoryContext;
+import com.technosophos.rhizome.repository.RhizomeInitializationException;
+import com.technosophos.rhizome.repository.cache.CachingDocumentRepository;
+import com.technosophos.rhizome.repository.fs.FileSystemRepository;
+
+/**
+ * Rebuilds a Lucene index from a repository, in parallel.
+ * <p>This is the pipeline behind {@link LuceneIndexer#reindex(com.technosophos.rhizome.repository.RepositoryManager)}.
+ * It has three stages, connected by bounded queues:</p>
+ * <ol>
+ * <li>A walker thread walks the document IDs in the repository. For a 
+ * {@link FileSystemRepository}, it walks the live set of IDs in the repository's
+ * manifest, so the IDs are never copied into one big array.</li>
+ * <li>A pool of worker threads reads and decodes each document, and turns it
+ * into a Lucene document with {@link LuceneIndexer#prepareDocument(com.technosophos.rhizome.document.RhizomeDocument)}.</li>
+ * <li>The calling thread writes the Lucene documents to a single IndexWriter.</li>
+ * </ol>
+ * <p>The queues are bounded, so only a few hundred documents are in memory at once,
+ * no matter how large the repository is.</p>
+ * <p>The new index is written into the index directory with autoCommit turned off.
+ * Until the rebuild is finished, the new segments are not part of any commit point,
+ * so searchers keep seeing the old index. Closing the writer commits the new index
+ * in one step. If anything fails, the writer is aborted and the old index is left
+ * as it was.</p>
+ * <p>Documents saved or deleted while the rebuild runs may or may not be seen by
+ * the walker. Either way, the change is also queued with the index's 
+ * {@link LuceneBatchWriter}, which waits for the rebuild to finish (see 
+ * {@link LuceneIndexerDepot#getWriteLock(String)}) and then commits it on top of 
+ * the new index.</p>
+ * <p>The following context params are used:</p>
+ * <ul>
+ * <li>{@link #CXT_THREADS}: number of parser threads (default: one per CPU)</li>
+ * <li>{@link #CXT_QUEUE_SIZE}: capacity of each queue (default 256)</li>
+ * <li>{@link #CXT_PROGRESS_DOCS}: log progress every this many documents (default 5000; 0 turns it off)</li>
+ * </ul>
+ * @author mbutcher
+ *
+ */
+public class LuceneReindexer {
+
+	/** Context key: number of parser threads. */
+	public static final String CXT_THREADS = "reindex_threads";
+	/** Context key: capacity of the queues between stages. */
+	public static final String CXT_QUEUE_SIZE = "reindex_queue_size";
+	/** Context key: how often (in documents) to log progress. */
+	public static final String CXT_PROGRESS_DOCS = "reindex_progress_docs";
+
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	public static final int DEFAULT_PROGRESS_DOCS = 5000;
+
+	/** How long a blocked stage waits before checking whether the pipeline has failed. */
+	private static final long POLL_MS = 250;
+
+	// Markers for the end of a queue. Compared by identity.
+	private static final String END_OF_IDS = new String("");
+	private static final Document END_OF_DOCS = new Document();
+
+	private LuceneIndexer indexer;
+	private DocumentRepository repo;
+	private int threads;
+	private int queueSize;
+	private int progressDocs;
+
+	private BlockingQueue<String> ids;
+	private BlockingQueue<Document> docs;
+	private AtomicInteger total = new AtomicInteger(-1);
+	private AtomicInteger written = new AtomicInteger(0);
+	private volatile long startTime = 0;
+	private volatile Exception failure = null;
+
+	/**
+	 * Create a reindexer.
+	 * @param indexer Indexer for the index to rebuild.
+	 * @param repo Repository to read documents from.
+	 * @param cxt Repository context, for the pipeline settings.
+	 */
+	public LuceneReindexer(LuceneIndexer indexer, DocumentRepository repo, RepositoryContext cxt) {
+		this.indexer = indexer;
+		// Reading every document through a cache would only push everything else out of it.
+		this.repo = CachingDocumentRepository.unwrap(repo);
+		this.threads = getIntParam(cxt, CXT_THREADS, Runtime.getRuntime().availableProcessors());
+		this.queueSize = getIntParam(cxt, CXT_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+		this.progressDocs = getIntParam(cxt, CXT_PROGRESS_DOCS, DEFAULT_PROGRESS_DOCS);
+		if(this.threads < 1) this.threads = 1;
+		if(this.queueSize < 1) this.queueSize = DEFAULT_QUEUE_SIZE;
+	}
+
+	/**
+	 * Rebuild the index.
+	 * <p>This blocks until the new index has been committed. The caller must hold
+	 * the index's write lock ({@link LuceneIndexerDepot#getWriteLock(String)}), so
+	 * that the {@link LuceneBatchWriter} does not open a writer meanwhile.</p>
+	 * @return number of documents in the new index.
+	 * @throws RepositoryAccessException if a document cannot be read or parsed.
+	 * @throws RhizomeInitializationException if the index cannot be written.
+	 */
+	public long reindex() throws RepositoryAccessException, RhizomeInitializationException {
+		this.ids = new ArrayBlockingQueue<String>(this.queueSize);
+		this.docs = new ArrayBlockingQueue<Document>(this.queueSize);
+		this.startTime = System.currentTimeMillis();
+
+		Directory dir = null;
+		IndexWriter writer = null;
+		Thread[] stages = new Thread[this.threads + 1];
+		try {
+			dir = FSDirectory.getDirectory(this.indexer.getIndexDir());
+			// autoCommit is off: nothing is visible to readers until close().
+			writer = new IndexWriter(dir, false, new StandardAnalyzer(), true);
+
+			stages[0] = new Thread(new Walker(), "rhizome-reindex-walker");
+			for(int i = 1; i < stages.length; ++i)
+				stages[i] = new Thread(new Worker(), "rhizome-reindex-worker-" + i);
+			for(Thread t: stages) {
+				t.setDaemon(true);
+				t.start();
+			}
+
+			this.write(writer);
+			if(this.failure == null) {
+				writer.optimize();
+				writer.close();
+				writer = null;
+				this.logProgress(true);
+			}
+		} catch (IOException ioe) {
+			this.fail(ioe);
+		} finally {
+			if(writer != null) {
+				// Throws away everything since the writer was opened.
+				try { writer.abort(); } catch (IOException ioe) {}
+			}
+			if(dir != null) {
+				try { dir.close(); } catch (IOException ioe) {}
+			}
+			this.join(stages);
+		}
+
+		Exception e = this.failure;
+		if(e == null) return this.written.get();
+		if(e instanceof RepositoryAccessException) throw (RepositoryAccessException)e;
+		if(e instanceof RhizomeParseException)
+			throw new RepositoryAccessException("Could not parse document: " + e.getMessage());
+		throw new RhizomeInitializationException("Lucene: " + e.getMessage());
+	}
+
+	/**
+	 * Number of documents in the repository, or -1 if they have not been counted yet.
+	 * @return total documents to index.
+	 */
+	public int getTotal() {
+		return this.total.get();
+	}
+
+	/**
+	 * Number of documents written to the new index so far.
+	 * This can be called from another thread while a reindex is running.
+	 * @return documents written.
+	 */
+	public int getWritten() {
+		return this.written.get();
+	}
+
+	/**
+	 * Documents written per second since the reindex started.
+	 * @return throughput, in documents per second.
+	 */
+	public double getDocsPerSecond() {
+		long elapsed = System.currentTimeMillis() - this.startTime;
+		if(this.startTime == 0 || elapsed <= 0) return 0;
+		return this.written.get() * 1000.0 / elapsed;
+	}
+
+	/** The writer stage: runs on the calling thread until every worker is done. */
+	private void write(IndexWriter writer) throws IOException {
+		int running = this.threads;
+		while(running > 0 && this.failure == null) {
+			Document d;
+			try {
+				d = this.docs.poll(POLL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reindexing.");
+			}
+			if(d == null) continue;
+			if(d == END_OF_DOCS) {
+				--running;
+				continue;
+			}
+			writer.addDocument(d);
+			int n = this.written.incrementAndGet();
+			if(this.progressDocs > 0 && n % this.progressDocs == 0) this.logProgress(false);
+		}
+	}
+
+	/**
+	 * Put an item on a queue, waiting for room.
+	 * @return false if the pipeline failed (or was interrupted) while waiting.
+	 */
+	private <T> boolean put(BlockingQueue<T> q, T item) {
+		try {
+			while(this.failure == null) {
+				if(q.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) return true;
+			}
+		} catch (InterruptedException ie) {
+			this.fail(ie);
+		}
+		return false;
+	}
+
+	/** Record the first failure. Every stage stops when it sees it. */
+	private synchronized void fail(Exception e) {
+		if(this.failure == null) this.failure = e;
+	}
+
+	private void join(Thread[] stages) {
+		for(Thread t: stages) {
+			if(t == null) continue;
+			try {
+				t.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void logProgress(boolean finished) {
+		System.err.format("Reindex %s: %s %d of %d documents (%.1f docs/sec).\n",
+				this.indexer.getIndexName(),
+				finished ? "finished" : "wrote",
+				this.written.get(), this.total.get(), this.getDocsPerSecond());
+	}
+
+	private static int getIntParam(RepositoryContext cxt, String key, int def) {
+		String v = cxt.getParam(key);
+		if(v == null) return def;
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException nfe) {
+			return def;
+		}
+	}
+
+	/** Walks the document IDs, then tells each worker there are no more. */
+	private class Walker implements Runnable {
+		public void run() {
+			try {
+				Iterable<String> all;
+				if(repo instanceof FileSystemRepository) {
+					FileSystemRepository fs = (FileSystemRepository)repo;
+					total.set((int)fs.countDocumentIDs());
+					// Changes while walking are safe, and are also queued for after the rebuild.
+					all = fs.getDocumentIDs();
+				} else {
+					String[] list = repo.getAllDocumentIDs();
+					total.set(list.length);
+					all = Arrays.asList(list);
+				}
+				for(String id: all) {
+					if(!put(ids, id)) return;
+				}
+			} catch (Exception e) {
+				fail(e);
+			} finally {
+				for(int i = 0; i < threads; ++i) {
+					if(!put(ids, END_OF_IDS)) break;
+				}
+			}
+		}
+	}
+
+	/** Reads, parses, and prepares documents. */
+	private class Worker implements Runnable {
+		public void run() {
+			try {
+				while(failure == null) {
+					String id = ids.poll(POLL_MS, TimeUnit.MILLISECONDS);
+					if(id == null) continue;
+					if(id == END_OF_IDS) break;
+					// The repository decodes with whatever codec the document
+					// was stored in. Reads do not lock, so workers run in parallel.
+					Document d;
+					try {
+						d = indexer.prepareDocument(repo.getDocument(id));
+					} catch (DocumentNotFoundException dnfe) {
+						continue; // Deleted since it was listed.
+					} catch (RhizomeParseException rpe) {
+						throw new RhizomeParseException(id + ": " + rpe.getMessage());
+					}
+					if(!put(docs, d)) return;
+				}
+			} catch (Exception e) {
+				fail(e);
+			} finally {
+				put(docs, END_OF_DOCS);
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import static com.technosophos.rhizome.repository.lucene.LuceneElements.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+
+import com.technosophos.rhizome.document.Metadatum;
+import com.technosophos.rhizome.document.RhizomeDocument;
+import com.technosophos.rhizome.repository.RepositoryContext;
+import com.technosophos.rhizome.repository.util.FileUtils;
+
+/**
+ * Compare exact-match lookups in {@link LuceneSearcher} against a full index scan.
+ * <p>This builds a throwaway index of synthetic notes in the temp directory, then
+ * times {@link LuceneSearcher#getDocIDsByMetadataValue(String, String)} and
+ * {@link LuceneSearcher#narrowingSearch(java.util.Map)} against the old approach of
+ * loading every stored document and comparing values in Java.</p>
+ * <p>Usage: <code>java com.technosophos.rhizome.repository.lucene.LuceneSearchBenchmark [docs] [iterations]</code></p>
+ * @author mbutcher
+ *
+ */
+public class LuceneSearchBenchmark {
+
+	private static final String INDEX_NAME = "bench";
+
+	public static void main(String [] args) throws Exception {
+		int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		File base = new File(System.getProperty("java.io.tmpdir"),
+				"rhizome-bench-" + System.currentTimeMillis());
+		base.mkdirs();
+		new File(base, INDEX_NAME).mkdir();
+		RepositoryContext cxt = new RepositoryContext();
+		cxt.addParam(LUCENE_INDEX_PATH_PARAM, base.getAbsolutePath());
+
+		try {
+			LuceneIndexer indexer = new LuceneIndexer(INDEX_NAME, cxt);
+			System.out.format("Indexing %d documents...\n", numDocs);
+			long start = System.currentTimeMillis();
+			IndexWriter writer = new IndexWriter(indexer.getIndexDir(), new StandardAnalyzer(), true);
+			for(int i = 0; i < numDocs; ++i) {
+				writer.addDocument(indexer.prepareDocument(makeDocument(i)));
+			}
+			writer.optimize();
+			writer.close();
+			System.out.format("Indexed in %d ms.\n", System.currentTimeMillis() - start);
+
+			LuceneSearcher searcher = new LuceneSearcher(INDEX_NAME, cxt);
+			HashMap<String, String> narrower = new HashMap<String, String>();
+			narrower.put("type", "note");
+			narrower.put("owner", "user7");
+
+			// Warm up both paths once.
+			scan(indexer, "owner", "user7");
+			searcher.getDocIDsByMetadataValue("owner", "user7");
+
+			int hits = 0;
+			start = System.currentTimeMillis();
+			for(int i = 0; i < iterations; ++i) hits = scan(indexer, "owner", "user" + (i % 100));
+			long scanTime = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			for(int i = 0; i < iterations; ++i)
+				hits = searcher.getDocIDsByMetadataValue("owner", "user" + (i % 100)).length;
+			long termTime = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			for(int i = 0; i < iterations; ++i) hits = searcher.narrowingSearch(narrower).length;
+			long andTime = System.currentTimeMillis() - start;
+
+			System.out.format("Full scan:       %8.2f ms/lookup\n", (double)scanTime / iterations);
+			System.out.format("Term lookup:     %8.2f ms/lookup\n", (double)termTime / iterations);
+			System.out.format("AND term query:  %8.2f ms/lookup (%d hits)\n", (double)andTime / iterations, hits);
+			if(termTime > 0)
+				System.out.format("Speedup:         %8.1fx\n", (double)scanTime / termTime);
+		} finally {
+			FileUtils.recursiveDirDelete(base);
+		}
+	}
+
+	/** The old lookup: load every stored document and compare values. */
+	private static int scan(LuceneIndexer indexer, String name, String value) throws Exception {
+		ArrayList<String> docIDs = new ArrayList<String>();
+		MapFieldSelector fsel = new MapFieldSelector(new String[] {name, LUCENE_DOCID_FIELD});
+		IndexReader lreader = IndexReader.open(indexer.getIndexDir());
+		try {
+			int last = lreader.maxDoc();
+			Document d;
+			for(int i = 0; i < last; ++i) {
+				if(!lreader.isDeleted(i)) {
+					d = lreader.document(i, fsel);
+					String[] vals = d.getValues(name);
+					if(vals == null) continue;
+					for(String v: vals) {
+						if(value.equals(v)) {
+							docIDs.add(d.get(LUCENE_DOCID_FIELD));
+							break;
+						}
+					}
+				}
+			}
+		} finally {
+			lreader.close();
+		}
+		return docIDs.size();
+	}
+
+	private static RhizomeDocument makeDocument(int i) {
+		RhizomeDocument doc = new RhizomeDocument("doc-" + i);
+		doc.addMetadatum(new Metadatum("title", "Note number " + i));
+		doc.addMetadatum(new Metadatum("type", i % 10 == 0 ? "course" : "note"));
+		doc.addMetadatum(new Metadatum("owner", "user" + (i % 100)));
+		doc.addRelation("parent", "doc-" + (i / 10 * 10));
+		doc.setBody("<p>Lecture notes for item " + i + ".</p>");
+		return doc;
+	}
+}
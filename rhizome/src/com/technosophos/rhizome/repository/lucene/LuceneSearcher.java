@@ -12,6 +12,7 @@ import com.technosophos.rhizome.document.ProxyRhizomeDocument;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.document.SetBasedFieldSelector;
@@ -21,6 +22,12 @@ import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.HitCollector;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 //import org.apache.lucene.document.Document;
 
 import java.util.Map;
@@ -33,17 +40,53 @@ import java.util.HashSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.TreeMap;
 import java.io.File;
 import java.io.IOException;
 
 import static com.technosophos.rhizome.repository.lucene.LuceneElements.*;
 
+/**
+ * Search a Lucene index.
+ * <p>Exact-match lookups (metadata values, relations, document IDs) are done 
+ * with term queries against the untokenized fields written by 
+ * {@link LuceneIndexer#prepareDocument(com.technosophos.rhizome.document.RhizomeDocument)}.
+ * Stored fields are loaded only for documents that match, so the cost of a lookup
+ * is proportional to the number of hits, not to the size of the index.</p>
+ * <p>Indexes built before the untokenized fields existed do not have them for every
+ * document, even after new documents have been added. Until such an index has been
+ * rebuilt with {@link LuceneIndexer#reindex(com.technosophos.rhizome.repository.RepositoryManager)},
+ * metadata lookups fall back to loading the stored fields of every document (and a
+ * warning that the index should be rebuilt is printed), so results are still
+ * correct, just slow. The index's format file says which indexes are rebuilt.</p>
+ * @author mbutcher
+ *
+ */
 public class LuceneSearcher implements RepositorySearcher {
 
 	//public static String LUCENE_INDEX_PATH_PARAM = "indexpath";
 	
 	public static final String SIMPLE_SEARCH_FIELDS = "fields";
 	public static final String SIMPLE_SEARCH_SEARCH_BODY = "search_body";
+	
+	/**
+	 * Context key: how many documents a {@link DocumentList} loads at once when one 
+	 * of its rows needs the full document. (search_prefetch_docs) Set it to 0 to 
+	 * load documents one at a time. See {@link DocumentList#setPrefetchSize(int)}.
+	 */
+	public static final String CXT_PREFETCH_DOCS = "search_prefetch_docs";
+	public static final int DEFAULT_PREFETCH_DOCS = 25;
+	
+	/** Most facet counts kept for one reader. See {@link #getMetadataValues(String, Map)}. */
+	private static final int MAX_CACHED_FACETS = 256;
+	
+	/** Reader cache key for {@link #hasExactFields(IndexReader)}. */
+	private static final String EXACT_FIELDS_KEY = "exact_fields";
+	
+	/** Indexes already warned about needing a reindex. */
+	private static final Set<String> legacyWarned = 
+		java.util.Collections.synchronizedSet(new HashSet<String>());
 
 	private RepositoryContext context;
 	private String indexName = null;
@@ -75,59 +118,117 @@ public class LuceneSearcher implements RepositorySearcher {
 			*/
 			lreader = this.getIndexReader();
 			Collection<String> c = lreader.getFieldNames(IndexReader.FieldOption.ALL);
-			fields = new String[c.size()];
+			ArrayList<String> names = new ArrayList<String>(c.size());
 			Iterator<String> it = c.iterator();
-			for(int i = 0; i < c.size(); ++i) {
-				fields[i] = it.next().toString();
+			String n;
+			while(it.hasNext()) {
+				n = it.next().toString();
+				// Skip the untokenized copies of metadata.
+				if(!n.startsWith(METADATA_FIELD_PREFIX)) names.add(n);
 			}
-			lreader.close();
+			fields = names.toArray(new String[names.size()]);
 		} catch (java.io.IOException ioe) {
 
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
 		return fields;
 	}
 	
 	public Map<String,Integer>  getMetadataValues(String mdName) throws RepositoryAccessException {
-		HashMap<String, Integer> map = new HashMap<String, Integer>();
-		
-		MapFieldSelector fieldSelector = new MapFieldSelector(new String [] {mdName});
+		return this.getMetadataValues(mdName, null);
+	}
+	
+	/**
+	 * Count the values of a metadatum, in documents that match a narrower.
+	 * <p>Counts come from the term dictionary of the metadatum's untokenized field
+	 * (see {@link LuceneElements#exactFieldName(String)}): each value is a term, and
+	 * its count is the number of live documents that have it. No stored fields are
+	 * loaded. Counts are cached until the index changes.</p>
+	 * <p>For indexes built before the untokenized fields existed, this falls back
+	 * to reading the stored values of every document.</p>
+	 * @param mdName Name of the metadatum.
+	 * @param narrower Only count documents with all of these metadata values (as in 
+	 * {@link #narrowingSearch(Map)}). Null or empty counts every document.
+	 * @return map of values to the number of documents with that value.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String,Integer> getMetadataValues(String mdName, Map<String, String> narrower) 
+			throws RepositoryAccessException {
+		if(narrower != null && narrower.isEmpty()) narrower = null;
+		String key = "facet:" + mdName 
+			+ (narrower == null ? "" : "|" + new TreeMap<String, String>(narrower));
 		IndexReader lreader = null;
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
-			
-			Document d;
-			String[] vals;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fieldSelector);
-					
-					vals = d.getValues(mdName);
-					// If this MD name exists, we want to put it in the Map, incrementing the 
-					// counter (or setting it to 1 if the entry is new)
-					if(vals != null && vals.length > 0) {
-						for(String v: vals) {
-							map.put(v,
-									map.containsKey(v) ? map.get(v) + 1 : 1
-							);
-						}
-					}
-				}
+			Map<String, Object> cache = this.getSearcherManager().getReaderCache(lreader);
+			Map<String, Integer> counts = cache == null ? null : (Map<String, Integer>)cache.get(key);
+			if(counts == null) {
+				BitSet filter = narrower == null ? null : this.matchNarrower(lreader, narrower);
+				counts = this.countValues(lreader, mdName, filter);
+				// Narrowers can be per-user, so do not let them fill memory.
+				if(cache != null && cache.size() < MAX_CACHED_FACETS) cache.put(key, counts);
 			}
+			// Callers are free to change what they get.
+			return new HashMap<String, Integer>(counts);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new RepositoryAccessException("IOException: " + e.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
+		}
+	}
+	
+	/** 
+	 * Helper function that counts the documents for each term of a metadatum's
+	 * untokenized field. Only documents in <code>filter</code> are counted, if it is given.
+	 */
+	private Map<String, Integer> countValues(IndexReader lreader, String mdName, BitSet filter) 
+			throws IOException {
+		String field = exactFieldName(mdName);
+		if(!this.hasExactFields(lreader))
+			return this.countStoredValues(lreader, mdName, filter);
+		
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		TermEnum te = lreader.terms(new Term(field, ""));
+		// docFreq() includes deleted documents. Walk the postings only when it has to.
+		TermDocs td = (filter != null || lreader.hasDeletions()) ? lreader.termDocs() : null;
+		try {
+			do {
+				Term t = te.term();
+				if(t == null || !field.equals(t.field())) break;
+				int n;
+				if(td == null) n = te.docFreq();
+				else {
+					n = 0;
+					td.seek(te);
+					while(td.next()) 
+						if(filter == null || filter.get(td.doc())) ++n;
+				}
+				if(n > 0) counts.put(t.text(), n);
+			} while(te.next());
+		} finally {
+			if(td != null) td.close();
+			te.close();
+		}
+		return counts;
+	}
+	
+	/** Helper function that counts values by loading the stored field of every document. */
+	private Map<String, Integer> countStoredValues(IndexReader lreader, String mdName, BitSet filter) 
+			throws IOException {
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		MapFieldSelector fieldSelector = new MapFieldSelector(new String [] {mdName});
+		int last = lreader.maxDoc();
+		for(int i = 0; i < last; ++i) {
+			if(lreader.isDeleted(i) || (filter != null && !filter.get(i))) continue;
+			String[] vals = lreader.document(i, fieldSelector).getValues(mdName);
+			if(vals == null) continue;
+			for(String v: vals) {
+				Integer n = map.get(v);
+				map.put(v, n == null ? 1 : n + 1);
 			}
 		}
-		
 		return map;
 	}
 	
@@ -140,34 +241,18 @@ public class LuceneSearcher implements RepositorySearcher {
 	 * @return array of matching document IDs.
 	 */
 	public String [] getDocIDsByMetadataValue(String name, String value) throws RepositoryAccessException {
-		
-		ArrayList<String> docIDs = new ArrayList<String>();
-		String [] fields = {name, LUCENE_DOCID_FIELD};
-		
-		MapFieldSelector fieldSelector = new MapFieldSelector(fields);
 		IndexReader lreader = null;
-		
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
-			Document d;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fieldSelector);
-					if(this.checkFieldValueMatches(name, value, d))
-						docIDs.add(d.get(LUCENE_DOCID_FIELD));	
-				}
-			}
-			lreader.close();
+			BitSet matches = this.hasExactFields(lreader) 
+				? this.matchTerm(lreader, new Term(exactFieldName(name), value))
+				: this.scanStoredValues(lreader, java.util.Collections.singletonMap(name, value));
+			return this.getDocIDs(lreader, matches);
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
-		
-		return docIDs.toArray(new String[docIDs.size()]);
 	}
 	
 	/**
@@ -199,77 +284,51 @@ public class LuceneSearcher implements RepositorySearcher {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
 			try {
-				if(lreader != null) lreader.close(); 
 				if(td != null) td.close();
+				this.releaseIndexReader(lreader);
 			} catch (java.io.IOException ioe) {}
 		}
 		
 		return md;
 	}
 	
+	/**
+	 * Get the docIDs of documents that have a relation to this one.
+	 * This is answered from the index's {@link RelationGraph}.
+	 */
 	public String[] getReverseRelatedDocuments(String docID) throws RepositoryAccessException {
-		// We want to search for any docs that contain a relation to DocID.
-		ArrayList<String> docIDs = new ArrayList<String>();
-		String [] fields = {LUCENE_RELATION_FIELD, LUCENE_DOCID_FIELD};
-		
-		MapFieldSelector fieldSelector = new MapFieldSelector(fields);
-		IndexReader lreader = null;
-		
+		return this.getReverseRelatedDocuments(docID, null);
+	}
+	
+	public String[] getReverseRelatedDocuments(String docID, String relationType)  
+			throws RepositoryAccessException {
 		try {
-			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
-			Document d;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fieldSelector);
-					if(this.checkFieldValueMatches(LUCENE_RELATION_FIELD, docID, d))
-						docIDs.add(d.get(LUCENE_DOCID_FIELD));	
-				}
-			}
-			lreader.close();
-		} catch (java.io.IOException ioe) {
-			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
-		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			return this.getRelationGraph().getReverseRelatedDocuments(docID, relationType);
+		} catch (IOException e) {
+			throw new RepositoryAccessException("IOException: " + e.getMessage());
 		}
-		
-		return docIDs.toArray(new String[docIDs.size()]);
 	}
 	
-	public String[] getReverseRelatedDocuments(String docID, String relationType)  
+	/**
+	 * Get the docIDs of documents that this one has relations to.
+	 * This is answered from the index's {@link RelationGraph}.
+	 */
+	public String[] getRelatedDocuments(String docID, String relationType) 
 			throws RepositoryAccessException {
-		ArrayList<String> docIDs = new ArrayList<String>();
-		String [] fields = {LUCENE_RELATION_FIELD, LUCENE_DOCID_FIELD};
-		
-		//String value = docID + RELATION_SEPARATOR + docID;
-		String value = docID + RELATION_SEPARATOR + relationType;
-		
-		MapFieldSelector fieldSelector = new MapFieldSelector(fields);
-		IndexReader lreader = null;
-		
 		try {
-			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
-			Document d;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fieldSelector);
-					if(this.checkFieldValueMatches(LUCENE_RELATION_FIELD, value, d))
-						docIDs.add(d.get(LUCENE_DOCID_FIELD));	
-				}
-			}
-			lreader.close();
-		} catch (java.io.IOException ioe) {
-			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
-		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			return this.getRelationGraph().getRelatedDocuments(docID, relationType);
+		} catch (IOException e) {
+			throw new RepositoryAccessException("IOException: " + e.getMessage());
+		}
+	}
+	
+	public String[] traverseRelations(String docID, String relationType, boolean reverse, int maxDepth) 
+			throws RepositoryAccessException {
+		try {
+			return this.getRelationGraph().traverse(docID, relationType, reverse, maxDepth);
+		} catch (IOException e) {
+			throw new RepositoryAccessException("IOException: " + e.getMessage());
 		}
-		
-		return docIDs.toArray(new String[docIDs.size()]);
 	}
 	
 	/**
@@ -289,23 +348,20 @@ public class LuceneSearcher implements RepositorySearcher {
 		
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
+			// Walk the term dictionary to find only the docs that have this field.
+			BitSet matches = this.hasExactFields(lreader) 
+				? this.matchField(lreader, exactFieldName(name))
+				: this.matchAll(lreader);
 			Document d;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fieldSelector);
-					if(d.getField(name) != null)
-						vals.put(d.get(LUCENE_DOCID_FIELD), d.getValues(name));
-				}
-				
+			for(int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+				d = lreader.document(i, fieldSelector);
+				if(d.getField(name) != null)
+					vals.put(d.get(LUCENE_DOCID_FIELD), d.getValues(name));
 			}
-			//lreader.close();
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
 		
 		return vals;
@@ -388,14 +444,28 @@ public class LuceneSearcher implements RepositorySearcher {
 				fields.add(LUCENE_BODY_FIELD);
 		} else fields.add(LUCENE_BODY_FIELD);
 		
-		// New index searcher
+		// Shared index searcher
+		LuceneSearcherManager manager;
 		IndexReader reader;
 		try {
-			reader = this.getIndexReader();
+			manager = this.getSearcherManager();
+			reader = manager.acquire();
 		} catch (IOException e) {
 			throw new RepositoryAccessException("Could not read the index.");
 		}
-		IndexSearcher searcher = new IndexSearcher(reader);
+		try {
+			return this.simpleSearch(query, names, args, repo, maxResults, offset, fields, 
+					manager.getSearcher(reader));
+		} finally {
+			try{ manager.release(reader); } catch (java.io.IOException ioe) {}
+		}
+	}
+	
+	/** Run the simple search with a searcher whose reader has been acquired. */
+	private SearchResults simpleSearch(String query, String names[], Map<String, String> args, 
+			DocumentRepository repo, int maxResults, int offset, 
+			ArrayList<String> fields, IndexSearcher searcher)
+			throws RepositoryAccessException {
 		MultiFieldQueryParser qp = new MultiFieldQueryParser(
 			fields.toArray(new String[fields.size()]), 
 			new StandardAnalyzer()
@@ -445,6 +515,7 @@ public class LuceneSearcher implements RepositorySearcher {
 				System.out.println("Skipping document."); // FIXME: This should do something useful
 			}
 		}
+		dl.setPrefetchSize(this.getPrefetchSize());
 		return new SearchResults(query, names, args, maxResults, offset, hits.length(), dl);
 	}
 	
@@ -489,13 +560,10 @@ public class LuceneSearcher implements RepositorySearcher {
 				}
 				
 			}
-			//lreader.close();
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
 		
 		return dc;
@@ -524,32 +592,30 @@ public class LuceneSearcher implements RepositorySearcher {
 		lazyFields.addAll(Arrays.asList(names));
 		SetBasedFieldSelector fsel = new SetBasedFieldSelector(activeFields, lazyFields);
 		IndexReader lreader = null;
+		TermDocs td = null;
 		
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
+			td = lreader.termDocs();
 			Document d;
-			String docID;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fsel);
-					docID = d.get(LUCENE_DOCID_FIELD);
-					// This should be optimized:
-					for(String did: docIDs)
-						if(did.equals(docID)) 
-							dl.add(new ProxyRhizomeDocument(docID, this.fetchMetadata(d, names), repo));
+			// One term lookup per requested ID.
+			for(String docID: docIDs) {
+				td.seek(new Term(LUCENE_DOCID_FIELD, docID));
+				if(td.next()) {
+					d = lreader.document(td.doc(), fsel);
+					dl.add(new ProxyRhizomeDocument(docID, this.fetchMetadata(d, names), repo));
 				}
-				
 			}
-			//lreader.close();
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try {
+				if(td != null) td.close();
+				this.releaseIndexReader(lreader);
+			} catch (java.io.IOException ioe) {}
 		}
 		
+		dl.setPrefetchSize(this.getPrefetchSize());
 		return dl;
 		
 	}
@@ -635,24 +701,18 @@ public class LuceneSearcher implements RepositorySearcher {
 		// Do the work....
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
+			BitSet matches = this.matchNarrower(lreader, narrower);
 			Document d;
 			String docID;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fsel);
-					docID = d.get(LUCENE_DOCID_FIELD);
-					if(this.checkANDFieldMatches(fields, narrower, d))
-						dc.put(docID, this.fetchMetadata(d, all_fields));
-				}
-				
+			for(int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+				d = lreader.document(i, fsel);
+				docID = d.get(LUCENE_DOCID_FIELD);
+				dc.put(docID, this.fetchMetadata(d, all_fields));
 			}
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
 		
 		return dc;
@@ -698,28 +758,23 @@ public class LuceneSearcher implements RepositorySearcher {
 		// Do the work....
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
+			BitSet matches = this.matchNarrower(lreader, narrower);
 			Document d;
 			String docID;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fsel);
-					docID = d.get(LUCENE_DOCID_FIELD);
-					if(this.checkANDFieldMatches(fields, narrower, d))
-						dl.add(new ProxyRhizomeDocument(docID, 
-														this.fetchMetadata(d, all_fields),
-														r));
-				}
-				
+			for(int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+				d = lreader.document(i, fsel);
+				docID = d.get(LUCENE_DOCID_FIELD);
+				dl.add(new ProxyRhizomeDocument(docID, 
+												this.fetchMetadata(d, all_fields),
+												r));
 			}
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
 		
+		dl.setPrefetchSize(this.getPrefetchSize());
 		return dl;
 	
 	}
@@ -737,72 +792,158 @@ public class LuceneSearcher implements RepositorySearcher {
 	 */
 	public String [] narrowingSearch(Map<String, String> narrower) throws RepositoryAccessException {
 		
-		ArrayList<String> docIDs = new ArrayList<String>();
-		
-		// Get String[] of names for MapFieldSelector
-		Iterator<String> keys = narrower.keySet().iterator();
-		int l = narrower.size();
-		String [] fields = new String[l];
-		for(int i = 0; i < l; ++i) fields[i] = (String)keys.next();
-		
-		/* More efficient to copy another way:
-		ArrayList<String> fieldList = new ArrayList<String>(Arrays.asList(fields));
-		fieldList.add(LUCENE_DOCID_FIELD);
-		*/
-		String [] fieldList = new String[ fields.length + 1];
-		System.arraycopy(fields, 0, fieldList, 0, fields.length);
-		fieldList[fieldList.length - 1] = LUCENE_DOCID_FIELD;
-		
-		
-		// Now we are ready to check for matches:
-		MapFieldSelector fieldSelector = new MapFieldSelector(fieldList);
+		String[] docIDs;
 		IndexReader lreader = null;
 		try {
 			lreader = this.getIndexReader();
-			int last = lreader.maxDoc();
-			Document d;
-			for(int i = 0; i < last; ++i) {
-				if(!lreader.isDeleted(i)) {
-					d = lreader.document(i, fieldSelector);
-					if(this.checkANDFieldMatches(fields, narrower, d))
-						docIDs.add(d.get(LUCENE_DOCID_FIELD));
-				}
-			}
+			docIDs = this.getDocIDs(lreader, this.matchNarrower(lreader, narrower));
 		} catch (java.io.IOException ioe) {
 			throw new RepositoryAccessException("IOException: " + ioe.getMessage());
 		} finally {
-			if(lreader != null) {
-				try{ lreader.close(); } catch (java.io.IOException ioe) {}
-			}
+			try{ this.releaseIndexReader(lreader); } catch (java.io.IOException ioe) {}
 		}
 		
-		return docIDs.toArray(new String[docIDs.size()]);
+		return docIDs;
+	}
+	
+	/**
+	 * Helper function that finds all documents matching every name/value pair
+	 * in the narrower.
+	 * <p>The narrower is turned into a BooleanQuery of required TermQuery clauses 
+	 * against the untokenized metadata fields. An empty narrower matches 
+	 * every (undeleted) document.</p>
+	 * <p>If the index does not have untokenized fields, the stored values are 
+	 * scanned instead.</p>
+	 * @return BitSet of Lucene document numbers that match *all* criteria.
+	 */
+	private BitSet matchNarrower(IndexReader lreader, Map<String, String> narrower) 
+			throws IOException {
+		if(!narrower.isEmpty() && !this.hasExactFields(lreader)) 
+			return this.scanStoredValues(lreader, narrower);
+		final BitSet bits = new BitSet(lreader.maxDoc());
+		Query q;
+		if(narrower.isEmpty()) {
+			q = new MatchAllDocsQuery();
+		} else {
+			BooleanQuery bq = new BooleanQuery();
+			for(Map.Entry<String, String> e: narrower.entrySet()) {
+				bq.add(new TermQuery(new Term(exactFieldName(e.getKey()), e.getValue())), 
+						BooleanClause.Occur.MUST);
+			}
+			q = bq;
+		}
+		IndexSearcher searcher = this.getSearcherManager().getSearcher(lreader);
+		searcher.search(q, new HitCollector() {
+			public void collect(int doc, float score) {
+				bits.set(doc);
+			}
+		});
+		return bits;
+	}
+	
+	/** Helper function that finds all undeleted documents. */
+	private BitSet matchAll(IndexReader lreader) {
+		int last = lreader.maxDoc();
+		BitSet bits = new BitSet(last);
+		for(int i = 0; i < last; ++i) 
+			if(!lreader.isDeleted(i)) bits.set(i);
+		return bits;
+	}
+	
+	/**
+	 * Helper function that finds documents matching every name/value pair by 
+	 * loading the stored fields of each document. This is how lookups were done
+	 * before the untokenized fields were added, and is only used for old indexes.
+	 */
+	private BitSet scanStoredValues(IndexReader lreader, Map<String, String> narrower) 
+			throws IOException {
+		MapFieldSelector fieldSelector = new MapFieldSelector(
+				narrower.keySet().toArray(new String[narrower.size()]));
+		int last = lreader.maxDoc();
+		BitSet bits = new BitSet(last);
+		for(int i = 0; i < last; ++i) {
+			if(lreader.isDeleted(i)) continue;
+			Document d = lreader.document(i, fieldSelector);
+			boolean all = true;
+			for(Map.Entry<String, String> e: narrower.entrySet()) {
+				String[] vals = d.getValues(e.getKey());
+				if(vals == null || !Arrays.asList(vals).contains(e.getValue())) {
+					all = false;
+					break;
+				}
+			}
+			if(all) bits.set(i);
+		}
+		return bits;
+	}
+	
+	/**
+	 * Check whether the index has the untokenized metadata fields for every document.
+	 * <p>An index built before they were added has metadata, but no 
+	 * <code>metadatum:</code> fields, at least for its older documents. Term lookups
+	 * against such an index would silently miss those, so callers fall back to 
+	 * scanning stored values. Only the index's format file (see 
+	 * {@link LuceneIndexer#FORMAT_FILE}) can tell, since new documents in an old index
+	 * do have the fields. The answer is cached with the reader, and a warning is
+	 * printed once per index.</p>
+	 */
+	private boolean hasExactFields(IndexReader lreader) throws IOException {
+		Map<String, Object> cache = this.getSearcherManager().getReaderCache(lreader);
+		Boolean has = cache == null ? null : (Boolean)cache.get(EXACT_FIELDS_KEY);
+		if(has == null) {
+			File indexDir = new File(LuceneIndexer.getIndexPath(this.indexName, this.context));
+			has = Boolean.valueOf(LuceneIndexer.isCurrentFormat(lreader, indexDir));
+			if(cache != null) cache.put(EXACT_FIELDS_KEY, has);
+			if(!has && legacyWarned.add(this.indexName)) 
+				System.err.format("LuceneSearcher: index %s was built without exact-match fields. " 
+						+ "Lookups will scan every document until it is reindexed.%n", this.indexName);
+		}
+		return has.booleanValue();
+	}
+	
+	/** Helper function that finds all (undeleted) documents containing a term. */
+	private BitSet matchTerm(IndexReader lreader, Term t) throws IOException {
+		BitSet bits = new BitSet(lreader.maxDoc());
+		TermDocs td = lreader.termDocs(t);
+		try {
+			while(td.next()) bits.set(td.doc());
+		} finally {
+			td.close();
+		}
+		return bits;
 	}
 	
 	/** 
-	 * Helper function that checks that all fields in a list match for a document.
-	 * Takes a Map of key, val pairs to match with field, vals in doc. A Document field may 
-	 * have multiple values. This checks all values.
-	 * @return true if the document matches *all* match criteria.
+	 * Helper function that finds all (undeleted) documents that have any value for 
+	 * the given field. This walks the term dictionary for that field only.
 	 */
-	private boolean checkANDFieldMatches(String[] keys, Map<String, String> match, Document doc) {
-		for(String key: keys) {
-			// Fail fast:
-			if(!this.checkFieldValueMatches(key, match.get(key), doc))
-				return false;
+	private BitSet matchField(IndexReader lreader, String field) throws IOException {
+		BitSet bits = new BitSet(lreader.maxDoc());
+		TermEnum te = lreader.terms(new Term(field, ""));
+		TermDocs td = lreader.termDocs();
+		try {
+			do {
+				Term t = te.term();
+				if(t == null || !field.equals(t.field())) break;
+				td.seek(te);
+				while(td.next()) bits.set(td.doc());
+			} while(te.next());
+		} finally {
+			td.close();
+			te.close();
 		}
-		return true; // everything matches for this doc.
+		return bits;
 	}
 	
-	/** Helper function for checking field values. */
-	private boolean checkFieldValueMatches(String key, String value, Document doc) {
-		//System.err.format( "Key: %s, Val: %s, Doc: %s\n", key, value, doc.toString());
-		String[] vals = doc.getValues(key); //getValues can return null.
-		if( vals == null ) return false;
-		for( String val: vals ) {
-			if(value.equals(val)) return true;
+	/** Helper function that gets the document IDs for a set of Lucene document numbers. */
+	private String[] getDocIDs(IndexReader lreader, BitSet matches) throws IOException {
+		MapFieldSelector fieldSelector = new MapFieldSelector(new String[] {LUCENE_DOCID_FIELD});
+		String[] docIDs = new String[matches.cardinality()];
+		int j = 0;
+		for(int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+			docIDs[j++] = lreader.document(i, fieldSelector).get(LUCENE_DOCID_FIELD);
 		}
-		return false;
+		return docIDs;
 	}
 	
 	/**
@@ -826,8 +967,12 @@ public class LuceneSearcher implements RepositorySearcher {
 	}
 
 	
+	/**
+	 * This is reusable. The searcher keeps no per-request state; readers are 
+	 * shared through a {@link LuceneSearcherManager}.
+	 */
 	public boolean isReusable() {
-		return false;
+		return true;
 	}
 	
 	public RepositoryContext getConfiguration() {
@@ -838,10 +983,38 @@ public class LuceneSearcher implements RepositorySearcher {
 		this.context = context;
 	}
 	
+	private int getPrefetchSize() {
+		String v = this.context.getParam(CXT_PREFETCH_DOCS);
+		if(v == null) return DEFAULT_PREFETCH_DOCS;
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException nfe) {
+			return DEFAULT_PREFETCH_DOCS;
+		}
+	}
+	
+	/**
+	 * Get the shared reader for this index.
+	 * Every reader returned here must be passed to {@link #releaseIndexReader(IndexReader)}.
+	 */
 	private IndexReader getIndexReader() throws java.io.IOException {
+		return this.getSearcherManager().acquire();
+	}
+	
+	/** Release a reader obtained from {@link #getIndexReader()}. Null is ignored. */
+	private void releaseIndexReader(IndexReader lreader) throws java.io.IOException {
+		if(lreader != null) this.getSearcherManager().release(lreader);
+	}
+	
+	private RelationGraph getRelationGraph() throws RepositoryAccessException {
+		String ipath = LuceneIndexer.getIndexPath(this.indexName, this.context);
+		if(ipath == null) throw new RepositoryAccessException("No index path for " + this.indexName);
+		return RelationGraph.getGraph(ipath);
+	}
+	
+	private LuceneSearcherManager getSearcherManager() throws java.io.IOException {
 		String ipath = LuceneIndexer.getIndexPath(this.indexName, this.context);
 		if(ipath == null) throw new java.io.IOException(ipath+" does not exist.");
-		File indexDir = new File(ipath);
-		return IndexReader.open(indexDir);
+		return LuceneSearcherDepot.getSearcherManager(ipath);
 	}
 }
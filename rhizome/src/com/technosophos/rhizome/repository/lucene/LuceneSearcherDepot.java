@@ -1,16 +1,89 @@
 package com.technosophos.rhizome.repository.lucene;
 
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.technosophos.rhizome.repository.RepositoryContext;
 import com.technosophos.rhizome.repository.RepositorySearcher;
 import com.technosophos.rhizome.repository.RepositorySearcherDepot;
 import com.technosophos.rhizome.repository.RhizomeInitializationException;
 
+/**
+ * Provides {@link LuceneSearcher} instances.
+ * <p>Searchers are reusable, so one searcher is kept for each index. All searchers
+ * for an index share a single open IndexReader, managed by a
+ * {@link LuceneSearcherManager}. The managers are shared across depots (there is
+ * one per index path), so that the {@link LuceneIndexer} can tell them when the
+ * index has changed.</p>
+ * @author mbutcher
+ *
+ */
 public class LuceneSearcherDepot implements RepositorySearcherDepot {
 
+	private static ConcurrentHashMap<String, LuceneSearcherManager> managers =
+		new ConcurrentHashMap<String, LuceneSearcherManager>();
+
+	private ConcurrentHashMap<String, LuceneSearcher> searchers =
+		new ConcurrentHashMap<String, LuceneSearcher>();
+
 	public RepositorySearcher getSearcher(String name, RepositoryContext cxt)
 			throws RhizomeInitializationException {
-		
-		return new LuceneSearcher(name, cxt);
+
+		String ipath = LuceneIndexer.getIndexPath(name, cxt);
+		// No path means no index; let the searcher report that when it is used.
+		if(ipath == null) return new LuceneSearcher(name, cxt);
+
+		LuceneSearcher s = this.searchers.get(ipath);
+		if(s == null) {
+			s = new LuceneSearcher(name, cxt);
+			LuceneSearcher existing = this.searchers.putIfAbsent(ipath, s);
+			if(existing != null) s = existing;
+		}
+		return s;
+	}
+
+	/**
+	 * Get the searcher manager for an index, creating it if necessary.
+	 * @param indexPath Full path to the index (see {@link LuceneIndexer#getIndexPath(String, RepositoryContext)}).
+	 * @return manager for that index.
+	 */
+	static LuceneSearcherManager getSearcherManager(String indexPath) {
+		LuceneSearcherManager m = managers.get(indexPath);
+		if(m == null) {
+			m = new LuceneSearcherManager(indexPath);
+			LuceneSearcherManager existing = managers.putIfAbsent(indexPath, m);
+			if(existing != null) m = existing;
+		}
+		return m;
+	}
+
+	/**
+	 * Tell the searchers that the index has changed.
+	 * This is called by the {@link LuceneIndexer} after changes have been committed.
+	 * The shared reader is reopened the next time it is used.
+	 * @param indexPath Full path to the index.
+	 */
+	static void indexChanged(String indexPath) {
+		if(indexPath == null) return;
+		LuceneSearcherManager m = managers.get(indexPath);
+		if(m != null) m.markStale();
+	}
+
+	/**
+	 * Close and discard the searcher manager for an index.
+	 * This is used when an index is deleted.
+	 * @param indexPath Full path to the index.
+	 */
+	static void closeSearcherManager(String indexPath) {
+		if(indexPath == null) return;
+		LuceneSearcherManager m = managers.remove(indexPath);
+		if(m != null) {
+			try {
+				m.close();
+			} catch (IOException ioe) {
+				System.err.println("Could not close index reader: " + ioe.getMessage());
+			}
+		}
 	}
 
 }
@@ -0,0 +1,170 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Shares one open IndexReader (and IndexSearcher) for an index.
+ * <p>Opening an IndexReader means opening every segment file and loading norms,
+ * which is far too expensive to do on every request. This class keeps one reader
+ * open per index and hands it out to any number of concurrent callers. Each
+ * caller must {@link #release(IndexReader)} the reader it {@link #acquire()}d.</p>
+ * <p>When the {@link LuceneIndexer} changes the index, it marks the manager as
+ * stale (see {@link LuceneSearcherDepot#indexChanged(String)}). The next call to
+ * {@link #acquire()} reopens the reader. Readers handed out before the reopen stay
+ * valid until their last user releases them, at which point they are closed.</p>
+ * <p>Instances are created and owned by {@link LuceneSearcherDepot}. There is one
+ * manager per index path.</p>
+ * @author mbutcher
+ *
+ */
+public class LuceneSearcherManager {
+
+	private String indexPath = null;
+	private IndexReader current = null;
+	private volatile boolean stale = false;
+	private boolean closed = false;
+
+	/** Reference counts (and shared searchers) for every reader still in use. */
+	private IdentityHashMap<IndexReader, ReaderRef> refs =
+		new IdentityHashMap<IndexReader, ReaderRef>();
+
+	/**
+	 * Create a manager for the index at the given path.
+	 * The index is not opened until the first call to {@link #acquire()}.
+	 * @param indexPath Full path to the index directory.
+	 */
+	LuceneSearcherManager(String indexPath) {
+		this.indexPath = indexPath;
+	}
+
+	/**
+	 * Get the path to the index this manager reads.
+	 * @return path to the index directory.
+	 */
+	public String getIndexPath() {
+		return this.indexPath;
+	}
+
+	/**
+	 * Get the shared reader for this index.
+	 * <p>If the index has changed since the reader was opened, the reader is
+	 * reopened first. Every call must be matched by a call to {@link #release(IndexReader)},
+	 * usually in a <code>finally</code> block.</p>
+	 * @return An open IndexReader.
+	 * @throws IOException if the index cannot be opened.
+	 */
+	public synchronized IndexReader acquire() throws IOException {
+		if(this.closed)
+			throw new IOException("Searcher manager for " + this.indexPath + " is closed.");
+		if(this.current == null) {
+			this.stale = false;
+			this.swap(IndexReader.open(new File(this.indexPath)));
+		} else if(this.stale) {
+			this.stale = false;
+			IndexReader r = this.current.reopen();
+			// reopen() returns the same instance if nothing has changed.
+			if(r != this.current) this.swap(r);
+		}
+		this.refs.get(this.current).count++;
+		return this.current;
+	}
+
+	/**
+	 * Release a reader obtained from {@link #acquire()}.
+	 * <p>If the reader has been replaced by a newer one, and this was the last
+	 * user, the reader is closed.</p>
+	 * @param reader Reader to release. Null is ignored.
+	 * @throws IOException if the reader cannot be closed.
+	 */
+	public synchronized void release(IndexReader reader) throws IOException {
+		if(reader != null) this.decRef(reader);
+	}
+
+	/**
+	 * Get the shared IndexSearcher for a reader.
+	 * The reader must have been obtained from {@link #acquire()} and not yet released.
+	 * @param reader Acquired reader.
+	 * @return IndexSearcher wrapping that reader.
+	 */
+	public synchronized IndexSearcher getSearcher(IndexReader reader) {
+		ReaderRef ref = this.refs.get(reader);
+		if(ref == null) return new IndexSearcher(reader);
+		return ref.searcher;
+	}
+
+	/**
+	 * Get a place to keep values computed from a reader.
+	 * <p>A reader never changes once it is open, so anything worked out from it
+	 * (such as facet counts) stays correct for as long as the reader is in use.
+	 * The map is thrown away with the reader, so a reopen starts with an empty one.</p>
+	 * @param reader Acquired reader.
+	 * @return a thread-safe map, or null if the reader is not managed here.
+	 */
+	public synchronized Map<String, Object> getReaderCache(IndexReader reader) {
+		ReaderRef ref = this.refs.get(reader);
+		return ref == null ? null : ref.cache;
+	}
+
+	/**
+	 * Mark the current reader as out of date.
+	 * The reader will be reopened on the next {@link #acquire()}.
+	 */
+	public void markStale() {
+		this.stale = true;
+	}
+
+	/**
+	 * Close the manager.
+	 * The current reader is closed once all callers have released it. After this,
+	 * {@link #acquire()} throws an exception.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if(this.closed) return;
+		this.closed = true;
+		if(this.current != null) {
+			IndexReader r = this.current;
+			this.current = null;
+			this.decRef(r);
+		}
+	}
+
+	/** Make r the current reader, dropping the manager's own reference to the old one. */
+	private void swap(IndexReader r) throws IOException {
+		IndexReader old = this.current;
+		// The manager holds one reference to the current reader.
+		this.refs.put(r, new ReaderRef(r));
+		this.current = r;
+		if(old != null) this.decRef(old);
+	}
+
+	private void decRef(IndexReader r) throws IOException {
+		ReaderRef ref = this.refs.get(r);
+		if(ref == null) return;
+		if(--ref.count <= 0) {
+			this.refs.remove(r);
+			try {
+				ref.searcher.close();
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	/** Reference count, searcher and cache for one reader. */
+	private static class ReaderRef {
+		int count = 1;
+		IndexSearcher searcher;
+		Map<String, Object> cache = new ConcurrentHashMap<String, Object>();
+		ReaderRef(IndexReader r) {
+			this.searcher = new IndexSearcher(r);
+		}
+	}
+}
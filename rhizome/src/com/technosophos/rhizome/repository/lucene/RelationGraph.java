@@ -0,0 +1,447 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import static com.technosophos.rhizome.repository.lucene.LuceneElements.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+import com.technosophos.rhizome.document.Relation;
+
+/**
+ * An in-memory index of the relations between documents, in both directions.
+ * <p>Each relation is an edge with a type, from the document that declares it to
+ * the document it names. Every edge is kept twice: once under its source, and once
+ * under its target. So finding the documents a document points to, or the documents
+ * that point to it, takes time proportional to the number of edges found, without
+ * loading or parsing any documents. {@link #traverse(String, String, boolean, int)}
+ * follows edges for several hops.</p>
+ * <p>There is one graph per index (see {@link #getGraph(String)}). It is built from
+ * the index's untokenized relation fields the first time it is used, and after
+ * that it is kept up to date by {@link LuceneIndexer#queueUpdate(com.technosophos.rhizome.document.RhizomeDocument)}
+ * and {@link LuceneIndexer#queueDelete(String)}, as each change is committed. Changes
+ * made before the graph is built are remembered, and applied on top of what is read
+ * from the index. A full reindex throws the graph away, and it is built again on the
+ * next use.</p>
+ * <p>In an index that has not been rebuilt since the untokenized relation fields were
+ * added (see {@link LuceneIndexer#FORMAT_FILE}), documents without them are read
+ * from their stored relations instead, and a message suggests a reindex.</p>
+ * <p>Only changes made through a LuceneIndexer in this JVM are seen. If another
+ * process writes the index, call {@link #reset(String)}.</p>
+ * @author mbutcher
+ *
+ */
+public class RelationGraph {
+
+	private static ConcurrentHashMap<String, RelationGraph> graphs =
+		new ConcurrentHashMap<String, RelationGraph>();
+
+	private static final String[] NO_DOCS = new String[0];
+	private static final Edge[] NO_EDGES = new Edge[0];
+
+	private String indexPath;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// All guarded by lock.
+	private boolean loaded = false;
+	private HashMap<String, Edge[]> out = new HashMap<String, Edge[]>();
+	private HashMap<String, LinkedHashSet<Edge>> in = new HashMap<String, LinkedHashSet<Edge>>();
+	private int edgeCount = 0;
+	// Changes made before the graph was loaded. A null value is a delete.
+	private LinkedHashMap<String, List<Relation>> pending = new LinkedHashMap<String, List<Relation>>();
+
+	private RelationGraph(String indexPath) {
+		this.indexPath = indexPath;
+	}
+
+	/**
+	 * Get the graph for an index, creating it if necessary.
+	 * @param indexPath Full path to the index (see {@link LuceneIndexer#getIndexPath(String, com.technosophos.rhizome.repository.RepositoryContext)}).
+	 * @return the graph. It is not loaded until it is used.
+	 */
+	public static RelationGraph getGraph(String indexPath) {
+		RelationGraph g = graphs.get(indexPath);
+		if(g == null) {
+			g = new RelationGraph(indexPath);
+			RelationGraph existing = graphs.putIfAbsent(indexPath, g);
+			if(existing != null) g = existing;
+		}
+		return g;
+	}
+
+	/**
+	 * Throw away the graph for an index. It will be read from the index again the
+	 * next time it is used. This is called when the index is rebuilt or deleted.
+	 * @param indexPath Full path to the index.
+	 */
+	public static void reset(String indexPath) {
+		graphs.remove(indexPath);
+	}
+
+	/**
+	 * Get the documents that a document points to.
+	 * @param docID Source document.
+	 * @param relationType Only follow edges of this type. Null means any type.
+	 * @return IDs of the target documents, each once, in the order the relations were declared.
+	 * @throws IOException if the graph has to be loaded, and the index cannot be read.
+	 */
+	public String[] getRelatedDocuments(String docID, String relationType) throws IOException {
+		this.readLock();
+		try {
+			return targets(this.out.get(docID), relationType);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the documents that point to a document.
+	 * @param docID Target document.
+	 * @param relationType Only follow edges of this type. Null means any type.
+	 * @return IDs of the source documents, each once.
+	 * @throws IOException if the graph has to be loaded, and the index cannot be read.
+	 */
+	public String[] getReverseRelatedDocuments(String docID, String relationType) throws IOException {
+		this.readLock();
+		try {
+			LinkedHashSet<Edge> edges = this.in.get(docID);
+			return targets(edges == null ? null : edges.toArray(NO_EDGES), relationType);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get a document's relations.
+	 * @param docID Source document.
+	 * @return new Relation objects, one for each edge from the document.
+	 * @throws IOException if the graph has to be loaded, and the index cannot be read.
+	 */
+	public List<Relation> getRelations(String docID) throws IOException {
+		this.readLock();
+		try {
+			return relations(this.out.get(docID));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the relations that point to a document.
+	 * @param docID Target document.
+	 * @return new Relation objects, one for each edge to the document. The docID of
+	 * each is the document the edge comes <i>from</i>.
+	 * @throws IOException if the graph has to be loaded, and the index cannot be read.
+	 */
+	public List<Relation> getReverseRelations(String docID) throws IOException {
+		this.readLock();
+		try {
+			LinkedHashSet<Edge> edges = this.in.get(docID);
+			return relations(edges == null ? null : edges.toArray(NO_EDGES));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Follow relations for several hops, breadth first.
+	 * <p>For example, with <code>reverse</code> set and a type of "parent", this finds
+	 * the children of a document, their children, and so on. Each document is visited
+	 * once, so cycles are safe.</p>
+	 * @param docID Document to start from. It is not included in the result.
+	 * @param relationType Only follow edges of this type. Null means any type.
+	 * @param reverse If true, follow edges backward (from target to source).
+	 * @param maxDepth Largest number of hops. Less than 1 means no limit.
+	 * @return IDs of the documents reached, nearest first.
+	 * @throws IOException if the graph has to be loaded, and the index cannot be read.
+	 */
+	public String[] traverse(String docID, String relationType, boolean reverse, int maxDepth)
+			throws IOException {
+		LinkedHashSet<String> seen = new LinkedHashSet<String>();
+		seen.add(docID);
+		ArrayList<String> level = new ArrayList<String>();
+		level.add(docID);
+		this.readLock();
+		try {
+			for(int depth = 0; !level.isEmpty() && (maxDepth < 1 || depth < maxDepth); ++depth) {
+				ArrayList<String> next = new ArrayList<String>();
+				for(String id: level) {
+					Edge[] edges;
+					if(reverse) {
+						LinkedHashSet<Edge> e = this.in.get(id);
+						edges = e == null ? null : e.toArray(NO_EDGES);
+					} else edges = this.out.get(id);
+					for(String t: targets(edges, relationType)) {
+						if(seen.add(t)) next.add(t);
+					}
+				}
+				level = next;
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		seen.remove(docID);
+		return seen.toArray(new String[seen.size()]);
+	}
+
+	/**
+	 * Number of edges in the graph.
+	 * @return edge count.
+	 * @throws IOException if the graph has to be loaded, and the index cannot be read.
+	 */
+	public int countEdges() throws IOException {
+		this.readLock();
+		try {
+			return this.edgeCount;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace a document's relations.
+	 * @param docID Source document.
+	 * @param relations Its relations now.
+	 */
+	public void update(String docID, List<Relation> relations) {
+		this.lock.writeLock().lock();
+		try {
+			if(!this.loaded) {
+				this.pending.remove(docID);
+				this.pending.put(docID, new ArrayList<Relation>(relations));
+				return;
+			}
+			this.removeEdges(docID);
+			this.addEdges(docID, relations);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a document's relations. Relations pointing to it from other documents
+	 * are kept, since those documents still declare them.
+	 * @param docID Source document.
+	 */
+	public void remove(String docID) {
+		this.lock.writeLock().lock();
+		try {
+			if(!this.loaded) {
+				this.pending.remove(docID);
+				this.pending.put(docID, null);
+				return;
+			}
+			this.removeEdges(docID);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/** Take the read lock, loading the graph first if needed. */
+	private void readLock() throws IOException {
+		this.lock.readLock().lock();
+		if(this.loaded) return;
+		this.lock.readLock().unlock();
+		this.lock.writeLock().lock();
+		try {
+			if(!this.loaded) this.load();
+			// Downgrade: take the read lock before letting go of the write lock.
+			this.lock.readLock().lock();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Build the graph from the index. Called with the write lock held.
+	 * <p>Each relation is indexed as an untokenized term, target + RELATION_SEPARATOR +
+	 * type, in {@link LuceneElements#LUCENE_RELATION_KEY_FIELD}. The postings of that term
+	 * are the documents that declare the relation.</p>
+	 */
+	private void load() throws IOException {
+		LuceneSearcherManager m = LuceneSearcherDepot.getSearcherManager(this.indexPath);
+		IndexReader lreader = m.acquire();
+		HashMap<String, ArrayList<Edge>> edges = new HashMap<String, ArrayList<Edge>>();
+		try {
+			// Lucene document number -> document ID.
+			String[] ids = new String[lreader.maxDoc()];
+			TermEnum te = lreader.terms(new Term(LUCENE_DOCID_FIELD, ""));
+			TermDocs td = lreader.termDocs();
+			try {
+				do {
+					Term t = te.term();
+					if(t == null || !LUCENE_DOCID_FIELD.equals(t.field())) break;
+					td.seek(te);
+					while(td.next()) ids[td.doc()] = t.text();
+				} while(te.next());
+				te.close();
+
+				te = lreader.terms(new Term(LUCENE_RELATION_KEY_FIELD, ""));
+				do {
+					Term t = te.term();
+					if(t == null || !LUCENE_RELATION_KEY_FIELD.equals(t.field())) break;
+					String key = t.text();
+					int sep = key.lastIndexOf(RELATION_SEPARATOR);
+					if(sep < 0) continue;
+					String target = key.substring(0, sep);
+					String type = key.substring(sep + RELATION_SEPARATOR.length()).intern();
+					td.seek(te);
+					while(td.next()) {
+						String source = ids[td.doc()];
+						if(source == null) continue;
+						ArrayList<Edge> e = edges.get(source);
+						if(e == null) edges.put(source, e = new ArrayList<Edge>(2));
+						e.add(new Edge(type, target));
+					}
+				} while(te.next());
+				te.close();
+				te = null;
+
+				// Only an index from before the relation keys can have documents without them.
+				if(!LuceneIndexer.isCurrentFormat(lreader, new File(this.indexPath))) {
+					te = lreader.terms(new Term(LUCENE_RELATION_FIELD, ""));
+					this.loadStoredRelations(lreader, te, td, ids, edges);
+				}
+			} finally {
+				td.close();
+				if(te != null) te.close();
+			}
+		} finally {
+			m.release(lreader);
+		}
+
+		for(Map.Entry<String, ArrayList<Edge>> e: edges.entrySet())
+			this.addEdges(e.getKey(), e.getValue().toArray(NO_EDGES));
+		for(Map.Entry<String, List<Relation>> p: this.pending.entrySet()) {
+			this.removeEdges(p.getKey());
+			if(p.getValue() != null) this.addEdges(p.getKey(), p.getValue());
+		}
+		this.pending.clear();
+		this.loaded = true;
+	}
+
+	/**
+	 * Read the relations of documents that have no relation key terms.
+	 * <p>Documents indexed before {@link LuceneElements#LUCENE_RELATION_KEY_FIELD}
+	 * existed only have the tokenized, stored {@link LuceneElements#LUCENE_RELATION_FIELD}.
+	 * Their relations are read from the stored values instead, which means loading
+	 * each of those documents. Reindexing adds the keys.</p>
+	 * @param te Enumeration positioned at the first relation term. It is not closed.
+	 */
+	private void loadStoredRelations(IndexReader lreader, TermEnum te, TermDocs td, 
+			String[] ids, HashMap<String, ArrayList<Edge>> edges) throws IOException {
+		BitSet legacy = new BitSet(ids.length);
+		do {
+			Term t = te.term();
+			if(t == null || !LUCENE_RELATION_FIELD.equals(t.field())) break;
+			td.seek(te);
+			while(td.next()) {
+				String source = ids[td.doc()];
+				if(source != null && !edges.containsKey(source)) legacy.set(td.doc());
+			}
+		} while(te.next());
+		if(legacy.isEmpty()) return;
+
+		MapFieldSelector fsel = new MapFieldSelector(new String[] {LUCENE_RELATION_FIELD});
+		for(int i = legacy.nextSetBit(0); i >= 0; i = legacy.nextSetBit(i + 1)) {
+			ArrayList<Edge> e = new ArrayList<Edge>(2);
+			for(String key: lreader.document(i, fsel).getValues(LUCENE_RELATION_FIELD)) {
+				int sep = key.lastIndexOf(RELATION_SEPARATOR);
+				if(sep < 0) continue;
+				e.add(new Edge(key.substring(sep + RELATION_SEPARATOR.length()).intern(),
+						key.substring(0, sep)));
+			}
+			if(!e.isEmpty()) edges.put(ids[i], e);
+		}
+		System.err.println(legacy.cardinality() + " documents in " + this.indexPath 
+				+ " were indexed without relation keys. Their relations were read from"
+				+ " stored fields. Reindex to add the keys.");
+	}
+
+	private void addEdges(String docID, List<Relation> relations) {
+		ArrayList<Edge> edges = new ArrayList<Edge>(relations.size());
+		for(Relation r: relations) {
+			if(r.getDocID() == null) continue;
+			// The index stores a relation without a type as an empty type.
+			String type = r.hasRelationType() ? r.getRelationType().intern() : "";
+			edges.add(new Edge(type, r.getDocID()));
+		}
+		this.addEdges(docID, edges.toArray(NO_EDGES));
+	}
+
+	private void addEdges(String docID, Edge[] edges) {
+		if(edges.length == 0) return;
+		this.out.put(docID, edges);
+		for(Edge e: edges) {
+			LinkedHashSet<Edge> s = this.in.get(e.docID);
+			if(s == null) this.in.put(e.docID, s = new LinkedHashSet<Edge>());
+			s.add(new Edge(e.type, docID));
+		}
+		this.edgeCount += edges.length;
+	}
+
+	private void removeEdges(String docID) {
+		Edge[] old = this.out.remove(docID);
+		if(old == null) return;
+		for(Edge e: old) {
+			LinkedHashSet<Edge> s = this.in.get(e.docID);
+			if(s == null) continue;
+			s.remove(new Edge(e.type, docID));
+			if(s.isEmpty()) this.in.remove(e.docID);
+		}
+		this.edgeCount -= old.length;
+	}
+
+	private static String[] targets(Edge[] edges, String relationType) {
+		if(edges == null) return NO_DOCS;
+		// A document can be related to another in more than one way. List it once.
+		LinkedHashSet<String> ids = new LinkedHashSet<String>();
+		for(Edge e: edges) {
+			if(relationType == null || relationType.equals(e.type)) ids.add(e.docID);
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+
+	private static List<Relation> relations(Edge[] edges) {
+		ArrayList<Relation> rels = new ArrayList<Relation>(edges == null ? 0 : edges.length);
+		if(edges != null) {
+			for(Edge e: edges) rels.add(new Relation(e.type.length() == 0 ? null : e.type, e.docID));
+		}
+		return rels;
+	}
+
+	/** A typed edge to (or from) another document. */
+	private static class Edge {
+		final String type;
+		final String docID;
+
+		Edge(String type, String docID) {
+			this.type = type;
+			this.docID = docID;
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Edge)) return false;
+			Edge e = (Edge)o;
+			return this.type.equals(e.type) && this.docID.equals(e.docID);
+		}
+
+		public int hashCode() {
+			return this.type.hashCode() * 31 + this.docID.hashCode();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.technosophos.rhizome.web.xml.rhtml.RHTMLEntities;
+
+/**
+ * A Reader that strips tags out of HTML/XML and decodes entities as it reads.
+ * <p>This does the same job as {@link FastTagStripper}, but works on a stream, so
+ * it can be handed straight to Lucene as the source of a field:</p>
+ * <pre>
+ * new Field(LUCENE_BODY_FIELD, new TagStrippingReader(data.getDataReader()));
+ * </pre>
+ * <p>The document is never copied: text between tags is passed through in runs,
+ * and each tag is replaced by a single space (so that words on either side of a
+ * tag do not run together). It is a bit more careful than FastTagStripper:</p>
+ * <ul>
+ * <li>The contents of <code>script</code> and <code>style</code> elements are skipped.</li>
+ * <li>Comments, CDATA sections, processing instructions and declarations are skipped,
+ * even when they contain a &gt;.</li>
+ * <li>A &gt; inside a quoted attribute value does not end the tag.</li>
+ * <li>Numeric character references and the named entities in {@link RHTMLEntities}
+ * are decoded. Unknown entities are left as they are.</li>
+ * </ul>
+ * <p>Like FastTagStripper, this makes no attempt to check that the document is
+ * well-formed.</p>
+ * @author mbutcher
+ *
+ */
+public class TagStrippingReader extends Reader {
+
+	/** Longest entity name (or numeric reference) that will be decoded. */
+	private static final int MAX_ENTITY = 10;
+
+	private static final char NBSP = '\u00A0';
+
+	private Reader in;
+	private char[] buf = new char[4096];
+	private int bpos = 0;
+	private int blen = 0;
+	// Characters waiting to be returned: a decoded entity, or a space for a tag.
+	private char[] pending = new char[MAX_ENTITY + 2];
+	private int ppos = 0;
+	private int plen = 0;
+	// True if the last character returned was whitespace.
+	private boolean lastSpace = true;
+
+	/**
+	 * @param in Reader with the HTML or XML document.
+	 */
+	public TagStrippingReader(Reader in) {
+		this.in = in;
+	}
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		int n = 0;
+		while(n < len) {
+			if(this.ppos < this.plen) {
+				int k = Math.min(len - n, this.plen - this.ppos);
+				System.arraycopy(this.pending, this.ppos, cbuf, off + n, k);
+				this.ppos += k;
+				n += k;
+				this.lastSpace = Character.isWhitespace(cbuf[off + n - 1]);
+				continue;
+			}
+			if(this.bpos < this.blen) {
+				// Plain text is copied straight through.
+				int max = Math.min(len - n, this.blen - this.bpos);
+				int k = 0;
+				char ch;
+				while(k < max && (ch = this.buf[this.bpos + k]) != '<' && ch != '&') ++k;
+				if(k > 0) {
+					System.arraycopy(this.buf, this.bpos, cbuf, off + n, k);
+					this.bpos += k;
+					n += k;
+					this.lastSpace = Character.isWhitespace(cbuf[off + n - 1]);
+					continue;
+				}
+			}
+			int c = this.next();
+			if(c < 0) break;
+			this.ppos = this.plen = 0;
+			if(c == '<') {
+				if(this.skipMarkup() && !this.lastSpace) this.pending[this.plen++] = ' ';
+			} else if(c == '&') {
+				this.decodeEntity();
+			} else {
+				// The buffer was empty. Put the character back and take the fast path.
+				this.unread();
+			}
+		}
+		return n == 0 ? -1 : n;
+	}
+
+	/**
+	 * Skip past the markup that starts after a &lt;.
+	 * @return true if markup was skipped, false if the &lt; was just text (in which
+	 * case it is put in the pending buffer).
+	 */
+	private boolean skipMarkup() throws IOException {
+		int c = this.next();
+		if(c == '!') {
+			c = this.next();
+			if(c == '-' && this.next() == '-') this.skipPast("-->");
+			else if(c == '[') this.skipPast("]]>");
+			else if(c != '>') this.skipPast(">");
+			return true;
+		}
+		if(c == '?') {
+			this.skipPast("?>");
+			return true;
+		}
+		if(c == '/') {
+			this.skipTag();
+			return true;
+		}
+		if(c < 0 || !Character.isLetter(c)) {
+			// Not a tag. Let the next character be read again as text.
+			if(c >= 0) this.unread();
+			this.pending[this.plen++] = '<';
+			return false;
+		}
+
+		// Start tag: script and style contents are skipped too.
+		String raw = null;
+		if(c == 's' || c == 'S') {
+			if(this.matchName("script", 1)) raw = "script";
+			else if(this.matchName("style", 1)) raw = "style";
+		}
+		boolean empty = this.skipTag();
+		if(raw != null && !empty) this.skipRaw(raw);
+		return true;
+	}
+
+	/**
+	 * Check whether the tag name continues with the rest of <code>name</code>
+	 * (the first <code>from</code> characters have already been read). Characters
+	 * are only consumed if it matches.
+	 */
+	private boolean matchName(String name, int from) throws IOException {
+		int need = name.length() - from;
+		// Make sure the rest of the name and the character after it are buffered.
+		if(this.blen - this.bpos <= need) this.compact(need + 1);
+		if(this.blen - this.bpos < need) return false;
+		for(int i = 0; i < need; ++i) {
+			if(Character.toLowerCase(this.buf[this.bpos + i]) != name.charAt(from + i)) return false;
+		}
+		if(this.bpos + need < this.blen
+				&& Character.isLetterOrDigit(this.buf[this.bpos + need])) return false;
+		this.bpos += need;
+		return true;
+	}
+
+	/**
+	 * Skip to the end of a tag, ignoring any &gt; in quoted attribute values.
+	 * @return true if this was an empty element tag (it ended with /&gt;).
+	 */
+	private boolean skipTag() throws IOException {
+		int c;
+		int quote = 0;
+		int last = 0;
+		while((c = this.next()) >= 0) {
+			if(quote != 0) {
+				if(c == quote) quote = 0;
+			} else if(c == '"' || c == '\'') {
+				quote = c;
+			} else if(c == '>') {
+				return last == '/';
+			}
+			if(!Character.isWhitespace(c)) last = c;
+		}
+		return false;
+	}
+
+	/**
+	 * Skip everything up to and including the given string.
+	 */
+	private void skipPast(String end) throws IOException {
+		int matched = 0;
+		int c;
+		while((c = this.next()) >= 0) {
+			if(c == end.charAt(matched)) {
+				if(++matched == end.length()) return;
+			} else if(matched == 2 && c == end.charAt(1)) {
+				// "--->" or "]]]>": still two matched.
+			} else {
+				matched = (c == end.charAt(0)) ? 1 : 0;
+			}
+		}
+	}
+
+	/**
+	 * Skip the contents of a script or style element, and its end tag.
+	 */
+	private void skipRaw(String name) throws IOException {
+		int c;
+		while((c = this.next()) >= 0) {
+			if(c != '<') continue;
+			c = this.next();
+			if(c < 0) return;
+			if(c != '/') {
+				this.unread();
+			} else if(this.matchName(name, 0)) {
+				this.skipTag();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decode the entity after an &amp; into the pending buffer.
+	 * If it can't be decoded, it is passed through as it was.
+	 */
+	private void decodeEntity() throws IOException {
+		this.pending[this.plen++] = '&';
+		int c;
+		while((c = this.next()) >= 0) {
+			if(c == ';') break;
+			if(this.plen > MAX_ENTITY || !(Character.isLetterOrDigit(c) || (c == '#' && this.plen == 1))) {
+				// Not an entity. Let the character be read again as text.
+				this.unread();
+				return;
+			}
+			this.pending[this.plen++] = (char)c;
+		}
+		if(c != ';') return;
+		if(this.plen == 1) {
+			// "&;" is just text.
+			this.unread();
+			return;
+		}
+
+		int code = -1;
+		if(this.pending[1] == '#') {
+			try {
+				if(this.plen > 2 && (this.pending[2] == 'x' || this.pending[2] == 'X'))
+					code = Integer.parseInt(new String(this.pending, 3, this.plen - 3), 16);
+				else
+					code = Integer.parseInt(new String(this.pending, 2, this.plen - 2));
+			} catch (NumberFormatException e) {
+				code = -1;
+			}
+			if(code > Character.MAX_CODE_POINT) code = -1;
+		} else {
+			code = RHTMLEntities.getCode(new String(this.pending, 1, this.plen - 1));
+		}
+		if(code < 0) {
+			this.pending[this.plen++] = ';';
+			return;
+		}
+		if(code == NBSP) code = ' ';
+		this.plen = Character.toChars(code, this.pending, 0);
+	}
+
+	/**
+	 * Read one character from the underlying reader.
+	 */
+	private int next() throws IOException {
+		if(this.bpos == this.blen) {
+			this.blen = this.in.read(this.buf, 0, this.buf.length);
+			this.bpos = 0;
+			if(this.blen <= 0) {
+				this.blen = 0;
+				return -1;
+			}
+		}
+		return this.buf[this.bpos++];
+	}
+
+	/**
+	 * Put back the character just returned by {@link #next()}.
+	 */
+	private void unread() {
+		--this.bpos;
+	}
+
+	/**
+	 * Move what is left of the buffer to the front, and read until at least
+	 * <code>want</code> characters are buffered (or the document ends).
+	 */
+	private void compact(int want) throws IOException {
+		int left = this.blen - this.bpos;
+		if(this.bpos > 0) {
+			System.arraycopy(this.buf, this.bpos, this.buf, 0, left);
+			this.bpos = 0;
+			this.blen = left;
+		}
+		while(this.blen < want) {
+			int r = this.in.read(this.buf, this.blen, this.buf.length - this.blen);
+			if(r <= 0) return;
+			this.blen += r;
+		}
+	}
+
+	public boolean ready() throws IOException {
+		return this.ppos < this.plen || this.bpos < this.blen || this.in.ready();
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
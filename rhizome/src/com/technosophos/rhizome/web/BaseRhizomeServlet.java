@@ -15,10 +15,13 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.technosophos.rhizome.RhizomeException;
 import com.technosophos.rhizome.controller.CommandResult;
+import com.technosophos.rhizome.controller.FatalCommandException;
 import com.technosophos.rhizome.controller.RequestConfiguration;
 import com.technosophos.rhizome.controller.RequestNotFoundException;
 import com.technosophos.rhizome.controller.RhizomeController;
 import com.technosophos.rhizome.controller.XMLRequestConfigurationReader;
+import com.technosophos.rhizome.metrics.MetricsRegistry;
+import com.technosophos.rhizome.metrics.Timer;
 import com.technosophos.rhizome.repository.RepositoryContext;
 import com.technosophos.rhizome.web.BaseRhizomeSession;
 import com.technosophos.rhizome.web.CommandClassPreloader;
@@ -44,6 +47,11 @@ import com.technosophos.rhizome.web.ServletConstants;
 	 protected String basePath = "";
 	 protected String resourcePath = "";
 	 protected boolean debug = false;
+	 /**
+	  * Path (after the servlet path) that serves a plain-text metrics report, 
+	  * or null if there is none. Set with the <code>metrics_path</code> init param.
+	  */
+	 protected String metricsPath = null;
 	 
 	 //private static final String P_BASE_PATH = "base_path";
 	 
@@ -84,6 +92,11 @@ import com.technosophos.rhizome.web.ServletConstants;
 	 */
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String path_info = request.getPathInfo();
+		if(this.metricsPath != null && this.metricsPath.equals(path_info)) {
+			response.setContentType("text/plain; charset=UTF-8");
+			this.rc.getMetrics().writeText(response.getWriter());
+			return;
+		}
 		String request_name = ServletConstants.DEFAULT_REQUEST;
 		Map orig_params = request.getParameterMap();
 		
@@ -136,30 +149,53 @@ import com.technosophos.rhizome.web.ServletConstants;
 		
 		this.log("Doing request: " + request_name);
 		
-		try{
-			results = this.rc.doRequest(request_name, params);
-		} catch (RequestNotFoundException e) {
-			// This should not happen.
-			this.log("Failed to get request " + request_name, e);
-			response.sendError(500, "Request Failed");
-			return;
-		}
+		// Timed here, not in the controller, so that rendering is included.
+		Timer timer = this.rc.getMetrics().getTimer(MetricsRegistry.TYPE_REQUEST, request_name);
+		long start = timer.start();
+		boolean failed = true;
+		try {
+			try {
+				results = this.rc.doRequest(request_name, params, false);
+			} catch (RequestNotFoundException e) {
+				// This should not happen.
+				this.log("Failed to get request " + request_name, e);
+				response.sendError(500, "Request Failed");
+				return;
+			}
 		
-		//this.log(String.format("There are %d command results.",results.size()));
-		for(CommandResult r: results) {
-			if(r.hasError()) {
-				out.write(r.getErrorMessage());
-				if(this.debug) {
-					Exception e = r.getException();
-					if(e != null) {
-						out.write("<p>" + r.getException().toString() + "</p>");
-					    r.getException().printStackTrace(System.out);
+			//this.log(String.format("There are %d command results.",results.size()));
+			boolean fatal = false;
+			for(CommandResult r: results) {
+				if(r.hasError()) {
+					if(r.getException() instanceof FatalCommandException) fatal = true;
+					out.write(r.getErrorMessage());
+					if(this.debug) {
+						Exception e = r.getException();
+						if(e != null) {
+							out.write("<p>" + r.getException().toString() + "</p>");
+						    r.getException().printStackTrace(System.out);
+						}
+					}
+				}
+				else {
+					/*
+					 * A streaming result renders straight into the response. Since no
+					 * content length is set, the container sends it in chunks as its
+					 * buffer fills, instead of waiting for the whole page.
+					 */
+					try {
+						r.writeResult(out);
+					} catch (IOException e) {
+						this.log("Failed to write result " + r.getName(), e);
+						throw e;
 					}
 				}
 			}
-			else out.write(r.getResult().toString());
+			response.flushBuffer();
+			failed = fatal;
+		} finally {
+			timer.stop(start, failed);
 		}
-		response.flushBuffer();
 		
 		
 	}  	
@@ -171,6 +207,14 @@ import com.technosophos.rhizome.web.ServletConstants;
 		this.doGet(request, response);
 	}
 	
+	/**
+	 * Remove this servlet's metrics from JMX.
+	 */
+	public void destroy() {
+		if(this.rc != null) this.rc.getMetrics().unregister();
+		super.destroy();
+	}
+	
 	/**
 	 * Initialize the Rhizome repository.
 	 */
@@ -182,6 +226,11 @@ import com.technosophos.rhizome.web.ServletConstants;
 		String debug_str = this.getInitParameter("debug");
 		if("false".equalsIgnoreCase(debug_str)) this.debug = true;
 		
+		// Metrics report (off unless a path is given)
+		String metrics_str = this.getInitParameter("metrics_path");
+		if(metrics_str != null && metrics_str.length() > 0)
+			this.metricsPath = metrics_str.startsWith("/") ? metrics_str : "/" + metrics_str;
+		
 		// BEGIN: Init vars
 		this.basePath = this.getServletContext().getRealPath(File.separator);
 		this.configPath = basePath + "WEB-INF" + File.separator;
@@ -233,6 +282,7 @@ import com.technosophos.rhizome.web.ServletConstants;
 			String err = "Fatal error initializing Rhizome Controller: ";
 			throw new ServletException( err + re.getMessage(), re);
 		}
+		this.rc.getMetrics().register(this.getServletName());
 		// End: Create the controller
 	}
 	
@@ -0,0 +1,33 @@
+package com.technosophos.rhizome.web;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.technosophos.rhizome.repository.fs.FileSystemRepository;
+import com.technosophos.rhizome.repository.lucene.LuceneIndexerDepot;
+
+/**
+ * Releases Rhizome's shared resources when a web application stops.
+ * <p>Rhizome keeps some things open for the life of the application, such as the
+ * index writers and the file system repository's reader threads. When the
+ * application is stopped or redeployed, they have to be closed, or pending index
+ * changes are lost and the old classloader can never be unloaded. Register this
+ * in <code>web.xml</code>:</p>
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;com.technosophos.rhizome.web.RhizomeContextListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * @author mbutcher
+ *
+ */
+public class RhizomeContextListener implements ServletContextListener {
+
+	public void contextInitialized(ServletContextEvent sce) {}
+
+	public void contextDestroyed(ServletContextEvent sce) {
+		// Commit pending index changes.
+		LuceneIndexerDepot.shutdown();
+		FileSystemRepository.shutdownReadPool();
+	}
+}
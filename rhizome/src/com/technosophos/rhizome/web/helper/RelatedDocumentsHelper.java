@@ -115,13 +115,10 @@ public class RelatedDocumentsHelper {
 			return new DocumentList();
 		}
 		
-		RhizomeDocument doc = repo.getDocument(docID);
-		List<Relation> relations = doc.getRelations();
+		// The relations come from the index, so the document is not loaded.
+		String[] idArray = search.getRelatedDocuments(docID, this.relationFilter);
 		
-		List<String> docIDs = this.getRelatedDocIDs(relations);
-		
-		if(docIDs.size() > 0 ) {
-			String[] idArray = docIDs.toArray(new String[docIDs.size()-1]);
+		if(idArray.length > 0 ) {
 			DocumentList docs = search.getDocumentList(metadataNames, idArray, repo);
 			
 			// Return:
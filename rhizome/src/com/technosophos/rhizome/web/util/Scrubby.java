@@ -9,7 +9,7 @@ import java.util.Arrays;
 //import org.xml.sax.SAXException;
 
 import com.technosophos.rhizome.RhizomeException;
-import com.technosophos.rhizome.web.xml.rhtml.RHTML;
+import com.technosophos.rhizome.web.xml.rhtml.RHTMLSanitizer;
 
 /**
  * This class provides a number of input cleaning tools.
@@ -127,18 +127,26 @@ public class Scrubby {
 	 * @throws SinciputException Thrown when HTML cannot be parsed (or if a parser cannot be created).
 	 */
 	public static String cleanSafeHTML( String html) throws RhizomeException {
-		html = "<span>" + html + "</span>"; // Ensure that we have a wrapper tag.
-		RHTML r = new RHTML(html);
-		
-		String clean = null;
+		StringBuilder sb = new StringBuilder(html.length() + 16);
+		cleanSafeHTML(html, sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Make a clean and safe HTML fragment, writing it to an Appendable.
+	 * This is the same as {@link #cleanSafeHTML(String)}, but the cleaned HTML is written
+	 * to <code>out</code> as it is produced.
+	 * @param html Dirty HTML string.
+	 * @param out Where clean HTML is written.
+	 * @throws RhizomeException Thrown when HTML cannot be parsed or written.
+	 */
+	public static void cleanSafeHTML( String html, Appendable out) throws RhizomeException {
 		try {
-			clean =  r.getRHTMLString();
+			// Parsed inside a wrapper tag, which is left out of the output.
+			RHTMLSanitizer.getInstance().sanitizeFragment(html, out);
 		} catch (Exception e) {
 			throw new RhizomeException("Failed to parse HTML: " + e.getMessage(), e);
 		}
-		//trim added span tag.
-		return clean.substring(6, clean.length() - 7);
-		//return clean;
 	}
 	
 	/**
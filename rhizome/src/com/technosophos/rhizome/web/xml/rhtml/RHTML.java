@@ -2,7 +2,6 @@ package com.technosophos.rhizome.web.xml.rhtml;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
-import javax.xml.parsers.SAXParser;
 //import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -11,13 +10,15 @@ import java.io.StringReader;
 
 /**
  * This class take well-formed (and hopefully valid) (X)HTML and removes undesirable elements and attributes.
+ * <p>For cleaning many documents, {@link RHTMLSanitizer} is faster: it reuses its
+ * parser, and can write straight to an {@link Appendable}.</p>
  *  
  * @author mbutcher
  * @see RHTMLHandler
  */
 public class RHTML {
-	private RHTMLHandler h;
-	private InputSource is;
+	private String html;
+	private boolean useEntityDTD;
 	
 	private RHTML(){}
 	
@@ -43,16 +44,16 @@ public class RHTML {
 	 * attributes that could cause problems.</p>
 	 * <p>If you want to use HTML entities and the source document does not have a DTD, then
 	 * you need to set useEntityDTD to true. Otherwise, any NON-XML entity (anything other than ampersand,
-	 * greater-than, less-than, and double quotes) will result in a parse exception.</p>
+	 * greater-than, less-than, and double quotes) will result in a parse exception. (The 
+	 * entities are looked up in {@link RHTMLEntities}; no DTD is actually added.)</p>
 	 * @param html HTML in well-formed XML format
 	 * @param useEntityDTD If true, then this will automatically set up the entity DTD so that 
 	 * standard XHTML entities can be used.
 	 * @see RHTML(String)
 	 */
 	public RHTML(String html, boolean useEntityDTD) {
-		if( useEntityDTD == true ) html = RHTMLEntities.getEntitiesDTD() + html;
-		this.h = new RHTMLHandler();
-		this.is = new InputSource(new StringReader(html));
+		this.html = html;
+		this.useEntityDTD = useEntityDTD;
 	}
 	
 	/**
@@ -64,13 +65,20 @@ public class RHTML {
 	 * @throws java.io.IOException
 	 */
 	public String getRHTMLString() throws SAXException, java.io.IOException {
-		try {
-			SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
-			parser.parse(is, h);
-		} catch (ParserConfigurationException e) {
-			throw new SAXException(e);
+		StringBuilder sb = new StringBuilder(this.html.length());
+		if(this.useEntityDTD) {
+			RHTMLSanitizer.getInstance().sanitize(this.html, sb);
+		} else {
+			RHTMLHandler h = new RHTMLHandler();
+			h.setOutput(sb);
+			try {
+				SAXParserFactory.newInstance().newSAXParser().parse(
+						new InputSource(new StringReader(this.html)), h);
+			} catch (ParserConfigurationException e) {
+				throw new SAXException(e);
+			}
 		}
-		return h.getRHTMLString();
+		return sb.toString();
 	}
 	
 	/**
@@ -0,0 +1,131 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import static com.technosophos.rhizome.repository.lucene.LuceneElements.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that groups of changes are committed all together or not at all.
+ * @author mbutcher
+ *
+ */
+public class LuceneBatchWriterTest {
+
+	private File dir;
+	private LuceneBatchWriter writer;
+
+	@Before
+	public void setUp() throws Exception {
+		this.dir = File.createTempFile("rhizome-batch", "");
+		this.dir.delete();
+		this.dir.mkdirs();
+		new IndexWriter(this.dir, new StandardAnalyzer(), true).close();
+		// A long interval, so that everything queued at once is one group.
+		this.writer = new LuceneBatchWriter(this.dir.getAbsolutePath(), 500, 100);
+	}
+
+	@After
+	public void tearDown() {
+		this.writer.close();
+		File[] children = this.dir.listFiles();
+		if(children != null) for(File c: children) c.delete();
+		this.dir.delete();
+	}
+
+	/**
+	 * If one change in a group fails, none of the group is committed, and
+	 * later groups still are.
+	 */
+	@Test
+	public void testFailedGroupIsRolledBack() throws Exception {
+		Future<Void> good = this.writer.update(id("good"), doc("good", null));
+		Future<Void> bad = this.writer.update(id("bad"), doc("bad", new FailingReader()));
+		assertFailed(good);
+		assertFailed(bad);
+		assertEquals(0, this.count("good"));
+
+		this.writer.update(id("later"), doc("later", null)).get(5, TimeUnit.SECONDS);
+		assertEquals(1, this.count("later"));
+		assertEquals(0, this.count("good"));
+	}
+
+	/**
+	 * Changes queued while something else holds the index's write lock wait
+	 * for it instead of failing.
+	 */
+	@Test
+	public void testChangesWaitForWriteLock() throws Exception {
+		Lock lock = LuceneIndexerDepot.getWriteLock(this.dir.getAbsolutePath());
+		lock.lock();
+		Future<Void> f;
+		try {
+			f = this.writer.update(id("waiting"), doc("waiting", null));
+			try {
+				f.get(1, TimeUnit.SECONDS);
+				fail("The change was committed while the write lock was held.");
+			} catch (TimeoutException e) {
+				// Expected.
+			}
+		} finally {
+			lock.unlock();
+		}
+		f.get(5, TimeUnit.SECONDS);
+		assertEquals(1, this.count("waiting"));
+	}
+
+	private static Term id(String docID) {
+		return new Term(LUCENE_DOCID_FIELD, docID);
+	}
+
+	private static Document doc(String docID, Reader body) {
+		Document d = new Document();
+		d.add(new Field(LUCENE_DOCID_FIELD, docID, Field.Store.YES, Field.Index.UN_TOKENIZED));
+		if(body != null) d.add(new Field(LUCENE_BODY_FIELD, body));
+		return d;
+	}
+
+	private static void assertFailed(Future<Void> f) throws Exception {
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			fail("Expected the change to fail.");
+		} catch (ExecutionException e) {
+			// Expected.
+		}
+	}
+
+	private int count(String docID) throws IOException {
+		IndexReader r = IndexReader.open(this.dir);
+		try {
+			return r.docFreq(id(docID));
+		} finally {
+			r.close();
+		}
+	}
+
+	/** A document body that cannot be read. */
+	private static class FailingReader extends Reader {
+		public int read(char[] buf, int off, int len) throws IOException {
+			throw new IOException("Unreadable body.");
+		}
+
+		public void close() {}
+	}
+}
@@ -0,0 +1,143 @@
+package com.technosophos.rhizome.repository.lucene;
+
+import static com.technosophos.rhizome.repository.lucene.LuceneElements.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.technosophos.rhizome.document.BinaryDocumentCodec;
+import com.technosophos.rhizome.document.Metadatum;
+import com.technosophos.rhizome.document.RhizomeData;
+import com.technosophos.rhizome.document.RhizomeDocument;
+import com.technosophos.rhizome.repository.RepositoryContext;
+
+/**
+ * Indexes documents through the batch writer and checks what reached the index.
+ * @author mbutcher
+ *
+ */
+public class LuceneIndexerTest {
+
+	private static final String INDEX = "test";
+
+	private File base;
+	private RepositoryContext cxt;
+	private LuceneIndexer indexer;
+
+	@Before
+	public void setUp() throws Exception {
+		this.base = File.createTempFile("rhizome-index", "");
+		this.base.delete();
+		new File(this.base, INDEX).mkdirs();
+		this.cxt = new RepositoryContext();
+		this.cxt.addParam(LUCENE_INDEX_PATH_PARAM, this.base.getAbsolutePath());
+		this.indexer = new LuceneIndexer(INDEX, this.cxt);
+		this.indexer.createIndex();
+	}
+
+	@After
+	public void tearDown() {
+		LuceneIndexerDepot.shutdown();
+		delete(this.base);
+	}
+
+	/**
+	 * A document read with the binary codec has a lazily decoded body. Indexing it
+	 * must decode the body, not fail on it.
+	 */
+	@Test
+	public void testIndexDecodedDocument() throws Exception {
+		RhizomeDocument doc = new RhizomeDocument("doc1");
+		doc.setBody(RhizomeData.MIME_PLAINTEXT, "the quick brown fox");
+		doc.addMetadatum(new Metadatum("title", "Fox"));
+
+		BinaryDocumentCodec codec = new BinaryDocumentCodec();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(doc, out);
+		byte[] buf = out.toByteArray();
+		RhizomeDocument decoded = codec.decode(buf, 0, buf.length);
+
+		this.indexer.updateIndex(decoded);
+		assertEquals(1, this.count(new Term(LUCENE_DOCID_FIELD, "doc1")));
+		assertEquals(1, this.count(new Term(LUCENE_BODY_FIELD, "fox")));
+	}
+
+	/**
+	 * The body is indexed as it was when the document was queued.
+	 */
+	@Test
+	public void testBodyIsSnapshotWhenQueued() throws Exception {
+		RhizomeDocument doc = new RhizomeDocument("doc2");
+		doc.setBody(RhizomeData.MIME_PLAINTEXT, "first");
+		Future<Void> f = this.indexer.queueUpdate(doc);
+		doc.getData().appendData(" second");
+		f.get();
+		assertEquals(1, this.count(new Term(LUCENE_BODY_FIELD, "first")));
+		assertEquals(0, this.count(new Term(LUCENE_BODY_FIELD, "second")));
+	}
+
+	/**
+	 * An index written before the untokenized fields existed keeps using the
+	 * stored fields for lookups after new documents are added, until it is rebuilt.
+	 */
+	@Test
+	public void testLegacyIndexStaysLegacy() throws Exception {
+		// What an older release wrote: no untokenized copies, and no format file.
+		File dir = new File(this.base, INDEX);
+		IndexWriter w = new IndexWriter(dir, new StandardAnalyzer(), true);
+		Document old = new Document();
+		old.add(new Field(LUCENE_DOCID_FIELD, "old", Field.Store.YES, Field.Index.UN_TOKENIZED));
+		old.add(new Field("title", "Fox", Field.Store.YES, Field.Index.TOKENIZED));
+		w.addDocument(old);
+		w.close();
+		new File(dir, LuceneIndexer.FORMAT_FILE).delete();
+
+		RhizomeDocument doc = new RhizomeDocument("new");
+		doc.addMetadatum(new Metadatum("title", "Fox"));
+		this.indexer.updateIndex(doc);
+
+		LuceneSearcher s = new LuceneSearcher(INDEX, this.cxt);
+		String[] ids = s.getDocIDsByMetadataValue("title", "Fox");
+		Arrays.sort(ids);
+		assertArrayEquals(new String[] {"new", "old"}, ids);
+		assertEquals(2, s.getMetadataValues("title", null).get("Fox").intValue());
+
+		// Once it is rebuilt, the format file is written again.
+		this.indexer.createIndex();
+		assertTrue(LuceneIndexer.readFormatVersion(dir) >= 0);
+	}
+
+	/** Count the live documents with a term. */
+	private int count(Term t) throws Exception {
+		IndexReader r = IndexReader.open(new File(this.base, INDEX));
+		try {
+			TermDocs td = r.termDocs(t);
+			int n = 0;
+			while(td.next()) ++n;
+			td.close();
+			return n;
+		} finally {
+			r.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) for(File c: children) delete(c);
+		f.delete();
+	}
+}
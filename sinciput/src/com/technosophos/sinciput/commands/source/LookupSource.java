@@ -1,11 +1,17 @@
 package com.technosophos.sinciput.commands.source;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.technosophos.rhizome.RhizomeException;
 import com.technosophos.rhizome.controller.CommandInitializationException;
@@ -22,17 +28,39 @@ import com.technosophos.sinciput.types.SourceEnum;
 
 /**
  * This command retrieves information from a ZING server and returns the results.
+ * <p>The lookup runs on an {@link SRUTransport} thread, and this command waits no
+ * longer than the <code>sru_timeout</code> directive (milliseconds, default 15000) for
+ * it. The directives <code>sru_connect_timeout</code>, <code>sru_read_timeout</code> (both
+ * milliseconds) and <code>sru_max_connections</code> configure the transport.</p>
+ * <p>Results are kept in a {@link LookupCache} in the <code>sru_cache</code> directory
+ * under the repository path (the <code>fs_repo_path</code> parameter), so a book that
+ * has been looked up before does not need the library at all. The directives
+ * <code>sru_cache_size</code> (entries kept in memory; 0 turns the cache off),
+ * <code>sru_cache_ttl</code> and <code>sru_cache_negative_ttl</code> (seconds) configure it.</p>
  * @author mbutcher
  *
  */
 public class LookupSource extends SinciputCommand {
 	
 	public static final String DIR_SRU_SERVER = "sru_server";
+	public static final String DIR_SRU_TIMEOUT = "sru_timeout";
+	public static final String DIR_SRU_CONNECT_TIMEOUT = "sru_connect_timeout";
+	public static final String DIR_SRU_READ_TIMEOUT = "sru_read_timeout";
+	public static final String DIR_SRU_MAX_CONNECTIONS = "sru_max_connections";
+	public static final int DEFAULT_SRU_TIMEOUT = 15000;
+	public static final String DIR_SRU_CACHE_SIZE = "sru_cache_size";
+	public static final String DIR_SRU_CACHE_TTL = "sru_cache_ttl";
+	public static final String DIR_SRU_CACHE_NEGATIVE_TTL = "sru_cache_negative_ttl";
+	/** Directory under the repository path that holds the lookup cache. */
+	public static final String SRU_CACHE_DIR = "sru_cache";
 	public static final String PARAM_LOOKUP_KEY = "lookup_key";
 	public static final String PARAM_LOOKUP_VALUE = "lookup_value";
 	public static final String DEFAULT_LOOKUP_KEY = "isbn";
 	
 	private Map<String, String> supportedIndexes;
+	private SRUTransport transport;
+	private int timeout;
+	private LookupCache cache = null;
 	
 	public void init(CommandConfiguration c, RepositoryManager r) 
 			throws CommandInitializationException {
@@ -44,6 +72,32 @@ public class LookupSource extends SinciputCommand {
 		this.supportedIndexes.put("lccn", CQL.INDEX_LCCN);
 		
 		this.supportedIndexes.put("default", CQL.INDEX_ISBN);
+		
+		this.timeout = this.getIntDirective(DIR_SRU_TIMEOUT, DEFAULT_SRU_TIMEOUT);
+		this.transport = SRUTransport.getTransport(
+				this.getIntDirective(DIR_SRU_CONNECT_TIMEOUT, SRUTransport.DEFAULT_CONNECT_TIMEOUT), 
+				this.getIntDirective(DIR_SRU_READ_TIMEOUT, SRUTransport.DEFAULT_READ_TIMEOUT), 
+				this.getIntDirective(DIR_SRU_MAX_CONNECTIONS, SRUTransport.DEFAULT_MAX_CONNECTIONS));
+		
+		int cacheSize = this.getIntDirective(DIR_SRU_CACHE_SIZE, LookupCache.DEFAULT_SIZE);
+		if(cacheSize > 0) {
+			String repoPath = r.getContext().getParam("fs_repo_path");
+			File cacheDir = repoPath == null ? null : new File(repoPath, SRU_CACHE_DIR);
+			this.cache = LookupCache.getCache(cacheDir, cacheSize);
+			this.cache.setTTL(this.getIntDirective(DIR_SRU_CACHE_TTL, (int)LookupCache.DEFAULT_TTL));
+			this.cache.setNegativeTTL(this.getIntDirective(DIR_SRU_CACHE_NEGATIVE_TTL, 
+					(int)LookupCache.DEFAULT_NEGATIVE_TTL));
+		}
+	}
+	
+	private int getIntDirective(String name, int def) {
+		if(!this.comConf.hasDirective(name)) return def;
+		try {
+			return Integer.parseInt(this.comConf.getDirective(name)[0].trim());
+		} catch (NumberFormatException e) {
+			System.err.format("Directive %s is not a number. Using %d.\n", name, def);
+			return def;
+		}
 	}
 
 	/**
@@ -88,6 +142,26 @@ public class LookupSource extends SinciputCommand {
 	protected void doLookup(String server, String index, String term) {
 		
 		//String indexName = this.getIndexName(index);
+		term = LookupCache.normalize(index, term);
+		if(term.length() == 0) {
+			String ferr = "That does not look like something we can look up.";
+			this.results.add(this.createErrorCommandResult("Empty lookup value after normalizing", ferr));
+			return;
+		}
+		String cacheKey = LookupCache.makeKey(index, term);
+		if(this.cache != null) {
+			LookupCache.Entry cached = this.cache.get(cacheKey);
+			if(cached != null) {
+				if(cached.isNegative()) {
+					String errMsg = "Lookup cache has no record for " + cacheKey;
+					String friendlyErrMsg = "No record was found that is an exact match.";
+					this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg));
+				} else {
+					this.storeSource(this.createSourceDocument(cached.getMetadata()));
+				}
+				return;
+			}
+		}
 		
 		// Setup query
 		CQL cql = CQL.query().clause(index, term, CQL.REL_EQUALS);
@@ -104,19 +178,48 @@ public class LookupSource extends SinciputCommand {
 		
 		client.setMaximumRecords(1);
 		client.setRecordSchema(SRUClient.RECORD_SCHEMA_MODS);
+		client.setTransport(this.transport);
 		
-		// Do query
+		// Do query, but don't hold this thread past the deadline.
 		SRUResponse res;
+		Future<SRUResponse> pending = null;
+		long start = System.nanoTime();
 		try {
-			res = client.query();
-		} catch (MalformedURLException e) {
-			String errMsg = "URL is invalid (2): " + e.getMessage();
+			pending = client.queryMODSAsync();
+			res = pending.get(this.timeout, TimeUnit.MILLISECONDS);
+			if(this.cache != null) this.cache.recordRemote(System.nanoTime() - start);
+		} catch (TimeoutException e) {
+			pending.cancel(true);
+			String errMsg = String.format("SRU query timed out after %d ms.", this.timeout);
+			String friendlyErrMsg = "Lookup failed because the library took too long to answer.";
+			this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
+			return;
+		} catch (InterruptedException e) {
+			pending.cancel(true);
+			Thread.currentThread().interrupt();
+			String errMsg = "Interrupted while waiting for SRU query.";
 			String friendlyErrMsg = "Lookup failed because we could not contact the library.";
 			this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
 			return;
-		} catch (IOException e) {
-			String errMsg = String.format("IO error doing SRU.", e.getMessage());
-			String friendlyErrMsg = "Lookup failed. We could not read the information that the library returned.";
+		} catch (ExecutionException ee) {
+			Exception e = ee.getCause() instanceof Exception ? (Exception)ee.getCause() : ee;
+			if(e instanceof MalformedURLException) {
+				String errMsg = "URL is invalid (2): " + e.getMessage();
+				String friendlyErrMsg = "Lookup failed because we could not contact the library.";
+				this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
+			} else if(e instanceof IOException) {
+				String errMsg = String.format("IO error doing SRU: %s", e.getMessage());
+				String friendlyErrMsg = "Lookup failed. We could not read the information that the library returned.";
+				this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
+			} else {
+				String errMsg = String.format("SRU failed query: %s.", e.getMessage());
+				String friendlyErrMsg = "Lookup failed; something bad happened while exchanging information with the library.";
+				this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
+			}
+			return;
+		} catch (RejectedExecutionException e) {
+			String errMsg = String.format("SRU query refused: %s", e.getMessage());
+			String friendlyErrMsg = "Lookup failed because too many lookups are waiting for the library.";
 			this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
 			return;
 		} catch (SRUException e) {
@@ -136,7 +239,10 @@ public class LookupSource extends SinciputCommand {
 		// To do: what if server reports that there are more matches?
 		//if(res.getNumberOfRecords() > 0) this.
 		
-		java.util.List<SRUResponse.Record> modsRecords = res.getRecords();
+		List<MODSRecord> modsRecords = res.getMODSRecords();
+		// Only remember "not found" if the server said so without complaint.
+		if(modsRecords.size() == 0 && !res.hasError() && this.cache != null)
+			this.cache.put(cacheKey, null);
 		if(modsRecords.size() != 1) {
 			String errMsg = String.format("Server indicates that there are %d records. Expected 1.", res.getNumberOfRecords());
 			String friendlyErrMsg = "No record was found that is an exact match.";
@@ -144,19 +250,16 @@ public class LookupSource extends SinciputCommand {
 			return;
 		}
 
-		MODS mods;
-		try {
-			mods = new MODS(modsRecords.get(0).getRecordData());
-		} catch (MODSException e) {
-			String errMsg = String.format("MODS data is malformed: %s.", e.getMessage());
-			String friendlyErrMsg = "Lookup failed; the library sent data we don't understand.";
-			this.results.add(this.createErrorCommandResult(errMsg, friendlyErrMsg, e));
-			return;
-		}
-		
-		RhizomeDocument doc = this.transformMODS(mods);
-		
-		// Get the doc, store it, and pack it into the response.
+		List<Metadatum> fields = this.getMODSMetadata(modsRecords.get(0));
+		if(this.cache != null) this.cache.put(cacheKey, fields);
+		this.storeSource(this.createSourceDocument(fields));
+	}
+	
+	/**
+	 * Store a new source document, and pack it into the response.
+	 * @param doc
+	 */
+	protected void storeSource(RhizomeDocument doc) {
 		try {
 			this.repoman.storeDocument(this.getCurrentRepository(), doc);
 		} catch (RhizomeException e) {
@@ -178,10 +281,21 @@ public class LookupSource extends SinciputCommand {
 	 * @return
 	 */
 	protected RhizomeDocument transformMODS(MODS mods) {
-		RhizomeDocument doc = new RhizomeDocument(DocumentID.generateDocumentID());
+		return this.createSourceDocument(this.getMODSMetadata(MODSRecord.copyOf(mods)));
+	}
+	
+	/**
+	 * Get the metadata for a source from a MODS record.
+	 * This is everything that comes from the library, so it can be cached.
+	 * @param mods
+	 * @return list of metadata
+	 * @see #transformMODS(MODS)
+	 */
+	protected List<Metadatum> getMODSMetadata(MODSRecord mods) {
+		ArrayList<Metadatum> md = new ArrayList<Metadatum>();
 		
 		// Abstract:
-		doc.addMetadatum(new Metadatum(SourceEnum.ABSTRACT.getKey(), mods.getAbstract()));
+		md.add(new Metadatum(SourceEnum.ABSTRACT.getKey(), mods.getAbstract()));
 		
 		
 		// Authors, editors, and translators:
@@ -191,8 +305,8 @@ public class LookupSource extends SinciputCommand {
 		
 		List<String> roles;
 		
-		List<MODS.Name> names = mods.getNames();
-		for(MODS.Name name: names) {
+		List<MODSRecord.Name> names = mods.getNames();
+		for(MODSRecord.Name name: names) {
 			roles = name.getRoles();
 			/* Reduce number of searches by 2, since we default to creator anyway.
 			if(roles.contains("creator") || roles.contains("author"))
@@ -209,71 +323,83 @@ public class LookupSource extends SinciputCommand {
 			}
 		}
 		
-		doc.addMetadatum(new Metadatum(SourceEnum.AUTHOR.getKey(), authors));
-		doc.addMetadatum(new Metadatum(SourceEnum.EDITOR.getKey(), editors));
-		doc.addMetadatum(new Metadatum(SourceEnum.TRANSLATOR.getKey(), translators));
+		md.add(new Metadatum(SourceEnum.AUTHOR.getKey(), authors));
+		md.add(new Metadatum(SourceEnum.EDITOR.getKey(), editors));
+		md.add(new Metadatum(SourceEnum.TRANSLATOR.getKey(), translators));
 		
 
 		// Classification:
-		List<MODS.Classification> classifications = mods.getClassifications();
+		List<MODSRecord.Classification> classifications = mods.getClassifications();
 		Metadatum mClass = new Metadatum(SourceEnum.CLASSIFICATION.getKey());
-		for(MODS.Classification ic: classifications) {
+		for(MODSRecord.Classification ic: classifications) {
 			mClass.addValue(ic.getAuthority() + ':' + ic.getValue());
 		}
-		doc.addMetadatum(mClass);
+		md.add(mClass);
 		
 		// Genre:
-		doc.addMetadatum(new Metadatum(SourceEnum.GENRE.getKey(), mods.getGenre()));
+		md.add(new Metadatum(SourceEnum.GENRE.getKey(), mods.getGenre()));
 		
 		// Identifiers:
-		List<MODS.Identifier> ids = mods.getIdentifiers();
+		List<MODSRecord.Identifier> ids = mods.getIdentifiers();
 		Metadatum mIDs = new Metadatum(SourceEnum.IDENTIFIER.getKey());
-		for(MODS.Identifier id: ids) mIDs.addValue(id.toURI());
-		doc.addMetadatum(mIDs);
+		for(MODSRecord.Identifier id: ids) mIDs.addValue(id.toURI());
+		md.add(mIDs);
 		
 		// Language:
-		doc.addMetadatum(new Metadatum(SourceEnum.LANGUAGE.getKey(), mods.getLanguage()));
+		md.add(new Metadatum(SourceEnum.LANGUAGE.getKey(), mods.getLanguage()));
 		
 		// Location URLs:
-		List<MODS.LocationURL> locs = mods.getLocationURLs();
+		List<MODSRecord.LocationURL> locs = mods.getLocationURLs();
 		Metadatum mLocs = new Metadatum(SourceEnum.LOCATION_URL.getKey());
 		String labeledURI, label = null;
-		for(MODS.LocationURL loc: locs) {
+		for(MODSRecord.LocationURL loc: locs) {
 			// Labeled URI format:
 			label = loc.getDisplayLabel();
 			labeledURI = loc.getURL() + (label != null && label.length() >0  ? (' ' + label) : "");
 			mLocs.addValue(labeledURI);
 		}
-		doc.addMetadatum(mLocs);
+		md.add(mLocs);
 		
 		// Note:
-		doc.addMetadatum(new Metadatum(SourceEnum.NOTE.getKey(), mods.getNote()));
+		md.add(new Metadatum(SourceEnum.NOTE.getKey(), mods.getNote()));
 		
 		// Publisher, Place, Date, and Edition:
-		MODS.OriginInfo origin = mods.getOriginInfo();
-		doc.addMetadatum(new Metadatum(SourceEnum.PUBLISHER.getKey(), origin.getPublisher()));
-		doc.addMetadatum(new Metadatum(SourceEnum.PUBLISH_DATE.getKey(), origin.getDateIssued()));
-		doc.addMetadatum(new Metadatum(SourceEnum.PUBLISH_PLACE.getKey(), origin.getPlace()));
-		doc.addMetadatum(new Metadatum(SourceEnum.EDITION.getKey(), origin.getEdition()));
+		md.add(new Metadatum(SourceEnum.PUBLISHER.getKey(), mods.getPublisher()));
+		md.add(new Metadatum(SourceEnum.PUBLISH_DATE.getKey(), mods.getDateIssued()));
+		md.add(new Metadatum(SourceEnum.PUBLISH_PLACE.getKey(), mods.getPlace()));
+		md.add(new Metadatum(SourceEnum.EDITION.getKey(), mods.getEdition()));
 		
 		// Source type (text, audio, etc.):
-		doc.addMetadatum(new Metadatum(SourceEnum.SOURCE_TYPE.getKey(), mods.getTypeOfResource()));
+		md.add(new Metadatum(SourceEnum.SOURCE_TYPE.getKey(), mods.getTypeOfResource()));
 		
 		// Subjects:
 		Metadatum mSubj = new Metadatum(SourceEnum.SUBJECT.getKey());
-		List<MODS.Subject> subjs = mods.getSubjects();
-		for(MODS.Subject subj: subjs) mSubj.addValue(subj.toString()); // toString should collapse subject trees into list format
-		doc.addMetadatum(mSubj);
+		List<MODSRecord.Subject> subjs = mods.getSubjects();
+		for(MODSRecord.Subject subj: subjs) mSubj.addValue(subj.toString()); // toString should collapse subject trees into list format
+		md.add(mSubj);
 		
 		// TOC:
-		doc.addMetadatum(new Metadatum(SourceEnum.TABLE_OF_CONTENTS.getKey(), mods.getTableOfContents()));
+		md.add(new Metadatum(SourceEnum.TABLE_OF_CONTENTS.getKey(), mods.getTableOfContents()));
 		
 		// Target Audience:
-		doc.addMetadatum(new Metadatum(SourceEnum.TARGET_AUDIENCE.getKey(), mods.getTargetAudience()));
+		md.add(new Metadatum(SourceEnum.TARGET_AUDIENCE.getKey(), mods.getTargetAudience()));
 		
 		// Title
-		doc.addMetadatum(new Metadatum(SourceEnum.TITLE.getKey(), mods.getTitleInfo().getFullTitle()));
-		doc.addMetadatum(new Metadatum(SourceEnum.SORTABLE_TITLE.getKey(), mods.getTitleInfo().getSortableTitle()));
+		md.add(new Metadatum(SourceEnum.TITLE.getKey(), mods.getFullTitle()));
+		md.add(new Metadatum(SourceEnum.SORTABLE_TITLE.getKey(), mods.getSortableTitle()));
+		
+		return md;
+	}
+	
+	/**
+	 * Create a new source document from metadata, adding the fields that do not 
+	 * come from the library (type, timestamps, and user names).
+	 * @param md Metadata from {@link #getMODSMetadata(MODSRecord)}.
+	 * @return new document, with a new document ID.
+	 */
+	protected RhizomeDocument createSourceDocument(List<Metadatum> md) {
+		RhizomeDocument doc = new RhizomeDocument(DocumentID.generateDocumentID());
+		for(Metadatum m: md) doc.addMetadatum(m);
 		
 		// Automatic fields
 		String time = com.technosophos.rhizome.util.Timestamp.now();
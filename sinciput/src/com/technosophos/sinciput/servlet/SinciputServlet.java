@@ -13,16 +13,21 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.technosophos.rhizome.RhizomeException;
 import com.technosophos.rhizome.controller.CommandResult;
+import com.technosophos.rhizome.controller.FatalCommandException;
 import com.technosophos.rhizome.controller.RequestConfiguration;
 import com.technosophos.rhizome.controller.RequestNotFoundException;
 import com.technosophos.rhizome.controller.RhizomeController;
 import com.technosophos.rhizome.controller.XMLRequestConfigurationReader;
+import com.technosophos.rhizome.metrics.Gauge;
+import com.technosophos.rhizome.metrics.MetricsRegistry;
+import com.technosophos.rhizome.metrics.Timer;
 import com.technosophos.rhizome.repository.RepositoryContext;
 import com.technosophos.sinciput.servlet.SinciputSession;
 
 // This fails with Xdoclet stuff
 //import static com.technosophos.sinciput.servlet.ServletConstants.*;
 import com.technosophos.sinciput.servlet.ServletConstants;
+import com.technosophos.sinciput.sru.LookupCache;
 
 /**
  * Servlet implementation class for Servlet: SinciputServlet
@@ -72,6 +77,11 @@ import com.technosophos.sinciput.servlet.ServletConstants;
 	 protected String basePath = "";
 	 protected String resourcePath = "";
 	 protected boolean debug = false;
+	 /**
+	  * Path (after the servlet path) that serves a plain-text metrics report, 
+	  * or null if there is none. Set with the <code>metrics_path</code> init param.
+	  */
+	 protected String metricsPath = null;
 	 
 	 //private static final String P_BASE_PATH = "base_path";
 	 
@@ -111,6 +121,11 @@ import com.technosophos.sinciput.servlet.ServletConstants;
 	 */
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String path_info = request.getPathInfo();
+		if(this.metricsPath != null && this.metricsPath.equals(path_info)) {
+			response.setContentType("text/plain; charset=UTF-8");
+			this.rc.getMetrics().writeText(response.getWriter());
+			return;
+		}
 		String request_name = ServletConstants.DEFAULT_REQUEST;
 		Map orig_params = request.getParameterMap();
 		
@@ -158,31 +173,54 @@ import com.technosophos.sinciput.servlet.ServletConstants;
 		
 		this.log("Doing request: " + request_name);
 		
-		try{
-			results = this.rc.doRequest(request_name, params);
-		} catch (RequestNotFoundException e) {
-			// This should not happen.
-			this.log("Failed to get request " + request_name, e);
-			response.sendError(500, "Request Failed");
-			return;
-		}
-		response.setContentType(this.rc.getMimeType(request_name));
+		// Timed here, not in the controller, so that rendering is included.
+		Timer timer = this.rc.getMetrics().getTimer(MetricsRegistry.TYPE_REQUEST, request_name);
+		long start = timer.start();
+		boolean failed = true;
+		try {
+			try {
+				results = this.rc.doRequest(request_name, params, false);
+			} catch (RequestNotFoundException e) {
+				// This should not happen.
+				this.log("Failed to get request " + request_name, e);
+				response.sendError(500, "Request Failed");
+				return;
+			}
+			response.setContentType(this.rc.getMimeType(request_name));
 		
-		//this.log(String.format("There are %d command results.",results.size()));
-		for(CommandResult r: results) {
-			if(r.hasError()) {
-				out.write(r.getErrorMessage());
-				if(this.debug) {
-					Exception e = r.getException();
-					if(e != null) {
-						out.write("<p>" + r.getException().toString() + "</p>");
-					    r.getException().printStackTrace(System.out);
+			//this.log(String.format("There are %d command results.",results.size()));
+			boolean fatal = false;
+			for(CommandResult r: results) {
+				if(r.hasError()) {
+					if(r.getException() instanceof FatalCommandException) fatal = true;
+					out.write(r.getErrorMessage());
+					if(this.debug) {
+						Exception e = r.getException();
+						if(e != null) {
+							out.write("<p>" + r.getException().toString() + "</p>");
+						    r.getException().printStackTrace(System.out);
+						}
+					}
+				}
+				else {
+					/*
+					 * A streaming result renders straight into the response. Since no
+					 * content length is set, the container sends it in chunks as its
+					 * buffer fills, instead of waiting for the whole page.
+					 */
+					try {
+						r.writeResult(out);
+					} catch (IOException e) {
+						this.log("Failed to write result " + r.getName(), e);
+						throw e;
 					}
 				}
 			}
-			else out.write(r.getResult().toString());
+			response.flushBuffer();
+			failed = fatal;
+		} finally {
+			timer.stop(start, failed);
 		}
-		response.flushBuffer();
 		
 		
 	}  	
@@ -194,6 +232,14 @@ import com.technosophos.sinciput.servlet.ServletConstants;
 		this.doGet(request, response);
 	}
 	
+	/**
+	 * Remove this servlet's metrics from JMX.
+	 */
+	public void destroy() {
+		if(this.rc != null) this.rc.getMetrics().unregister();
+		super.destroy();
+	}
+	
 	/**
 	 * Initialize the Rhizome repository.
 	 */
@@ -205,6 +251,11 @@ import com.technosophos.sinciput.servlet.ServletConstants;
 		String debug_str = this.getInitParameter("debug");
 		if("false".equalsIgnoreCase(debug_str)) this.debug = true;
 		
+		// Metrics report (off unless a path is given)
+		String metrics_str = this.getInitParameter("metrics_path");
+		if(metrics_str != null && metrics_str.length() > 0)
+			this.metricsPath = metrics_str.startsWith("/") ? metrics_str : "/" + metrics_str;
+		
 		// BEGIN: Init vars
 		this.basePath = this.getServletContext().getRealPath(File.separator);
 		this.configPath = basePath + "WEB-INF" + File.separator;
@@ -256,9 +307,63 @@ import com.technosophos.sinciput.servlet.ServletConstants;
 			String err = "Fatal error initializing Rhizome Controller: ";
 			throw new ServletException( err + re.getMessage(), re);
 		}
+		this.addLookupCacheGauges(this.rc.getMetrics());
+		this.rc.getMetrics().register(this.getServletName());
 		// ENd: Create the controller
 	}
 	
+	/**
+	 * Report the SRU lookup caches (see {@link LookupCache}) with the controller's metrics.
+	 * The gauges add up every lookup cache.
+	 */
+	protected void addLookupCacheGauges(MetricsRegistry metrics) {
+		metrics.addGauge("sru_cache_hits", new Gauge() {
+			public long getValue() {
+				long n = 0;
+				for(LookupCache c: LookupCache.getCaches().values()) n += c.getHits();
+				return n;
+			}
+		});
+		metrics.addGauge("sru_cache_misses", new Gauge() {
+			public long getValue() {
+				long n = 0;
+				for(LookupCache c: LookupCache.getCaches().values()) n += c.getMisses();
+				return n;
+			}
+		});
+		metrics.addGauge("sru_cache_hit_percent", new Gauge() {
+			public long getValue() {
+				long hits = 0, all = 0;
+				for(LookupCache c: LookupCache.getCaches().values()) {
+					hits += c.getHits();
+					all += c.getHits() + c.getMisses();
+				}
+				return all == 0 ? 0 : hits * 100 / all;
+			}
+		});
+		metrics.addGauge("sru_remote_lookups", new Gauge() {
+			public long getValue() {
+				long n = 0;
+				for(LookupCache c: LookupCache.getCaches().values()) n += c.getRemoteLookups();
+				return n;
+			}
+		});
+		metrics.addGauge("sru_remote_millis", new Gauge() {
+			public long getValue() {
+				long n = 0;
+				for(LookupCache c: LookupCache.getCaches().values()) n += c.getRemoteNanos();
+				return n / 1000000;
+			}
+		});
+		metrics.addGauge("sru_saved_millis", new Gauge() {
+			public long getValue() {
+				long n = 0;
+				for(LookupCache c: LookupCache.getCaches().values()) n += c.getSavedNanos();
+				return n / 1000000;
+			}
+		});
+	}
+	
 	/**
 	 * This creates the RepositoryContext.
 	 * <p>The {@link RepositoryContext} contains the configuration that the {@link RepositoryManager}
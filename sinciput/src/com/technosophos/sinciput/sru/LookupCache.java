@@ -0,0 +1,401 @@
+package com.technosophos.sinciput.sru;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.technosophos.rhizome.document.DocumentCodecs;
+import com.technosophos.rhizome.document.Metadatum;
+import com.technosophos.rhizome.document.RhizomeDocument;
+import com.technosophos.rhizome.document.RhizomeParseException;
+import com.technosophos.sinciput.util.Scrubby;
+
+/**
+ * Caches the results of SRU lookups by identifier (ISBN, ISSN, LCCN).
+ * <p>Bibliographic records hardly ever change, and the same books are looked up over
+ * and over, so there is little point in asking the library every time. This keeps
+ * the metadata that was made from a lookup's MODS record, in two places:</p>
+ * <ul>
+ * <li>An in-memory LRU list of the most recently used entries.</li>
+ * <li>A directory (usually under the repository path) with one file per entry,
+ * written with the XML document codec. These survive restarts.</li>
+ * </ul>
+ * <p>Lookups that found nothing are cached too ("negative" entries), with their own,
+ * usually shorter, time to live. Failed lookups (timeouts, server errors) should not
+ * be cached.</p>
+ * <p>Entries are keyed by index and normalized term (see {@link #makeKey(String, String)}),
+ * so "0-8028-6061-3" and "0802860613" are the same entry.</p>
+ * <p>The cache counts its hits and misses, and the time spent on lookups that went to
+ * the server (see {@link #recordRemote(long)}). From these it estimates how much
+ * server time the hits saved.</p>
+ * <p>There is one cache per directory, shared by every command that uses it. Get it
+ * with {@link #getCache(File, int)}.</p>
+ * @author mbutcher
+ *
+ */
+public class LookupCache {
+
+	/** Default number of entries kept in memory. */
+	public static final int DEFAULT_SIZE = 500;
+	/** Default time to live for records, in seconds (30 days). */
+	public static final long DEFAULT_TTL = 30L * 24 * 60 * 60;
+	/** Default time to live for lookups that found nothing, in seconds (1 day). */
+	public static final long DEFAULT_NEGATIVE_TTL = 24L * 60 * 60;
+
+	private static final String FILE_SUFFIX = ".xml";
+
+	private static ConcurrentHashMap<String, LookupCache> caches =
+		new ConcurrentHashMap<String, LookupCache>();
+
+	private File dir;
+	private int maxEntries;
+	private long ttl = DEFAULT_TTL * 1000;
+	private long negativeTTL = DEFAULT_NEGATIVE_TTL * 1000;
+	// Access-ordered, so iteration starts at the least recently used. Guarded by this.
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+	private AtomicLong memoryHits = new AtomicLong();
+	private AtomicLong diskHits = new AtomicLong();
+	private AtomicLong negativeHits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong remoteLookups = new AtomicLong();
+	private AtomicLong remoteNanos = new AtomicLong();
+
+	/**
+	 * Create a cache. Most callers want {@link #getCache(File, int)} instead.
+	 * @param dir Directory for the on-disk entries, or null to keep entries only in memory.
+	 * @param maxEntries Most entries to keep in memory.
+	 */
+	public LookupCache(File dir, int maxEntries) {
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Get the shared cache for a directory, creating it if necessary.
+	 * @param dir Directory for the on-disk entries, or null for a memory-only cache.
+	 * @param maxEntries Most entries to keep in memory, used only if the cache is created.
+	 * @return the cache.
+	 */
+	public static LookupCache getCache(File dir, int maxEntries) {
+		String key = dir == null ? "" : dir.getAbsolutePath();
+		LookupCache c = caches.get(key);
+		if(c == null) {
+			c = new LookupCache(dir, maxEntries);
+			LookupCache old = caches.putIfAbsent(key, c);
+			if(old != null) c = old;
+		}
+		return c;
+	}
+
+	/**
+	 * Get every shared cache.
+	 * @return map of caches, keyed by directory. Do not modify it.
+	 */
+	public static Map<String, LookupCache> getCaches() {
+		return caches;
+	}
+
+	/**
+	 * Build a cache key from a CQL index and a search term.
+	 * <p>ISBNs and ISSNs are reduced with {@link Scrubby#formatISBN(String)}, and LCCNs
+	 * with {@link Scrubby#formatLCCN(String)}. Other terms are trimmed, lower-cased,
+	 * and have their runs of whitespace collapsed.</p>
+	 * @param index CQL index, such as {@link CQL#INDEX_ISBN}.
+	 * @param term Term as typed.
+	 * @return key for {@link #get(String)} and {@link #put(String, List)}.
+	 */
+	public static String makeKey(String index, String term) {
+		return index + '=' + normalize(index, term);
+	}
+
+	/**
+	 * Normalize a search term for an index. See {@link #makeKey(String, String)}.
+	 * @param index CQL index.
+	 * @param term Term as typed.
+	 * @return normalized term.
+	 */
+	public static String normalize(String index, String term) {
+		if(CQL.INDEX_ISBN.equals(index) || CQL.INDEX_ISSN.equals(index))
+			return Scrubby.formatISBN(term);
+		if(CQL.INDEX_LCCN.equals(index))
+			return Scrubby.formatLCCN(term);
+		return term.trim().toLowerCase().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * Set how long records are kept.
+	 * @param seconds Time to live, in seconds.
+	 */
+	public void setTTL(long seconds) { this.ttl = seconds * 1000; }
+	/**
+	 * Set how long lookups that found nothing are remembered.
+	 * @param seconds Time to live, in seconds. Zero turns off negative caching.
+	 */
+	public void setNegativeTTL(long seconds) { this.negativeTTL = seconds * 1000; }
+	public long getTTL() { return this.ttl / 1000; }
+	public long getNegativeTTL() { return this.negativeTTL / 1000; }
+
+	/**
+	 * Look up a cached result.
+	 * <p>Memory is checked first, then the disk. Expired entries are ignored.</p>
+	 * @param key Key from {@link #makeKey(String, String)}.
+	 * @return the entry, or null if nothing current is cached.
+	 */
+	public Entry get(String key) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			Entry e = this.entries.get(key);
+			if(e != null) {
+				if(e.expires > now) {
+					this.memoryHits.incrementAndGet();
+					if(e.isNegative()) this.negativeHits.incrementAndGet();
+					return e;
+				}
+				this.entries.remove(key);
+			}
+		}
+
+		Entry e = this.readFile(key, now);
+		if(e != null) {
+			this.diskHits.incrementAndGet();
+			if(e.isNegative()) this.negativeHits.incrementAndGet();
+			this.remember(key, e);
+			return e;
+		}
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache the result of a lookup.
+	 * @param key Key from {@link #makeKey(String, String)}.
+	 * @param metadata The metadata made from the record, or null if nothing was found.
+	 * The cache keeps a copy.
+	 */
+	public void put(String key, List<Metadatum> metadata) {
+		long ttl = metadata == null ? this.negativeTTL : this.ttl;
+		if(ttl <= 0) return;
+		Entry e = new Entry(copy(metadata), System.currentTimeMillis() + ttl);
+		this.remember(key, e);
+		this.writeFile(key, e);
+	}
+
+	/**
+	 * Drop an entry from memory and disk.
+	 * @param key Key from {@link #makeKey(String, String)}.
+	 */
+	public void remove(String key) {
+		synchronized(this) {
+			this.entries.remove(key);
+		}
+		File f = this.getFile(key);
+		if(f != null) f.delete();
+	}
+
+	/**
+	 * Record the time a lookup spent talking to the server.
+	 * @param nanos Elapsed time, in nanoseconds.
+	 */
+	public void recordRemote(long nanos) {
+		this.remoteLookups.incrementAndGet();
+		this.remoteNanos.addAndGet(nanos);
+	}
+
+	private synchronized void remember(String key, Entry e) {
+		this.entries.put(key, e);
+		if(this.entries.size() > this.maxEntries) {
+			Iterator<String> i = this.entries.keySet().iterator();
+			while(this.entries.size() > this.maxEntries && i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the file for a key. The name is a hash of the key, so any key is safe.
+	 */
+	private File getFile(String key) {
+		if(this.dir == null) return null;
+		try {
+			byte[] hash = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length * 2 + FILE_SUFFIX.length());
+			for(byte b: hash) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return new File(this.dir, sb.append(FILE_SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (java.io.UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read an entry from disk. Its age is the file's modification time.
+	 * @return the entry, or null if there is no current entry on disk.
+	 */
+	private Entry readFile(String key, long now) {
+		File f = this.getFile(key);
+		if(f == null || !f.isFile()) return null;
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(f), 4096);
+			RhizomeDocument doc = DocumentCodecs.getXMLCodec().decode(in);
+			// A stored document with no metadata is a negative entry.
+			List<Metadatum> md = doc.metadataSize() == 0 ? null : doc.getMetadata();
+			long expires = f.lastModified() + (md == null ? this.negativeTTL : this.ttl);
+			if(expires <= now) return null;
+			return new Entry(md, expires);
+		} catch (IOException e) {
+			System.err.format("Could not read lookup cache file %s: %s\n", f, e.getMessage());
+		} catch (RhizomeParseException e) {
+			System.err.format("Ignoring bad lookup cache file %s: %s\n", f, e.getMessage());
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write an entry to a temporary file, and rename it into place.
+	 * Errors are logged; the entry is still cached in memory.
+	 */
+	private void writeFile(String key, Entry e) {
+		File f = this.getFile(key);
+		if(f == null) return;
+		if(!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			System.err.format("Could not create lookup cache directory %s\n", this.dir);
+			return;
+		}
+		RhizomeDocument doc = new RhizomeDocument(f.getName().substring(0, f.getName().length() - FILE_SUFFIX.length()));
+		if(e.metadata != null) {
+			for(Metadatum m: e.metadata) doc.addMetadatum(m);
+		}
+		File tmp = new File(this.dir, "." + f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tmp);
+			BufferedOutputStream out = new BufferedOutputStream(fos, 4096);
+			DocumentCodecs.getXMLCodec().encode(doc, out);
+			fos.close();
+			fos = null;
+			// Windows will not rename over an existing file.
+			if(!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+				throw new IOException("Could not rename " + tmp + " to " + f);
+		} catch (IOException ioe) {
+			System.err.format("Could not write lookup cache file %s: %s\n", f, ioe.getMessage());
+		} finally {
+			if(fos != null) {
+				try {
+					fos.close();
+				} catch (IOException ioe) {}
+			}
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Copy a list of metadata, and each metadatum in it.
+	 */
+	private static List<Metadatum> copy(List<Metadatum> metadata) {
+		if(metadata == null) return null;
+		ArrayList<Metadatum> copy = new ArrayList<Metadatum>(metadata.size());
+		Metadatum c;
+		for(Metadatum m: metadata) {
+			c = new Metadatum(m.getName(), new ArrayList<String>(m.getValues()));
+			c.setDataType(m.getDataType());
+			copy.add(c);
+		}
+		return copy;
+	}
+
+	/** Number of lookups answered from memory. */
+	public long getMemoryHits() { return this.memoryHits.get(); }
+	/** Number of lookups answered from disk. */
+	public long getDiskHits() { return this.diskHits.get(); }
+	/** Number of hits (memory or disk) that were negative entries. */
+	public long getNegativeHits() { return this.negativeHits.get(); }
+	/** Number of lookups answered from memory or disk. */
+	public long getHits() { return this.getMemoryHits() + this.getDiskHits(); }
+	/** Number of lookups that were not cached. */
+	public long getMisses() { return this.misses.get(); }
+	/** Number of lookups that went to the server. */
+	public long getRemoteLookups() { return this.remoteLookups.get(); }
+	/** Total time spent on lookups that went to the server, in nanoseconds. */
+	public long getRemoteNanos() { return this.remoteNanos.get(); }
+	/** Number of entries in memory. */
+	public synchronized int size() { return this.entries.size(); }
+
+	/**
+	 * Get the share of lookups that were answered from the cache.
+	 * @return hits divided by all lookups, or 0 if there have been none.
+	 */
+	public double getHitRatio() {
+		long hits = this.getHits();
+		long all = hits + this.getMisses();
+		return all == 0 ? 0.0 : (double)hits / all;
+	}
+
+	/**
+	 * Estimate the server time that cache hits have saved: the number of hits times
+	 * the average time of a lookup that went to the server.
+	 * @return estimated time saved, in nanoseconds.
+	 */
+	public long getSavedNanos() {
+		long remote = this.getRemoteLookups();
+		if(remote == 0) return 0;
+		return this.getHits() * (this.getRemoteNanos() / remote);
+	}
+
+	public String toString() {
+		return String.format("LookupCache[entries=%d/%d, hits=%d (memory=%d, disk=%d, negative=%d), misses=%d, hit_ratio=%.2f, remote=%d, saved_ms=%d]",
+				this.size(), this.maxEntries, this.getHits(), this.getMemoryHits(), this.getDiskHits(),
+				this.getNegativeHits(), this.getMisses(), this.getHitRatio(), this.getRemoteLookups(),
+				this.getSavedNanos() / 1000000);
+	}
+
+	/**
+	 * A cached lookup result.
+	 */
+	public static class Entry {
+		private List<Metadatum> metadata;
+		private long expires;
+
+		Entry(List<Metadatum> metadata, long expires) {
+			this.metadata = metadata;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return true if the lookup found nothing.
+		 */
+		public boolean isNegative() {
+			return this.metadata == null;
+		}
+
+		/**
+		 * Get copies of the cached metadata, which the caller may change.
+		 * @return new list of new Metadatum objects, or null for a negative entry.
+		 */
+		public List<Metadatum> getMetadata() {
+			return copy(this.metadata);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.technosophos.sinciput.sru;
+
+import com.technosophos.sinciput.xml.mods.MODSRecord;
+
+/**
+ * Receives MODS records from an SRU response as they are parsed.
+ * @author mbutcher
+ * @see SRUResponseParser
+ * @see SRUClient#queryMODS(MODSListener)
+ */
+public interface MODSListener {
+
+	/**
+	 * Called once for each MODS record, in the order they appear in the response.
+	 * The record is not kept by the parser.
+	 * @param rec The record.
+	 */
+	public void record(MODSRecord rec);
+}
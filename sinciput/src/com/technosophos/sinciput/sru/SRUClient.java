@@ -6,6 +6,8 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.*;
 
@@ -15,6 +17,7 @@ import org.w3c.dom.*;
 //import org.betterxml.xelement.*;
 
 import com.technosophos.sinciput.xml.mods.MODS;
+import com.technosophos.sinciput.xml.mods.MODSRecord;
 import com.technosophos.sinciput.xml.dc.SRWDC;
 
 import static com.technosophos.sinciput.xml.Helper.*;
@@ -62,6 +65,7 @@ public class SRUClient {
 	private String recordSchema = RECORD_SCHEMA_DC;
 	
 	private String baseURL;
+	private SRUTransport transport = SRUTransport.getDefault();
 	
 	//private int resultSetTTL = 30;
 	//private String extraRequestData="";
@@ -126,25 +130,111 @@ public class SRUClient {
 	public void setStartRecord(int start){this.startRecord=start;}
 	public int getStartRecord(){return this.startRecord;}
 	
+	/**
+	 * Set the transport used to connect to the server.
+	 * By default, this is {@link SRUTransport#getDefault()}.
+	 * @param transport
+	 */
+	public void setTransport(SRUTransport transport) { this.transport = transport; }
+	public SRUTransport getTransport() { return this.transport; }
+	
 	/**
 	 * Do the Query.
-	 * This connects to the remote server and fetches the results.
+	 * This connects to the remote server and fetches the results. The transport's
+	 * timeouts apply, so this does not wait forever for a slow server.
 	 * @return Contents as a string.
 	 * @throws java.net.MalformedURLException If the URL is invalid.
 	 * @throws java.io.IOException If the connection experienced trouble.
 	 * @throws SRUException If the data that is returned is not what is expected.
 	 */
 	public SRUResponse query() throws java.net.MalformedURLException, IOException, SRUException {
-		
-		String url = this.constructQueryString();
-		System.err.println(url);
-		URL con = new URL(url);
-		con.openConnection().addRequestProperty("User-Agent", AGENT_STRING);
-		Object o = con.getContent();
-		if(o instanceof InputStream ) {
-			//MODS m = new MODS(new InputSource((java.io.InputStream)o));
-			//System.out.print(m.toString());
-			InputSource in = new InputSource((InputStream)o);
+		return this.query(this.transport, this.constructQueryString());
+	}
+	
+	/**
+	 * Do the query on another thread.
+	 * <p>The query is built from this client's settings when this is called, so the
+	 * client can be changed (or reused) right away. If the query fails, 
+	 * <code>get()</code> on the returned Future throws an ExecutionException whose cause
+	 * is the exception that {@link #query()} would have thrown.</p>
+	 * <p>Use <code>get(timeout, unit)</code> to wait no longer than a deadline.
+	 * Canceling the Future does not stop a read that is in progress, but the
+	 * transport's read timeout does.</p>
+	 * @return Future for the response.
+	 * @throws SRUException If the query cannot be encoded.
+	 * @throws java.util.concurrent.RejectedExecutionException If too many queries are
+	 * waiting for the transport (see {@link SRUTransport#submit(Callable)}).
+	 */
+	public Future<SRUResponse> queryAsync() throws SRUException {
+		final String url = this.constructQueryString();
+		final SRUTransport t = this.transport;
+		return t.submit(new Callable<SRUResponse>() {
+			public SRUResponse call() throws Exception {
+				return query(t, url);
+			}
+		});
+	}
+	
+	/**
+	 * Do the query, and stream the MODS records in the response to a listener.
+	 * <p>Unlike {@link #query()}, the response is not turned into a DOM tree: each
+	 * record is parsed into a {@link MODSRecord} and passed to the listener as soon as
+	 * it has been read, so memory use depends on the size of a record, not the size of
+	 * the response. The record schema should be {@link #RECORD_SCHEMA_MODS}; records
+	 * in other schemas are skipped.</p>
+	 * @param listener Gets each record. If null, the records are kept in
+	 * {@link SRUResponse#getMODSRecords()}.
+	 * @return The response, with the number of records and any diagnostic.
+	 * @throws java.net.MalformedURLException If the URL is invalid.
+	 * @throws java.io.IOException If the connection experienced trouble.
+	 * @throws SRUException If the data that is returned is not what is expected.
+	 * @see SRUResponseParser
+	 */
+	public SRUResponse queryMODS(MODSListener listener) 
+			throws java.net.MalformedURLException, IOException, SRUException {
+		return this.queryMODS(this.transport, this.constructQueryString(), listener);
+	}
+	
+	/**
+	 * Do the query, and collect the MODS records in the response.
+	 * @return The response. The records are in {@link SRUResponse#getMODSRecords()}.
+	 * @see #queryMODS(MODSListener)
+	 */
+	public SRUResponse queryMODS() throws java.net.MalformedURLException, IOException, SRUException {
+		return this.queryMODS(null);
+	}
+	
+	/**
+	 * Do {@link #queryMODS()} on another thread.
+	 * @return Future for the response.
+	 * @throws SRUException If the query cannot be encoded.
+	 * @see #queryAsync()
+	 */
+	public Future<SRUResponse> queryMODSAsync() throws SRUException {
+		final String url = this.constructQueryString();
+		final SRUTransport t = this.transport;
+		return t.submit(new Callable<SRUResponse>() {
+			public SRUResponse call() throws Exception {
+				return queryMODS(t, url, null);
+			}
+		});
+	}
+	
+	private SRUResponse queryMODS(SRUTransport t, String url, MODSListener listener) 
+			throws java.net.MalformedURLException, IOException, SRUException {
+		InputStream stream = t.open(new URL(url));
+		try {
+			return SRUResponseParser.getInstance().parse(stream, listener);
+		} finally {
+			stream.close();
+		}
+	}
+	
+	private SRUResponse query(SRUTransport t, String url) 
+			throws java.net.MalformedURLException, IOException, SRUException {
+		InputStream stream = t.open(new URL(url));
+		try {
+			InputSource in = new InputSource(stream);
 			
 			SRUResponse response = null;
 			
@@ -159,11 +249,9 @@ public class SRUClient {
 			}
 			
 			return response;
-			
-		} else {
-			throw new SRUException("Unknown content type from SRU connection");
+		} finally {
+			stream.close();
 		}
-		//return "";
 	}
 	
 	/**
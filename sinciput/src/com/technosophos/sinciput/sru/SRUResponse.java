@@ -5,11 +5,16 @@ import org.w3c.dom.*;
 import java.util.List;
 import java.util.ArrayList;
 
+import com.technosophos.sinciput.xml.mods.MODSRecord;
+
 import static com.technosophos.sinciput.xml.Helper.*;
 
 /**
  * Describes a response from an SRU server.
  * <p>SRU servers respond with an XML message. This captures the response and handles the results.</p>
+ * <p>A response is either built from a DOM tree, in which case {@link #getRecords()} has
+ * the records, or by {@link SRUResponseParser}, in which case the MODS records are in
+ * {@link #getMODSRecords()} (or were passed to a {@link MODSListener} instead).</p>
  * @author mbutcher
  *
  */
@@ -22,17 +27,25 @@ public class SRUResponse {
 	
 	public static final int MAX_RECORDS = 256;
 	
+	/** Diagnostic URI for a record that could not be parsed. */
+	public static final String DIAG_BAD_RECORD = "info:sinciput/diagnostic/badRecord";
+	/** Diagnostic URI for a numberOfRecords that is not a number. */
+	public static final String DIAG_BAD_COUNT = "info:sinciput/diagnostic/badNumberOfRecords";
+	
 	public String version = "";
 	private Integer numberOfRecords = 0;
 	private ArrayList<Record> records;
+	private ArrayList<MODSRecord> modsRecords = new ArrayList<MODSRecord>();
 	private boolean err = false;
 	private Diagnostic diag;
+	private ArrayList<Diagnostic> warnings = new ArrayList<Diagnostic>();
 	
-	/*
-	public static SRUResponse parseResponse(InputSource in) {
-		
+	/**
+	 * Create an empty response, to be filled in by {@link SRUResponseParser}.
+	 */
+	SRUResponse() {
+		records = new ArrayList<Record>();
 	}
-	*/
 	
 	
 	public SRUResponse(Document d) throws SRUException {
@@ -134,14 +147,43 @@ public class SRUResponse {
 	
 	/**
 	 * Return a list of records.
+	 * <p>This is always empty for a response from {@link SRUResponseParser}, which 
+	 * does not build DOM trees. Use {@link #getMODSRecords()} instead.</p>
 	 * @return
 	 */
 	public List<Record> getRecords() {return this.records;}
 	
+	/**
+	 * Return the MODS records found by {@link SRUResponseParser}.
+	 * <p>This is empty if the response was built from a DOM tree, or if the records 
+	 * were passed to a {@link MODSListener} as they were parsed.</p>
+	 * @return
+	 */
+	public List<MODSRecord> getMODSRecords() {return this.modsRecords;}
+	
+	/**
+	 * Return problems that {@link SRUResponseParser} found in the response but read past,
+	 * such as records that could not be parsed. Unlike {@link #getErrorDiagnostic()},
+	 * these do not mean that the query failed.
+	 * @return
+	 */
+	public List<Diagnostic> getWarnings() {return this.warnings;}
+	
+	void setVersion(String version) {this.version = version;}
+	void setNumberOfRecords(int numberOfRecords) {this.numberOfRecords = numberOfRecords;}
+	void addMODSRecord(MODSRecord rec) {this.modsRecords.add(rec);}
+	void setDiagnostic(String uri, String message, String details) {
+		this.err = true;
+		this.diag = new Diagnostic(uri, message, details);
+	}
+	void addWarning(String uri, String message, String details) {
+		this.warnings.add(new Diagnostic(uri, message, details));
+	}
+	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("Matches on server: ").append(this.numberOfRecords);
-		sb.append("; Local records: ").append(this.records.size()).append(' ');
+		sb.append("; Local records: ").append(this.records.size() + this.modsRecords.size()).append(' ');
 		sb.append("(SRU v.").append(this.version).append(") ");
 		if(this.err)sb.append(this.getErrorDiagnostic().toString());
 		return sb.toString();
@@ -207,6 +249,11 @@ public class SRUResponse {
 			l = e.getElementsByTagName("details");
 			if(l.getLength() > 0) this.details = l.item(0).getTextContent().trim();
 		}
+		Diagnostic(String uri, String message, String details) {
+			this.uri = uri;
+			this.message = message;
+			this.details = details;
+		}
 		public String getURI(){return this.uri;}
 		public String getMessage(){return this.message;}
 		public String getDetails(){return this.details;}
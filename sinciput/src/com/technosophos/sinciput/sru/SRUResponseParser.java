@@ -0,0 +1,319 @@
+package com.technosophos.sinciput.sru;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.technosophos.sinciput.xml.mods.MODSHandler;
+import com.technosophos.sinciput.xml.mods.MODSRecord;
+
+/**
+ * Streaming parser for SRU responses with MODS records.
+ * <p>Unlike {@link SRUResponse#SRUResponse(org.w3c.dom.Document)}, this never builds a
+ * DOM tree. The response is read with SAX, and each <code>mods</code> record is turned
+ * into a {@link MODSRecord} as soon as its end tag is read, then handed to a
+ * {@link MODSListener}. Only one record is held in memory at a time (unless the
+ * listener keeps them), however many records the server sends.</p>
+ * <pre>
+ * SRUResponse res = SRUResponseParser.getInstance().parse(stream, listener);
+ * </pre>
+ * <p>Records with <code>xml</code> packing are read straight from the response.
+ * Records with <code>string</code> packing are parsed once their text has been read.
+ * Records that are not MODS are skipped. As with the DOM parser, no more than
+ * {@link SRUResponse#MAX_RECORDS} records are read. Records that cannot be parsed are
+ * skipped, and reported in {@link SRUResponse#getWarnings()}.</p>
+ * <p>The response comes from a remote server, so external entities and DTDs are
+ * never loaded.</p>
+ * <p>An instance must not be shared between threads.</p>
+ * @author mbutcher
+ * @see SRUClient#queryMODS(MODSListener)
+ */
+public final class SRUResponseParser {
+
+	private static final ThreadLocal<SRUResponseParser> local = new ThreadLocal<SRUResponseParser>() {
+		protected SRUResponseParser initialValue() {
+			return new SRUResponseParser();
+		}
+	};
+
+	private SAXParser parser = null;
+	// Records with string packing are parsed while the response is still being parsed.
+	private SAXParser recordParser = null;
+	private ResponseHandler handler = new ResponseHandler();
+	private MODSHandler mods = new MODSHandler();
+	private boolean busy = false;
+
+	private SRUResponseParser() {}
+
+	/**
+	 * Get this thread's parser.
+	 * @return A parser for use by the current thread only.
+	 */
+	public static SRUResponseParser getInstance() {
+		SRUResponseParser p = local.get();
+		// Only possible if a listener calls back in here.
+		if(p.busy) return new SRUResponseParser();
+		return p;
+	}
+
+	/**
+	 * Parse a response.
+	 * @param in Stream with the response. It is not closed.
+	 * @param listener Gets each MODS record. If this is null, the records are kept in
+	 * the response's {@link SRUResponse#getMODSRecords()}.
+	 * @return The response, with its version, number of records, and diagnostics.
+	 * @throws SRUException If the response cannot be parsed, or is not an SRU response.
+	 * @throws IOException If reading fails.
+	 */
+	public SRUResponse parse(InputStream in, MODSListener listener) throws SRUException, IOException {
+		this.busy = true;
+		try {
+			if(this.parser == null) this.parser = newParser();
+			SRUResponse response = new SRUResponse();
+			this.handler.start(response, listener);
+			read(this.parser, this.handler, new InputSource(in));
+			return response;
+		} catch (SAXException e) {
+			if(e.getException() instanceof SRUException) throw (SRUException)e.getException();
+			throw new SRUException("Error parsing SRU response.", e);
+		} finally {
+			this.handler.start(null, null);
+			if(this.parser != null) this.parser.reset();
+			this.busy = false;
+		}
+	}
+
+	/**
+	 * Parse with the given handler.
+	 * Not parser.parse(in, handler), which would make the handler the entity resolver.
+	 */
+	private static void read(SAXParser parser, DefaultHandler handler, InputSource in) 
+			throws SAXException, IOException {
+		XMLReader reader = parser.getXMLReader();
+		reader.setContentHandler(handler);
+		reader.setErrorHandler(handler);
+		reader.setDTDHandler(handler);
+		reader.setEntityResolver(NO_ENTITIES);
+		reader.parse(in);
+	}
+
+	/**
+	 * Create a namespace-aware parser that does not load external entities or DTDs.
+	 * Not every parser knows these features, and {@link #NO_ENTITIES} catches anything
+	 * that gets through.
+	 */
+	private static SAXParser newParser() throws SRUException {
+		SAXParserFactory fac = SAXParserFactory.newInstance();
+		fac.setNamespaceAware(true);
+		setFeature(fac, "http://xml.org/sax/features/external-general-entities", false);
+		setFeature(fac, "http://xml.org/sax/features/external-parameter-entities", false);
+		setFeature(fac, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		// Limits entity expansion.
+		setFeature(fac, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		try {
+			return fac.newSAXParser();
+		} catch (ParserConfigurationException e) {
+			throw new SRUException("Could not configure parser for SRU response.", e);
+		} catch (SAXException e) {
+			throw new SRUException("Could not configure parser for SRU response.", e);
+		}
+	}
+
+	private static void setFeature(SAXParserFactory f, String name, boolean value) {
+		try {
+			f.setFeature(name, value);
+		} catch (Exception e) {
+			// Not supported by this parser.
+		}
+	}
+
+	/** Resolves every external entity to nothing. */
+	private static final EntityResolver NO_ENTITIES = new EntityResolver() {
+		public InputSource resolveEntity(String publicId, String systemId) {
+			return new InputSource(new StringReader(""));
+		}
+	};
+
+	/**
+	 * Parse a record that came with string packing.
+	 * If it cannot be parsed, a warning is added to the response and null is returned.
+	 */
+	private MODSRecord parseRecord(String xml, SRUResponse response) throws SAXException {
+		try {
+			if(this.recordParser == null) this.recordParser = newParser();
+			this.mods.reset();
+			read(this.recordParser, this.mods, new InputSource(new StringReader(xml)));
+		} catch (SRUException e) {
+			throw new SAXException(e);
+		} catch (SAXException e) {
+			response.addWarning(SRUResponse.DIAG_BAD_RECORD, 
+					"Skipping SRU record that could not be parsed.", e.getMessage());
+			return null;
+		} catch (IOException e) {
+			throw new SAXException(e);
+		} finally {
+			if(this.recordParser != null) this.recordParser.reset();
+		}
+		return this.mods.isDone() ? this.mods.getRecord() : null;
+	}
+
+	/**
+	 * Reads the SRU envelope and passes each <code>mods</code> element to the MODSHandler.
+	 */
+	private class ResponseHandler extends DefaultHandler {
+		private SRUResponse response;
+		private MODSListener listener;
+		private int count;
+
+		private int depth;
+		private StringBuilder text = new StringBuilder();
+		private boolean collecting;
+
+		// Depth of the mods element being read, or of an element being skipped (0 if none).
+		private int modsDepth, skipDepth;
+		private int recordDataDepth;
+		private boolean recordDataHasElement;
+
+		private int diagDepth;
+		private String diagURI, diagMessage, diagDetails;
+
+		void start(SRUResponse response, MODSListener listener) {
+			this.response = response;
+			this.listener = listener;
+			this.count = 0;
+			this.depth = 0;
+			this.collecting = false;
+			this.modsDepth = this.skipDepth = this.recordDataDepth = this.diagDepth = 0;
+			this.diagURI = this.diagMessage = this.diagDetails = null;
+			this.text.setLength(0);
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes attrs)
+				throws SAXException {
+			int d = ++this.depth;
+			if(this.modsDepth > 0) {
+				mods.startElement(uri, localName, qName, attrs);
+				return;
+			}
+			if(this.skipDepth > 0) return;
+
+			String ln = localName(localName, qName);
+			if(d == 1) {
+				if(!SRUResponse.ZS_RESPO.equals(ln) && !SRUResponse.ZS_EXPLAIN_RESPO.equals(ln))
+					throw new SAXException(new SRUException("Not a valid SRU root element: " + ln));
+				return;
+			}
+
+			if(this.recordDataDepth > 0) {
+				// The record itself.
+				this.recordDataHasElement = true;
+				this.collecting = false;
+				if("mods".equals(ln) && this.count < SRUResponse.MAX_RECORDS) {
+					this.modsDepth = d;
+					mods.reset();
+					mods.startElement(uri, localName, qName, attrs);
+				} else {
+					this.skipDepth = d;
+				}
+				return;
+			}
+
+			if("recordData".equals(ln)) {
+				if(this.count >= SRUResponse.MAX_RECORDS) {
+					this.skipDepth = d;
+					return;
+				}
+				this.recordDataDepth = d;
+				this.recordDataHasElement = false;
+				this.collect();
+			} else if("diagnostics".equals(ln)) {
+				if(this.diagDepth == 0) this.diagDepth = d;
+			} else if((d == 2 && ("version".equals(ln) || "numberOfRecords".equals(ln)))
+					|| (this.diagDepth > 0 && ("uri".equals(ln) || "message".equals(ln) || "details".equals(ln)))) {
+				this.collect();
+			}
+		}
+
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if(this.modsDepth > 0) mods.characters(ch, start, length);
+			else if(this.collecting) this.text.append(ch, start, length);
+		}
+
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			int d = this.depth--;
+			if(this.modsDepth > 0) {
+				mods.endElement(uri, localName, qName);
+				if(d == this.modsDepth) {
+					this.modsDepth = 0;
+					this.deliver(mods.getRecord());
+				}
+				return;
+			}
+			if(this.skipDepth > 0) {
+				if(d == this.skipDepth) this.skipDepth = 0;
+				return;
+			}
+
+			String ln = localName(localName, qName);
+			if(d == this.recordDataDepth) {
+				this.recordDataDepth = 0;
+				if(!this.recordDataHasElement) {
+					String xml = this.text.toString().trim();
+					if(xml.length() > 0) this.deliver(parseRecord(xml, this.response));
+				}
+			} else if(d == this.diagDepth) {
+				this.diagDepth = 0;
+				this.response.setDiagnostic(this.diagURI, this.diagMessage, this.diagDetails);
+			} else if(this.collecting) {
+				String s = this.text.toString().trim();
+				if(this.diagDepth > 0) {
+					if("uri".equals(ln) && this.diagURI == null) this.diagURI = s;
+					else if("message".equals(ln) && this.diagMessage == null) this.diagMessage = s;
+					else if("details".equals(ln) && this.diagDetails == null) this.diagDetails = s;
+				} else if("version".equals(ln)) {
+					this.response.setVersion(s);
+				} else if("numberOfRecords".equals(ln)) {
+					try {
+						this.response.setNumberOfRecords(Integer.parseInt(s));
+					} catch (NumberFormatException e) {
+						this.response.addWarning(SRUResponse.DIAG_BAD_COUNT, 
+								"numberOfRecords is not a number.", s);
+						this.response.setNumberOfRecords(0);
+					}
+				}
+			}
+			this.collecting = false;
+			this.text.setLength(0);
+		}
+
+		private void collect() {
+			this.collecting = true;
+			this.text.setLength(0);
+		}
+
+		private void deliver(MODSRecord rec) {
+			if(rec == null) return;
+			++this.count;
+			if(this.listener != null) this.listener.record(rec);
+			else this.response.addMODSRecord(rec);
+		}
+
+		private String localName(String localName, String qName) {
+			if(localName != null && localName.length() > 0) return localName;
+			int colon = qName.indexOf(':');
+			return colon < 0 ? qName : qName.substring(colon + 1);
+		}
+	}
+}
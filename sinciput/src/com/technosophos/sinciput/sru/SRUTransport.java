@@ -0,0 +1,245 @@
+package com.technosophos.sinciput.sru;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens HTTP connections to SRU servers.
+ * <p>A transport sets the <code>User-Agent</code> header and the connect and read
+ * timeouts on every connection, and limits how many connections can be open to one
+ * server (host and port) at a time. A query that cannot get a connection within the
+ * connect timeout fails with an IOException, rather than waiting forever.</p>
+ * <p>Connections are kept alive by the JDK's HTTP client, which keeps idle connections
+ * to each server and reuses them (see the <code>http.keepAlive</code> and
+ * <code>http.maxConnections</code> system properties). A connection can only be reused
+ * if its response was read to the end, so closing a stream from {@link #open(URL)}
+ * reads whatever the caller left.</p>
+ * <p>Transports are shared: {@link #getTransport(int, int, int)} returns the same
+ * transport for the same settings, so the per-server limit applies to every client
+ * that uses those settings.</p>
+ * <p>Each transport runs async queries on its own threads: no more than
+ * <code>maxConnections</code> of them, with up to {@link #MAX_QUEUED_QUERIES} queries
+ * waiting. Past that, {@link #submit(Callable)} refuses the query.</p>
+ * @author mbutcher
+ * @see SRUClient#setTransport(SRUTransport)
+ */
+public class SRUTransport {
+
+	/** Default connect timeout, in milliseconds. */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	/** Default read timeout, in milliseconds. */
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+	/** Default number of connections allowed to each server. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	/** Most async queries that can wait for a thread on one transport. */
+	public static final int MAX_QUEUED_QUERIES = 64;
+
+	/* Most that will be read from an unfinished response to save the connection. */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private static HashMap<String, SRUTransport> transports = new HashMap<String, SRUTransport>();
+
+	private int connectTimeout;
+	private int readTimeout;
+	private int maxConnections;
+	private ConcurrentHashMap<String, Semaphore> servers = new ConcurrentHashMap<String, Semaphore>();
+	private ExecutorService queryPool = null;
+
+	/**
+	 * Create a transport. Most code should use {@link #getTransport(int, int, int)},
+	 * so that connection limits are shared.
+	 * @param connectTimeout Milliseconds to wait for a connection. Zero means forever.
+	 * @param readTimeout Milliseconds to wait for data. Zero means forever.
+	 * @param maxConnections Most connections open to one server at a time.
+	 */
+	public SRUTransport(int connectTimeout, int readTimeout, int maxConnections) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnections = maxConnections < 1 ? 1 : maxConnections;
+	}
+
+	/**
+	 * Get the shared transport with the default settings.
+	 * @return transport
+	 */
+	public static SRUTransport getDefault() {
+		return getTransport(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Get the shared transport for these settings, creating it if necessary.
+	 * @see #SRUTransport(int, int, int)
+	 */
+	public static SRUTransport getTransport(int connectTimeout, int readTimeout, int maxConnections) {
+		String key = connectTimeout + "|" + readTimeout + "|" + maxConnections;
+		synchronized(transports) {
+			SRUTransport t = transports.get(key);
+			if(t == null) {
+				t = new SRUTransport(connectTimeout, readTimeout, maxConnections);
+				transports.put(key, t);
+			}
+			return t;
+		}
+	}
+
+	public int getConnectTimeout() { return this.connectTimeout; }
+	public int getReadTimeout() { return this.readTimeout; }
+	public int getMaxConnections() { return this.maxConnections; }
+
+	/**
+	 * Send a GET request and return the response body.
+	 * <p>The stream must be closed, or the server's connection slot is never
+	 * given back.</p>
+	 * @param url URL to get.
+	 * @return Stream with the response body.
+	 * @throws IOException if no connection is free, the connection fails or times out,
+	 * or the server answers with an HTTP error.
+	 */
+	public InputStream open(URL url) throws IOException {
+		Semaphore slots = this.getSlots(url);
+		try {
+			if(this.connectTimeout > 0) {
+				if(!slots.tryAcquire(this.connectTimeout, TimeUnit.MILLISECONDS))
+					throw new IOException("Too many connections to " + url.getHost());
+			} else {
+				slots.acquire();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a connection to " + url.getHost());
+		}
+
+		try {
+			URLConnection con = url.openConnection();
+			con.setConnectTimeout(this.connectTimeout);
+			con.setReadTimeout(this.readTimeout);
+			con.setRequestProperty("User-Agent", SRUClient.AGENT_STRING);
+			if(con instanceof HttpURLConnection) {
+				HttpURLConnection http = (HttpURLConnection)con;
+				int code = http.getResponseCode();
+				if(code >= 400) {
+					// Read the error body so that the connection can be reused.
+					InputStream err = http.getErrorStream();
+					if(err != null) drain(err);
+					throw new IOException(String.format("Server returned HTTP %d for %s", code, url.getHost()));
+				}
+			}
+			return new ReleasingInputStream(con.getInputStream(), slots);
+		} catch (IOException e) {
+			slots.release();
+			throw e;
+		} catch (RuntimeException e) {
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Run a task on this transport's query threads.
+	 * @param task Task, usually a query.
+	 * @return Future for the task's result.
+	 * @throws RejectedExecutionException If {@link #MAX_QUEUED_QUERIES} tasks are
+	 * already waiting for a thread.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return this.getQueryPool().submit(task);
+	}
+
+	private Semaphore getSlots(URL url) {
+		String server = url.getHost() + ':' + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+		Semaphore s = this.servers.get(server);
+		if(s == null) {
+			s = new Semaphore(this.maxConnections, true);
+			Semaphore old = this.servers.putIfAbsent(server, s);
+			if(old != null) s = old;
+		}
+		return s;
+	}
+
+	/**
+	 * Get the thread pool for queries, creating it if necessary.
+	 * <p>It has one thread for each connection allowed to a server, so queries that
+	 * all go to one server never wait on the connection limit while holding a thread.
+	 * The threads are daemons, so they do not keep the JVM running.</p>
+	 */
+	private synchronized ExecutorService getQueryPool() {
+		if(this.queryPool != null) return this.queryPool;
+		this.queryPool = new ThreadPoolExecutor(this.maxConnections, this.maxConnections, 
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED_QUERIES),
+				new ThreadFactory() {
+					private int count = 0;
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "sinciput-sru-" + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+						throw new RejectedExecutionException(String.format(
+								"%d SRU queries are already waiting.", MAX_QUEUED_QUERIES));
+					}
+				});
+		return this.queryPool;
+	}
+
+	/** Read and close a stream, giving up after {@link #MAX_DRAIN} bytes. */
+	private static void drain(InputStream in) {
+		byte[] buf = new byte[4096];
+		int total = 0;
+		try {
+			int n;
+			while(total < MAX_DRAIN && (n = in.read(buf)) >= 0) total += n;
+		} catch (IOException e) {
+			// The connection will not be reused.
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Gives back the server's connection slot when the response is closed.
+	 */
+	private static class ReleasingInputStream extends FilterInputStream {
+		private Semaphore slots;
+
+		ReleasingInputStream(InputStream in, Semaphore slots) {
+			super(in);
+			this.slots = slots;
+		}
+
+		public void close() throws IOException {
+			Semaphore s;
+			synchronized(this) {
+				s = this.slots;
+				this.slots = null;
+			}
+			if(s == null) return;
+			try {
+				drain(this.in);
+			} finally {
+				s.release();
+			}
+		}
+	}
+}
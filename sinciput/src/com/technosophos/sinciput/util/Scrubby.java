@@ -8,7 +8,7 @@ import java.util.Arrays;
 
 //import org.xml.sax.SAXException;
 
-import com.technosophos.sinciput.xml.rhtml.RHTML;
+import com.technosophos.sinciput.xml.rhtml.RHTMLSanitizer;
 import com.technosophos.sinciput.SinciputException;
 
 /**
@@ -116,18 +116,26 @@ public class Scrubby {
 	 * @throws SinciputException Thrown when HTML cannot be parsed (or if a parser cannot be created).
 	 */
 	public static String cleanSafeHTML( String html) throws SinciputException {
-		html = "<span>" + html + "</span>"; // Ensure that we have a wrapper tag.
-		RHTML r = new RHTML(html);
-		
-		String clean = null;
+		StringBuilder sb = new StringBuilder(html.length() + 16);
+		cleanSafeHTML(html, sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Make a clean and safe HTML fragment, writing it to an Appendable.
+	 * This is the same as {@link #cleanSafeHTML(String)}, but the cleaned HTML is written
+	 * to <code>out</code> as it is produced.
+	 * @param html Dirty HTML string.
+	 * @param out Where clean HTML is written.
+	 * @throws SinciputException Thrown when HTML cannot be parsed or written.
+	 */
+	public static void cleanSafeHTML( String html, Appendable out) throws SinciputException {
 		try {
-			clean =  r.getRHTMLString();
+			// Parsed inside a wrapper tag, which is left out of the output.
+			RHTMLSanitizer.getInstance().sanitizeFragment(html, out);
 		} catch (Exception e) {
 			throw new SinciputException("Failed to parse HTML: " + e.getMessage(), e);
 		}
-		//trim added span tag.
-		return clean.substring(6, clean.length() - 7);
-		//return clean;
 	}
 	
 	/**
@@ -182,4 +190,51 @@ public class Scrubby {
 	public static int asInt(String txt) {
 		return asInt(txt, -1);
 	}
+	
+	/**
+	 * Reduce an ISBN (or ISSN) to its digits and check character.
+	 * <p>Hyphens, spaces and anything else that is not a digit or an X are removed,
+	 * and the check character is upper-cased, so "0-8028-6061-3" and "080286061 3"
+	 * both become "0802860613". The check digit is not verified.</p>
+	 * @param isbn ISBN or ISSN as typed.
+	 * @return normalized number, possibly empty.
+	 */
+	public static String formatISBN(String isbn) {
+		StringBuilder sb = new StringBuilder(13);
+		char c;
+		for(int i = 0; i < isbn.length(); ++i) {
+			c = isbn.charAt(i);
+			if(c >= '0' && c <= '9') sb.append(c);
+			else if(c == 'x' || c == 'X') sb.append('X');
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Normalize a Library of Congress Control Number.
+	 * <p>This follows the LoC's rules: blanks are removed, as is anything from a
+	 * forward slash on; if there is a hyphen, it is removed and the number after it
+	 * is padded to six digits with zeros. So "n 78-890351" becomes "n78890351" and
+	 * "85-2 " becomes "85000002". The result is lower case.</p>
+	 * @param lccn LCCN as typed.
+	 * @return normalized LCCN.
+	 * @see http://www.loc.gov/marc/lccn-namespace.html
+	 */
+	public static String formatLCCN(String lccn) {
+		StringBuilder sb = new StringBuilder(lccn.length());
+		char c;
+		for(int i = 0; i < lccn.length(); ++i) {
+			c = lccn.charAt(i);
+			if(c == '/') break;
+			if(!Character.isWhitespace(c)) sb.append(Character.toLowerCase(c));
+		}
+		int hyphen = sb.indexOf("-");
+		if(hyphen >= 0) {
+			String serial = sb.substring(hyphen + 1);
+			sb.setLength(hyphen);
+			for(int i = serial.length(); i < 6; ++i) sb.append('0');
+			sb.append(serial);
+		}
+		return sb.toString();
+	}
  }
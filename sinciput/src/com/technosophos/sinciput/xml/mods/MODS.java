@@ -443,6 +443,18 @@ public class MODS {
 		 */
 		public String getSubTitle() {return subTitle;}
 		
+		/**
+		 * Get the part number, for a work that is part of a larger one.
+		 * @return
+		 */
+		public String getPartNumber() {return partNumber;}
+		
+		/**
+		 * Get the part name.
+		 * @return
+		 */
+		public String getPartName() {return partName;}
+		
 		public String toString(){ return this.getFullTitle();}
 	}
 	
@@ -0,0 +1,278 @@
+package com.technosophos.sinciput.xml.mods;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler that builds a {@link MODSRecord} from one <code>mods</code> element.
+ * <p>Every field is picked up in a single pass over the element, following the same
+ * rules as the getters of {@link MODS} (for example, the first <code>titleInfo/title</code>
+ * is the title). Element names are matched on their local names, so it works with or
+ * without namespace prefixes, as long as the parser is namespace aware. Only the text
+ * of the current top-level child of <code>mods</code> is kept in memory, and related
+ * items are skipped.</p>
+ * <p>To use it, call {@link #reset()}, then pass it the SAX events for the
+ * <code>mods</code> element, starting with the element itself. When
+ * {@link #isDone()} returns true, {@link #getRecord()} has the result. A handler can
+ * be reused for any number of records, but only one at a time.</p>
+ * @author mbutcher
+ * @see com.technosophos.sinciput.sru.SRUResponseParser
+ */
+public class MODSHandler extends DefaultHandler {
+
+	private static final int MAX_DEPTH = 32;
+
+	private MODSRecord rec;
+	private boolean done = false;
+	private int depth = 0;
+	// Skipping the subtree of a related item that started at this depth (0 if not skipping).
+	private int skipFrom = 0;
+
+	// Local name, start of text, and interesting attributes, for each open element.
+	private String[] path = new String[MAX_DEPTH];
+	private int[] textStart = new int[MAX_DEPTH];
+	private String[] attrA = new String[MAX_DEPTH];
+	private String[] attrB = new String[MAX_DEPTH];
+	private StringBuilder text = new StringBuilder(256);
+
+	// Fields where only the first occurrence counts.
+	private HashSet<String> seen = new HashSet<String>();
+	private String placeText, placeAny;
+
+	// The name or subject being read.
+	private ArrayList<String> nameParts, roles;
+	private String family, given, dates;
+	private MODSRecord.Subject subject;
+
+	/**
+	 * Get ready for a new record.
+	 */
+	public void reset() {
+		this.rec = new MODSRecord();
+		this.done = false;
+		this.depth = 0;
+		this.skipFrom = 0;
+		this.text.setLength(0);
+		this.seen.clear();
+		this.placeText = this.placeAny = null;
+		this.subject = null;
+		this.nameParts = null;
+	}
+
+	/**
+	 * @return true once the end of the <code>mods</code> element has been seen.
+	 */
+	public boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * Get the record. It is complete once {@link #isDone()} is true.
+	 * @return the record.
+	 */
+	public MODSRecord getRecord() {
+		return this.rec;
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attrs)
+			throws SAXException {
+		String ln = localName(localName, qName);
+		++this.depth;
+		if(this.skipFrom > 0) return;
+		if(this.depth >= MAX_DEPTH) {
+			this.skipFrom = this.depth;
+			return;
+		}
+		if(this.depth == 1) {
+			if(!"mods".equalsIgnoreCase(ln) && !"relatedItem".equals(ln))
+				throw new SAXException("Root element is not a MODS element: " + ln);
+			this.path[1] = ln;
+			return;
+		}
+		if(this.depth == 2) {
+			this.text.setLength(0);
+			if("relatedItem".equals(ln)) {
+				this.skipFrom = this.depth;
+				return;
+			}
+			if("name".equals(ln)) {
+				this.nameParts = new ArrayList<String>(2);
+				this.roles = new ArrayList<String>(2);
+				this.family = this.given = this.dates = null;
+			} else if("subject".equals(ln)) {
+				this.subject = new MODSRecord.Subject();
+			}
+		}
+		this.path[this.depth] = ln;
+		this.textStart[this.depth] = this.text.length();
+		this.attrA[this.depth] = null;
+		this.attrB[this.depth] = null;
+
+		String top = this.path[2];
+		if(this.depth == 2) {
+			if("classification".equals(ln)) {
+				this.attrA[2] = attr(attrs, "authority");
+			} else if("identifier".equals(ln)) {
+				this.attrA[2] = attr(attrs, "type");
+				this.attrB[2] = attr(attrs, "displayLabel");
+			}
+		} else if("location".equals(top) && this.depth == 3 && "url".equals(ln)) {
+			this.attrA[3] = attr(attrs, "displayLabel");
+		} else if("name".equals(top) && "namePart".equals(ln)) {
+			this.attrA[this.depth] = attrs.getValue("type");
+		} else if("originInfo".equals(top) && this.depth == 4 && "placeTerm".equals(ln)) {
+			this.attrA[4] = attrs.getValue("type");
+		}
+	}
+
+	public void characters(char[] ch, int start, int length) {
+		if(this.depth >= 2 && this.skipFrom == 0) this.text.append(ch, start, length);
+	}
+
+	public void endElement(String uri, String localName, String qName) {
+		int d = this.depth--;
+		if(this.skipFrom > 0) {
+			if(d == this.skipFrom) this.skipFrom = 0;
+			return;
+		}
+		if(d == 1) {
+			this.finish();
+			return;
+		}
+		String ln = this.path[d];
+		String top = this.path[2];
+		String content = this.text.substring(this.textStart[d]).trim();
+
+		if(d == 2) {
+			if("typeOfResource".equals(ln)) {
+				if(this.first(ln)) this.rec.typeOfResource = content;
+			} else if("genre".equals(ln)) {
+				if(this.first(ln)) this.rec.genre = content;
+			} else if("abstract".equals(ln)) {
+				if(this.first(ln)) this.rec.abstractText = content;
+			} else if("tableOfContents".equals(ln)) {
+				if(this.first(ln)) this.rec.tableOfContents = content;
+			} else if("targetAudience".equals(ln)) {
+				if(this.first(ln)) this.rec.targetAudience = content;
+			} else if("note".equals(ln)) {
+				if(this.first(ln)) this.rec.note = content;
+			} else if("classification".equals(ln)) {
+				this.rec.classifications.add(new MODSRecord.Classification(this.attrA[2], content));
+			} else if("identifier".equals(ln)) {
+				this.rec.identifiers.add(new MODSRecord.Identifier(this.attrA[2], this.attrB[2], content));
+			} else if("name".equals(ln)) {
+				this.finishName();
+			} else if("subject".equals(ln)) {
+				this.rec.subjects.add(this.subject);
+				this.subject = null;
+			}
+			// Only the current top-level element's text is needed.
+			this.text.setLength(0);
+			return;
+		}
+
+		if("name".equals(top)) {
+			if("namePart".equals(ln)) {
+				String type = this.attrA[d];
+				if("family".equals(type)) this.family = content;
+				else if("given".equals(type)) this.given = content;
+				else if("date".equals(type)) this.dates = content;
+				this.nameParts.add(content);
+			} else if(d == 4 && "roleTerm".equals(ln) && "role".equals(this.path[3])) {
+				this.roles.add(content);
+			}
+		} else if(d == 3) {
+			if("subject".equals(top)) {
+				this.subject.add(content, ln);
+			} else if("titleInfo".equals(top)) {
+				if("nonSort".equals(ln)) {
+					if(this.first("titleInfo/nonSort")) this.rec.nonSort = content;
+				} else if("title".equals(ln)) {
+					if(this.first("titleInfo/title")) this.rec.title = content;
+				} else if("subTitle".equals(ln)) {
+					if(this.first("titleInfo/subTitle")) this.rec.subTitle = content;
+				} else if("partNumber".equals(ln)) {
+					if(this.first("titleInfo/partNumber")) this.rec.partNumber = content;
+				} else if("partName".equals(ln)) {
+					if(this.first("titleInfo/partName")) this.rec.partName = content;
+				}
+			} else if("originInfo".equals(top)) {
+				if("publisher".equals(ln)) {
+					if(this.first("originInfo/publisher")) this.rec.publisher = content;
+				} else if("dateIssued".equals(ln)) {
+					if(this.first("originInfo/dateIssued")) this.rec.dateIssued = content;
+				} else if("issuance".equals(ln)) {
+					if(this.first("originInfo/issuance")) this.rec.issuance = content;
+				} else if("frequency".equals(ln)) {
+					if(this.first("originInfo/frequency")) this.rec.frequency = content;
+				} else if("edition".equals(ln)) {
+					if(this.first("originInfo/edition")) this.rec.edition = content;
+				}
+			} else if("language".equals(top) && "languageTerm".equals(ln)) {
+				if(this.first("language/languageTerm")) this.rec.language = content;
+			} else if("location".equals(top) && "url".equals(ln)) {
+				this.rec.locationURLs.add(new MODSRecord.LocationURL(content, this.attrA[3]));
+			}
+		} else if(d == 4 && "originInfo".equals(top) && "placeTerm".equals(ln)
+				&& "place".equals(this.path[3])) {
+			if(this.placeAny == null) this.placeAny = content;
+			if(this.placeText == null && "text".equals(this.attrA[4])) this.placeText = content;
+		}
+	}
+
+	/**
+	 * Build the name, the same way {@link MODS.Name} does.
+	 */
+	private void finishName() {
+		String nname = null;
+		if(this.nameParts.size() > 0) {
+			if(this.given != null && this.family != null) {
+				nname = this.dates == null
+					? String.format("%s, %s", this.family, this.given)
+					: String.format("%s, %s %s", this.family, this.given, this.dates);
+			} else {
+				StringBuilder sb = new StringBuilder();
+				for(String p: this.nameParts) {
+					if(sb.length() > 0) sb.append(' ');
+					sb.append(p);
+				}
+				nname = sb.toString();
+			}
+		}
+		this.rec.names.add(new MODSRecord.Name(nname, this.family, this.given, this.dates, this.roles));
+		this.nameParts = null;
+		this.roles = null;
+	}
+
+	private void finish() {
+		this.rec.place = this.placeText != null ? this.placeText
+				: (this.placeAny != null ? this.placeAny : "");
+		// Like MODS.OriginInfo, frequency is only looked for if there is an issuance.
+		if(this.rec.issuance.length() == 0) this.rec.frequency = null;
+		else if(this.rec.frequency == null) this.rec.frequency = "";
+		this.done = true;
+	}
+
+	/** True the first time a field is seen in this record. */
+	private boolean first(String field) {
+		return this.seen.add(field);
+	}
+
+	private static String attr(Attributes attrs, String name) {
+		String v = attrs.getValue(name);
+		return v == null ? "" : v;
+	}
+
+	/**
+	 * Get the local name of an element, even from a parser that is not namespace aware.
+	 */
+	static String localName(String localName, String qName) {
+		if(localName != null && localName.length() > 0) return localName;
+		int colon = qName.indexOf(':');
+		return colon < 0 ? qName : qName.substring(colon + 1);
+	}
+}
@@ -0,0 +1,284 @@
+package com.technosophos.sinciput.xml.mods;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a MODS record, extracted all at once.
+ * <p>This holds the same information as the getters of {@link MODS}, but as plain
+ * values: it does not keep a DOM tree, and nothing is evaluated when a getter is
+ * called. Records are built by {@link MODSHandler} while a document is being parsed
+ * (see {@link com.technosophos.sinciput.sru.SRUResponseParser}), or copied from a
+ * MODS object with {@link #copyOf(MODS)}.</p>
+ * <p>Like MODS, where a field may appear more than once but only one value is
+ * wanted, the first one in the document is used. Missing values are empty strings.
+ * Parts and related items are not included; use {@link MODS} if you need them.</p>
+ * @author mbutcher
+ * @see http://www.loc.gov/standards/mods/
+ */
+public class MODSRecord {
+
+	String typeOfResource = "";
+	String genre = "";
+	String language = "";
+	String abstractText = "";
+	String tableOfContents = "";
+	String targetAudience = "";
+	String note = "";
+
+	// Title info
+	String nonSort = "";
+	String title = "";
+	String subTitle = "";
+	String partNumber = "";
+	String partName = "";
+
+	// Origin info
+	String place = "";
+	String publisher = "";
+	String dateIssued = "";
+	String edition = "";
+	String issuance = "";
+	String frequency = null;
+
+	ArrayList<Name> names = new ArrayList<Name>();
+	ArrayList<Subject> subjects = new ArrayList<Subject>();
+	ArrayList<Classification> classifications = new ArrayList<Classification>();
+	ArrayList<Identifier> identifiers = new ArrayList<Identifier>();
+	ArrayList<LocationURL> locationURLs = new ArrayList<LocationURL>();
+
+	MODSRecord() {}
+
+	/**
+	 * Copy the fields of a DOM-based MODS object.
+	 * @param mods
+	 * @return a new record.
+	 */
+	public static MODSRecord copyOf(MODS mods) {
+		MODSRecord r = new MODSRecord();
+		r.typeOfResource = mods.getTypeOfResource();
+		r.genre = mods.getGenre();
+		r.language = mods.getLanguage();
+		r.abstractText = mods.getAbstract();
+		r.tableOfContents = mods.getTableOfContents();
+		r.targetAudience = mods.getTargetAudience();
+		r.note = mods.getNote();
+
+		MODS.TitleInfo t = mods.getTitleInfo();
+		r.nonSort = t.getTitleNonSort();
+		r.title = t.getTitle();
+		r.subTitle = t.getSubTitle();
+		r.partNumber = t.getPartNumber();
+		r.partName = t.getPartName();
+
+		MODS.OriginInfo o = mods.getOriginInfo();
+		r.place = o.getPlace();
+		r.publisher = o.getPublisher();
+		r.dateIssued = o.getDateIssued();
+		r.edition = o.getEdition();
+		r.issuance = o.getIssuance();
+		r.frequency = o.getFrequency();
+
+		for(MODS.Name n: mods.getNames())
+			r.names.add(new Name(n.getNamePart(), n.getFamilyName(), n.getGivenName(),
+					n.getDates(), n.getRoles()));
+		for(MODS.Subject s: mods.getSubjects()) {
+			Subject subj = new Subject();
+			for(MODS.SubjectTerm st: s.getTerms()) subj.add(st.getValue(), st.getType());
+			r.subjects.add(subj);
+		}
+		for(MODS.Classification c: mods.getClassifications())
+			r.classifications.add(new Classification(c.getAuthority(), c.getValue()));
+		for(MODS.Identifier i: mods.getIdentifiers())
+			r.identifiers.add(new Identifier(i.getType(), i.getDisplayLable(), i.getValue()));
+		for(MODS.LocationURL u: mods.getLocationURLs())
+			r.locationURLs.add(new LocationURL(u.getURL(), u.getDisplayLabel()));
+		return r;
+	}
+
+	public String getTypeOfResource() { return this.typeOfResource; }
+	public String getGenre() { return this.genre; }
+	/** Get the first language code (e.g. en or eng). */
+	public String getLanguage() { return this.language; }
+	public String getAbstract() { return this.abstractText; }
+	public String getTableOfContents() { return this.tableOfContents; }
+	public String getTargetAudience() { return this.targetAudience; }
+	public String getNote() { return this.note; }
+
+	public String getTitleNonSort() { return this.nonSort; }
+	public String getTitle() { return this.title; }
+	public String getSubTitle() { return this.subTitle; }
+	public String getPartNumber() { return this.partNumber; }
+	public String getPartName() { return this.partName; }
+
+	/**
+	 * Get the full title: non-sort plus title plus subtitle.
+	 * @see MODS.TitleInfo#getFullTitle()
+	 */
+	public String getFullTitle() {
+		StringBuilder sb = new StringBuilder();
+		if( nonSort.length() > 0 ) sb.append(nonSort).append(" ");
+		sb.append(title);
+		if( subTitle.length() > 0 ) sb.append(": ").append(subTitle);
+		if( partNumber.length() > 0 ) sb.append(" (").append(partNumber).append(") ");
+		if( partName.length() > 0 ) sb.append("--").append(partName).append(" ");
+		return sb.toString();
+	}
+
+	/**
+	 * Get a title for natural sorting, with leading articles moved to the end.
+	 * @see MODS.TitleInfo#getSortableTitle()
+	 */
+	public String getSortableTitle() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(title);
+		if( subTitle.length() > 0 ) sb.append(": ").append(subTitle);
+		if( nonSort.length() > 0 ) sb.append(", ").append(nonSort);
+		if( partNumber.length() > 0 ) sb.append(" (").append(partNumber).append(") ");
+		if( partName.length() > 0 ) sb.append(" -- ").append(partName).append(" ");
+		return sb.toString();
+	}
+
+	/** Get the place of publication, preferring a textual place term. */
+	public String getPlace() { return this.place; }
+	public String getPublisher() { return this.publisher; }
+	public String getDateIssued() { return this.dateIssued; }
+	public String getEdition() { return this.edition; }
+	public String getIssuance() { return this.issuance; }
+	/** Get the frequency, or null if there is no issuance. */
+	public String getFrequency() { return this.frequency; }
+
+	public List<Name> getNames() { return this.names; }
+	public List<Subject> getSubjects() { return this.subjects; }
+	public List<Classification> getClassifications() { return this.classifications; }
+	public List<Identifier> getIdentifiers() { return this.identifiers; }
+	public List<LocationURL> getLocationURLs() { return this.locationURLs; }
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Title: ").append(this.getFullTitle()).append("\n");
+		sb.append("Names: ").append(listToString(this.names)).append("\n");
+		sb.append("Origin Info: ").append(String.format("%s: %s, %s", place, publisher, dateIssued)).append("\n");
+		sb.append("Identifiers: ").append(listToString(this.identifiers)).append("\n");
+		sb.append("Classifications: ").append(listToString(this.classifications)).append("\n");
+		sb.append("URLs: ").append(listToString(this.locationURLs)).append("\n");
+		sb.append("Language: ").append(this.language).append("\n");
+		sb.append("Subjects: ").append(listToString(this.subjects)).append("\n");
+		sb.append("Genre: ").append(this.genre).append("\n");
+		sb.append("Abstract: ").append(this.abstractText).append("\n");
+		sb.append("Note: ").append(this.note).append("\n");
+		sb.append("Table of Contents: ").append(this.tableOfContents).append("\n");
+		sb.append("Target Audience: ").append(this.targetAudience).append("\n");
+		return sb.toString();
+	}
+
+	private static <T> String listToString(List<T> l) {
+		StringBuilder sb = new StringBuilder();
+		for(T t: l) {
+			if(sb.length() > 0 ) sb.append("; ");
+			sb.append(t.toString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A name attached to the work, usually an author, editor, or translator.
+	 * @see MODS.Name
+	 */
+	public static class Name {
+		private String namePart, family, given, dates;
+		private List<String> roles;
+
+		Name(String namePart, String family, String given, String dates, List<String> roles) {
+			this.namePart = namePart;
+			this.family = family;
+			this.given = given;
+			this.dates = dates;
+			this.roles = roles;
+		}
+		/** Get the name, formatted as "family, given dates" when the parts are known. */
+		public String getNamePart() { return this.namePart; }
+		public String getFamilyName() { return this.family; }
+		public String getGivenName() { return this.given; }
+		public String getDates() { return this.dates; }
+		public List<String> getRoles() { return this.roles; }
+		public String toString() {
+			return new StringBuilder().append(namePart).append(" (").append(listToString(roles)).append(") ").toString();
+		}
+	}
+
+	/**
+	 * A subject: a list of terms, from the most general to the most specific.
+	 * @see MODS.Subject
+	 */
+	public static class Subject {
+		private ArrayList<String> terms = new ArrayList<String>(4);
+		private ArrayList<String> types = new ArrayList<String>(4);
+
+		Subject() {}
+
+		void add(String term, String type) {
+			this.terms.add(term);
+			this.types.add(type);
+		}
+		public List<String> getTerms() { return this.terms; }
+		/** Get the element names of the terms (topic, geographic, ...), in the same order. */
+		public List<String> getTypes() { return this.types; }
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(String t: terms) {
+				if(sb.length() > 0) sb.append("::");
+				sb.append(t);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A classification, such as a Dewey Decimal or LC call number.
+	 * @see MODS.Classification
+	 */
+	public static class Classification {
+		private String authority, value;
+		Classification(String authority, String value) {
+			this.authority = authority;
+			this.value = value;
+		}
+		public String getAuthority() { return this.authority; }
+		public String getValue() { return this.value; }
+		public String toString() { return String.format("%s:%s", authority, value); }
+	}
+
+	/**
+	 * An identifier, such as an ISBN or LCCN.
+	 * @see MODS.Identifier
+	 */
+	public static class Identifier {
+		private String type, label, value;
+		Identifier(String type, String label, String value) {
+			this.type = type;
+			this.label = label;
+			this.value = value;
+		}
+		public String getType() { return this.type; }
+		public String getDisplayLabel() { return this.label; }
+		public String getValue() { return this.value; }
+		public String toURI() { return String.format("%s:%s", this.type, this.value); }
+		public String toString() { return this.toURI(); }
+	}
+
+	/**
+	 * A URL from a location element.
+	 * @see MODS.LocationURL
+	 */
+	public static class LocationURL {
+		private String url, label;
+		LocationURL(String url, String label) {
+			this.url = url;
+			this.label = label;
+		}
+		public String getURL() { return this.url; }
+		public String getDisplayLabel() { return this.label; }
+		public String toString() { return this.url; }
+	}
+}
@@ -0,0 +1,180 @@
+package com.technosophos.sinciput.xml.rhtml;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A Reader that turns named XHTML entity references into numeric references.
+ * <p>An XML parser only knows the five predefined entities (amp, lt, gt, quot and
+ * apos). Any other named entity, like <code>&amp;copy;</code>, has to be declared in
+ * a DTD. Rather than putting a DTD with every entity in front of each document (which
+ * the parser then has to read every time), this rewrites <code>&amp;copy;</code> as
+ * <code>&amp;#169;</code> as the document is read, using {@link RHTMLEntities#getCode(String)}.</p>
+ * <p>The predefined entities, numeric references and unknown names are passed through
+ * unchanged, so an unknown entity still causes a parse error. Nothing is replaced inside
+ * comments, CDATA sections or other <code>&lt;!...&gt;</code> markup, since the parser would
+ * not expand entities there either.</p>
+ * @author mbutcher
+ *
+ */
+class EntityReader extends Reader {
+
+	/** Longest entity name in the table is well under this. */
+	private static final int MAX_NAME = 10;
+
+	private static final int TEXT = 0;
+	private static final int COMMENT = 1;
+	private static final int CDATA = 2;
+	private static final int DECL = 3;
+
+	private static final String[] TERMINATORS = { null, "-->", "]]>", ">" };
+
+	private Reader in;
+	private char[] buf = new char[4096];
+	private int bpos = 0;
+	private int blen = 0;
+	// Characters read ahead, but not yet returned.
+	private char[] pending = new char[MAX_NAME + 16];
+	private int pos = 0;
+	private int lim = 0;
+	private int mode = TEXT;
+	// How much of the current mode's terminator has been matched.
+	private int matched = 0;
+
+	/**
+	 * @param in Reader with the original document.
+	 */
+	EntityReader(Reader in) {
+		this.in = in;
+	}
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		int n = 0;
+		while(n < len) {
+			if(this.pos == this.lim && this.mode == TEXT && this.bpos < this.blen) {
+				// Plain text is copied straight through.
+				int max = Math.min(len - n, this.blen - this.bpos);
+				int k = 0;
+				char ch;
+				while(k < max && (ch = this.buf[this.bpos + k]) != '&' && ch != '<') ++k;
+				if(k > 0) {
+					System.arraycopy(this.buf, this.bpos, cbuf, off + n, k);
+					this.bpos += k;
+					n += k;
+					continue;
+				}
+			}
+			if(this.pos == this.lim && !this.fill()) break;
+			int k = Math.min(len - n, this.lim - this.pos);
+			System.arraycopy(this.pending, this.pos, cbuf, off + n, k);
+			this.pos += k;
+			n += k;
+		}
+		return n == 0 ? -1 : n;
+	}
+
+	/**
+	 * Read the next piece of the document into the pending buffer.
+	 * @return false at the end of the document.
+	 */
+	private boolean fill() throws IOException {
+		this.pos = this.lim = 0;
+		int c = this.next();
+		if(c < 0) return false;
+
+		if(this.mode != TEXT) {
+			this.pending[this.lim++] = (char)c;
+			String t = TERMINATORS[this.mode];
+			if(c == t.charAt(this.matched)) {
+				if(++this.matched == t.length()) {
+					this.mode = TEXT;
+					this.matched = 0;
+				}
+			} else if(this.matched == 2 && c == t.charAt(1) && t.charAt(0) == t.charAt(1)) {
+				// "]]]>" or "--->": still two matched.
+			} else {
+				this.matched = (c == t.charAt(0)) ? 1 : 0;
+			}
+			return true;
+		}
+
+		if(c == '<') {
+			this.pending[this.lim++] = '<';
+			int d = this.readInto();
+			if(d == '!') this.startDeclaration();
+			return true;
+		}
+
+		if(c != '&') {
+			this.pending[this.lim++] = (char)c;
+			return true;
+		}
+
+		// Read the name, up to ';'.
+		this.pending[this.lim++] = '&';
+		int d;
+		while((d = this.readInto()) >= 0) {
+			if(d == ';') break;
+			if(!Character.isLetterOrDigit(d) || this.lim > MAX_NAME + 1) return true;
+		}
+		if(d != ';') return true;
+
+		String name = new String(this.pending, 1, this.lim - 2);
+		int code = RHTMLEntities.getCode(name);
+		if(code < 0 || RHTMLEntities.isPredefined(name)) return true;
+		String ref = "&#" + code + ';';
+		ref.getChars(0, ref.length(), this.pending, 0);
+		this.lim = ref.length();
+		return true;
+	}
+
+	/**
+	 * After "&lt;!", see which kind of markup this is.
+	 */
+	private void startDeclaration() throws IOException {
+		int d = this.readInto();
+		if(d == '-') {
+			if(this.readInto() == '-') this.mode = COMMENT;
+			else this.mode = DECL;
+		} else if(d == '[') {
+			this.mode = CDATA;
+		} else if(d >= 0) {
+			this.mode = DECL;
+		}
+		this.matched = 0;
+	}
+
+	/**
+	 * Read one character onto the end of the pending buffer.
+	 * @return the character, or -1 at the end of the document.
+	 */
+	private int readInto() throws IOException {
+		int d = this.next();
+		if(d >= 0) this.pending[this.lim++] = (char)d;
+		return d;
+	}
+
+	/**
+	 * Read one character from the underlying reader.
+	 */
+	private int next() throws IOException {
+		if(this.bpos == this.blen) {
+			this.blen = this.in.read(this.buf, 0, this.buf.length);
+			this.bpos = 0;
+			if(this.blen <= 0) {
+				this.blen = 0;
+				return -1;
+			}
+		}
+		return this.buf[this.bpos++];
+	}
+
+	public boolean ready() throws IOException {
+		return this.pos < this.lim || this.bpos < this.blen || this.in.ready();
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
@@ -1,6 +1,7 @@
 package com.technosophos.sinciput.xml.rhtml;
 
 //import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Provide support for character entities.
@@ -339,12 +340,46 @@ public final class RHTMLEntities {
 		new CharNameCode("diams", 9830),
 	};
 	
-	public static String getEntitiesDTD() {
-		StringBuilder sb = new StringBuilder();
+	/** Entity codes by name, built once from {@link #RHTML_ENTITIES}. */
+	private static final HashMap<String, Integer> CODES = new HashMap<String, Integer>(RHTML_ENTITIES.length * 2);
+	private static final String ENTITIES_DTD;
+	static {
+		for (CharNameCode c : RHTML_ENTITIES) CODES.put(c.getName(), c.getCode());
+		StringBuilder sb = new StringBuilder(RHTML_ENTITIES.length * 24);
 		sb.append("<!DOCTYPE doc[ ");
 		getEntities(sb);
 		sb.append("]>");
-		return sb.toString();
+		ENTITIES_DTD = sb.toString();
+	}
+	
+	/**
+	 * Look up the character code of a named entity.
+	 * @param name Entity name, without the ampersand and semicolon (e.g. "copy").
+	 * @return The character code, or -1 if the entity is not known.
+	 */
+	public static int getCode(String name) {
+		Integer c = CODES.get(name);
+		return c == null ? -1 : c.intValue();
+	}
+	
+	/**
+	 * Check whether an entity is one of the five that every XML parser knows
+	 * (amp, lt, gt, quot and apos).
+	 * @param name Entity name
+	 * @return true if the entity needs no declaration.
+	 */
+	public static boolean isPredefined(String name) {
+		return "amp".equals(name) || "lt".equals(name) || "gt".equals(name)
+			|| "quot".equals(name) || "apos".equals(name);
+	}
+	
+	/**
+	 * Get a DOCTYPE declaring every entity.
+	 * <p>The string is built once. {@link RHTMLSanitizer} does not need it.</p>
+	 * @return DOCTYPE with entity declarations.
+	 */
+	public static String getEntitiesDTD() {
+		return ENTITIES_DTD;
 	}
 	
 	public static String getEntities() {
@@ -1,12 +1,18 @@
 package com.technosophos.sinciput.xml.rhtml;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 import org.xml.sax.ext.DefaultHandler2;
 import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
 
 /**
  * A SAX2 (ext) handler for a restricted subset of XHTML.
  * <p>This handler is used by RHTML, and probably never needs direct calling otherwise.</p>
+ * <p>Output goes to a {@link StringBuilder} (see {@link #getRHTMLString()}), or to any
+ * {@link Appendable} given to {@link #setOutput(Appendable)}. A handler may be used for
+ * any number of documents, one after another, but not by two threads at once.</p>
  * 
  * <p>A document must be well-formed. Use jTidy or another cleaner if you are worried about this.</p>
  * <p>This is a very simple HTML restricting handler. It restricts which tags will be allowed,
@@ -163,38 +169,46 @@ public class RHTMLHandler extends DefaultHandler2 {
 		"http", "https", "ftp"
 	};
 
-	private StringBuilder sb = null;
-	//private boolean skip_chars = false;
-	//private int depth = 0;
+	private Appendable target = null;
+	private Appendable out = null;
+	private boolean omitRoot = false;
+	private int depth = 0;
 	private int skip_children = 0;
 	
-	private String[] sorted_elements_blacklist = ELEMENTS_BLACKLIST.clone();
-	private String[] sorted_elements_replace = ELEMENTS_REPLACE.clone();
-	private String[] sorted_attributes_blacklist = ATTRIBUTES_BLACKLIST.clone();
-	private String[] sorted_attributes_greylist = ATTRIBUTES_GREYLIST.clone();
-	private String[] sorted_protocol_whitelist = PROTOCOL_WHITELIST.clone();
+	// Sorted once, for binary searching.
+	private static final String[] sorted_elements_blacklist = sorted(ELEMENTS_BLACKLIST);
+	private static final String[] sorted_elements_replace = sorted(ELEMENTS_REPLACE);
+	private static final String[] sorted_attributes_blacklist = sorted(ATTRIBUTES_BLACKLIST);
+	private static final String[] sorted_attributes_greylist = sorted(ATTRIBUTES_GREYLIST);
+	private static final String[] sorted_protocol_whitelist = sorted(PROTOCOL_WHITELIST);
 	
-	//private String prevElement;
-	//private String prevAttrs;
-	//private int prevLevel = 0;
+	private static String[] sorted(String[] a) {
+		String[] c = a.clone();
+		Arrays.sort(c);
+		return c;
+	}
 	
 	public RHTMLHandler() {
-		//sb = new StringBuilder();
-		
-		//this.prevElement = null;
-		//this.prevAttrs = "";
-		//this.prevLevel = 0;
-		
-		// TODO: test whether using a hashSet might be faster than sorting and 
-		// binary search.
-		
-		// Prepare these for binary searching:
-		Arrays.sort(this.sorted_elements_blacklist);
-		Arrays.sort(this.sorted_elements_replace);
-		Arrays.sort(this.sorted_attributes_blacklist);
-		Arrays.sort(this.sorted_attributes_greylist);
-		Arrays.sort(this.sorted_protocol_whitelist);
-		
+	}
+	
+	/**
+	 * Send output to the given Appendable instead of a new StringBuilder.
+	 * <p>This applies to every document parsed after it is set. Pass null to go back
+	 * to collecting output in a StringBuilder.</p>
+	 * @param out Where cleaned RHTML is written.
+	 */
+	public void setOutput(Appendable out) {
+		this.target = out;
+	}
+	
+	/**
+	 * Leave out the document's root element (but not its contents).
+	 * <p>This is useful when an HTML fragment has been wrapped in an element
+	 * just so that it can be parsed.</p>
+	 * @param omitRoot true to leave out the root element's tags.
+	 */
+	public void setOmitRoot(boolean omitRoot) {
+		this.omitRoot = omitRoot;
 	}
 	
 	/**
@@ -202,129 +216,77 @@ public class RHTMLHandler extends DefaultHandler2 {
 	 * @return Cleaned RHTML string.
 	 */
 	public String getRHTMLString() {
-		return this.sb.toString();
+		return this.out == null ? null : this.out.toString();
 	}
 	
 	// // // // // // SAX overrides // // // // // // // // //
 	
 	public void startDocument() {
-		this.sb = new StringBuilder();
-		//this.depth = 0;
+		this.out = this.target == null ? new StringBuilder() : this.target;
+		this.depth = 0;
 		this.skip_children = 0;
 	}
 	
-	public void startElement(String uri, String lname, String qname, Attributes attrs) {
-		//++depth;
+	public void startElement(String uri, String lname, String qname, Attributes attrs) 
+			throws SAXException {
+		if(++this.depth == 1 && this.omitRoot) return;
 		
-		String name;
-		int c;
-		if( (c = qname.indexOf(':')) >= 0)
-			name = qname.substring(c+1).toLowerCase();
-		else name = qname.toLowerCase();
+		String name = localName(qname);
 		
 		// Check on status of this element:
-		//System.out.println("Name: " + name);
-		if( Arrays.binarySearch(this.sorted_elements_blacklist, name) >= 0 ) {
-			// blacklist
-			//System.out.println("Skip children ++ for " + name);
-			++this.skip_children;
-		} else if(Arrays.binarySearch(this.sorted_elements_replace, name) >= 0) {
-			// Replace element with span.
-			//this.addElement("span", null); // Don't translate attributes
-			if(this.skip_children == 0)
-				this.sb.append("<span>");
-		} else {
-			if( this.skip_children > 0) return; // Skip adding this...
-			// Element is okay, get attrs.
-			int i, j = attrs.getLength();
-			StringBuilder sbAttr = new StringBuilder();
-			for(i = 0; i < j; ++i) {
-				sbAttr.append( this.cleanAttr(attrs.getQName(i), attrs.getValue(i)));
+		try {
+			if( Arrays.binarySearch(sorted_elements_blacklist, name) >= 0 ) {
+				// blacklist
+				++this.skip_children;
+			} else if(Arrays.binarySearch(sorted_elements_replace, name) >= 0) {
+				// Replace element with span.
+				if(this.skip_children == 0)
+					this.out.append("<span>");
+			} else {
+				if( this.skip_children > 0) return; // Skip adding this...
+				// Element is okay, get attrs.
+				this.out.append('<').append(qname);
+				int i, j = attrs.getLength();
+				for(i = 0; i < j; ++i) {
+					this.appendAttr(this.out, attrs.getQName(i), attrs.getValue(i));
+				}
+				this.out.append('>');
 			}
-			this.addElement(qname, sbAttr.toString());
+		} catch (IOException e) {
+			throw new SAXException(e);
 		}
-		//System.out.println(this.skip_children);
 	}
 	
-	public void endElement(String uri, String lname, String qname ) {
-		//--depth;
+	public void endElement(String uri, String lname, String qname ) throws SAXException {
+		if(this.depth-- == 1 && this.omitRoot) return;
 		
-		String name;
-		int j;
-		if( (j = qname.indexOf(':')) >= 0)
-			name = qname.substring(j+1).toLowerCase();
-		else name = qname.toLowerCase();
+		String name = localName(qname);
 		
-		//System.out.format("QNAME: %s, NAME: %s\n", qname, name);
 		// FIXME: With depth + element name, should be able to skip this.
-		if( Arrays.binarySearch(this.sorted_elements_blacklist, name) >= 0 ) {
-			// blacklist
-			//System.out.println("Skip children -- for " + name);
-			--this.skip_children;
-		} else if(Arrays.binarySearch(this.sorted_elements_replace, name) >= 0) {
-			//this.addElement("span");
-			this.sb.append("</span>");
-		} else {
-			this.sb.append("</");
-			this.sb.append(qname);
-			this.sb.append('>');
+		try {
+			if( Arrays.binarySearch(sorted_elements_blacklist, name) >= 0 ) {
+				// blacklist
+				--this.skip_children;
+			} else if(Arrays.binarySearch(sorted_elements_replace, name) >= 0) {
+				this.out.append("</span>");
+			} else {
+				this.out.append("</").append(qname).append('>');
+			}
+		} catch (IOException e) {
+			throw new SAXException(e);
 		}
-		//System.out.println(this.skip_children);
 	}
 
-	public void characters(char[] ch, int start, int len) {
-		
-		if(this.skip_children < 1) {
-			//String str = new String(ch, start, len);
-			//System.out.println("Characters was called with " + str);
-			
-			/*
-			 * Iterate through the char array and see if any of the characters need
-			 * to be replaced:
-			 */
-			int j;
-			for(int i = 0; i< len; ++i ) {
-				j = start + i;
-				// According to XML spec, these chars have to be resolved by parser.
-				// Now we need to reverse that:
-				switch(ch[j]) {
-				case '<':
-					//System.out.println("Got an LT");
-					sb.append("&lt;");
-					break;
-				case '&':
-					sb.append("&amp;");
-					break;
-				case '>':
-					sb.append("&gt;");
-					break;
-				// Encode other entities.
-				default:
-					// Note: How this behaves is dependent on the selected charset. For example,
-					// grave-accented letters will not be encoded if charset is UTF-8.
-					if( Character.isLetterOrDigit(ch[j]) || (int)ch[j] <= 126 )
-						sb.append( ch[j] );
-					else { // If char is above 126 and not a letter, I guess we encode it.
-						sb.append("&#");
-						sb.append((int)ch[j]);
-						sb.append(';');
-					}
-				}// Done with switch.
-			} // Done with for()
-		} // Done with keep childrend.
+	public void characters(char[] ch, int start, int len) throws SAXException {
 		// If not keep children, do nothing.
+		if(this.skip_children > 0) return;
+		try {
+			appendEscaped(this.out, ch, start, len, false);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
 	}
 	
-	/*
-	public void resovleEntity(String name, String pubID, String uri, String sysID ) {
-		System.out.format("RESOLVE name: %s, uri: %s", name, uri);
-	}
-	
-	public void resovleEntity(String pubID, String sysID ) {
-		System.out.format("RESOLVE name: %s, uri: %s", pubID, sysID);
-	}
-	*/
-	
 	public void startCDATA() {
 		++this.skip_children;
 	}
@@ -337,88 +299,101 @@ public class RHTMLHandler extends DefaultHandler2 {
 		
 	}
 	
-	/*
-	public void startEntity(String n) {
-		System.out.println("Starting entity.");
-	}
-	*/
 	// // // // // // // // Utilities // // // // // // // // //
-	protected String cleanAttr(String name, String val) {
-		
-		// Get rid of namespace prefix:
-		String rname;
-		int c = name.indexOf(':');
-		if( c >= 0 ) rname = name.substring(c).toLowerCase();
-		else rname = name.toLowerCase();
-		
-		StringBuilder attr = new StringBuilder( name.length() + val.length() + 5);
-		if( Arrays.binarySearch(this.sorted_attributes_blacklist, rname) >= 0 ) {
-			// Do nothing... attribute is blacklisted.
-			attr.append("");
-		} else if(Arrays.binarySearch(this.sorted_attributes_greylist, rname) >= 0) {
-			// Find out if the protocol is correct:
-			int colon = -1;
-			if( (colon = val.indexOf(':')) >= 0) {
-				String proto= val.substring(0, colon);
-				if(Arrays.binarySearch(this.sorted_protocol_whitelist, proto) >= 0) {
-					// Protocol is OK; write the attribute.
-					attr.append(' ');
-					attr.append(name);
-					attr.append("=\"");
-					attr.append(val);
-					attr.append('"');
-				}
-			} else { 
-				// This attribute is okay.
-				// The item in the path is either a relative or absolute path.
-				attr.append(' ');
-				attr.append(name);
-				attr.append("=\"");
-				attr.append(val);
-				attr.append('"');
+	
+	/**
+	 * Lower-case element name without any namespace prefix.
+	 */
+	private static String localName(String qname) {
+		int c = qname.indexOf(':');
+		if(c >= 0) qname = qname.substring(c + 1);
+		return qname.toLowerCase();
+	}
+	
+	/**
+	 * Write character data.
+	 * <p>According to XML spec, the parser resolves &amp;, &lt; and &gt;. Now we need to 
+	 * reverse that. Characters above 126 that are not letters or digits are written 
+	 * as numeric references. In an attribute value, double quotes are escaped too.</p>
+	 */
+	private static void appendEscaped(Appendable out, char[] ch, int start, int len, boolean attr) 
+			throws IOException {
+		CharBuffer cb = null;
+		int run = start, end = start + len;
+		for(int j = start; j < end; ++j) {
+			char c = ch[j];
+			// Note: How this behaves is dependent on the selected charset. For example,
+			// grave-accented letters will not be encoded if charset is UTF-8.
+			if(c != '<' && c != '&' && c != '>' && (c != '"' || !attr) 
+					&& (c <= 126 || Character.isLetterOrDigit(c))) 
+				continue;
+			if(j > run) {
+				if(cb == null) cb = CharBuffer.wrap(ch);
+				out.append(cb, run, j);
+			}
+			run = j + 1;
+			switch(c) {
+			case '<':
+				out.append("&lt;");
+				break;
+			case '&':
+				out.append("&amp;");
+				break;
+			case '>':
+				out.append("&gt;");
+				break;
+			case '"':
+				out.append("&quot;");
+				break;
+			default:
+				// If char is above 126 and not a letter, I guess we encode it.
+				out.append("&#").append(Integer.toString(c)).append(';');
 			}
-			
-		} else {
-			// This attribute is okay.
-			// The attribute is not in a black or greylist
-			attr.append(' ');
-			attr.append(name);
-			attr.append("=\"");
-			attr.append(val);
-			attr.append('"');
 		}
-		return attr.toString();
+		if(end > run) {
+			if(cb == null) cb = CharBuffer.wrap(ch);
+			out.append(cb, run, end);
+		}
 	}
 	
-	private void addElement(String name, String attributes) {
-		
-		sb.append('<');
-		sb.append(name);
-		if(attributes != null) sb.append(attributes);
-		sb.append('>');
-	}
-	/*
-	 * FIXME: Add level code in to calculate whether start and end element should
-	 * be condensed, e.g. <br></br> => <br/>
-	private void addStartElement(String name, String attributes) {
-		if( this.prevElement != null) {
-			sb.append('<');
-			sb.append(prevElement);
-			if(prevAttrs != null) sb.append(prevAttrs);
-			sb.append('>');
+	/**
+	 * Clean an attribute.
+	 * @param name Attribute name.
+	 * @param val Attribute value.
+	 * @return The attribute (with a leading space), or an empty string if it is not allowed.
+	 */
+	protected String cleanAttr(String name, String val) {
+		StringBuilder attr = new StringBuilder( name.length() + val.length() + 5);
+		try {
+			this.appendAttr(attr, name, val);
+		} catch (IOException e) {
+			// StringBuilder does not throw.
 		}
-		this.prevElement = name;
-		this.prevAttrs = attributes;
+		return attr.toString();
 	}
 	
-	private void addEndElement(String name) {
-		if( this.prevElement.equalsIgnoreCase(name)) {
-			sb.append('<');
-			sb.append(name);
-			if(prevAttrs != null) sb.append(prevAttrs);
-			sb.append("/>");
+	private void appendAttr(Appendable attr, String name, String val) throws IOException {
+		// Get rid of namespace prefix:
+		String rname = localName(name);
+		
+		if( Arrays.binarySearch(sorted_attributes_blacklist, rname) >= 0 ) {
+			// Do nothing... attribute is blacklisted.
+			return;
+		} 
+		if(Arrays.binarySearch(sorted_attributes_greylist, rname) >= 0) {
+			// Find out if the protocol is correct:
+			int colon = val.indexOf(':');
+			if( colon >= 0) {
+				String proto= val.substring(0, colon);
+				// Protocol is not OK; leave the attribute out.
+				if(Arrays.binarySearch(sorted_protocol_whitelist, proto) < 0) return;
+			}
+			// Otherwise, the item in the path is either a relative or absolute path.
 		}
+		// This attribute is okay.
+		attr.append(' ').append(name).append("=\"");
+		char[] vc = val.toCharArray();
+		appendEscaped(attr, vc, 0, vc.length, true);
+		attr.append('"');
 	}
-	*/
-	
 }
@@ -0,0 +1,195 @@
+package com.technosophos.sinciput.xml.rhtml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Cleans (X)HTML into RHTML, reusing one parser per thread.
+ * <p>This does the same job as {@link RHTML}, but is meant to be called often. Each
+ * thread gets its own instance (from {@link #getInstance()}), which keeps a SAX parser
+ * and an {@link RHTMLHandler} and reuses them for every document. Named entities are
+ * looked up in {@link RHTMLEntities}'s table as the document is read, so no entity DTD
+ * has to be parsed, and the cleaned HTML is written straight to the caller's
+ * {@link Appendable}. External entities and DTDs are never read.</p>
+ * <pre>
+ * StringBuilder sb = new StringBuilder(html.length());
+ * RHTMLSanitizer.getInstance().sanitizeFragment(html, sb);
+ * </pre>
+ * <p>An instance must not be shared between threads.</p>
+ * @author mbutcher
+ * @see RHTMLHandler
+ */
+public final class RHTMLSanitizer {
+
+	private static final ThreadLocal<RHTMLSanitizer> local = new ThreadLocal<RHTMLSanitizer>() {
+		protected RHTMLSanitizer initialValue() {
+			return new RHTMLSanitizer();
+		}
+	};
+
+	private SAXParser parser = null;
+	private RHTMLHandler handler = new RHTMLHandler();
+	private boolean busy = false;
+
+	private RHTMLSanitizer() {}
+
+	/**
+	 * Get this thread's sanitizer.
+	 * @return A sanitizer for use by the current thread only.
+	 */
+	public static RHTMLSanitizer getInstance() {
+		RHTMLSanitizer s = local.get();
+		// Only possible if output to an Appendable calls back in here.
+		if(s.busy) return new RHTMLSanitizer();
+		return s;
+	}
+
+	/**
+	 * Clean a complete, well-formed document.
+	 * @param html Reader with the document.
+	 * @param out Where the cleaned document is written.
+	 * @throws SAXException if the document cannot be parsed.
+	 * @throws IOException if reading or writing fails.
+	 */
+	public void sanitize(Reader html, Appendable out) throws SAXException, IOException {
+		this.parse(new EntityReader(html), out, false);
+	}
+
+	/**
+	 * Clean a complete, well-formed document.
+	 * @param html The document.
+	 * @param out Where the cleaned document is written.
+	 * @throws SAXException if the document cannot be parsed.
+	 * @throws IOException if writing fails.
+	 */
+	public void sanitize(String html, Appendable out) throws SAXException, IOException {
+		this.sanitize(new StringReader(html), out);
+	}
+
+	/**
+	 * Clean an HTML fragment.
+	 * <p>The fragment does not need a single root element: it is parsed as if it were
+	 * wrapped in a <code>span</code>, and the wrapper is left out of the output.</p>
+	 * @param html The fragment.
+	 * @param out Where the cleaned fragment is written.
+	 * @throws SAXException if the fragment cannot be parsed.
+	 * @throws IOException if writing fails.
+	 */
+	public void sanitizeFragment(String html, Appendable out) throws SAXException, IOException {
+		this.parse(new EntityReader(new FragmentReader(html)), out, true);
+	}
+
+	private void parse(Reader in, Appendable out, boolean omitRoot) throws SAXException, IOException {
+		this.busy = true;
+		try {
+			if(this.parser == null) this.parser = newParser();
+			this.handler.setOutput(out);
+			this.handler.setOmitRoot(omitRoot);
+			// Not parser.parse(in, handler), which would make the handler the entity resolver.
+			XMLReader reader = this.parser.getXMLReader();
+			reader.setContentHandler(this.handler);
+			reader.setErrorHandler(this.handler);
+			reader.setDTDHandler(this.handler);
+			reader.setEntityResolver(NO_ENTITIES);
+			reader.parse(new InputSource(in));
+		} finally {
+			this.handler.setOutput(null);
+			// Null if newParser() failed. Do not hide that exception.
+			if(this.parser != null) this.parser.reset();
+			this.busy = false;
+		}
+	}
+
+	/**
+	 * Create a parser that never reads external entities or DTDs.
+	 * <p>The documents come from users, so a DOCTYPE or entity that points at a file
+	 * or URL must not be followed. The features are turned off where the parser
+	 * knows them, and {@link #NO_ENTITIES} catches anything that gets through.</p>
+	 */
+	private static SAXParser newParser() throws SAXException {
+		SAXParserFactory f = SAXParserFactory.newInstance();
+		setFeature(f, "http://xml.org/sax/features/external-general-entities", false);
+		setFeature(f, "http://xml.org/sax/features/external-parameter-entities", false);
+		setFeature(f, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		// Limits entity expansion.
+		setFeature(f, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		try {
+			return f.newSAXParser();
+		} catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	private static void setFeature(SAXParserFactory f, String name, boolean value) {
+		try {
+			f.setFeature(name, value);
+		} catch (Exception e) {
+			// Not supported by this parser.
+		}
+	}
+
+	/**
+	 * Resolves every external entity to nothing.
+	 */
+	private static final EntityResolver NO_ENTITIES = new EntityResolver() {
+		public InputSource resolveEntity(String publicId, String systemId) {
+			return new InputSource(new StringReader(""));
+		}
+	};
+
+	/**
+	 * Reads a string as if it were wrapped in a span, without copying it.
+	 */
+	private static class FragmentReader extends Reader {
+		private static final String OPEN = "<span>";
+		private static final String CLOSE = "</span>";
+
+		private String html;
+		// Position in OPEN + html + CLOSE.
+		private int pos = 0;
+		private int end;
+
+		FragmentReader(String html) {
+			this.html = html;
+			this.end = OPEN.length() + html.length() + CLOSE.length();
+		}
+
+		public int read(char[] cbuf, int off, int len) {
+			if(this.pos >= this.end) return -1;
+			int n = 0;
+			while(n < len && this.pos < this.end) {
+				String s;
+				int base;
+				if(this.pos < OPEN.length()) {
+					s = OPEN;
+					base = 0;
+				} else if(this.pos < OPEN.length() + this.html.length()) {
+					s = this.html;
+					base = OPEN.length();
+				} else {
+					s = CLOSE;
+					base = OPEN.length() + this.html.length();
+				}
+				int from = this.pos - base;
+				int k = Math.min(len - n, s.length() - from);
+				s.getChars(from, from + k, cbuf, off + n);
+				n += k;
+				this.pos += k;
+			}
+			return n;
+		}
+
+		public void close() {}
+	}
+}
@@ -0,0 +1,165 @@
+package com.technosophos.sinciput.sru;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.technosophos.sinciput.xml.mods.MODSRecord;
+
+/**
+ * Parses canned SRU responses with {@link SRUResponseParser}.
+ * @author mbutcher
+ *
+ */
+public class SRUResponseParserTest {
+
+	private static final String HEAD =
+		"<?xml version=\"1.0\"?>"
+		+ "<zs:searchRetrieveResponse xmlns:zs=\"http://www.loc.gov/zing/srw/\">"
+		+ "<zs:version>1.1</zs:version><zs:numberOfRecords>%s</zs:numberOfRecords><zs:records>";
+	private static final String TAIL = "</zs:records></zs:searchRetrieveResponse>";
+
+	@Test
+	public void testXMLPacking() throws Exception {
+		SRUResponse res = parse(response("2", xmlRecord("First"), xmlRecord("Second")), null);
+		assertEquals("1.1", res.getVersion());
+		assertEquals(Integer.valueOf(2), res.getNumberOfRecords());
+		assertEquals(2, res.getMODSRecords().size());
+		assertEquals("First", res.getMODSRecords().get(0).getTitle());
+		assertEquals("Second", res.getMODSRecords().get(1).getTitle());
+		assertFalse(res.hasError());
+		assertTrue(res.getWarnings().isEmpty());
+	}
+
+	@Test
+	public void testStringPacking() throws Exception {
+		SRUResponse res = parse(response("1", stringRecord(mods("Escaped"))), null);
+		assertEquals(1, res.getMODSRecords().size());
+		assertEquals("Escaped", res.getMODSRecords().get(0).getTitle());
+		assertTrue(res.getWarnings().isEmpty());
+	}
+
+	@Test
+	public void testBadStringRecordIsSkipped() throws Exception {
+		SRUResponse res = parse(response("2", stringRecord("<mods><titleInfo>"), xmlRecord("Good")), null);
+		assertEquals(1, res.getMODSRecords().size());
+		assertEquals("Good", res.getMODSRecords().get(0).getTitle());
+		assertFalse(res.hasError());
+		assertEquals(1, res.getWarnings().size());
+		assertEquals(SRUResponse.DIAG_BAD_RECORD, res.getWarnings().get(0).getURI());
+	}
+
+	@Test
+	public void testNonMODSRecordsAreSkipped() throws Exception {
+		String dc = "<zs:record><zs:recordSchema>dc</zs:recordSchema>"
+			+ "<zs:recordPacking>xml</zs:recordPacking><zs:recordData>"
+			+ "<dc xmlns=\"http://purl.org/dc/elements/1.1/\"><title>Dublin Core</title></dc>"
+			+ "</zs:recordData></zs:record>";
+		SRUResponse res = parse(response("2", dc, xmlRecord("MODS")), null);
+		assertEquals(1, res.getMODSRecords().size());
+		assertEquals("MODS", res.getMODSRecords().get(0).getTitle());
+	}
+
+	@Test
+	public void testMaxRecords() throws Exception {
+		String[] records = new String[SRUResponse.MAX_RECORDS + 5];
+		for(int i = 0; i < records.length; ++i) {
+			records[i] = i % 2 == 0 ? xmlRecord("Title " + i) : stringRecord(mods("Title " + i));
+		}
+		final List<MODSRecord> got = new ArrayList<MODSRecord>();
+		SRUResponse res = parse(response(String.valueOf(records.length), records), new MODSListener() {
+			public void record(MODSRecord rec) {
+				got.add(rec);
+			}
+		});
+		assertEquals(SRUResponse.MAX_RECORDS, got.size());
+		assertEquals("Title " + (SRUResponse.MAX_RECORDS - 1), got.get(got.size() - 1).getTitle());
+		// Given to the listener, not kept.
+		assertTrue(res.getMODSRecords().isEmpty());
+		assertEquals(Integer.valueOf(records.length), res.getNumberOfRecords());
+	}
+
+	@Test
+	public void testBadNumberOfRecords() throws Exception {
+		SRUResponse res = parse(response("many", xmlRecord("One")), null);
+		assertEquals(Integer.valueOf(0), res.getNumberOfRecords());
+		assertEquals(1, res.getMODSRecords().size());
+		assertEquals(1, res.getWarnings().size());
+		assertEquals(SRUResponse.DIAG_BAD_COUNT, res.getWarnings().get(0).getURI());
+		assertEquals("many", res.getWarnings().get(0).getDetails());
+	}
+
+	@Test
+	public void testDiagnostic() throws Exception {
+		String xml = String.format(HEAD, "0")
+			+ "</zs:records><zs:diagnostics><diagnostic xmlns=\"http://www.loc.gov/zing/srw/diagnostic/\">"
+			+ "<uri>info:srw/diagnostic/1/10</uri><message>Query syntax error</message>"
+			+ "<details>dinosaur=</details></diagnostic></zs:diagnostics>"
+			+ "</zs:searchRetrieveResponse>";
+		SRUResponse res = parse(xml, null);
+		assertTrue(res.hasError());
+		assertEquals("info:srw/diagnostic/1/10", res.getErrorDiagnostic().getURI());
+		assertEquals("Query syntax error", res.getErrorDiagnostic().getMessage());
+	}
+
+	/**
+	 * External entities in the response, or in a record with string packing, are
+	 * never read.
+	 */
+	@Test
+	public void testExternalEntitiesAreNotLoaded() throws Exception {
+		File secret = File.createTempFile("sru-secret", ".txt");
+		try {
+			FileWriter w = new FileWriter(secret);
+			w.write("secret");
+			w.close();
+			String doctype = "<!DOCTYPE %s [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]>";
+
+			String xml = String.format(HEAD, "1").replace("?>", "?>" + String.format(doctype, "zs:searchRetrieveResponse"))
+				+ xmlRecord("Title &xxe;") + TAIL;
+			SRUResponse res = parse(xml, null);
+			assertEquals(1, res.getMODSRecords().size());
+			assertFalse(res.getMODSRecords().get(0).getTitle().contains("secret"));
+
+			String record = String.format(doctype, "mods") + mods("Title &xxe;");
+			res = parse(response("1", stringRecord(record)), null);
+			for(MODSRecord rec: res.getMODSRecords()) assertFalse(rec.getTitle().contains("secret"));
+		} finally {
+			secret.delete();
+		}
+	}
+
+	private static SRUResponse parse(String xml, MODSListener listener) throws SRUException, IOException {
+		return SRUResponseParser.getInstance().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), listener);
+	}
+
+	private static String response(String numberOfRecords, String... records) {
+		StringBuilder sb = new StringBuilder(String.format(HEAD, numberOfRecords));
+		for(String r: records) sb.append(r);
+		return sb.append(TAIL).toString();
+	}
+
+	private static String mods(String title) {
+		return "<mods xmlns=\"http://www.loc.gov/mods/v3\"><titleInfo><title>" + title + "</title></titleInfo></mods>";
+	}
+
+	private static String xmlRecord(String title) {
+		return "<zs:record><zs:recordSchema>mods</zs:recordSchema>"
+			+ "<zs:recordPacking>xml</zs:recordPacking><zs:recordData>" + mods(title)
+			+ "</zs:recordData></zs:record>";
+	}
+
+	private static String stringRecord(String xml) {
+		return "<zs:record><zs:recordSchema>mods</zs:recordSchema>"
+			+ "<zs:recordPacking>string</zs:recordPacking><zs:recordData>"
+			+ xml.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+			+ "</zs:recordData></zs:record>";
+	}
+}
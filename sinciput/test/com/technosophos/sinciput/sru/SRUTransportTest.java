@@ -0,0 +1,292 @@
+package com.technosophos.sinciput.sru;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SRUTransport}'s timeouts and connection limits, and the async
+ * queries of {@link SRUClient}, against a stub HTTP server in this JVM.
+ * @author mbutcher
+ *
+ */
+public class SRUTransportTest {
+
+	private static final String RESPONSE =
+		"<?xml version=\"1.0\"?>"
+		+ "<zs:searchRetrieveResponse xmlns:zs=\"http://www.loc.gov/zing/srw/\">"
+		+ "<zs:version>1.1</zs:version><zs:numberOfRecords>1</zs:numberOfRecords>"
+		+ "<zs:records><zs:record><zs:recordSchema>mods</zs:recordSchema>"
+		+ "<zs:recordPacking>xml</zs:recordPacking><zs:recordData>"
+		+ "<mods xmlns=\"http://www.loc.gov/mods/v3\"><titleInfo><title>Stub Title</title></titleInfo></mods>"
+		+ "</zs:recordData><zs:recordPosition>1</zs:recordPosition></zs:record></zs:records>"
+		+ "</zs:searchRetrieveResponse>";
+
+	private StubServer server;
+	private List<Socket> clients = new ArrayList<Socket>();
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new StubServer();
+	}
+
+	@After
+	public void tearDown() {
+		this.server.close();
+		for(Socket s: this.clients) {
+			try {
+				s.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	@Test
+	public void testOpen() throws IOException {
+		SRUTransport t = new SRUTransport(1000, 1000, 1);
+		InputStream in = t.open(this.server.url("/sru"));
+		try {
+			assertEquals(RESPONSE, read(in));
+		} finally {
+			in.close();
+		}
+		assertEquals(SRUClient.AGENT_STRING, this.server.userAgent);
+	}
+
+	@Test
+	public void testReadTimeout() throws IOException {
+		SRUTransport t = new SRUTransport(1000, 200, 1);
+		this.server.delay = 3000;
+		long start = System.currentTimeMillis();
+		try {
+			t.open(this.server.url("/slow")).close();
+			fail("Expected a read timeout.");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+
+		// The connection slot was given back.
+		this.server.delay = 0;
+		t.open(this.server.url("/fast")).close();
+	}
+
+	@Test
+	public void testConnectTimeout() throws IOException {
+		// A server that never accepts. Once its backlog is full, connections hang.
+		ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			boolean full = false;
+			for(int i = 0; i < 16 && !full; ++i) {
+				Socket s = new Socket();
+				this.clients.add(s);
+				try {
+					s.connect(new InetSocketAddress("127.0.0.1", ss.getLocalPort()), 200);
+				} catch (SocketTimeoutException e) {
+					full = true;
+				}
+			}
+			// Some systems refuse instead of letting the connection hang.
+			assumeTrue(full);
+
+			SRUTransport t = new SRUTransport(300, 1000, 1);
+			long start = System.currentTimeMillis();
+			try {
+				t.open(new URL("http://127.0.0.1:" + ss.getLocalPort() + "/")).close();
+				fail("Expected a connect timeout.");
+			} catch (SocketTimeoutException e) {
+				// Expected.
+			}
+			assertTrue(System.currentTimeMillis() - start < 2000);
+		} finally {
+			ss.close();
+		}
+	}
+
+	@Test
+	public void testConnectionLimit() throws IOException {
+		SRUTransport t = new SRUTransport(300, 1000, 1);
+		InputStream held = t.open(this.server.url("/one"));
+		long start = System.currentTimeMillis();
+		try {
+			t.open(this.server.url("/two")).close();
+			fail("Expected the connection limit to be reached.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Too many connections"));
+		}
+		long waited = System.currentTimeMillis() - start;
+		assertTrue(waited >= 250 && waited < 2000);
+
+		// Closing the first stream frees the slot.
+		held.close();
+		t.open(this.server.url("/three")).close();
+	}
+
+	@Test
+	public void testQueryQueueLimit() throws Exception {
+		SRUTransport t = new SRUTransport(1000, 1000, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<Boolean> blocked = new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return release.await(5, TimeUnit.SECONDS);
+			}
+		};
+		// One task runs, and the rest fill the queue.
+		List<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+		for(int i = 0; i <= SRUTransport.MAX_QUEUED_QUERIES; ++i) pending.add(t.submit(blocked));
+		try {
+			t.submit(blocked);
+			fail("Expected the query to be refused.");
+		} catch (RejectedExecutionException e) {
+			// Expected.
+		}
+		release.countDown();
+		for(Future<Boolean> f: pending) assertTrue(f.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testQueryMODSAsync() throws Exception {
+		SRUClient client = this.client();
+		Future<SRUResponse> f = client.queryMODSAsync();
+		// The query was built when it was submitted, so the client can be changed.
+		client.setCQL("other");
+		SRUResponse res = f.get(5, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(1), res.getNumberOfRecords());
+		assertEquals(1, res.getMODSRecords().size());
+		assertEquals("Stub Title", res.getMODSRecords().get(0).getTitle());
+		assertTrue(this.server.path.indexOf("query=dinosaur") > 0);
+	}
+
+	@Test
+	public void testQueryAsync() throws Exception {
+		SRUResponse res = this.client().queryAsync().get(5, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(1), res.getNumberOfRecords());
+	}
+
+	@Test
+	public void testQueryAsyncFailure() throws Exception {
+		this.server.status = 500;
+		try {
+			this.client().queryAsync().get(5, TimeUnit.SECONDS);
+			fail("Expected the query to fail.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private SRUClient client() {
+		SRUClient client = new SRUClient(this.server.url("/sru").toString());
+		client.setCQL("dinosaur");
+		client.setRecordSchema(SRUClient.RECORD_SCHEMA_MODS);
+		client.setTransport(new SRUTransport(1000, 1000, 2));
+		return client;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		byte[] buf = new byte[1024];
+		int n;
+		while((n = in.read(buf)) >= 0) sb.append(new String(buf, 0, n, "UTF-8"));
+		return sb.toString();
+	}
+
+	/**
+	 * Answers every request with {@link #RESPONSE}, after an optional delay.
+	 */
+	private static class StubServer implements Runnable {
+		private ServerSocket socket;
+		volatile int delay = 0;
+		volatile int status = 200;
+		volatile String path;
+		volatile String userAgent;
+
+		StubServer() throws IOException {
+			this.socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			Thread t = new Thread(this, "sru-stub");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		URL url(String path) {
+			try {
+				return new URL("http://127.0.0.1:" + this.socket.getLocalPort() + path);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void run() {
+			while(!this.socket.isClosed()) {
+				final Socket s;
+				try {
+					s = this.socket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						serve(s);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		private void serve(Socket s) {
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+				String line = r.readLine();
+				if(line == null) return;
+				this.path = line.split(" ")[1];
+				while((line = r.readLine()) != null && line.length() > 0) {
+					if(line.toLowerCase().startsWith("user-agent:"))
+						this.userAgent = line.substring(11).trim();
+				}
+				if(this.delay > 0) Thread.sleep(this.delay);
+				byte[] body = RESPONSE.getBytes("UTF-8");
+				OutputStream out = s.getOutputStream();
+				out.write(("HTTP/1.1 " + this.status + " Stub\r\n"
+						+ "Content-Type: text/xml; charset=UTF-8\r\n"
+						+ "Content-Length: " + body.length + "\r\n"
+						+ "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+				out.write(body);
+				out.flush();
+			} catch (Exception e) {
+				// The client gave up.
+			} finally {
+				try {
+					s.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		void close() {
+			try {
+				this.socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}